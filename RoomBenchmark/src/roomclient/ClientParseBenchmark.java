@@ -0,0 +1,156 @@
+package roomclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * How long the client takes to read and pick apart what the server sends
+ * when a lobby fills up: a NEWCLIENT, a BUSY and a lobby message per
+ * player, in the text protocol and in the binary protocol.
+ * <p>
+ * The server's part is played by a stream of what it would send, which a
+ * ClientConnection reads and dispatches just as it reads a socket.  The
+ * binary stream starts with the name exchange which switches to frames.
+ * @author Jed Wang
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientParseBenchmark {
+    /**
+     * How many players are in the lobby
+     */
+    private static final int PLAYERS = 100;
+
+    /**
+     * What the server sends in the text protocol
+     */
+    private byte[] text;
+
+    /**
+     * What the server sends in the binary protocol
+     */
+    private byte[] binary;
+
+    /**
+     * A connection which hands everything it is told to a Blackhole
+     */
+    private static final class Lobby extends ClientConnection {
+        /**
+         * Takes what the connection is told
+         */
+        private final Blackhole bh;
+
+        /**
+         * Creates a connection.
+         * @param bh takes what the connection is told
+         */
+        Lobby(Blackhole bh) {
+            this.bh = bh;
+        }
+
+        @Override
+        protected String chooseName(boolean first) {
+            return "me";
+        }
+
+        @Override
+        protected void newClient(String newClient, boolean isNew) {
+            bh.consume(newClient);
+            bh.consume(isNew);
+        }
+
+        @Override
+        protected void statusChanged(String player, boolean busy) {
+            bh.consume(player);
+            bh.consume(busy);
+        }
+
+        @Override
+        protected void lobbyMessage(String message) {
+            bh.consume(message);
+        }
+    }
+
+    /**
+     * Encodes what the server sends in both protocols.
+     * @throws IOException never
+     */
+    @Setup
+    public void setUp() throws IOException {
+        ByteArrayOutputStream t = new ByteArrayOutputStream();
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        b.write(BinaryCodec.utf8("SUBMITNAME " + BinaryCodec.BINARY + "\n"));
+        b.write(BinaryCodec.utf8("NAMEACCEPTED " + BinaryCodec.BINARY +
+                " " + PLAYERS + "\n"));
+        for(int i = 0; i < PLAYERS; i++) {
+            String name = "player" + i;
+            t.write(BinaryCodec.utf8("NEWCLIENTtrue " + name + "\n"));
+            t.write(BinaryCodec.utf8("BUSY" + name + "\n"));
+            t.write(BinaryCodec.utf8("NLM" + name + ": good game\n"));
+
+            byte[] n = BinaryCodec.utf8(name);
+            byte[] body = new byte[n.length + 1];
+            body[0] = 1;
+            System.arraycopy(n, 0, body, 1, n.length);
+            BinaryCodec.writeFrame(b, BinaryCodec.NEWCLIENT,
+                    BinaryCodec.varintThen(i, body));
+            BinaryCodec.writeFrame(b, BinaryCodec.BUSY,
+                    BinaryCodec.varintThen(i, new byte[0]));
+            BinaryCodec.writeFrame(b, BinaryCodec.NLM,
+                    BinaryCodec.varintThen(i, BinaryCodec.utf8("good game")));
+        }
+        text = t.toByteArray();
+        binary = b.toByteArray();
+    }
+
+    /**
+     * Has a new connection read everything the server sent.
+     * @param sent what the server sent
+     * @param bh takes what the connection is told
+     * @throws IOException never
+     */
+    private static void read(byte[] sent, Blackhole bh) throws IOException {
+        Lobby lobby = new Lobby(bh);
+        lobby.connect(new ByteArrayInputStream(sent),
+                OutputStream.nullOutputStream());
+        lobby.run();
+    }
+
+    /**
+     * Reads and dispatches the text protocol.
+     * @param bh takes the results
+     * @throws IOException never
+     */
+    @Benchmark
+    public void text(Blackhole bh) throws IOException {
+        read(text, bh);
+    }
+
+    /**
+     * Reads and dispatches the binary protocol.
+     * @param bh takes the results
+     * @throws IOException never
+     */
+    @Benchmark
+    public void binary(Blackhole bh) throws IOException {
+        read(binary, bh);
+    }
+}
@@ -0,0 +1,112 @@
+package roomserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import roomserver.ClientCommunication.Handler;
+
+/**
+ * How long the broadcaster takes to put one lobby message on the queue of
+ * every client, and have it written, for lobbies of different sizes; and
+ * the same for the BUSY of both players of a new game, sent apart and in
+ * one frame.
+ * @author Jed Wang
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+    /**
+     * What is said
+     */
+    private static final byte[] TEXT =
+            "good game everybody".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * How many clients are in the lobby
+     */
+    @Param({"10", "100", "1000"})
+    public int clients;
+
+    /**
+     * Which codec the clients use: text, binary, or half and half
+     */
+    @Param({"text", "binary", "mixed"})
+    public String codec;
+
+    /**
+     * The clients, as the broadcaster would get them
+     */
+    private Handler[] to;
+
+    /**
+     * Connects the clients.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        for(int i = 0; i < clients; i++) {
+            boolean binary = codec.equals("binary") ||
+                    (codec.equals("mixed") && i % 2 == 0);
+            InMemoryHandler.named("player" + i, binary);
+        }
+        to = ClientCommunication.registry.snapshot();
+    }
+
+    /**
+     * Sends a lobby message to everybody, the way the broadcaster does.
+     * @return the message
+     */
+    @Benchmark
+    public Message fanOut() {
+        Handler from = to[0];
+        Message m = new Message(Codec.NLM,
+                c -> c.lobbyMessage(from, TEXT));
+        for(Handler h : to) {
+            h.send(m, OutboundQueue.CHAT, null);
+        }
+        return m;
+    }
+
+    /**
+     * Tells everybody that two players are busy, one frame at a time.
+     * @return the second player's BUSY
+     */
+    @Benchmark
+    public Message busyApart() {
+        Handler a = to[0], b = to[1];
+        for(Handler h : to) {
+            h.send(a.presence.busy, OutboundQueue.STATUS, a.getClientName());
+            h.send(b.presence.busy, OutboundQueue.STATUS, b.getClientName());
+        }
+        return b.presence.busy;
+    }
+
+    /**
+     * Tells everybody that two players are busy in one frame.
+     * @return the message
+     */
+    @Benchmark
+    public Message busyPaired() {
+        Handler a = to[0], b = to[1];
+        Message m = Presence.pair(Codec.BUSY, a, b);
+        for(Handler h : to) {
+            h.send(m, OutboundQueue.PAIR_STATUS, a.getClientName(),
+                    b.getClientName());
+        }
+        return m;
+    }
+}
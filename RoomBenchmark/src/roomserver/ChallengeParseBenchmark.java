@@ -0,0 +1,151 @@
+package roomserver;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import roomserver.ClientCommunication.Handler;
+
+/**
+ * How long it takes to read a CHALLENGE_R and find the challenger, through
+ * each codec's decode, which reads the message where it lies in the
+ * inbound buffer.  The scanner baseline reads the same line the way the
+ * text codec used to, into Strings.
+ * @author Jed Wang
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChallengeParseBenchmark {
+    /**
+     * A client which notes the challenge response it was sent rather
+     * than acting on it
+     */
+    private static final class Responder extends InMemoryHandler {
+        /**
+         * The challenger named in the last response
+         */
+        Handler challenger;
+
+        /**
+         * Whether the last response accepted
+         */
+        boolean accepted;
+
+        @Override
+        void onChallengeResponse(Handler other, boolean accepted) {
+            challenger = other;
+            this.accepted = accepted;
+        }
+    }
+
+    /**
+     * The text command, as the scanner baseline is given it
+     */
+    private static final String LINE = "CHALLENGE_Rchallenger true";
+
+    /**
+     * The client answering in the text protocol
+     */
+    private Responder text;
+
+    /**
+     * The client answering in the binary protocol
+     */
+    private Responder binary;
+
+    /**
+     * The text command, as an inbound buffer holds it
+     */
+    private ByteBuffer line;
+
+    /**
+     * The binary frame, as an inbound buffer holds it
+     */
+    private ByteBuffer frame;
+
+    /**
+     * Connects the challenger and a client answering it with each codec,
+     * and encodes the answers.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        InMemoryHandler challenger = InMemoryHandler.named("challenger",
+                false);
+        text = responder("text-responder", false);
+        binary = responder("binary-responder", true);
+        byte[] b = (LINE + "\n").getBytes(StandardCharsets.UTF_8);
+        line = InMemoryHandler.direct(b, b.length);
+        frame = InMemoryHandler.binaryFrame(Codec.CHALLENGE_R,
+                InMemoryHandler.varintThen(challenger.getId(), (byte) 1));
+    }
+
+    /**
+     * Creates a responder and gives it a name.
+     * @param name the name, which must not be in use
+     * @param binary whether the client asks for the binary codec
+     * @return the responder, free and registered
+     */
+    private static Responder responder(String name, boolean binary) {
+        Responder r = new Responder();
+        r.opened();
+        r.onName(binary ? name + " " + TextCodec.BINARY : name);
+        return r;
+    }
+
+    /**
+     * Decodes the text command with the text codec.
+     * @param bh takes the results
+     * @throws ProtocolException never
+     */
+    @Benchmark
+    public void text(Blackhole bh) throws ProtocolException {
+        line.rewind();
+        text.codec.decode(line, text);
+        bh.consume(text.challenger);
+        bh.consume(text.accepted);
+    }
+
+    /**
+     * Decodes the binary frame with the binary codec.
+     * @param bh takes the results
+     * @throws ProtocolException never
+     */
+    @Benchmark
+    public void binary(Blackhole bh) throws ProtocolException {
+        frame.rewind();
+        binary.codec.decode(frame, binary);
+        bh.consume(binary.challenger);
+        bh.consume(binary.accepted);
+    }
+
+    /**
+     * Reads the body of the text command with a Scanner and looks the
+     * challenger up by a String, as the text codec used to.  A baseline
+     * only; nothing in the server reads messages this way now.
+     * @param bh takes the results
+     */
+    @Benchmark
+    public void scanner(Blackhole bh) {
+        Scanner temp = new Scanner(LINE.substring(11));
+        bh.consume(ClientCommunication.registry.get(
+                new PlayerName(temp.next())));
+        bh.consume(temp.nextBoolean());
+    }
+}
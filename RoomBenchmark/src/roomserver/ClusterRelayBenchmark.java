@@ -0,0 +1,131 @@
+package roomserver;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import roomserver.ClientCommunication.Handler;
+
+/**
+ * How long a move takes from being decoded on one node of a cluster to
+ * arriving at the opponent's node, with each codec.  The server is node 0;
+ * node 1 is played by this benchmark over the loopback transport, so this
+ * measures the cluster and not the network.
+ * @author Jed Wang
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClusterRelayBenchmark {
+    /**
+     * The id of the opponent on node 1
+     */
+    private static final int OPPONENT = ClientRegistry.MAX_NODES + 1;
+
+    /**
+     * The codec the sender uses: text or binary
+     */
+    @Param({"text", "binary"})
+    public String codec;
+
+    /**
+     * The client sending the moves, on node 0
+     */
+    private Handler sender;
+
+    /**
+     * The move, encoded
+     */
+    private ByteBuffer frame;
+
+    /**
+     * How many moves node 1 has received
+     */
+    private final AtomicLong received = new AtomicLong();
+
+    /**
+     * The thread waiting for a move to arrive
+     */
+    private volatile Thread waiting;
+
+    /**
+     * Starts both nodes, lists the opponent on node 1, and pairs it with
+     * the sender.
+     * @throws Exception if the cluster cannot start
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Cluster.start(0, new LoopbackTransport());
+        LoopbackTransport far = new LoopbackTransport();
+        far.start(1, new ClusterTransport.Receiver() {
+            @Override
+            public void connected(int node) {
+                far.publish(Cluster.join(OPPONENT, false, new byte[0],
+                        "far".getBytes(StandardCharsets.UTF_8)));
+            }
+
+            @Override
+            public void received(int node, ByteBuffer message) {
+                if(message.get(0) == Cluster.GAME) {
+                    received.incrementAndGet();
+                    LockSupport.unpark(waiting);
+                }
+            }
+
+            @Override
+            public void disconnected(int node) {
+            }
+        });
+        while(ClientCommunication.registry.get(OPPONENT) == null) {
+            Thread.sleep(10);
+        }
+
+        boolean binary = codec.equals("binary");
+        sender = InMemoryHandler.named("near", binary);
+        if(!ClientCommunication.registry.pairRemote(sender,
+                ClientCommunication.registry.get(OPPONENT)))
+            throw new IllegalStateException("could not pair");
+        if(binary) {
+            frame = InMemoryHandler.binaryFrame(Codec.M,
+                    "RR".getBytes(StandardCharsets.UTF_8));
+        } else {
+            byte[] b = "MRR\n".getBytes(StandardCharsets.UTF_8);
+            frame = InMemoryHandler.direct(b, b.length);
+        }
+    }
+
+    /**
+     * Decodes a move and waits for it to reach the opponent's node.
+     * @return how many moves have arrived
+     * @throws ProtocolException never
+     */
+    @Benchmark
+    public long move() throws ProtocolException {
+        waiting = Thread.currentThread();
+        long expected = received.get() + 1;
+        frame.rewind();
+        sender.codec.decode(frame, sender);
+        long got;
+        while((got = received.get()) < expected) {
+            LockSupport.park(this);
+        }
+        return got;
+    }
+}
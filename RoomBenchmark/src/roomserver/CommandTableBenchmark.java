@@ -0,0 +1,101 @@
+package roomserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finding the command a text line starts with: with the trie, and with a
+ * chain of startsWith tests in the order the text codec used to make them.
+ * @author Jed Wang
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandTableBenchmark {
+    /**
+     * The line
+     */
+    @Param({"PING", "ML", "LOCK 3 19", "NLMhello", "CHALLENGE_Rbob true"})
+    public String line;
+
+    /**
+     * The headers, in the order they used to be tested
+     */
+    private static final byte[][] CHAIN = {bytes("PING"), bytes("NLM"),
+        bytes("EXIT"), bytes("NB"), bytes("NM"), bytes("LOCK"), bytes("M"),
+        bytes("CHALLENGE_C"), bytes("CHALLENGE_R")};
+
+    /**
+     * The opcodes of the headers in CHAIN
+     */
+    private static final int[] CHAIN_OPCODES = {Codec.PING, Codec.NLM,
+        Codec.EXIT, Codec.NB, Codec.NM, Codec.LOCK, Codec.M,
+        Codec.CHALLENGE_C, Codec.CHALLENGE_R};
+
+    /**
+     * The line, as an inbound buffer holds it
+     */
+    private ByteBuffer raw;
+
+    /**
+     * Encodes the line.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        byte[] b = bytes(line);
+        raw = InMemoryHandler.direct(b, b.length);
+    }
+
+    /**
+     * Encodes a string as bytes.
+     * @param s the string, which is ASCII
+     * @return the bytes
+     */
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Finds the command with the trie.
+     * @return the opcode and where the body starts
+     */
+    @Benchmark
+    public long trie() {
+        return CommandTable.COMMANDS.match(raw, 0, raw.limit());
+    }
+
+    /**
+     * Finds the command by testing each header in turn.
+     * @return the opcode and where the body starts
+     */
+    @Benchmark
+    public long chain() {
+        int end = raw.limit();
+        outer:
+        for(int h = 0; h < CHAIN.length; h++) {
+            byte[] header = CHAIN[h];
+            if(end < header.length) continue;
+            for(int i = 0; i < header.length; i++) {
+                if(raw.get(i) != header[i]) continue outer;
+            }
+            return ((long) CHAIN_OPCODES[h] << 32) | header.length;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,153 @@
+package roomserver;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import roomserver.RelayBuffers.Chunk;
+
+/**
+ * How long it takes to decode and dispatch one message from a client, with
+ * each codec.  For in-game messages, also how long the relay takes, which
+ * skips decoding altogether.
+ * @author Jed Wang
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+    /**
+     * The codec the sender uses: text or binary
+     */
+    @Param({"text", "binary"})
+    public String codec;
+
+    /**
+     * The message sent
+     */
+    @Param({"PING", "NLM", "CHALLENGE_R", "LOCK", "M"})
+    public String command;
+
+    /**
+     * The client sending the message
+     */
+    private InMemoryHandler sender;
+
+    /**
+     * The message, encoded
+     */
+    private ByteBuffer frame;
+
+    /**
+     * A chunk to relay into
+     */
+    private Chunk chunk;
+
+    /**
+     * Connects two clients, pairs them if the message is an in-game one,
+     * and encodes the message.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        boolean binary = codec.equals("binary");
+        sender = InMemoryHandler.named("sender", binary);
+        InMemoryHandler other = InMemoryHandler.named("other", false);
+        if(command.equals("LOCK") || command.equals("M")) {
+            ClientCommunication.registry.pair(sender, other);
+        }
+        chunk = RelayBuffers.acquire();
+
+        if(binary) {
+            switch(command) {
+                case "PING":
+                    frame = InMemoryHandler.binaryFrame(Codec.PING,
+                            new byte[0]);
+                    break;
+                case "NLM":
+                    frame = InMemoryHandler.binaryFrame(Codec.NLM,
+                            utf8("good game everybody"));
+                    break;
+                case "CHALLENGE_R":
+                    frame = InMemoryHandler.binaryFrame(Codec.CHALLENGE_R,
+                            InMemoryHandler.varintThen(other.getId(),
+                                    (byte) 0));
+                    break;
+                case "LOCK":
+                    frame = InMemoryHandler.binaryFrame(Codec.LOCK,
+                            utf8(" 3 17"));
+                    break;
+                case "M":
+                    frame = InMemoryHandler.binaryFrame(Codec.M, utf8("RR"));
+                    break;
+            }
+        } else {
+            String line;
+            switch(command) {
+                case "NLM":
+                    line = "NLMgood game everybody";
+                    break;
+                case "CHALLENGE_R":
+                    line = "CHALLENGE_Rother false";
+                    break;
+                case "LOCK":
+                    line = "LOCK 3 17";
+                    break;
+                case "M":
+                    line = "MRR";
+                    break;
+                default:
+                    line = command;
+            }
+            byte[] b = utf8(line + "\n");
+            frame = InMemoryHandler.direct(b, b.length);
+        }
+    }
+
+    /**
+     * Encodes text as UTF-8.
+     * @param s the text
+     * @return the bytes
+     */
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes and handles the message the usual way.
+     * @return whether a message was decoded
+     * @throws ProtocolException never
+     */
+    @Benchmark
+    public boolean decode() throws ProtocolException {
+        frame.rewind();
+        return sender.codec.decode(frame, sender);
+    }
+
+    /**
+     * Relays the message to a text client without decoding it.  Handlers
+     * only relay while in a game, so only LOCK and M are realistic; for
+     * the others this shows what the codec makes of them.
+     * @return how many messages were relayed
+     */
+    @Benchmark
+    public int relay() {
+        frame.rewind();
+        chunk.buffer.clear();
+        return sender.codec.relay(frame, TextCodec.INSTANCE, chunk.buffer);
+    }
+}
@@ -0,0 +1,116 @@
+package roomserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import roomserver.ClientCommunication.Handler;
+
+/**
+ * A Handler with no socket.  Whatever is sent to it is written at once to
+ * a channel which throws the bytes away, so benchmarks measure the
+ * protocol and the queues but not the network.
+ * @author Jed Wang
+ */
+public class InMemoryHandler extends Handler {
+    /**
+     * A channel which takes everything and keeps nothing
+     */
+    static final GatheringByteChannel NULL = new GatheringByteChannel() {
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long written = 0;
+            for(int i = offset; i < offset + length; i++) {
+                written += srcs[i].remaining();
+                srcs[i].position(srcs[i].limit());
+            }
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int written = src.remaining();
+            src.position(src.limit());
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    /**
+     * Creates a handler and gives it a name, as if a client had connected
+     * and submitted one.
+     * @param name the name, which must not be in use
+     * @param binary whether the client asks for the binary codec
+     * @return the handler, free and registered
+     */
+    public static InMemoryHandler named(String name, boolean binary) {
+        InMemoryHandler h = new InMemoryHandler();
+        h.opened();
+        h.onName(binary ? name + " " + TextCodec.BINARY : name);
+        return h;
+    }
+
+    @Override
+    protected void requestFlush() {
+        try {
+            out.drainTo(NULL);
+        } catch(IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    protected void disconnect() {
+    }
+
+    /**
+     * Encodes a binary frame.
+     * @param opcode the opcode
+     * @param body the body
+     * @return the frame, in a direct buffer like the inbound buffer
+     */
+    static ByteBuffer binaryFrame(int opcode, byte[] body) {
+        byte[] b = new byte[5 + 1 + body.length];
+        int off = Codec.putVarint(b, 0, body.length + 1);
+        b[off++] = (byte) opcode;
+        System.arraycopy(body, 0, b, off, body.length);
+        return direct(b, off + body.length);
+    }
+
+    /**
+     * Copies bytes into a direct buffer.
+     * @param b the bytes
+     * @param length how many of them to copy
+     * @return the direct buffer, ready to be read
+     */
+    static ByteBuffer direct(byte[] b, int length) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(length);
+        buf.put(b, 0, length).flip();
+        return buf;
+    }
+
+    /**
+     * Encodes a varint followed by some more bytes.
+     * @param value the varint
+     * @param rest the bytes to follow it
+     * @return the encoding
+     */
+    static byte[] varintThen(int value, byte... rest) {
+        byte[] b = new byte[Codec.varintSize(value) + rest.length];
+        int off = Codec.putVarint(b, 0, value);
+        System.arraycopy(rest, 0, b, off, rest.length);
+        return b;
+    }
+}
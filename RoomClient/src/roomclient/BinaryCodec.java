@@ -0,0 +1,192 @@
+package roomclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary protocol, as spoken by the server once a name has been accepted
+ * with the BINARY token.  Every frame is a varint length, then a one-byte
+ * opcode, then a body of (length - 1) bytes.  See PROTOCOL.md for the
+ * bodies.
+ * @author Jed Wang
+ */
+public final class BinaryCodec {
+    /**
+     * The token offered by the server and echoed after the name to ask for
+     * the binary protocol
+     */
+    public static final String BINARY = "BINARY1";
+
+    /**
+     * The token offered by the server and echoed after the name to ask for
+     * ROSTER frames; a client which has been in the lobby before follows it
+     * with a colon and the last version it saw
+     */
+    public static final String ROSTER_TOKEN = "ROSTER1";
+
+    /**
+     * The token offered by the server and echoed after the name to say
+     * this client answers the server's PINGs
+     */
+    public static final String PING_TOKEN = "PING1";
+
+    /**
+     * The opcodes
+     */
+    public static final int PING = 1, SUBMITNAME = 2, NAMEACCEPTED = 3,
+            NEWCLIENT = 4, REMOVECLIENT = 5, BUSY = 6, FREE = 7, NLM = 8,
+            CHALLENGE_C = 9, CHALLENGE_R = 0xA, NB = 0xB, LOCK = 0xC, M = 0xD,
+            NM = 0xE, EXIT = 0xF, LINE = 0x10, ROSTER = 0x11,
+            CREATEROOM = 0x12, JOINROOM = 0x13, LEAVEROOM = 0x14, ROOM = 0x15,
+            NOROOM = 0x16, QUEUE = 0x17, UNQUEUE = 0x18, MATCHED = 0x19;
+
+    /**
+     * The longest frame the server may send, not counting the length
+     */
+    public static final int MAX_FRAME_LENGTH = 64 * 1024;
+
+    /**
+     * No instances
+     */
+    private BinaryCodec() {
+    }
+
+    /**
+     * Reads a line of UTF-8 text, without its line terminator
+     * @param in the stream to read from
+     * @return the line, or null if the stream ended first
+     * @throws IOException if reading fails
+     */
+    public static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while((b = in.read()) != '\n') {
+            if(b < 0) return null;
+            line.write(b);
+        }
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length;
+        if(length > 0 && bytes[length - 1] == '\r') length--;
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a frame
+     * @param in the stream to read from
+     * @return the opcode followed by the body, or null if the stream ended
+     * before the frame started
+     * @throws IOException if reading fails or the frame is too long
+     */
+    public static byte[] readFrame(InputStream in) throws IOException {
+        int length = 0, shift = 0, b;
+        do {
+            b = in.read();
+            if(b < 0) {
+                if(shift == 0) return null;
+                throw new EOFException();
+            }
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while((b & 0x80) != 0 && shift < 35);
+        if(length < 1 || length > MAX_FRAME_LENGTH)
+            throw new IOException("bad frame length " + length);
+
+        byte[] frame = new byte[length];
+        int read = 0;
+        while(read < length) {
+            int n = in.read(frame, read, length - read);
+            if(n < 0) throw new EOFException();
+            read += n;
+        }
+        return frame;
+    }
+
+    /**
+     * Writes a frame
+     * @param out the stream to write to
+     * @param opcode the opcode
+     * @param body the body
+     * @throws IOException if writing fails
+     */
+    public static void writeFrame(OutputStream out, int opcode, byte[] body)
+            throws IOException {
+        byte[] frame = new byte[5 + 1 + body.length];
+        int off = putVarint(frame, 0, body.length + 1);
+        frame[off++] = (byte) opcode;
+        System.arraycopy(body, 0, frame, off, body.length);
+        out.write(frame, 0, off + body.length);
+        out.flush();
+    }
+
+    /**
+     * Writes a varint
+     * @param b where to write it
+     * @param off the index to write it at
+     * @param value the value, which must not be negative
+     * @return the index just after the varint
+     */
+    public static int putVarint(byte[] b, int off, int value) {
+        while((value & ~0x7F) != 0) {
+            b[off++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        b[off++] = (byte) value;
+        return off;
+    }
+
+    /**
+     * Reads a varint
+     * @param b where to read it from
+     * @param off the index to read it at
+     * @return the value in the upper 32 bits and the index just after the
+     * varint in the lower 32 bits
+     */
+    public static long getVarint(byte[] b, int off) {
+        int value = 0, shift = 0;
+        while(off < b.length && shift < 35) {
+            int x = b[off++];
+            value |= (x & 0x7F) << shift;
+            if((x & 0x80) == 0) break;
+            shift += 7;
+        }
+        return ((long) value << 32) | off;
+    }
+
+    /**
+     * Encodes a varint followed by some more bytes
+     * @param value the varint
+     * @param rest the bytes to follow it
+     * @return the encoding
+     */
+    public static byte[] varintThen(int value, byte[] rest) {
+        byte[] b = new byte[5 + rest.length];
+        int off = putVarint(b, 0, value);
+        System.arraycopy(rest, 0, b, off, rest.length);
+        byte[] exact = new byte[off + rest.length];
+        System.arraycopy(b, 0, exact, 0, exact.length);
+        return exact;
+    }
+
+    /**
+     * Decodes UTF-8 text
+     * @param b the bytes
+     * @param off where the text starts; it runs to the end
+     * @return the text
+     */
+    public static String utf8(byte[] b, int off) {
+        return new String(b, off, b.length - off, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encodes UTF-8 text
+     * @param s the text
+     * @return the bytes
+     */
+    public static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,91 @@
+package roomclient;
+
+import java.util.ArrayDeque;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+
+/**
+ * The lobby chat as shown in a text component, holding only the latest
+ * lines.  Lines are gathered until {@link #flush()}, then appended to the
+ * document in one edit, and the oldest lines taken off the front in
+ * another, so a line costs the same however long the chat has gone on,
+ * and a burst of lines costs about as much as one.  How long each line
+ * shown is, is kept in a ring, so the oldest can be taken off without
+ * looking at the document.
+ * @author Jed Wang
+ */
+final class ChatLog {
+    /**
+     * The document the chat is shown in, which nothing else changes
+     */
+    private final Document doc;
+
+    /**
+     * How many characters each line shown takes up, with its newline,
+     * oldest first from head
+     */
+    private final int[] lengths;
+
+    /**
+     * Where the oldest line shown is in the ring
+     */
+    private int head;
+
+    /**
+     * How many lines are shown
+     */
+    private int count;
+
+    /**
+     * The lines not yet shown, oldest first; never more than can be shown
+     */
+    private final ArrayDeque<String> pending;
+
+    /**
+     * Creates a new ChatLog.
+     * @param doc the document to show the chat in, which should be empty
+     * @param capacity how many lines to show at most
+     */
+    ChatLog(Document doc, int capacity) {
+        this.doc = doc;
+        lengths = new int[capacity];
+        pending = new ArrayDeque<>();
+    }
+
+    /**
+     * Adds a line, to be shown at the next flush.
+     * @param line the line, without its newline
+     */
+    void add(String line) {
+        pending.add(line);
+        // it would only be taken off again
+        if(pending.size() > lengths.length) pending.poll();
+    }
+
+    /**
+     * Shows the lines added since the last flush, taking off as many of
+     * the oldest as it takes to stay within the capacity.
+     */
+    void flush() {
+        if(pending.isEmpty()) return;
+        int evicted = 0;
+        for(int n = count + pending.size() - lengths.length; n > 0; n--) {
+            evicted += lengths[head];
+            head = (head + 1) % lengths.length;
+            count--;
+        }
+        StringBuilder text = new StringBuilder();
+        for(String line; (line = pending.poll()) != null;) {
+            text.append(line).append('\n');
+            lengths[(head + count) % lengths.length] = line.length() + 1;
+            count++;
+        }
+        try {
+            if(evicted > 0) doc.remove(0, evicted);
+            doc.insertString(doc.getLength(), text.toString(), null);
+        } catch (BadLocationException ex) {
+            // only this changes the document, so the lengths add up
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,992 @@
+package roomclient;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A connection to the server which speaks the protocol, in either its text
+ * or its binary form, and keeps track of the lobby, but shows nothing.
+ * What to do when something happens is left to subclasses, which may be a
+ * window or something headless such as a load test.
+ * @author Jed Wang
+ */
+public abstract class ClientConnection {
+    /**
+     * The rating sent with a QUEUE typed without one
+     */
+    public static final int DEFAULT_RATING = 1500;
+
+    /**
+     * The socket
+     */
+    private Socket socket;
+
+    /**
+     * The socket connection into this
+     */
+    private InputStream in;
+
+    /**
+     * The socket connection out of this
+     */
+    private OutputStream out;
+
+    /**
+     * Whether the server has switched to the binary protocol
+     */
+    private volatile boolean binary;
+
+    /**
+     * This client's name
+     */
+    private volatile String name;
+
+    /**
+     * This client's id, once in the binary protocol
+     */
+    private int id;
+
+    /**
+     * How many names have been submitted since the last was accepted
+     */
+    private int nameAttempts;
+
+    /**
+     * Whether the server offered the binary protocol when it last asked
+     * for a name
+     */
+    private volatile boolean offeredBinary;
+
+    /**
+     * Whether the server offered ROSTER frames when it last asked for a
+     * name
+     */
+    private volatile boolean offeredRoster;
+
+    /**
+     * Whether the server said it sends PINGs when it last asked for a name
+     */
+    private volatile boolean offeredPing;
+
+    /**
+     * The names of all players by id, in the binary protocol
+     */
+    private final Map<Integer, String> names;
+
+    /**
+     * Whether this client is in a game
+     */
+    private volatile boolean inGame;
+
+    /**
+     * Whether this client sent a PING which has yet to be answered
+     */
+    private volatile boolean pinging;
+
+    /**
+     * The status of all players: (Name, Whether this client is busy)
+     */
+    private final Map<String, Boolean> status;
+
+    /**
+     * The version of the lobby last heard about in a ROSTER, or -1 if none
+     * has been
+     */
+    private volatile long rosterVersion;
+
+    /**
+     * The name of the room this client is in, which is empty for the lobby
+     */
+    private volatile String room;
+
+    /**
+     * Standard constructor.
+     */
+    protected ClientConnection() {
+        inGame = false;
+        binary = false;
+        nameAttempts = 0;
+        rosterVersion = -1;
+        room = "";
+        status = new ConcurrentHashMap<>();
+        names = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Connects to the server.  A connection which has been closed may be
+     * connected again; if the server sends ROSTER frames and this client
+     * was in the lobby, it is then sent only what changed in the lobby
+     * while it was away.
+     * @param host the address of the server
+     * @param port the port of the server
+     * @throws IOException if the connection cannot be made
+     */
+    public void connect(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        connect(new BufferedInputStream(socket.getInputStream()),
+                new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    /**
+     * Talks to the server over a pair of streams, such as those of a
+     * socket, or in-memory ones for benchmarks which play the server.
+     * @param from what the server sends
+     * @param to where what this client sends goes
+     */
+    void connect(InputStream from, OutputStream to) {
+        binary = false;
+        inGame = false;
+        pinging = false;
+        nameAttempts = 0;
+        in = from;
+        out = to;
+    }
+
+    /**
+     * Processes messages from the server until it disconnects.  The
+     * callbacks are all called from the thread running this.
+     * @throws IOException if reading fails
+     */
+    public void run() throws IOException {
+        while(!binary) {
+            String line = BinaryCodec.readLine(in);
+            if(line == null) {
+                // Welp, looks like the server left
+                return;
+            }
+            processLine(line);
+        }
+        while(true) {
+            byte[] frame = BinaryCodec.readFrame(in);
+            if(frame == null) {
+                return;
+            }
+            processFrame(frame);
+        }
+    }
+
+    /**
+     * Closes the connection, which makes {@link #run()} return
+     */
+    public void close() {
+        try {
+            if(socket != null) socket.close();
+        } catch (IOException ex) {
+            // closing anyway
+        }
+    }
+
+    /**
+     * Handles a line from the server in the text protocol
+     * @param line the line
+     */
+    private void processLine(String line) {
+        long command = CommandTable.match(line);
+        int opcode = command < 0 ? 0 : (int) (command >>> 32);
+        int body = (int) command;
+        switch(opcode) {
+            case BinaryCodec.NEWCLIENT:
+                String[] data = line.substring(body).split(" ");
+                addClient(data[1], Boolean.parseBoolean(data[0]));
+                return;
+            case BinaryCodec.REMOVECLIENT:
+                dropClient(line.substring(body));
+                return;
+            case BinaryCodec.BUSY:
+            case BinaryCodec.FREE:
+                setStatus(line.substring(body), opcode == BinaryCodec.BUSY);
+                return;
+            case BinaryCodec.NLM:
+                lobbyMessage(line.substring(body));
+                return;
+            case BinaryCodec.ROSTER:
+                rosterLine(line, body);
+                return;
+            case BinaryCodec.ROOM:
+                enterRoom(line.substring(body));
+                return;
+            case BinaryCodec.NOROOM:
+                roomRefused(line.substring(body));
+                return;
+            case BinaryCodec.UNQUEUE:
+                unqueued();
+                return;
+            case BinaryCodec.PING:
+                // the server never passes a PING on as a move
+                if(body == line.length()) {
+                    ping();
+                    return;
+                }
+                break;
+        }
+        if(inGame) {
+            if(opcode == BinaryCodec.EXIT && body == line.length()) {
+                inGame = false;
+                opponentExited();
+            } else if(opcode == BinaryCodec.NM) {
+                opponentMessage(line.substring(body));
+            } else {
+                opponentMove(line);
+            }
+            return;
+        }
+        switch(opcode) {
+            case BinaryCodec.SUBMITNAME:
+                String offers = " " + line.substring(body) + " ";
+                offeredBinary = offers.contains(" " + BinaryCodec.BINARY + " ");
+                offeredRoster =
+                        offers.contains(" " + BinaryCodec.ROSTER_TOKEN + " ");
+                offeredPing =
+                        offers.contains(" " + BinaryCodec.PING_TOKEN + " ");
+                if(!(offeredRoster && wantsRoster()) || !room.isEmpty()) {
+                    // the whole lobby will be sent again
+                    forgetLobby();
+                    room = "";
+                }
+                nameRequested(nameAttempts++ == 0);
+                break;
+            case BinaryCodec.NAMEACCEPTED:
+                nameAttempts = 0;
+                String[] parts = line.split(" ");
+                if(parts.length == 3 && BinaryCodec.BINARY.equals(parts[1])) {
+                    // everything from here on is in frames
+                    names.remove(id);
+                    id = Integer.parseInt(parts[2]);
+                    names.put(id, name);
+                    binary = true;
+                }
+                nameAccepted();
+                break;
+            case BinaryCodec.CHALLENGE_C:
+                challenged(line.substring(body));
+                break;
+            case BinaryCodec.CHALLENGE_R:
+                inGame = Boolean.parseBoolean(line.substring(body));
+                challengeResult(inGame);
+                break;
+            case BinaryCodec.MATCHED:
+                inGame = true;
+                matched(line.substring(body));
+                break;
+        }
+    }
+
+    /**
+     * Handles a frame from the server in the binary protocol
+     * @param frame the opcode followed by the body
+     */
+    private void processFrame(byte[] frame) {
+        long v;
+        switch(frame[0]) {
+            case BinaryCodec.NEWCLIENT:
+                v = BinaryCodec.getVarint(frame, 1);
+                int newId = (int) (v >>> 32), at = (int) v;
+                String newClient = BinaryCodec.utf8(frame, at + 1);
+                names.put(newId, newClient);
+                addClient(newClient, frame[at] != 0);
+                break;
+            case BinaryCodec.REMOVECLIENT:
+                String toRemove = names.remove(player(frame));
+                if(toRemove != null) dropClient(toRemove);
+                break;
+            case BinaryCodec.BUSY:
+            case BinaryCodec.FREE:
+                String player = names.get(player(frame));
+                if(player != null)
+                    setStatus(player, frame[0] == BinaryCodec.BUSY);
+                break;
+            case BinaryCodec.ROSTER:
+                rosterFrame(frame);
+                break;
+            case BinaryCodec.ROOM:
+                enterRoom(BinaryCodec.utf8(frame, 1));
+                break;
+            case BinaryCodec.NOROOM:
+                roomRefused(BinaryCodec.utf8(frame, 1));
+                break;
+            case BinaryCodec.UNQUEUE:
+                unqueued();
+                break;
+            case BinaryCodec.PING:
+                ping();
+                break;
+            case BinaryCodec.MATCHED:
+                String opponent = names.get(player(frame));
+                if(!inGame && opponent != null) {
+                    inGame = true;
+                    matched(opponent);
+                }
+                break;
+            case BinaryCodec.NLM:
+                v = BinaryCodec.getVarint(frame, 1);
+                lobbyMessage(names.get((int) (v >>> 32)) + ": "
+                        + BinaryCodec.utf8(frame, (int) v));
+                break;
+            case BinaryCodec.EXIT:
+                if(inGame) {
+                    inGame = false;
+                    opponentExited();
+                }
+                break;
+            case BinaryCodec.NM:
+                if(inGame) opponentMessage(BinaryCodec.utf8(frame, 1));
+                break;
+            case BinaryCodec.NB:
+                if(inGame) opponentMove("NB" + BinaryCodec.utf8(frame, 1));
+                break;
+            case BinaryCodec.LOCK:
+                if(inGame) opponentMove("LOCK" + BinaryCodec.utf8(frame, 1));
+                break;
+            case BinaryCodec.M:
+                if(inGame) opponentMove("M" + BinaryCodec.utf8(frame, 1));
+                break;
+            case BinaryCodec.LINE:
+                if(inGame) opponentMove(BinaryCodec.utf8(frame, 1));
+                break;
+            case BinaryCodec.CHALLENGE_C:
+                String challenger = names.get(player(frame));
+                if(!inGame && challenger != null) challenged(challenger);
+                break;
+            case BinaryCodec.CHALLENGE_R:
+                if(!inGame) {
+                    inGame = frame[1] != 0;
+                    challengeResult(inGame);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Handles a PING from the server.  One which comes while this client
+     * is waiting for the answer to its own PING is that answer; any other
+     * is the server checking that this client is still there, and is
+     * answered, or the server will disconnect it.
+     */
+    private void ping() {
+        if(pinging) {
+            pinging = false;
+        } else if(binary) {
+            sendFrame(BinaryCodec.PING, new byte[0]);
+        } else {
+            sendLine("PING");
+        }
+    }
+
+    /**
+     * Handles a ROSTER in the text protocol: = for the whole lobby or + for
+     * what has changed, the version, then a space and an entry for each
+     * player, which is 0 if free, 1 if busy or - if gone, then the name
+     * @param line the line
+     * @param body where the body starts
+     */
+    private void rosterLine(String line, int body) {
+        String[] parts = line.substring(body + 1).split(" ");
+        String[] players = new String[parts.length - 1];
+        byte[] states = new byte[players.length];
+        for(int i = 0; i < players.length; i++) {
+            char state = parts[i + 1].charAt(0);
+            states[i] = (byte) (state == '0' ? 0 : state == '1' ? 1 : 2);
+            players[i] = parts[i + 1].substring(1);
+        }
+        roster(line.charAt(body) == '=', Long.parseLong(parts[0]), players,
+                null, states);
+    }
+
+    /**
+     * Handles a ROSTER in the binary protocol: a byte which is 1 for the
+     * whole lobby, the version in eight bytes, then for each player its
+     * id, a byte which is 0 if free, 1 if busy or 2 if gone, and its name
+     * @param frame the opcode followed by the body
+     */
+    private void rosterFrame(byte[] frame) {
+        long version = 0;
+        for(int i = 2; i < 10; i++) {
+            version = (version << 8) | (frame[i] & 0xFF);
+        }
+        int count = 0;
+        String[] players = new String[8];
+        int[] ids = new int[8];
+        byte[] states = new byte[8];
+        for(int at = 10; at < frame.length; count++) {
+            if(count == players.length) {
+                players = Arrays.copyOf(players, count * 2);
+                ids = Arrays.copyOf(ids, count * 2);
+                states = Arrays.copyOf(states, count * 2);
+            }
+            long v = BinaryCodec.getVarint(frame, at);
+            ids[count] = (int) (v >>> 32);
+            states[count] = frame[(int) v];
+            v = BinaryCodec.getVarint(frame, (int) v + 1);
+            at = (int) v + (int) (v >>> 32);
+            players[count] = new String(frame, (int) v, (int) (v >>> 32),
+                    StandardCharsets.UTF_8);
+        }
+        roster(frame[1] != 0, version, Arrays.copyOf(players, count),
+                Arrays.copyOf(ids, count), states);
+    }
+
+    /**
+     * Brings the lobby up to date with a ROSTER
+     * @param full whether this is the whole lobby, so that anybody not in
+     * it has gone
+     * @param version the version of the lobby
+     * @param players the names of the players
+     * @param ids the ids of the players, in the binary protocol, or null
+     * @param states for each player, 0 if free, 1 if busy or 2 if gone
+     */
+    private void roster(boolean full, long version, String[] players,
+            int[] ids, byte[] states) {
+        if(full) {
+            Set<String> listed = new HashSet<>(Arrays.asList(players));
+            for(String known : status.keySet()) {
+                if(!listed.contains(known)) dropClient(known);
+            }
+            if(ids != null) {
+                names.clear();
+                names.put(id, name);
+            }
+        }
+        for(int i = 0; i < players.length; i++) {
+            String player = players[i];
+            if(player.equals(name)) continue;
+            if(states[i] == 2) {
+                if(ids != null) names.remove(ids[i]);
+                if(status.containsKey(player)) dropClient(player);
+            } else {
+                if(ids != null) names.put(ids[i], player);
+                if(!status.containsKey(player)) addClient(player, !full);
+                setStatus(player, states[i] == 1);
+            }
+        }
+        rosterVersion = version;
+    }
+
+    /**
+     * Handles a ROOM: this client is now in another room, and is about to
+     * be told who is there, so forgets everybody it knew
+     * @param entered the name of the room, which is empty for the lobby
+     */
+    private void enterRoom(String entered) {
+        forgetLobby();
+        room = entered;
+        roomChanged(entered);
+    }
+
+    /**
+     * Forgets everybody in the lobby, before being told about it afresh
+     */
+    private void forgetLobby() {
+        for(String known : status.keySet()) {
+            dropClient(known);
+        }
+        names.clear();
+        if(binary) names.put(id, name);
+        rosterVersion = -1;
+    }
+
+    /**
+     * Returns the player id at the start of a frame body
+     * @param frame the opcode followed by the body
+     * @return the id
+     */
+    private static int player(byte[] frame) {
+        return (int) (BinaryCodec.getVarint(frame, 1) >>> 32);
+    }
+
+    /**
+     * Adds a client to the pool
+     * @param newClient the name of the client
+     * @param isNew whether the client has just joined
+     */
+    private void addClient(String newClient, boolean isNew) {
+        status.put(newClient, false);
+        newClient(newClient, isNew);
+    }
+
+    /**
+     * Removes a client from the pool
+     * @param toRemove the name of the client
+     */
+    private void dropClient(String toRemove) {
+        status.remove(toRemove);
+        removeClient(toRemove);
+    }
+
+    /**
+     * Marks a client in the pool busy or free
+     * @param player the name of the client; one not in the pool is ignored
+     * @param busy whether the client is busy
+     */
+    private void setStatus(String player, boolean busy) {
+        Boolean was = status.replace(player, busy);
+        if(was != null && was != busy) statusChanged(player, busy);
+    }
+
+    /**
+     * Submits your name, duh.  May be called from any thread, once for each
+     * time the server asks.
+     * @param chosen the name, or null to give up and disconnect
+     */
+    public void submitName(String chosen) {
+        if(chosen == null) {
+            close();
+            return;
+        }
+        name = chosen;
+        String reply = name;
+        if(offeredRoster && wantsRoster()) {
+            reply += " " + BinaryCodec.ROSTER_TOKEN;
+            // a version is only good in the room it came from, and every
+            // connection starts in the lobby; it was forgotten if not
+            if(rosterVersion >= 0) reply += ":" + rosterVersion;
+        }
+        // every PING from the server is answered
+        if(offeredPing) reply += " " + BinaryCodec.PING_TOKEN;
+        // the BINARY token goes last, where older servers look for it
+        sendLine(offeredBinary && wantsBinary() ?
+                reply + " " + BinaryCodec.BINARY : reply);
+    }
+
+    /**
+     * Answers a challenge.  May be called from any thread, once for each
+     * challenge.
+     * @param challenger who challenged this client
+     * @param accepted whether the challenge is accepted
+     */
+    public void answerChallenge(String challenger, boolean accepted) {
+        inGame = accepted;
+        if(binary) {
+            Integer challengerId = idOf(challenger);
+            if(challengerId != null) {
+                sendFrame(BinaryCodec.CHALLENGE_R, BinaryCodec.varintThen(
+                        challengerId, new byte[] {(byte) (accepted ? 1 : 0)}));
+            }
+        } else {
+            sendLine("CHALLENGE_R" + challenger + " " + accepted);
+        }
+    }
+
+    /**
+     * The server has asked for a name, which is to be given to
+     * {@link #submitName(String)}, now or later and from any thread.  The
+     * server reads nothing else from this client until it has one.
+     * @param first whether this is the first name submitted, rather than
+     * one after the last was taken
+     */
+    protected void nameRequested(boolean first) {
+        submitName(chooseName(first));
+    }
+
+    /**
+     * I'm being challenged!  The answer is to be given to
+     * {@link #answerChallenge(String, boolean)}, now or later and from any
+     * thread.
+     * @param challenger who is challenging
+     */
+    protected void challenged(String challenger) {
+        answerChallenge(challenger, acceptChallenge(challenger));
+    }
+
+    /**
+     * Returns the name to submit, for subclasses which decide at once
+     * @param first whether this is the first name submitted, rather than
+     * one after the last was taken
+     * @return the name, or null to give up and disconnect, unless
+     * overridden
+     */
+    protected String chooseName(boolean first) {
+        return null;
+    }
+
+    /**
+     * Decides whether to accept a challenge, for subclasses which decide
+     * at once
+     * @param challenger who is challenging
+     * @return false, unless overridden
+     */
+    protected boolean acceptChallenge(String challenger) {
+        return false;
+    }
+
+    /**
+     * Returns whether to take up the server's offer of the binary protocol
+     * @return true, unless overridden
+     */
+    protected boolean wantsBinary() {
+        return true;
+    }
+
+    /**
+     * Returns whether to take up the server's offer of ROSTER frames,
+     * which tell this client the version of the lobby so that it can be
+     * sent only what it missed when it connects again
+     * @return true, unless overridden
+     */
+    protected boolean wantsRoster() {
+        return true;
+    }
+
+    /**
+     * The server has accepted your name
+     */
+    protected void nameAccepted() {
+    }
+
+    /**
+     * This client has gone into a room; who is there will follow
+     * @param room the name of the room, which is empty for the lobby
+     */
+    protected void roomChanged(String room) {
+    }
+
+    /**
+     * This client could not go into a room, because it does not exist,
+     * it already exists, or this client is in a game or still on its way
+     * to another room; it is still where it was
+     * @param room the name of the room
+     */
+    protected void roomRefused(String room) {
+    }
+
+    /**
+     * A client has been added to the pool
+     * @param newClient the name of the client
+     * @param isNew whether the client has just joined
+     */
+    protected void newClient(String newClient, boolean isNew) {
+    }
+
+    /**
+     * A client has been removed from the pool
+     * @param toRemove the name of the client
+     */
+    protected void removeClient(String toRemove) {
+    }
+
+    /**
+     * A client in the pool has gone busy or free
+     * @param player the name of the client
+     * @param busy whether the client is now busy
+     */
+    protected void statusChanged(String player, boolean busy) {
+    }
+
+    /**
+     * A message has been sent to the lobby chat
+     * @param message the sender's name, a colon, and the message
+     */
+    protected void lobbyMessage(String message) {
+    }
+
+    /**
+     * The response to a challenge this client made has arrived
+     * @param accepted whether the challenge was accepted
+     */
+    protected void challengeResult(boolean accepted) {
+    }
+
+    /**
+     * The matchmaking queue has put this client in a game
+     * @param opponent the name of the opponent
+     */
+    protected void matched(String opponent) {
+    }
+
+    /**
+     * This client is no longer in the matchmaking queue, because it asked
+     * to leave, was refused, moved, or started a game some other way
+     */
+    protected void unqueued() {
+    }
+
+    /**
+     * The opponent has left the match
+     */
+    protected void opponentExited() {
+    }
+
+    /**
+     * An in-game chat message has arrived from the opponent
+     * @param message the message
+     */
+    protected void opponentMessage(String message) {
+    }
+
+    /**
+     * A move, lock, new bag or other in-game command has arrived from the
+     * opponent
+     * @param command the command as it is written in the text protocol
+     */
+    protected void opponentMove(String command) {
+    }
+
+    /**
+     * Returns the id of a player, in the binary protocol
+     * @param player the name of the player
+     * @return the id, or null if there is no such player
+     */
+    private Integer idOf(String player) {
+        for(Map.Entry<Integer, String> e : names.entrySet()) {
+            if(e.getValue().equals(player)) return e.getKey();
+        }
+        return null;
+    }
+
+    /**
+     * Sends a line in the text protocol
+     * @param line the line
+     */
+    private synchronized void sendLine(String line) {
+        try {
+            out.write(BinaryCodec.utf8(line + "\n"));
+            out.flush();
+        } catch (IOException ex) {
+            sendFailed(ex);
+        }
+    }
+
+    /**
+     * Sends a frame in the binary protocol
+     * @param opcode the opcode
+     * @param body the body
+     */
+    private synchronized void sendFrame(int opcode, byte[] body) {
+        try {
+            BinaryCodec.writeFrame(out, opcode, body);
+        } catch (IOException ex) {
+            sendFailed(ex);
+        }
+    }
+
+    /**
+     * Sending something to the server has failed
+     * @param ex what went wrong
+     */
+    protected void sendFailed(IOException ex) {
+        ex.printStackTrace();
+    }
+
+    /**
+     * Sends a command as it would be written in the text protocol, such
+     * as one typed at the console
+     * @param line the command
+     */
+    public void send(String line) {
+        if(!binary) {
+            if(line.equals("PING")) pinging = true;
+            sendLine(line);
+            return;
+        }
+        long command = CommandTable.match(line);
+        int opcode = command < 0 ? 0 : (int) (command >>> 32);
+        int body = (int) command;
+        switch(opcode) {
+            case BinaryCodec.PING:
+                if(body != line.length()) break;
+                pinging = true;
+                sendFrame(BinaryCodec.PING, new byte[0]);
+                return;
+            case BinaryCodec.NLM:
+                sendLobbyMessage(line.substring(body));
+                return;
+            case BinaryCodec.CHALLENGE_C:
+                if(inGame) break;
+                challenge(line.substring(body));
+                return;
+            case BinaryCodec.EXIT:
+                if(body != line.length()) break;
+                exitGame();
+                return;
+            case BinaryCodec.NB:
+            case BinaryCodec.NM:
+            case BinaryCodec.LOCK:
+            case BinaryCodec.M:
+            case BinaryCodec.CREATEROOM:
+            case BinaryCodec.JOINROOM:
+                sendFrame(opcode, BinaryCodec.utf8(line.substring(body)));
+                return;
+            case BinaryCodec.LEAVEROOM:
+                if(body != line.length()) break;
+                leaveRoom();
+                return;
+            case BinaryCodec.QUEUE:
+                if(inGame) break;
+                try {
+                    queue(body == line.length() ? DEFAULT_RATING :
+                            Integer.parseInt(line.substring(body)));
+                    return;
+                } catch(NumberFormatException nfe) {
+                    break;
+                }
+            case BinaryCodec.UNQUEUE:
+                if(body != line.length()) break;
+                unqueue();
+                return;
+        }
+        sendFrame(BinaryCodec.LINE, BinaryCodec.utf8(line));
+    }
+
+    /**
+     * Sends a message to the lobby chat
+     * @param toSend the message to send
+     */
+    public void sendLobbyMessage(String toSend) {
+        if(binary) {
+            sendFrame(BinaryCodec.NLM, BinaryCodec.utf8(toSend));
+        } else {
+            sendLine("NLM" + toSend);
+        }
+    }
+
+    /**
+     * Challenges a player
+     * @param player the player to challenge
+     */
+    public void challenge(String player) {
+        if(binary) {
+            Integer playerId = idOf(player);
+            if(playerId != null) {
+                sendFrame(BinaryCodec.CHALLENGE_C,
+                        BinaryCodec.varintThen(playerId, new byte[0]));
+            }
+        } else {
+            sendLine("CHALLENGE_C" + player);
+        }
+    }
+
+    /**
+     * Asks the server for a game against somebody in the same room with a
+     * similar rating.  The server answers with a MATCHED once it has found
+     * one, or an UNQUEUE if it will not.
+     * @param rating this client's rating
+     */
+    public void queue(int rating) {
+        if(binary) {
+            sendFrame(BinaryCodec.QUEUE,
+                    BinaryCodec.varintThen(rating, new byte[0]));
+        } else {
+            sendLine("QUEUE" + rating);
+        }
+    }
+
+    /**
+     * Leaves the matchmaking queue.  The server answers with an UNQUEUE
+     * if this client was in it.
+     */
+    public void unqueue() {
+        if(binary) {
+            sendFrame(BinaryCodec.UNQUEUE, new byte[0]);
+        } else {
+            sendLine("UNQUEUE");
+        }
+    }
+
+    /**
+     * Makes a room and goes into it.  The server answers with a ROOM, or
+     * a NOROOM if there is already a room with the name.
+     * @param newRoom the name of the room, which has no spaces
+     */
+    public void createRoom(String newRoom) {
+        if(binary) {
+            sendFrame(BinaryCodec.CREATEROOM, BinaryCodec.utf8(newRoom));
+        } else {
+            sendLine("CREATEROOM" + newRoom);
+        }
+    }
+
+    /**
+     * Goes into a room.  The server answers with a ROOM, or a NOROOM if
+     * there is no room with the name.
+     * @param toJoin the name of the room
+     */
+    public void joinRoom(String toJoin) {
+        if(binary) {
+            sendFrame(BinaryCodec.JOINROOM, BinaryCodec.utf8(toJoin));
+        } else {
+            sendLine("JOINROOM" + toJoin);
+        }
+    }
+
+    /**
+     * Goes back to the lobby.
+     */
+    public void leaveRoom() {
+        if(binary) {
+            sendFrame(BinaryCodec.LEAVEROOM, new byte[0]);
+        } else {
+            sendLine("LEAVEROOM");
+        }
+    }
+
+    /**
+     * Exits the current game.
+     */
+    public void exitGame() {
+        if(binary) {
+            sendFrame(BinaryCodec.EXIT, new byte[0]);
+        } else {
+            sendLine("EXIT");
+        }
+        inGame = false;
+    }
+
+    /**
+     * Determines whether a player is busy
+     * @param player the player to request
+     * @return whether the player is busy
+     */
+    public Boolean isPlayerBusy(String player) {
+        return status.get(player);
+    }
+
+    /**
+     * Returns whether this client is in a game
+     * @return whether this client is in a game
+     */
+    public boolean isInGame() {
+        return inGame;
+    }
+
+    /**
+     * Returns whether the binary protocol is in use
+     * @return whether the binary protocol is in use
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Returns the version of the lobby last heard about
+     * @return the version, or -1 if the server has not sent one
+     */
+    public long getRosterVersion() {
+        return rosterVersion;
+    }
+
+    /**
+     * Returns the room this client is in
+     * @return the name of the room, which is empty for the lobby
+     */
+    public String getRoom() {
+        return room;
+    }
+
+    /**
+     * Returns this client's name
+     * @return the name last submitted, or null before one has been
+     */
+    public String getName() {
+        return name;
+    }
+}
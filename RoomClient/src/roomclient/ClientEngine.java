@@ -0,0 +1,167 @@
+package roomclient;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A connection to the server which reads on a thread of its own and tells
+ * its listeners what happens as {@link ClientEvent}s, so that anything may
+ * drive it, whether a window, a bot or a test.  Nothing it does waits for
+ * a listener: a name and the answer to a challenge are given back whenever
+ * they are ready, from any thread, so the connection keeps being read
+ * meanwhile.
+ * @author Jed Wang
+ */
+public class ClientEngine extends ClientConnection {
+    /**
+     * Who to tell what happens
+     */
+    private final List<ClientListener> listeners;
+
+    /**
+     * Creates a new ClientEngine.
+     */
+    public ClientEngine() {
+        listeners = new CopyOnWriteArrayList<>();
+    }
+
+    /**
+     * Adds a listener, which is told everything that happens from now on.
+     * @param l the listener
+     */
+    public void addListener(ClientListener l) {
+        listeners.add(l);
+    }
+
+    /**
+     * Removes a listener.
+     * @param l the listener
+     */
+    public void removeListener(ClientListener l) {
+        listeners.remove(l);
+    }
+
+    /**
+     * Connects to the server and reads from it on a new thread, and
+     * returns at once.  The listeners are told CONNECT_FAILED if the
+     * connection cannot be made, and otherwise DISCONNECTED once it closes.
+     * @param host the address of the server
+     * @param port the port of the server
+     */
+    public void start(String host, int port) {
+        Thread reader = new Thread(() -> read(host, port), "client-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Connects, then reads until the connection closes.
+     * @param host the address of the server
+     * @param port the port of the server
+     */
+    private void read(String host, int port) {
+        try {
+            connect(host, port);
+        } catch (IOException ex) {
+            publish(ClientEvent.CONNECT_FAILED, null, ex.getMessage(), false);
+            return;
+        }
+        try {
+            run();
+        } catch (IOException ex) {
+            // the server has gone either way
+        }
+        publish(ClientEvent.DISCONNECTED, null, null, false);
+    }
+
+    /**
+     * Tells every listener something has happened.
+     * @param type what happened
+     * @param player the player it is about, or null
+     * @param text its text, or null
+     * @param flag its flag
+     */
+    private void publish(int type, String player, String text,
+            boolean flag) {
+        ClientEvent e = new ClientEvent(type, player, text, flag);
+        for(ClientListener l : listeners) {
+            l.event(e);
+        }
+    }
+
+    @Override
+    protected void nameRequested(boolean first) {
+        publish(ClientEvent.NAME_REQUESTED, null, null, first);
+    }
+
+    @Override
+    protected void challenged(String challenger) {
+        publish(ClientEvent.CHALLENGED, challenger, null, false);
+    }
+
+    @Override
+    protected void nameAccepted() {
+        publish(ClientEvent.NAME_ACCEPTED, null, getName(), false);
+    }
+
+    @Override
+    protected void roomChanged(String room) {
+        publish(ClientEvent.ROOM_CHANGED, null, room, false);
+    }
+
+    @Override
+    protected void roomRefused(String room) {
+        publish(ClientEvent.ROOM_REFUSED, null, room, false);
+    }
+
+    @Override
+    protected void newClient(String newClient, boolean isNew) {
+        publish(ClientEvent.PLAYER_ADDED, newClient, null, isNew);
+    }
+
+    @Override
+    protected void removeClient(String toRemove) {
+        publish(ClientEvent.PLAYER_REMOVED, toRemove, null, false);
+    }
+
+    @Override
+    protected void statusChanged(String player, boolean busy) {
+        publish(ClientEvent.STATUS_CHANGED, player, null, busy);
+    }
+
+    @Override
+    protected void lobbyMessage(String message) {
+        publish(ClientEvent.LOBBY_MESSAGE, null, message, false);
+    }
+
+    @Override
+    protected void challengeResult(boolean accepted) {
+        publish(ClientEvent.CHALLENGE_RESULT, null, null, accepted);
+    }
+
+    @Override
+    protected void matched(String opponent) {
+        publish(ClientEvent.MATCHED, opponent, null, false);
+    }
+
+    @Override
+    protected void unqueued() {
+        publish(ClientEvent.UNQUEUED, null, null, false);
+    }
+
+    @Override
+    protected void opponentExited() {
+        publish(ClientEvent.OPPONENT_EXITED, null, null, false);
+    }
+
+    @Override
+    protected void opponentMessage(String message) {
+        publish(ClientEvent.OPPONENT_MESSAGE, null, message, false);
+    }
+
+    @Override
+    protected void opponentMove(String command) {
+        publish(ClientEvent.OPPONENT_MOVE, null, command, false);
+    }
+}
@@ -0,0 +1,172 @@
+package roomclient;
+
+/**
+ * Something which happened on a connection to the server, as told to a
+ * {@link ClientListener} by a {@link ClientEngine}.  What the player, text
+ * and flag of an event mean depends on its type.
+ * @author Jed Wang
+ */
+public final class ClientEvent {
+    /**
+     * The connection could not be made; the text is why
+     */
+    public static final int CONNECT_FAILED = 0;
+
+    /**
+     * The connection has closed
+     */
+    public static final int DISCONNECTED = 1;
+
+    /**
+     * The server asks for a name, to be given to
+     * {@link ClientConnection#submitName(String)}; the flag is whether this
+     * is the first time it has asked since the last name was accepted
+     */
+    public static final int NAME_REQUESTED = 2;
+
+    /**
+     * The server has accepted the name, which is the text
+     */
+    public static final int NAME_ACCEPTED = 3;
+
+    /**
+     * The player has joined, or was there already if the flag is false
+     */
+    public static final int PLAYER_ADDED = 4;
+
+    /**
+     * The player has left
+     */
+    public static final int PLAYER_REMOVED = 5;
+
+    /**
+     * The player has gone busy, if the flag is true, or free
+     */
+    public static final int STATUS_CHANGED = 6;
+
+    /**
+     * The text was said in the lobby chat, after its sender's name and a
+     * colon
+     */
+    public static final int LOBBY_MESSAGE = 7;
+
+    /**
+     * This client has gone into the room which is the text, or the lobby
+     * if it is empty; who is there follows
+     */
+    public static final int ROOM_CHANGED = 8;
+
+    /**
+     * This client could not go into the room which is the text
+     */
+    public static final int ROOM_REFUSED = 9;
+
+    /**
+     * The player has challenged this client; the answer is to be given to
+     * {@link ClientConnection#answerChallenge(String, boolean)}
+     */
+    public static final int CHALLENGED = 10;
+
+    /**
+     * A challenge this client made was accepted, if the flag is true, or
+     * refused
+     */
+    public static final int CHALLENGE_RESULT = 11;
+
+    /**
+     * The matchmaking queue has put this client in a game with the player
+     */
+    public static final int MATCHED = 12;
+
+    /**
+     * This client is no longer in the matchmaking queue
+     */
+    public static final int UNQUEUED = 13;
+
+    /**
+     * The opponent has left the game
+     */
+    public static final int OPPONENT_EXITED = 14;
+
+    /**
+     * The opponent said the text in the game
+     */
+    public static final int OPPONENT_MESSAGE = 15;
+
+    /**
+     * The opponent sent the text, a move or other in-game command as it is
+     * written in the text protocol
+     */
+    public static final int OPPONENT_MOVE = 16;
+
+    /**
+     * What happened, as one of the types above
+     */
+    private final int type;
+
+    /**
+     * The player this is about, or null
+     */
+    private final String player;
+
+    /**
+     * The text of this, or null
+     */
+    private final String text;
+
+    /**
+     * The flag of this, or false
+     */
+    private final boolean flag;
+
+    /**
+     * Creates a new ClientEvent.
+     * @param type what happened
+     * @param player the player it is about, or null
+     * @param text its text, or null
+     * @param flag its flag
+     */
+    public ClientEvent(int type, String player, String text, boolean flag) {
+        this.type = type;
+        this.player = player;
+        this.text = text;
+        this.flag = flag;
+    }
+
+    /**
+     * Returns what happened
+     * @return the type of this event
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * Returns the player this is about
+     * @return the name of the player, or null
+     */
+    public String getPlayer() {
+        return player;
+    }
+
+    /**
+     * Returns the text of this
+     * @return the text, or null
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Returns the flag of this
+     * @return the flag, whose meaning depends on the type
+     */
+    public boolean getFlag() {
+        return flag;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + player + " " + text + " " + flag;
+    }
+}
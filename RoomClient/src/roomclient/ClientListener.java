@@ -0,0 +1,16 @@
+package roomclient;
+
+/**
+ * Something which wants to know what happens on a connection to the
+ * server
+ * @author Jed Wang
+ */
+public interface ClientListener {
+    /**
+     * Something has happened.  Called from the thread which reads from the
+     * server, unless the listener is behind a {@link SwingDispatcher}, so
+     * should not block for long.
+     * @param e what happened
+     */
+    void event(ClientEvent e);
+}
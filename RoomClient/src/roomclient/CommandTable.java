@@ -0,0 +1,91 @@
+package roomclient;
+
+/**
+ * The headers of the text protocol, in a trie which finds the header at the
+ * start of a line in one pass.  Lines have no space between header and
+ * body, so the longest header a line starts with is its command.  How long
+ * this takes depends on how long the header is, not on how many headers
+ * there are.
+ * @author Jed Wang
+ */
+final class CommandTable {
+    /**
+     * The headers, by opcode; LINE has none
+     */
+    private static final String[] HEADERS = {null, "PING", "SUBMITNAME",
+        "NAMEACCEPTED", "NEWCLIENT", "REMOVECLIENT", "BUSY", "FREE", "NLM",
+        "CHALLENGE_C", "CHALLENGE_R", "NB", "LOCK", "M", "NM", "EXIT", null,
+        "ROSTER", "CREATEROOM", "JOINROOM", "LEAVEROOM", "ROOM", "NOROOM", "QUEUE", "UNQUEUE",
+        "MATCHED"};
+
+    /**
+     * The lowest char a header may contain
+     */
+    private static final int FIRST = '@';
+
+    /**
+     * How many different chars a header may contain: '@' to '_', which
+     * covers the capital letters and the underscore
+     */
+    private static final int WIDTH = 32;
+
+    /**
+     * The transitions: the state after reading char c in state s is at
+     * <code>s * WIDTH + c - FIRST</code>, and is 0 if there is none
+     */
+    private static final int[] NEXT;
+
+    /**
+     * The opcode of the header which ends at each state, or 0 if none does
+     */
+    private static final int[] OPCODES;
+
+    static {
+        int states = 1;
+        for(int opcode = 1; opcode < HEADERS.length; opcode++) {
+            if(HEADERS[opcode] != null) states += HEADERS[opcode].length();
+        }
+        NEXT = new int[states * WIDTH];
+        OPCODES = new int[states];
+        int used = 1;
+        for(int opcode = 1; opcode < HEADERS.length; opcode++) {
+            String header = HEADERS[opcode];
+            if(header == null) continue;
+            int state = 0;
+            for(int i = 0; i < header.length(); i++) {
+                int t = state * WIDTH + header.charAt(i) - FIRST;
+                if(NEXT[t] == 0) NEXT[t] = used++;
+                state = NEXT[t];
+            }
+            OPCODES[state] = opcode;
+        }
+    }
+
+    /**
+     * No instances
+     */
+    private CommandTable() {
+    }
+
+    /**
+     * Finds the command a line starts with.
+     * @param line the line
+     * @return the opcode, as in {@link BinaryCodec}, in the upper 32 bits
+     * and the index just past the header, which is where the body starts,
+     * in the lower 32 bits, or -1 if the line does not start with a header
+     */
+    static long match(String line) {
+        int state = 0, opcode = 0, body = 0;
+        for(int i = 0; i < line.length(); i++) {
+            int symbol = line.charAt(i) - FIRST;
+            if(symbol < 0 || symbol >= WIDTH) break;
+            state = NEXT[state * WIDTH + symbol];
+            if(state == 0) break;
+            if(OPCODES[state] != 0) {
+                opcode = OPCODES[state];
+                body = i + 1;
+            }
+        }
+        return opcode == 0 ? -1 : ((long) opcode << 32) | body;
+    }
+}
@@ -5,6 +5,7 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.EventQueue;
 import java.awt.Font;
+import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Point;
@@ -12,8 +13,11 @@ import java.awt.RenderingHints;
 import java.awt.event.ActionEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import javax.swing.BorderFactory;
-import javax.swing.DefaultListModel;
 import javax.swing.GroupLayout;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -24,10 +28,11 @@ import javax.swing.JTextField;
 import javax.swing.JTextPane;
 import javax.swing.LayoutStyle;
 import javax.swing.ListSelectionModel;
+import javax.swing.Timer;
 import javax.swing.UIManager;
 import javax.swing.UnsupportedLookAndFeelException;
 import javax.swing.WindowConstants;
-// import javax.swing.event.ListSelectionEvent;
+import javax.swing.event.ListSelectionEvent;
 
 /**
  * A window that displays the GUI
@@ -35,18 +40,66 @@ import javax.swing.WindowConstants;
  */
 public class LobbyWindow extends JFrame {
     /**
-     * The ServerCommunication to alert when an action occurs
+     * The connection to alert when an action occurs
      */
-    private final ServerCommunication toAlert;
+    private final ClientEngine toAlert;
+    
+    /**
+     * How long players coming and going, and chat, are gathered before
+     * they are shown, in milliseconds: about a frame
+     */
+    private static final int FRAME_MILLIS = 16;
+    
+    /**
+     * How many lines of chat are kept
+     */
+    private static final int CHAT_LINES = 1000;
+    
+    /**
+     * The stroke around the status light
+     */
+    private static final BasicStroke THIN_STROKE = new BasicStroke(1,
+            BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+    
+    /**
+     * The stroke around the challenge button
+     */
+    private static final BasicStroke THICK_STROKE = new BasicStroke(2.5f,
+            BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+    
+    /**
+     * The players who have come or gone since the list was last brought
+     * up to date: true if here, false if gone
+     */
+    private final Map<String, Boolean> pendingPlayers;
+    
+    /**
+     * Whether the selected player has gone busy or free since then
+     */
+    private boolean statusChanged;
+    
+    /**
+     * The lobby chat, as shown in chatTP
+     */
+    private final ChatLog chatLog;
+    
+    /**
+     * Shows what has been gathered a frame after the first change
+     */
+    private final Timer frameTimer;
     
     /** 
      * Creates new form LobbyWindow
-     * @param toAlert the ServerCommunication to report events to
+     * @param toAlert the connection to report events to
      */
-    public LobbyWindow(ServerCommunication toAlert) {
+    public LobbyWindow(ClientEngine toAlert) {
         this.toAlert = toAlert;
+        pendingPlayers = new HashMap<>();
+        frameTimer = new Timer(FRAME_MILLIS, e -> endFrame());
+        frameTimer.setRepeats(false);
         
         initComponents();
+        chatLog = new ChatLog(chatTP.getDocument(), CHAT_LINES);
     }
     
     /** This method is called from within the constructor to
@@ -64,7 +117,7 @@ public class LobbyWindow extends JFrame {
         chatTextField = new JTextField();
         playerListSP = new javax.swing.JScrollPane();
         playerList = new javax.swing.JList<>();
-        playerLModel = new DefaultListModel<>();
+        playerLModel = new PlayerListModel();
 
         setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
         setTitle("LobbyWindow");
@@ -88,8 +141,11 @@ public class LobbyWindow extends JFrame {
         
         playerList.setFont(new Font("Segoe UI", 0, 14)); // NOI18N
         playerList.setModel(playerLModel);
+        // every row the same size, so the list need not measure them all
+        // whenever it changes
+        playerList.setPrototypeCellValue("WWWWWWWWWWWWWWWW");
         playerList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
-        // playerList.addListSelectionListener(this::playerSelected);
+        playerList.addListSelectionListener(this::playerSelected);
         playerListSP.setViewportView(playerList);
 
         GroupLayout layout = new GroupLayout(getContentPane());
@@ -148,44 +204,85 @@ public class LobbyWindow extends JFrame {
      * Invoked when a new player is selected
      * @param evt a description of the event
      */
-    /*private void playerSelected(ListSelectionEvent evt) {                                        
-        
-    }*/
+    private void playerSelected(ListSelectionEvent evt) {
+        infoPanel.repaint();
+    }
     
     /**
-     * Adds a message to the lobby chat
+     * Adds a message to the lobby chat, within a frame
      * @param message the message to add
      */
     public void addLobbyMessage(String message) {
-        chatTP.setText(chatTP.getText() + message + "\n");
+        chatLog.add(message);
+        frameTimer.start();
     }
     
     /**
-     * Adds a player to the lobby list
+     * Adds a player to the lobby list, within a frame
      * @param name the name of the player
      */
     public void addPlayer(String name) {
-        int i;
-        for(i = 0; i < playerLModel.getSize(); i++) {
-            if(name.compareTo(playerLModel.getElementAt(i)) < 0) break;
-        }
-        playerLModel.add(i, name);
+        pendingPlayers.put(name, true);
+        frameTimer.start();
     }
     
     /**
-     * Removes a player from the lobby list
+     * Removes a player from the lobby list, within a frame
      * @param name the name of the player
      */
     public void removePlayer(String name) {
-        playerLModel.removeElement(name);
+        pendingPlayers.put(name, false);
+        frameTimer.start();
+    }
+    
+    /**
+     * Notes that a player has gone busy or free, to be shown within a
+     * frame if it is the one selected
+     * @param name the name of the player
+     */
+    public void playerStatusChanged(String name) {
+        if(!name.equals(playerList.getSelectedValue())) return;
+        statusChanged = true;
+        frameTimer.start();
+    }
+    
+    /**
+     * Shows everything gathered over the last frame at once: the players
+     * who came or went in one update of the list, keeping the same player
+     * selected, the selected player's status in one repaint, and chat in
+     * one edit.
+     */
+    private void endFrame() {
+        chatLog.flush();
+        if(!pendingPlayers.isEmpty()) {
+            List<String> added = new ArrayList<>();
+            List<String> removed = new ArrayList<>();
+            for(Map.Entry<String, Boolean> e : pendingPlayers.entrySet()) {
+                (e.getValue() ? added : removed).add(e.getKey());
+            }
+            pendingPlayers.clear();
+            String selected = playerList.getSelectedValue();
+            playerLModel.update(added, removed);
+            if(selected != null) {
+                int i = playerLModel.indexOf(selected);
+                if(i < 0) playerList.clearSelection();
+                else if(i != playerList.getSelectedIndex()) {
+                    playerList.setSelectedIndex(i);
+                }
+            }
+        }
+        if(statusChanged) {
+            statusChanged = false;
+            infoPanel.repaint();
+        }
     }
     
     /**
      * Creates and shows a LobbyWindow
-     * @param toAlert the ServerCommunication to report events to
+     * @param toAlert the connection to report events to
      * @return the LobbyWindow which is on screen
      */
-    public static LobbyWindow run(ServerCommunication toAlert) {
+    public static LobbyWindow run(ClientEngine toAlert) {
         /* Set the Nimbus look and feel */
         //<editor-fold defaultstate="collapsed" desc=" Look and feel setting code (optional) ">
         /* If Nimbus (introduced in Java SE 6) is not available, stay with the default look and feel.
@@ -213,11 +310,26 @@ public class LobbyWindow extends JFrame {
             lw.setVisible(true);
         });
         
-        new Thread(lw.infoPanel).start();
-        
         return lw;
     }
     
+    /**
+     * Returns how many times the information panel has been drawn
+     * @return how many times the information panel has been drawn
+     */
+    public long getInfoFrames() {
+        return infoPanel.frames;
+    }
+    
+    /**
+     * Returns how long drawing the information panel has taken in all
+     * @return how long drawing the information panel has taken, in
+     * nanoseconds
+     */
+    public long getInfoFrameNanos() {
+        return infoPanel.frameNanos;
+    }
+    
     //<editor-fold defaultstate="collapsed" desc="Variables declaration - do not modify">
     private JLabel chatLabel;
     private JScrollPane chatSP;
@@ -227,18 +339,55 @@ public class LobbyWindow extends JFrame {
     private JLabel playerLabel;
     private JList<String> playerList;
     private JScrollPane playerListSP;
-    private DefaultListModel<String> playerLModel;
+    private PlayerListModel playerLModel;
     //</editor-fold>
     
     /**
-     * A JPanel that self-updates and displays information about the player.
+     * A JPanel that displays information about the player.  It is drawn
+     * only when something it shows changes: the player selected, their
+     * status, or its size; so it costs nothing while the lobby is idle.
      */
-    private class InfoPanel extends JPanel implements Runnable {
+    private class InfoPanel extends JPanel {
         /**
          * The MouseListener that is listening in to this InfoPanel.
          */
         private InfoMouseListener iml;
         
+        /**
+         * The size the fonts were made for, or -1 before the first paint
+         */
+        private int fontWidth = -1, fontHeight = -1;
+        
+        /**
+         * The font of the player's name, for the current size
+         */
+        private Font nameFont;
+        
+        /**
+         * The font of the challenge button, for the current size
+         */
+        private Font buttonFont;
+        
+        /**
+         * The player whose name was last measured, or null
+         */
+        private String measured;
+        
+        /**
+         * How wide the name of measured is in nameFont
+         */
+        private int measuredWidth;
+        
+        /**
+         * How many times this has been drawn
+         */
+        private volatile long frames;
+        
+        /**
+         * How long drawing this has taken in all, in nanoseconds
+         */
+        private volatile long frameNanos;
+        
         /**
          * Creates a new InfoPanel.
          */
@@ -246,18 +395,6 @@ public class LobbyWindow extends JFrame {
             iml = new InfoMouseListener();
             addMouseListener(iml);
         }
-        
-        @Override
-        public void run() {
-            while(true) {
-                repaint();
-                try {
-                    Thread.sleep(20);
-                } catch (InterruptedException ex) {
-                    System.err.println("Sleeping interrupted.");
-                }
-            }
-        }
 
         @Override
         public void update(Graphics g) {
@@ -266,6 +403,18 @@ public class LobbyWindow extends JFrame {
 
         @Override
         public void paint(Graphics g) {
+            long start = System.nanoTime();
+            draw(g);
+            // only the event dispatch thread writes these
+            frameNanos += System.nanoTime() - start;
+            frames++;
+        }
+        
+        /**
+         * Draws this InfoPanel.
+         * @param g the graphics to draw with
+         */
+        private void draw(Graphics g) {
             g.setColor(Color.white);
             g.fillRect(0, 0, getWidth(), getHeight());
             String selectedPlayer = playerList.getSelectedValue();
@@ -274,25 +423,31 @@ public class LobbyWindow extends JFrame {
                 g2D.setRenderingHint(RenderingHints.KEY_ANTIALIASING, 
                         RenderingHints.VALUE_ANTIALIAS_ON);
                 int cbh = challengeButtonHeight();
-                g2D.setStroke(new BasicStroke(1, BasicStroke.CAP_ROUND,
-                        BasicStroke.JOIN_ROUND));
-                g2D.setFont(new Font("Consolas", Font.PLAIN, cbh));
+                sizeFonts();
+                g2D.setStroke(THIN_STROKE);
+                g2D.setFont(nameFont);
                 g2D.setColor(Color.black);
                 g2D.drawString(selectedPlayer, 5, cbh + 5);
                 
-                boolean isBusy = toAlert.isPlayerBusy(selectedPlayer);
+                // null if the player has just gone, and not yet from the list
+                boolean isBusy = !Boolean.FALSE.equals(
+                        toAlert.isPlayerBusy(selectedPlayer));
                 if (isBusy) {
                     g2D.setColor(Color.red);
                 } else {
                     g2D.setColor(Color.green);
                 }
-                int x = (int) (cbh * 0.55) * selectedPlayer.length();
+                if(!selectedPlayer.equals(measured)) {
+                    FontMetrics fm = g2D.getFontMetrics(nameFont);
+                    measuredWidth = fm.stringWidth(selectedPlayer);
+                    measured = selectedPlayer;
+                }
+                int x = measuredWidth;
                 g2D.fillOval(x, cbh, 10, 10);
                 g2D.setColor(Color.black);
                 g2D.drawOval(x, cbh, 10, 10);
                 
-                g2D.setStroke(new BasicStroke(2.5f, BasicStroke.CAP_ROUND,
-                        BasicStroke.JOIN_ROUND));
+                g2D.setStroke(THICK_STROKE);
                 int cbx = challengeButtonX(), cby = challengeButtonY(),
                         cbw = challengeButtonWidth();
                 if (isBusy) {
@@ -305,12 +460,26 @@ public class LobbyWindow extends JFrame {
                     g2D.setColor(Color.darkGray);
                 }
                 g2D.drawRect(cbx, cby, cbw, cbh);
-                g2D.setFont(new Font("Consolas", Font.PLAIN, 
-                        Math.min(cbh - 10, cbw / 5)));
+                g2D.setFont(buttonFont);
                 g2D.drawString("CHALLENGE", cbx + 5, cby + cbh - 10);
             }
         }
         
+        /**
+         * Makes the fonts again if this has changed size since they were
+         * made.
+         */
+        private void sizeFonts() {
+            if(getWidth() == fontWidth && getHeight() == fontHeight) return;
+            fontWidth = getWidth();
+            fontHeight = getHeight();
+            nameFont = new Font("Consolas", Font.PLAIN,
+                    challengeButtonHeight());
+            buttonFont = new Font("Consolas", Font.PLAIN, Math.min(
+                    challengeButtonHeight() - 10, challengeButtonWidth() / 5));
+            measured = null;
+        }
+        
         /**
          * Notifies this InfoPanel that the mouse was released here
          * @param p the point where the mouse was released
@@ -319,7 +488,8 @@ public class LobbyWindow extends JFrame {
             int cbx = challengeButtonX(), cby = challengeButtonY();
             if(p.x >= cbx && p.x <= cbx + challengeButtonWidth() && 
                     p.y >= cby && p.y <= cby + challengeButtonHeight() && 
-                    !toAlert.isPlayerBusy(playerList.getSelectedValue())) {
+                    Boolean.FALSE.equals(toAlert.isPlayerBusy(
+                            playerList.getSelectedValue()))) {
                 toAlert.challenge(playerList.getSelectedValue());
             }
         }
@@ -0,0 +1,139 @@
+package roomclient;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import javax.swing.AbstractListModel;
+
+/**
+ * The players in the lobby, sorted by name, for a JList.  A few players
+ * coming or going are put in or taken out where a binary search says, and
+ * the list is told about just that row.  Many at once, such as a lobby
+ * being sent whole, are merged in one pass, and the list is told once, so
+ * thousands of players cost about as much as one redraw.
+ * @author Jed Wang
+ */
+final class PlayerListModel extends AbstractListModel<String> {
+    /**
+     * How many changes at once are made one by one; more are merged
+     */
+    private static final int ONE_BY_ONE = 16;
+
+    /**
+     * The players, sorted, followed by empty slots
+     */
+    private String[] players;
+
+    /**
+     * How many players there are
+     */
+    private int size;
+
+    /**
+     * Creates a new, empty PlayerListModel.
+     */
+    PlayerListModel() {
+        players = new String[16];
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return players[index];
+    }
+
+    /**
+     * Finds a player
+     * @param player the name of the player
+     * @return where the player is, or -1 if not here
+     */
+    int indexOf(String player) {
+        int i = Arrays.binarySearch(players, 0, size, player);
+        return i < 0 ? -1 : i;
+    }
+
+    /**
+     * Brings the list up to date.
+     * @param added the players who have come; those already here are
+     * left alone
+     * @param removed the players who have gone, none of whom have come
+     */
+    void update(Collection<String> added, Collection<String> removed) {
+        if(added.size() + removed.size() <= ONE_BY_ONE) {
+            for(String player : removed) {
+                remove(player);
+            }
+            for(String player : added) {
+                add(player);
+            }
+        } else {
+            merge(added, removed);
+        }
+    }
+
+    /**
+     * Puts a player in its place, and tells the list about that row.
+     * @param player the name of the player
+     */
+    private void add(String player) {
+        int i = Arrays.binarySearch(players, 0, size, player);
+        if(i >= 0) return;
+        i = -i - 1;
+        if(size == players.length) players = Arrays.copyOf(players, size * 2);
+        System.arraycopy(players, i, players, i + 1, size - i);
+        players[i] = player;
+        size++;
+        fireIntervalAdded(this, i, i);
+    }
+
+    /**
+     * Takes a player out, and tells the list about that row.
+     * @param player the name of the player
+     */
+    private void remove(String player) {
+        int i = indexOf(player);
+        if(i < 0) return;
+        System.arraycopy(players, i + 1, players, i, size - i - 1);
+        players[--size] = null;
+        fireIntervalRemoved(this, i, i);
+    }
+
+    /**
+     * Merges many changes in one pass, and tells the list once.  Rows are
+     * not tracked through the merge, so the list's selection is left for
+     * the caller to put back.
+     * @param added the players who have come
+     * @param removed the players who have gone
+     */
+    private void merge(Collection<String> added, Collection<String> removed) {
+        String[] adds = added.toArray(new String[0]);
+        Arrays.sort(adds);
+        Set<String> gone = new HashSet<>(removed);
+        String[] merged = new String[Math.max(16, size + adds.length)];
+        int n = 0, i = 0, j = 0;
+        while(i < size || j < adds.length) {
+            String next;
+            if(j == adds.length ||
+                    (i < size && players[i].compareTo(adds[j]) <= 0)) {
+                next = players[i++];
+                if(gone.contains(next)) continue;
+            } else {
+                next = adds[j++];
+            }
+            // a player who came but was already here
+            if(n > 0 && merged[n - 1].equals(next)) continue;
+            merged[n++] = next;
+        }
+        int was = size, both = Math.min(was, n);
+        players = merged;
+        size = n;
+        if(both > 0) fireContentsChanged(this, 0, both - 1);
+        if(n > was) fireIntervalAdded(this, was, n - 1);
+        else if(n < was) fireIntervalRemoved(this, n, was - 1);
+    }
+}
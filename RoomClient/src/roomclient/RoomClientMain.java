@@ -12,19 +12,19 @@ public class RoomClientMain {
      * @param args the command line arguments
      */
     public static void main(String[] args) {
-        ServerCommunication sc = new ServerCommunication();
+        ClientEngine engine = new ServerCommunication().getEngine();
         Scanner input = new Scanner(System.in);
         while(true) {
             String line = input.nextLine();
             switch(line) {
                 case "EXIT":
-                    sc.exitGame();
+                    engine.exitGame();
                     break;
                 case "END":
                     System.exit(0);
                     break;
                 default:
-                    sc.out.println(line);
+                    engine.send(line);
                     break;
             }
         }
@@ -1,212 +1,127 @@
 package roomclient;
 
 import java.awt.Dimension;
+import java.awt.EventQueue;
 import java.awt.Toolkit;
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ConnectException;
-import java.net.NoRouteToHostException;
-import java.net.Socket;
-import java.net.SocketException;
-import java.net.UnknownHostException;
-import java.util.HashMap;
 import javax.swing.JOptionPane;
 
 /**
- * A client to server communication
+ * A client to server communication.  The connection is read by a
+ * ClientEngine on a thread of its own; this listens to it on the event
+ * dispatch thread, so it may show dialogs and touch the LobbyWindow
+ * without holding up the connection.
  * @author Jed Wang
  */
-public class ServerCommunication {
+public class ServerCommunication implements ClientListener {
     /**
-     * The socket connection into this
+     * The connection to the server
      */
-    private BufferedReader in;
-    
-    /**
-     * The socket connection out of this
-     * Should be private
-     */
-    protected PrintWriter out;
-    
-    /**
-     * Whether this client is in a game
-     */
-    private boolean inGame;
-    
+    private final ClientEngine engine;
+
     /**
      * The LobbyWindow for this client
      */
     private LobbyWindow lw;
-    
-    /**
-     * The status of all players: (Name, Whether this client is busy)
-     */
-    private HashMap<String, Boolean> status;
-    
+
     /**
      * Standard constructor.
      */
     public ServerCommunication() {
-        inGame = false;
-        status = new HashMap<>();
-        
-        lw = LobbyWindow.run(this);
+        engine = new ClientEngine();
+        lw = LobbyWindow.run(engine);
         Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
-        lw.setLocation((screenSize.width - lw.getWidth())/2, 
+        lw.setLocation((screenSize.width - lw.getWidth())/2,
                 (screenSize.height - lw.getHeight())/2);
-        new Thread() {
-            @Override
-            public void run() {
-                try {
-                    run_();
-                } catch (IOException ex) {
-                    ex.printStackTrace();
-                }
-            }
-        }.start();
+        engine.addListener(new SwingDispatcher(this));
+        EventQueue.invokeLater(this::connect);
     }
-    
+
     /**
-     * Connects to the server then enters the processing loop
-     * @throws IOException if something goes wrong
+     * Asks for the address of the server and connects to it.  Whether it
+     * worked comes back as an event.
      */
-    private void run_() throws IOException {
-        // Make connection and initialize streams
-        String serverAddress;
-        Socket socket = null;
-        do {
-            serverAddress = getServerAddress();
-            try {
-                socket = new Socket(serverAddress, 9001);
-            } catch (ConnectException | NoRouteToHostException | UnknownHostException ex) {
+    private void connect() {
+        engine.start(getServerAddress(), 9001);
+    }
+
+    /**
+     * Returns the connection to the server
+     * @return the connection to the server
+     */
+    public ClientEngine getEngine() {
+        return engine;
+    }
+
+    @Override
+    public void event(ClientEvent e) {
+        switch(e.getType()) {
+            case ClientEvent.CONNECT_FAILED:
                 Object[] options = {"Reenter IP Adress", "Exit"};
-                int returned = JOptionPane.showOptionDialog(lw, ex.getMessage(), 
-                        "Connection Error", JOptionPane.OK_CANCEL_OPTION, 
+                int returned = JOptionPane.showOptionDialog(lw, e.getText(),
+                        "Connection Error", JOptionPane.OK_CANCEL_OPTION,
                         JOptionPane.ERROR_MESSAGE, null, options, options[0]);
                 if(returned != JOptionPane.OK_OPTION) {
                     lw.dispose();
                     System.exit(0);
-                    return;
-                }
-            }
-        } while(socket == null);
-        in = new BufferedReader(new InputStreamReader(
-            socket.getInputStream()));
-        out = new PrintWriter(socket.getOutputStream(), true);
-        
-        // Process all messages from server, according to the protocol.
-        
-        int temp = 0;
-        String _name;
-        while(true) {
-            // Reading input from the server
-            String line = null;
-            try {
-                line = in.readLine();
-            } catch (SocketException se) {
-                JOptionPane.showMessageDialog(lw, 
-                        "You have been disconnected from the server.", 
+                } else connect();
+                break;
+            case ClientEvent.DISCONNECTED:
+                JOptionPane.showMessageDialog(lw,
+                        "You have been disconnected from the server.",
                         "Disconnected", JOptionPane.WARNING_MESSAGE);
                 System.exit(0);
-            }
-            if(line == null) {
-                // Welp, looks like the server left
-                return;
-            }
-            
-            if(line.startsWith("NEWCLIENT")) {
-                // add a client to the pool
-                String[] data = line.substring(9).split(" ");
-                
-                String newClient = data[1];
-                System.out.println("new client: " + newClient);
-                lw.addPlayer(newClient);
-                status.put(newClient, false);
-                
-                if(Boolean.parseBoolean(data[0])) {
-                    lw.addLobbyMessage(newClient + " has joined");
+                break;
+            case ClientEvent.NAME_REQUESTED:
+                engine.submitName(getName(e.getFlag()));
+                break;
+            case ClientEvent.PLAYER_ADDED:
+                lw.addPlayer(e.getPlayer());
+                if(e.getFlag()) {
+                    lw.addLobbyMessage(e.getPlayer() + " has joined");
                 }
-            } else if(line.startsWith("REMOVECLIENT")) {
-                // remove a client from the pool
-                String toRemove = line.substring(12);
-                lw.removePlayer(toRemove);
-                status.remove(toRemove);
-                lw.addLobbyMessage(toRemove + " has left");
-            } else if(line.startsWith("BUSY")) {
-                status.put(line.substring(4), true);
-            } else if(line.startsWith("FREE")) {
-                status.put(line.substring(4), false);
-            } else if(line.startsWith("NLM")) {
-                lw.addLobbyMessage(line.substring(3));
-            } else {
-                if(inGame) {
-                    if(line.equals("EXIT")) {
-                        System.err.println("The other person has left "
-                                + "the match.");
-                        inGame = false;
-                    } else if(line.startsWith("NM")) {
-                        String message = line.substring(2);
-                        System.err.println("OPPONENT: " + message);
-                    }
-                } else {
-                    if(line.startsWith("SUBMITNAME")) {
-                        // submit your name, duh
-                        _name = getName(temp++ == 0);
-                        out.println(_name);
-                        System.out.println(_name);
-                    } else if(line.startsWith("NAMEACCEPTED")) {
-                        // the server has accepted your name
-                        temp = 0;
-                        // init stuff
-                    } else if(line.startsWith("CHALLENGE_C")) {
-                        // I'm being challenged!
-                        String challenger = line.substring(11);
-                        int choice = JOptionPane.showConfirmDialog(lw,
-                                challenger + " has challenged you!\nDo you accept?",
-                                "Challenge", JOptionPane.YES_NO_OPTION, 
-                                JOptionPane.INFORMATION_MESSAGE);
-                        // whether I accept the challenge
-                        boolean accepted = choice == JOptionPane.YES_OPTION;
-                        inGame = accepted;
-                        out.println("CHALLENGE_R" + challenger + " " + accepted);
-                    } else if(line.startsWith("CHALLENGE_R")) {
-                        inGame = Boolean.parseBoolean(line.substring(11));
-                        System.out.println(inGame);
-                    }
-                }
-            }
+                break;
+            case ClientEvent.PLAYER_REMOVED:
+                lw.removePlayer(e.getPlayer());
+                lw.addLobbyMessage(e.getPlayer() + " has left");
+                break;
+            case ClientEvent.STATUS_CHANGED:
+                lw.playerStatusChanged(e.getPlayer());
+                break;
+            case ClientEvent.LOBBY_MESSAGE:
+                lw.addLobbyMessage(e.getText());
+                break;
+            case ClientEvent.ROOM_CHANGED:
+                lw.addLobbyMessage(e.getText().isEmpty() ?
+                        "You are in the lobby" : "You are in " + e.getText());
+                break;
+            case ClientEvent.ROOM_REFUSED:
+                lw.addLobbyMessage("Could not go into " + e.getText());
+                break;
+            case ClientEvent.MATCHED:
+                lw.addLobbyMessage("You have been matched with " +
+                        e.getPlayer());
+                break;
+            case ClientEvent.UNQUEUED:
+                lw.addLobbyMessage("You have left the queue");
+                break;
+            case ClientEvent.CHALLENGED:
+                int choice = JOptionPane.showConfirmDialog(lw,
+                        e.getPlayer() + " has challenged you!\nDo you accept?",
+                        "Challenge", JOptionPane.YES_NO_OPTION,
+                        JOptionPane.INFORMATION_MESSAGE);
+                engine.answerChallenge(e.getPlayer(),
+                        choice == JOptionPane.YES_OPTION);
+                break;
+            case ClientEvent.OPPONENT_EXITED:
+                System.err.println("The other person has left "
+                        + "the match.");
+                break;
+            case ClientEvent.OPPONENT_MESSAGE:
+                System.err.println("OPPONENT: " + e.getText());
+                break;
         }
     }
-    
-    /**
-     * Sends a message to the lobby chat
-     * @param toSend the message to send
-     */
-    public void sendLobbyMessage(String toSend) {
-        out.println("NLM" + toSend);
-    }
-    
-    /**
-     * Challenges a player
-     * @param player the player to challenge
-     */
-    public void challenge(String player) {
-        out.println("CHALLENGE_C" + player);
-    }
-    
-    /**
-     * Determines whether a player is busy
-     * @param player the player to request
-     * @return whether the player is busy
-     */
-    public Boolean isPlayerBusy(String player) {
-        if(status.containsKey(player)) {
-            return status.get(player);
-        } else return null;
-    }
-    
+
     /**
      * Prompt for and return the address of the server.
      */
@@ -234,12 +149,4 @@ public class ServerCommunication {
         } while(s.contains(" ") || "".equals(s));
         return s;
     }
-    
-    /**
-     * Exits the current game.
-     */
-    public void exitGame() {
-        out.println("EXIT");
-        inGame = false;
-    }
-}
\ No newline at end of file
+}
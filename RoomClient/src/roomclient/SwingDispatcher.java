@@ -0,0 +1,62 @@
+package roomclient;
+
+import java.awt.EventQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hands events to a listener on the event dispatch thread, so that it may
+ * touch Swing.  Events which come while the last batch is still waiting to
+ * be handed over join it, so a burst of them costs one trip to the event
+ * dispatch thread rather than one each, and the thread reading from the
+ * server never waits for Swing.
+ * @author Jed Wang
+ */
+public class SwingDispatcher implements ClientListener {
+    /**
+     * The listener to hand events to
+     */
+    private final ClientListener target;
+
+    /**
+     * The events waiting to be handed over, oldest first
+     */
+    private final ConcurrentLinkedQueue<ClientEvent> pending;
+
+    /**
+     * Whether a batch has been queued on the event dispatch thread and has
+     * not yet started
+     */
+    private final AtomicBoolean scheduled;
+
+    /**
+     * Creates a new SwingDispatcher.
+     * @param target the listener to hand events to on the event dispatch
+     * thread
+     */
+    public SwingDispatcher(ClientListener target) {
+        this.target = target;
+        pending = new ConcurrentLinkedQueue<>();
+        scheduled = new AtomicBoolean();
+    }
+
+    @Override
+    public void event(ClientEvent e) {
+        pending.add(e);
+        if(scheduled.compareAndSet(false, true)) {
+            EventQueue.invokeLater(this::drain);
+        }
+    }
+
+    /**
+     * Hands over every event waiting, on the event dispatch thread.
+     */
+    private void drain() {
+        // before taking any, so an event added after the last is taken
+        // queues another batch
+        scheduled.set(false);
+        for(ClientEvent e; (e = pending.poll()) != null;) {
+            target.event(e);
+        }
+    }
+}
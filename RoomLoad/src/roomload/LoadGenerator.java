@@ -0,0 +1,201 @@
+package roomload;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import roomserver.ServerOptions;
+
+/**
+ * Puts a room server under load: many simulated clients connect at a
+ * steady rate, chat in the lobby, and pair off to play, and how long
+ * everything took is reported as they go and at the end.  Every client has
+ * a virtual thread which acts and another which reads, so a few thousand
+ * are no trouble for one machine.
+ * @author Jed Wang
+ */
+public class LoadGenerator {
+    /**
+     * The address of the server
+     */
+    final String host;
+
+    /**
+     * The ports of the server, or of the nodes of a cluster, which the
+     * clients are spread over in turn
+     */
+    final int[] ports;
+
+    /**
+     * Whether clients take up the binary protocol if it is offered
+     */
+    final boolean binary;
+
+    /**
+     * How many lobby messages each client sends a minute
+     */
+    final int chatPerMinute;
+
+    /**
+     * How many moves each player makes a second
+     */
+    final int movesPerSecond;
+
+    /**
+     * How many moves there are to every lock
+     */
+    final int lockEvery;
+
+    /**
+     * How long each game lasts, in seconds
+     */
+    final int gameSeconds;
+
+    /**
+     * How long players rest between games, in seconds
+     */
+    final int pauseSeconds;
+
+    /**
+     * Whether players find games through the matchmaking queue rather than
+     * by challenging their partners
+     */
+    final boolean queue;
+
+    /**
+     * What has been measured
+     */
+    final LoadStats stats;
+
+    /**
+     * Whether the test is still going
+     */
+    volatile boolean running;
+
+    /**
+     * Reads the settings of the test.
+     * @param options the command line options
+     */
+    private LoadGenerator(ServerOptions options) {
+        host = options.get("host", "localhost");
+        String list = options.get("ports",
+                String.valueOf(options.getInt("port", 9001)));
+        String[] each = list.split(",");
+        ports = new int[each.length];
+        for(int i = 0; i < each.length; i++) {
+            try {
+                ports[i] = Integer.parseInt(each[i].trim());
+            } catch(NumberFormatException nfe) {
+                throw new IllegalArgumentException(
+                        "--ports needs integers, not " + list);
+            }
+        }
+        binary = !options.getFlag("text");
+        chatPerMinute = options.getInt("chat-per-minute", 2);
+        movesPerSecond = Math.max(1, options.getInt("moves-per-second", 10));
+        lockEvery = Math.max(1, options.getInt("lock-every", 8));
+        gameSeconds = options.getInt("game-seconds", 30);
+        pauseSeconds = options.getInt("pause-seconds", 2);
+        queue = options.getFlag("queue");
+        stats = new LoadStats();
+        running = true;
+    }
+
+    /**
+     * The main method.  Takes the following options:
+     * <ul>
+     * <li><code>--host=HOST</code> (localhost), <code>--port=N</code>
+     * (9001): the server</li>
+     * <li><code>--ports=N,N,...</code>: the nodes of a cluster on the
+     * host, which the clients take in turn; with two nodes, the players
+     * of every pair are on different ones</li>
+     * <li><code>--clients=N</code> (1000): how many clients to run</li>
+     * <li><code>--connect-rate=N</code> (500): how many clients to connect
+     * a second</li>
+     * <li><code>--seconds=N</code> (60): how long to run for, counting
+     * from the first connection</li>
+     * <li><code>--name-prefix=NAME</code> (load): clients are named this
+     * followed by a number</li>
+     * <li><code>--text</code>: use the text protocol even if the server
+     * offers the binary one</li>
+     * <li><code>--chat-per-minute=N</code> (2): how often each client
+     * sends a lobby message</li>
+     * <li><code>--match-percent=N</code> (50): how many of the clients
+     * play games</li>
+     * <li><code>--rooms=N</code> (0): spread the clients over this many
+     * rooms rather than keep them all in the lobby; both players of a
+     * pair go into the same room</li>
+     * <li><code>--queue</code>: players queue for games, with random
+     * ratings, and play whoever the server matches them with, rather than
+     * challenge their partners</li>
+     * <li><code>--moves-per-second=N</code> (10), <code>--lock-every=N</code>
+     * (8): how fast players move, and how many moves there are to a lock;
+     * every seventh lock is followed by a new bag</li>
+     * <li><code>--game-seconds=N</code> (30), <code>--pause-seconds=N</code>
+     * (2): how long games last, and how long players wait between
+     * them</li>
+     * <li><code>--report-seconds=N</code> (5): how often to print how
+     * things are going</li>
+     * </ul>
+     * @param args the command line arguments
+     * @throws InterruptedException if interrupted while waiting for the
+     * clients to finish
+     */
+    public static void main(String[] args) throws InterruptedException {
+        ServerOptions options = new ServerOptions(args);
+        LoadGenerator load = new LoadGenerator(options);
+        int clients = options.getInt("clients", 1000);
+        int connectRate = Math.max(1, options.getInt("connect-rate", 500));
+        long duration = options.getInt("seconds", 60) * 1_000_000_000L;
+        long reportEvery = Math.max(1, options.getInt("report-seconds", 5)) *
+                1_000_000_000L;
+        String prefix = options.get("name-prefix", "load");
+        // players are paired off as 0 and 1, 2 and 3, ...
+        int players = clients * options.getInt("match-percent", 50) / 100 &
+                ~1;
+        int rooms = options.getInt("rooms", 0);
+
+        System.out.println("Running " + clients + " clients against " +
+                load.host + ":" + options.get("ports",
+                String.valueOf(load.ports[0])) + ", " + players + " of them in " +
+                "games" + (load.queue ? " through the queue" : "") + ", " +
+                (load.binary ? "binary" : "text") + " protocol" +
+                (rooms > 0 ? ", in " + rooms + " rooms" : ""));
+        List<Thread> threads = new ArrayList<>(clients);
+        long start = System.nanoTime(), lastReport = start, connectTime = -1;
+        int started = 0;
+        while(true) {
+            long now = System.nanoTime();
+            if(now - start >= duration) break;
+            // connect whoever is due
+            long due = Math.min(clients, (now - start) * connectRate /
+                    1_000_000_000L + 1);
+            for(; started < due; started++) {
+                String partner = !load.queue && started < players &&
+                        started % 2 == 0 ? prefix + (started + 1) : null;
+                String room = rooms > 0 ?
+                        prefix + "-room" + started / 2 % rooms : null;
+                SimulatedClient client = new SimulatedClient(load,
+                        prefix + started, partner,
+                        load.queue && started < players, room,
+                        load.ports[started % load.ports.length]);
+                threads.add(Thread.ofVirtual().name(prefix + started).
+                        start(client::play));
+            }
+            if(connectTime < 0 && load.stats.connected.sum() == clients) {
+                connectTime = now - start;
+            }
+            if(now - lastReport >= reportEvery) {
+                load.stats.report(System.out, now - start, now - lastReport);
+                lastReport = now;
+            }
+            LockSupport.parkNanos(10_000_000L);
+        }
+
+        load.running = false;
+        for(Thread t : threads) {
+            t.join(1000);
+        }
+        System.out.println();
+        load.stats.summary(System.out, clients, connectTime);
+    }
+}
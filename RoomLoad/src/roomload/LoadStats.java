@@ -0,0 +1,177 @@
+package roomload;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.LongAdder;
+import roomserver.Histogram;
+
+/**
+ * What the simulated clients have measured.  Every client records into the
+ * same counters and histograms, which are cheap to share.
+ * @author Jed Wang
+ */
+public class LoadStats {
+    /**
+     * How long it took from connecting to having a name accepted, in
+     * nanoseconds
+     */
+    public final Histogram handshake = new Histogram();
+
+    /**
+     * How long in-game commands took to reach the opponent, in nanoseconds
+     */
+    public final Histogram relay = new Histogram();
+
+    /**
+     * How long lobby chat took to reach each client, in nanoseconds
+     */
+    public final Histogram broadcast = new Histogram();
+
+    /**
+     * How long players waited in the matchmaking queue, in nanoseconds
+     */
+    public final Histogram queueWait = new Histogram();
+
+    /**
+     * How many clients have had their names accepted
+     */
+    public final LongAdder connected = new LongAdder();
+
+    /**
+     * How many connections could not be made
+     */
+    public final LongAdder connectErrors = new LongAdder();
+
+    /**
+     * How many names were not accepted
+     */
+    public final LongAdder nameErrors = new LongAdder();
+
+    /**
+     * How many connections were closed by the server before the end
+     */
+    public final LongAdder disconnects = new LongAdder();
+
+    /**
+     * How many sends failed
+     */
+    public final LongAdder sendErrors = new LongAdder();
+
+    /**
+     * How many challenges were refused
+     */
+    public final LongAdder refused = new LongAdder();
+
+    /**
+     * How many games have started, counted by the challenger, or by the
+     * player whose name comes first if the queue paired them
+     */
+    public final LongAdder games = new LongAdder();
+
+    /**
+     * How many in-game commands have been sent
+     */
+    public final LongAdder movesSent = new LongAdder();
+
+    /**
+     * How many in-game commands have arrived
+     */
+    public final LongAdder movesReceived = new LongAdder();
+
+    /**
+     * How many lobby messages have been sent
+     */
+    public final LongAdder chatSent = new LongAdder();
+
+    /**
+     * How many lobby messages have arrived, counting every recipient
+     */
+    public final LongAdder chatReceived = new LongAdder();
+
+    /**
+     * The counts at the last report: connected, moves sent, moves
+     * received, chat sent and chat received
+     */
+    private final long[] last = new long[5];
+
+    /**
+     * Returns how many errors of every kind there have been
+     * @return how many errors there have been
+     */
+    public long errors() {
+        return connectErrors.sum() + nameErrors.sum() + disconnects.sum() +
+                sendErrors.sum();
+    }
+
+    /**
+     * Prints one line about what has happened since the last time this was
+     * called
+     * @param out where to print it
+     * @param elapsed how long the test has been running, in nanoseconds
+     * @param interval how long it has been since the last report, in
+     * nanoseconds
+     */
+    public void report(PrintStream out, long elapsed, long interval) {
+        long[] now = {connected.sum(), movesSent.sum(), movesReceived.sum(),
+                chatSent.sum(), chatReceived.sum()};
+        double seconds = interval / 1e9;
+        double[] rate = new double[now.length];
+        for(int i = 0; i < now.length; i++) {
+            rate[i] = (now[i] - last[i]) / seconds;
+            last[i] = now[i];
+        }
+        out.printf("[%4ds] clients %d (+%.0f/s), moves %.0f/s sent %.0f/s "
+                + "relayed (p99 %s), chat %.0f/s sent %.0f/s delivered "
+                + "(p99 %s), errors %d%n", elapsed / 1_000_000_000L, now[0],
+                rate[0], rate[1], rate[2], millis(relay.quantile(0.99)),
+                rate[3], rate[4], millis(broadcast.quantile(0.99)), errors());
+    }
+
+    /**
+     * Prints the results of the whole test
+     * @param out where to print them
+     * @param clients how many clients there were meant to be
+     * @param connectTime how long it took all of them to connect, in
+     * nanoseconds, or a negative number if some never did
+     */
+    public void summary(PrintStream out, int clients, long connectTime) {
+        long n = connected.sum();
+        if(connectTime > 0) {
+            out.printf("connected %d/%d in %.2f s (%.0f/s)%n", n, clients,
+                    connectTime / 1e9, n / (connectTime / 1e9));
+        } else {
+            out.printf("connected %d/%d%n", n, clients);
+        }
+        print(out, "handshake", handshake);
+        print(out, "relay", relay);
+        print(out, "broadcast", broadcast);
+        if(queueWait.count() > 0) print(out, "queue", queueWait);
+        out.printf("games %d, moves %d sent %d received, chat %d sent "
+                + "%d received%n", games.sum(), movesSent.sum(),
+                movesReceived.sum(), chatSent.sum(), chatReceived.sum());
+        out.printf("errors: connect %d, name %d, disconnect %d, send %d; "
+                + "challenges refused %d%n", connectErrors.sum(),
+                nameErrors.sum(), disconnects.sum(), sendErrors.sum(),
+                refused.sum());
+    }
+
+    /**
+     * Prints the percentiles of a histogram
+     * @param out where to print them
+     * @param label what the histogram measures
+     * @param h the histogram
+     */
+    private static void print(PrintStream out, String label, Histogram h) {
+        out.printf("%-10s n=%d p50 %s p99 %s p999 %s max %s%n", label,
+                h.count(), millis(h.quantile(0.5)), millis(h.quantile(0.99)),
+                millis(h.quantile(0.999)), millis(h.max()));
+    }
+
+    /**
+     * Formats a duration in milliseconds
+     * @param nanos the duration, in nanoseconds
+     * @return the duration, such as "1.234 ms"
+     */
+    private static String millis(long nanos) {
+        return String.format("%.3f ms", nanos / 1e6);
+    }
+}
@@ -0,0 +1,317 @@
+package roomload;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+import roomclient.ClientConnection;
+
+/**
+ * One simulated player.  It joins under a name of its own, goes into its
+ * room if it has one, chats there now and then, and, if it has a partner,
+ * plays game after game against it, or, if it queues, against whoever the
+ * server matches it with.  Everything it sends carries the {@link System#nanoTime()}
+ * it was sent at as its last word, so that whoever receives it can tell
+ * how long it took.
+ * @author Jed Wang
+ */
+public class SimulatedClient extends ClientConnection {
+    /**
+     * The moves made, in turn
+     */
+    private static final String[] MOVES =
+            {"L", "R", "RR", "RL", "SD", "L", "R", "H", "HD"};
+
+    /**
+     * How many locks there are to a bag
+     */
+    private static final int BAG = 7;
+
+    /**
+     * How long to wait for an answer to a challenge before asking again,
+     * in nanoseconds
+     */
+    private static final long CHALLENGE_TIMEOUT = 5_000_000_000L;
+
+    /**
+     * The longest this sleeps between looking at what is due, in
+     * nanoseconds
+     */
+    private static final long MAX_SLEEP = 100_000_000L;
+
+    /**
+     * The test this is part of
+     */
+    private final LoadGenerator load;
+
+    /**
+     * The name of this client
+     */
+    private final String myName;
+
+    /**
+     * The name of the client this one challenges, or null if it only waits
+     * to be challenged
+     */
+    private final String partner;
+
+    /**
+     * Whether this client finds its games through the matchmaking queue
+     */
+    private final boolean queues;
+
+    /**
+     * The room this client goes into, or null to stay in the lobby
+     */
+    private final String room;
+
+    /**
+     * The port this client connects to
+     */
+    private final int port;
+
+    /**
+     * Whether the last attempt to go into the room was to make it
+     */
+    private boolean creating;
+
+    /**
+     * When this started connecting
+     */
+    private long connectedAt;
+
+    /**
+     * Whether the name has been accepted and this client is in its room
+     */
+    private volatile boolean named;
+
+    /**
+     * When the current game started
+     */
+    private volatile long gameStart;
+
+    /**
+     * When the next challenge may be made, or the next time this may queue
+     */
+    private volatile long nextChallenge;
+
+    /**
+     * When this client last queued, or 0 if it is not in the queue
+     */
+    private volatile long queuedAt;
+
+    /**
+     * Creates a simulated client.
+     * @param load the test this is part of
+     * @param myName the name of this client
+     * @param partner the name of the client to challenge, or null to wait
+     * to be challenged
+     * @param queues whether to find games through the matchmaking queue
+     * @param room the room to go into, or null to stay in the lobby
+     * @param port the port to connect to
+     */
+    public SimulatedClient(LoadGenerator load, String myName, String partner,
+            boolean queues, String room, int port) {
+        this.load = load;
+        this.port = port;
+        this.myName = myName;
+        this.partner = partner;
+        this.queues = queues;
+        this.room = room;
+    }
+
+    /**
+     * Connects, then acts until the test is over, reading on another
+     * thread.  Returns once this has disconnected.
+     */
+    public void play() {
+        connectedAt = System.nanoTime();
+        try {
+            connect(load.host, port);
+        } catch (IOException ex) {
+            load.stats.connectErrors.increment();
+            return;
+        }
+        Thread reader = Thread.ofVirtual().start(() -> {
+            try {
+                run();
+            } catch (IOException ex) {
+                // counted below
+            }
+            if(load.running) load.stats.disconnects.increment();
+        });
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int rating = random.nextInt(1000, 2000);
+        long chatInterval = 60_000_000_000L / Math.max(1, load.chatPerMinute);
+        long moveInterval = 1_000_000_000L / load.movesPerSecond;
+        // spread the chat out rather than have everyone talk at once
+        long nextChat = load.chatPerMinute > 0 ? System.nanoTime() +
+                (long) (random.nextDouble() * chatInterval) : Long.MAX_VALUE;
+        long nextMove = 0;
+        int moves = 0;
+        while(load.running && reader.isAlive()) {
+            long now = System.nanoTime();
+            if(!named) {
+                LockSupport.parkNanos(MAX_SLEEP / 10);
+                continue;
+            }
+            if(now >= nextChat) {
+                sendLobbyMessage("load " + System.nanoTime());
+                load.stats.chatSent.increment();
+                nextChat += chatInterval;
+            }
+            if(isInGame()) {
+                if((partner != null || queues) &&
+                        now - gameStart >= load.gameSeconds * 1_000_000_000L) {
+                    exitGame();
+                    nextChallenge = now + load.pauseSeconds * 1_000_000_000L;
+                } else if(now >= nextMove) {
+                    move(moves++);
+                    // don't make up for moves missed by falling behind
+                    nextMove = (now - nextMove > moveInterval ?
+                            now : nextMove) + moveInterval;
+                }
+            } else if(partner != null && now >= nextChallenge &&
+                    Boolean.FALSE.equals(isPlayerBusy(partner))) {
+                challenge(partner);
+                nextChallenge = now + CHALLENGE_TIMEOUT;
+            } else if(queues && queuedAt == 0 && now >= nextChallenge) {
+                queuedAt = now;
+                queue(rating);
+            }
+            long wake = Math.min(nextChat, now + MAX_SLEEP);
+            if(isInGame()) wake = Math.min(wake, nextMove);
+            LockSupport.parkNanos(wake - System.nanoTime());
+        }
+        if(isInGame()) exitGame();
+        close();
+    }
+
+    /**
+     * Makes a move, and every so often locks a piece or asks for a new bag
+     * @param n how many moves have been made before this one
+     */
+    private void move(int n) {
+        send("M" + MOVES[n % MOVES.length] + " " + System.nanoTime());
+        load.stats.movesSent.increment();
+        if(n % load.lockEvery == load.lockEvery - 1) {
+            send("LOCK" + (n % 10) + " 19 " + System.nanoTime());
+            load.stats.movesSent.increment();
+            if(n / load.lockEvery % BAG == BAG - 1) {
+                send("NBIJLOSTZ " + System.nanoTime());
+                load.stats.movesSent.increment();
+            }
+        }
+    }
+
+    /**
+     * Returns the time at the end of a message sent by a simulated client
+     * @param message the message
+     * @return the time it was sent, or {@link Long#MIN_VALUE} if there is
+     * none
+     */
+    private static long sentAt(String message) {
+        int space = message.lastIndexOf(' ');
+        try {
+            return Long.parseLong(message.substring(space + 1));
+        } catch (NumberFormatException nfe) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    @Override
+    protected String chooseName(boolean first) {
+        if(first) return myName;
+        load.stats.nameErrors.increment();
+        return null;
+    }
+
+    @Override
+    protected boolean wantsBinary() {
+        return load.binary;
+    }
+
+    @Override
+    protected void nameAccepted() {
+        load.stats.handshake.record(System.nanoTime() - connectedAt);
+        load.stats.connected.increment();
+        if(room == null) named = true;
+        else joinRoom(room);
+    }
+
+    @Override
+    protected void roomChanged(String entered) {
+        if(entered.equals(room)) named = true;
+    }
+
+    @Override
+    protected void roomRefused(String refused) {
+        // whoever gets there first makes the room
+        creating = !creating;
+        if(creating) createRoom(room);
+        else joinRoom(room);
+    }
+
+    @Override
+    protected void lobbyMessage(String message) {
+        long sent = sentAt(message);
+        if(sent != Long.MIN_VALUE) {
+            load.stats.broadcast.record(System.nanoTime() - sent);
+            load.stats.chatReceived.increment();
+        }
+    }
+
+    @Override
+    protected boolean acceptChallenge(String challenger) {
+        gameStart = System.nanoTime();
+        return true;
+    }
+
+    @Override
+    protected void challengeResult(boolean accepted) {
+        if(accepted) {
+            gameStart = System.nanoTime();
+            load.stats.games.increment();
+        } else {
+            load.stats.refused.increment();
+            nextChallenge = System.nanoTime() +
+                    load.pauseSeconds * 1_000_000_000L;
+        }
+    }
+
+    @Override
+    protected void matched(String opponent) {
+        long now = System.nanoTime();
+        load.stats.queueWait.record(now - queuedAt);
+        queuedAt = 0;
+        gameStart = now;
+        if(myName.compareTo(opponent) < 0) load.stats.games.increment();
+    }
+
+    @Override
+    protected void unqueued() {
+        queuedAt = 0;
+        nextChallenge = System.nanoTime() +
+                load.pauseSeconds * 1_000_000_000L;
+    }
+
+    @Override
+    protected void opponentExited() {
+        nextChallenge = System.nanoTime() +
+                load.pauseSeconds * 1_000_000_000L;
+    }
+
+    @Override
+    protected void opponentMove(String command) {
+        long sent = sentAt(command);
+        if(sent != Long.MIN_VALUE) {
+            load.stats.relay.record(System.nanoTime() - sent);
+            load.stats.movesReceived.increment();
+        }
+    }
+
+    @Override
+    protected void sendFailed(IOException ex) {
+        if(load.running) load.stats.sendErrors.increment();
+    }
+}
@@ -0,0 +1,159 @@
+package roomserver;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import roomserver.ClientCommunication.Handler;
+
+/**
+ * What to do about clients which do not read what is sent to them.  Every
+ * outbound queue has three limits, in bytes:
+ * <ul>
+ * <li>above the <i>chat limit</i>, lobby chat to the client is dropped</li>
+ * <li>above the <i>high-water mark</i> for too long, the client is
+ * disconnected</li>
+ * <li>above the <i>hard limit</i>, the client is disconnected at once</li>
+ * </ul>
+ * Status updates are always coalesced to the latest one per player.
+ * @author Jed Wang
+ */
+public class Backpressure {
+    /**
+     * The chat limit, unless told otherwise
+     */
+    public static final int DEFAULT_CHAT_LIMIT = 64 * 1024;
+
+    /**
+     * The high-water mark, unless told otherwise
+     */
+    public static final int DEFAULT_HIGH_WATER = 256 * 1024;
+
+    /**
+     * How long a client may stay above the high-water mark, in seconds,
+     * unless told otherwise
+     */
+    public static final int DEFAULT_HIGH_WATER_SECONDS = 10;
+
+    /**
+     * The hard limit, unless told otherwise
+     */
+    public static final int DEFAULT_HARD_LIMIT = 4 * 1024 * 1024;
+
+    /**
+     * The policy in force
+     */
+    private static volatile Backpressure policy = new Backpressure(
+            DEFAULT_CHAT_LIMIT, DEFAULT_HIGH_WATER,
+            DEFAULT_HIGH_WATER_SECONDS, DEFAULT_HARD_LIMIT);
+
+    /**
+     * How many lobby chat messages were dropped
+     */
+    static final LongAdder droppedChat = new LongAdder();
+
+    /**
+     * How many status updates were replaced by a later one before being
+     * sent
+     */
+    static final LongAdder coalescedStatus = new LongAdder();
+
+    /**
+     * How many clients were disconnected for not reading
+     */
+    static final LongAdder slowDisconnects = new LongAdder();
+
+    /**
+     * Above this many queued bytes, lobby chat is dropped
+     */
+    final long chatLimit;
+
+    /**
+     * Above this many queued bytes, the client is on the clock
+     */
+    final long highWater;
+
+    /**
+     * How long a client may stay above the high-water mark, in nanoseconds
+     */
+    final long highWaterNanos;
+
+    /**
+     * Above this many queued bytes, the client is disconnected
+     */
+    final long hardLimit;
+
+    /**
+     * Creates a new policy.
+     * @param chatLimit above this many queued bytes, lobby chat is dropped
+     * @param highWater above this many queued bytes, the client is on the
+     * clock
+     * @param highWaterSeconds how long a client may stay above the
+     * high-water mark
+     * @param hardLimit above this many queued bytes, the client is
+     * disconnected
+     */
+    public Backpressure(long chatLimit, long highWater, int highWaterSeconds,
+            long hardLimit) {
+        this.chatLimit = chatLimit;
+        this.highWater = highWater;
+        this.highWaterNanos = TimeUnit.SECONDS.toNanos(highWaterSeconds);
+        this.hardLimit = hardLimit;
+    }
+
+    /**
+     * Reads the policy from the startup options <code>--chat-limit</code>,
+     * <code>--high-water</code>, <code>--high-water-seconds</code> and
+     * <code>--hard-limit</code>, and puts it in force.
+     * @param options the startup options
+     */
+    public static void configure(ServerOptions options) {
+        policy = new Backpressure(
+                options.getInt("chat-limit", DEFAULT_CHAT_LIMIT),
+                options.getInt("high-water", DEFAULT_HIGH_WATER),
+                options.getInt("high-water-seconds",
+                        DEFAULT_HIGH_WATER_SECONDS),
+                options.getInt("hard-limit", DEFAULT_HARD_LIMIT));
+    }
+
+    /**
+     * Returns the policy in force
+     * @return the policy in force
+     */
+    public static Backpressure policy() {
+        return policy;
+    }
+
+    /**
+     * Starts a thread which checks once a second for clients which have
+     * been above the high-water mark for too long, and disconnects them.
+     */
+    public static void startMonitor() {
+        ScheduledExecutorService monitor =
+                Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "slow-consumer-monitor");
+                    t.setDaemon(true);
+                    return t;
+                });
+        monitor.scheduleWithFixedDelay(Backpressure::check, 1, 1,
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * Disconnects every client which has been above the high-water mark for
+     * too long.
+     */
+    private static void check() {
+        long now = System.nanoTime();
+        long limit = policy.highWaterNanos;
+        for(Handler h : ClientCommunication.registry.snapshot()) {
+            long since = h.out.aboveHighWaterSince();
+            if(since != 0 && now - since > limit) {
+                Log.warn(h.getClientName(), "not reading; bytes queued",
+                        h.out.bytes());
+                slowDisconnects.increment();
+                h.disconnect();
+            }
+        }
+    }
+}
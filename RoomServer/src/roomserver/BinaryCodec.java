@@ -0,0 +1,319 @@
+package roomserver;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import roomserver.ClientCommunication.Handler;
+
+/**
+ * The binary protocol.  Every frame is a varint length, then a one-byte
+ * opcode, then a body of (length - 1) bytes.  Players are named by their
+ * varint id everywhere but in NEWCLIENT, which tells the client which
+ * name goes with which id.  The bodies are:
+ * <ul>
+ * <li>PING, EXIT: nothing</li>
+ * <li>NEWCLIENT: varint id, one byte (1 if the player is new), UTF-8
+ * name</li>
+ * <li>REMOVECLIENT, BUSY, FREE, CHALLENGE_C: varint id</li>
+ * <li>NLM: varint id of the sender (only from the server), UTF-8
+ * message</li>
+ * <li>CHALLENGE_R: varint id of the challenger (only from a client), one
+ * byte (1 if accepted)</li>
+ * <li>NB, LOCK, M, NM, LINE: the body of the text command, as it is</li>
+ * <li>ROSTER: one byte (1 if it is the whole room), the version as eight
+ * bytes, most significant first, then for each player: varint id, one
+ * byte (0 if free, 1 if busy, 2 if gone), varint length of the name, and
+ * the UTF-8 name</li>
+ * <li>CREATEROOM, JOINROOM, ROOM, NOROOM: UTF-8 name of the room, empty
+ * for the lobby</li>
+ * <li>LEAVEROOM: nothing</li>
+ * </ul>
+ * Text may not contain line breaks, since it may be passed on to clients
+ * using the text codec.
+ * @author Jed Wang
+ */
+public class BinaryCodec extends Codec {
+    /**
+     * The one BinaryCodec
+     */
+    public static final BinaryCodec INSTANCE = new BinaryCodec();
+
+    /**
+     * Creates the BinaryCodec.
+     */
+    private BinaryCodec() {
+        super(1);
+    }
+
+    /**
+     * Starts a frame.
+     * @param opcode the opcode of the frame
+     * @param bodyLength how long the body will be
+     * @return the frame, with only the length and opcode written, and its
+     * position just after them
+     */
+    private static ByteBuffer frame(int opcode, int bodyLength) {
+        int length = bodyLength + 1;
+        byte[] b = new byte[varintSize(length) + length];
+        int off = putVarint(b, 0, length);
+        b[off++] = (byte) opcode;
+        return ByteBuffer.wrap(b).position(off);
+    }
+
+    /**
+     * Writes a varint into a frame.
+     * @param frame the frame
+     * @param value the value to write
+     */
+    private static void putVarint(ByteBuffer frame, int value) {
+        frame.position(Codec.putVarint(frame.array(), frame.position(),
+                value));
+    }
+
+    /**
+     * Finishes a frame.
+     * @param frame the frame, completely written
+     * @return the frame, ready to be sent
+     */
+    private static ByteBuffer done(ByteBuffer frame) {
+        return frame.flip().asReadOnlyBuffer();
+    }
+
+    @Override
+    public ByteBuffer encode(int opcode) {
+        return done(frame(opcode, 0));
+    }
+
+    @Override
+    public ByteBuffer encode(int opcode, Handler player) {
+        ByteBuffer f = frame(opcode, varintSize(player.getId()));
+        putVarint(f, player.getId());
+        return done(f);
+    }
+
+    @Override
+    public ByteBuffer newClient(Handler player, boolean isNew) {
+        byte[] name = player.getPlayerName().utf8;
+        ByteBuffer f = frame(NEWCLIENT,
+                varintSize(player.getId()) + 1 + name.length);
+        putVarint(f, player.getId());
+        f.put((byte) (isNew ? 1 : 0));
+        f.put(name);
+        return done(f);
+    }
+
+    @Override
+    public ByteBuffer lobbyMessage(Handler from, byte[] message) {
+        ByteBuffer f = frame(NLM, varintSize(from.getId()) + message.length);
+        putVarint(f, from.getId());
+        f.put(message);
+        return done(f);
+    }
+
+    @Override
+    public ByteBuffer challengeResult(boolean accepted) {
+        ByteBuffer f = frame(CHALLENGE_R, 1);
+        f.put((byte) (accepted ? 1 : 0));
+        return done(f);
+    }
+
+    @Override
+    public ByteBuffer roster(boolean full, long version, int[] ids,
+            PlayerName[] players, int[] states, int from, int to) {
+        int length = 1 + Long.BYTES;
+        for(int i = from; i < to; i++) {
+            int name = players[i].utf8.length;
+            length += varintSize(ids[i]) + 1 + varintSize(name) + name;
+        }
+        ByteBuffer f = frame(ROSTER, length);
+        f.put((byte) (full ? 1 : 0));
+        f.putLong(version);
+        for(int i = from; i < to; i++) {
+            byte[] name = players[i].utf8;
+            putVarint(f, ids[i]);
+            f.put((byte) (states[i] == BUSY ? 1 : states[i] == FREE ? 0 : 2));
+            putVarint(f, name.length);
+            f.put(name);
+        }
+        return done(f);
+    }
+
+    @Override
+    public ByteBuffer room(int opcode, byte[] room) {
+        ByteBuffer f = frame(opcode, room.length);
+        f.put(room);
+        return done(f);
+    }
+
+    @Override
+    public ByteBuffer game(int opcode, ByteBuffer src, int from, int to) {
+        ByteBuffer f = frame(opcode, to - from);
+        copy(f, src, from, to);
+        return done(f);
+    }
+
+    @Override
+    public int relay(ByteBuffer in, Codec to, ByteBuffer dst, int max) {
+        int relayed = 0;
+        int start = in.position();
+        while(relayed < max) {
+            long v;
+            try {
+                v = getVarint(in, start);
+            } catch(ProtocolException e) {
+                break;
+            }
+            if(v < 0) break;
+            int length = (int) (v >>> 32), body = (int) v;
+            if(length < 1 || length > MAX_FRAME_LENGTH ||
+                    in.limit() - body < length) break;
+            int opcode = in.get(body), end = body + length;
+            if(opcode < NB || opcode > LINE || opcode == EXIT) break;
+            int before = dst.position();
+            if(to == this) {
+                if(dst.remaining() < end - start) break;
+                copy(dst, in, start, end);
+            } else if(hasLineBreak(in, body + 1, end) ||
+                    !to.putGame(dst, opcode, in, body + 1, end)) {
+                break;
+            }
+            Metrics.relayed(opcode, end - start, dst.position() - before);
+            start = end;
+            relayed++;
+        }
+        in.position(start);
+        return relayed;
+    }
+
+    @Override
+    boolean putGame(ByteBuffer dst, int opcode, ByteBuffer src, int from,
+            int to) {
+        int length = to - from + 1;
+        if(dst.remaining() < varintSize(length) + length) return false;
+        while((length & ~0x7F) != 0) {
+            dst.put((byte) ((length & 0x7F) | 0x80));
+            length >>>= 7;
+        }
+        dst.put((byte) length);
+        dst.put((byte) opcode);
+        copy(dst, src, from, to);
+        return true;
+    }
+
+    @Override
+    public boolean decode(ByteBuffer in, Handler h) throws ProtocolException {
+        int frame = in.position();
+        long v = getVarint(in, frame);
+        if(v < 0) return false;
+        int length = (int) (v >>> 32), start = (int) v;
+        if(length < 1 || length > MAX_FRAME_LENGTH)
+            throw new ProtocolException("bad frame length " + length);
+        if(in.limit() - start < length) return false;
+        int end = start + length;
+        in.position(end);
+
+        int opcode = in.get(start);
+        MessageView message = h.view.of(opcode, in, start + 1, end);
+        Log.trace(h.getClientName(), "received", name(opcode));
+        Metrics.received(opcode > 0 && opcode <= LEAVEROOM &&
+                opcode != ROSTER || opcode == QUEUE || opcode == UNQUEUE ?
+                opcode : 0, end - frame);
+        if((opcode == NLM || opcode >= NB && opcode <= NOROOM) &&
+                hasLineBreak(in, start + 1, end))
+            throw new ProtocolException("line break in text");
+        switch(opcode) {
+            case PING:
+                h.onPing();
+                break;
+            case NLM:
+                h.onLobbyMessage(message);
+                break;
+            case EXIT:
+                if(h.isInGame()) h.onExit();
+                break;
+            case NB:
+            case LOCK:
+            case M:
+            case NM:
+            case LINE:
+                if(h.isInGame()) h.onGame(message);
+                break;
+            case CREATEROOM:
+            case JOINROOM:
+            case LEAVEROOM:
+                h.onRoom(message);
+                break;
+            case QUEUE: {
+                int rating = Matchmaker.DEFAULT_RATING;
+                if(message.length() > 0) {
+                    v = getVarint(in, message.start);
+                    if(v < 0 || (int) v > end)
+                        throw new ProtocolException("bad rating");
+                    rating = (int) (v >>> 32);
+                }
+                h.onQueue(rating);
+                break;
+            }
+            case UNQUEUE:
+                h.onUnqueue();
+                break;
+            case CHALLENGE_C: {
+                Handler other = player(playerId(message));
+                if(other != null && !h.isInGame()) h.onChallenge(other);
+                break;
+            }
+            case CHALLENGE_R: {
+                long id = playerId(message);
+                Handler other = player(id);
+                int accepted = (int) id;
+                if(other != null && !h.isInGame() && accepted < end)
+                    h.onChallengeResponse(other, in.get(accepted) != 0);
+                break;
+            }
+            default:
+                throw new ProtocolException("unknown opcode " + opcode);
+        }
+        return true;
+    }
+
+    /**
+     * Reads a player's id from the start of a body.
+     * @param message the message
+     * @return the id in the upper 32 bits and the index just past it in
+     * the lower 32 bits
+     * @throws ProtocolException if there is no id
+     */
+    private static long playerId(MessageView message)
+            throws ProtocolException {
+        long v = getVarint(message.buffer, message.start);
+        if(v < 0 || (int) v > message.end)
+            throw new ProtocolException("missing player id");
+        return v;
+    }
+
+    /**
+     * Finds a player by id.
+     * @param id the id in the upper 32 bits, as returned by
+     * {@link #playerId(MessageView)}
+     * @return the player, or null if nobody has the id
+     */
+    private static Handler player(long id) {
+        Handler h = ClientCommunication.registry.get((int) (id >>> 32));
+        if(h == null) Log.info(null, "opponent not found", (int) (id >>> 32));
+        return h;
+    }
+
+    /**
+     * Returns whether a body could not be passed on to text clients as
+     * one line.
+     * @param in the buffer holding the body
+     * @param from where the body starts
+     * @param to where the body ends
+     * @return whether the body contains a line break
+     */
+    private static boolean hasLineBreak(ByteBuffer in, int from, int to) {
+        for(int i = from; i < to; i++) {
+            if(in.get(i) == '\n') return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,96 @@
+package roomserver;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.LockSupport;
+import roomserver.ClientCommunication.Handler;
+
+/**
+ * A Handler that owns a thread and blocks on its client's socket.  The
+ * thread may be a platform thread or a virtual thread.  Output is written
+ * by a virtual thread started for each flush, so that sending to this
+ * client never blocks the sender; as only one flush at a time may be
+ * claimed, a client which stops reading blocks a writer of its own, and
+ * nobody else's.
+ * @author Jed Wang
+ */
+public class BlockingHandler extends Handler implements Runnable {
+    /**
+     * This client's channel, in blocking mode
+     */
+    public final SocketChannel channel;
+
+    /**
+     * Starts a writer for each flush of the outbound queue
+     */
+    private final Executor writers;
+
+    /**
+     * Constructs a blocking handler, squirreling away the channel.
+     * All the interesting work is done in the run method.
+     * @param channel the channel that receives info from the client
+     * @param writers starts a writer for each flush of the outbound queue
+     */
+    public BlockingHandler(SocketChannel channel, Executor writers) {
+        this.channel = channel;
+        this.writers = writers;
+    }
+
+    /**
+     * Services this thread's client by repeatedly reading from the socket
+     * and handing whatever messages arrive to the protocol until the
+     * client goes away.
+     */
+    @Override
+    public void run() {
+        try {
+            opened();
+            while(true) {
+                if(channel.read(inbound()) < 0) {
+                    return;
+                }
+                decodeInbound();
+                while(pause != 0) {
+                    if(pause == STOPPED) return;
+                    LockSupport.parkNanos(this, pause);
+                    pause = 0;
+                    decodeInbound();
+                }
+            }
+        } catch(ProtocolException e) {
+            Log.warn(getClientName(), "protocol error", e.getMessage());
+        } catch(IOException e) {
+            Log.debug(getClientName(), "connection lost", e);
+        } finally {
+            closed();
+            try {
+                channel.close();
+            } catch(IOException e) {}
+        }
+    }
+
+    @Override
+    protected void requestFlush() {
+        writers.execute(this::flush);
+    }
+
+    /**
+     * Writes everything queued, blocking until it is written.
+     */
+    private void flush() {
+        try {
+            out.drainTo(channel);
+        } catch(IOException e) {
+            disconnect();
+        }
+    }
+
+    @Override
+    protected void disconnect() {
+        try {
+            channel.close();
+        } catch(IOException e) {}
+    }
+}
@@ -0,0 +1,342 @@
+package roomserver;
+
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import roomserver.ClientCommunication.Handler;
+import static roomserver.ClientRegistry.CLOSED;
+import static roomserver.ClientRegistry.kind;
+import static roomserver.Codec.*;
+
+/**
+ * A thread which delivers broadcasts: one shard of the server, keeping
+ * the rooms pinned to it.  Senders only hand over the message and the
+ * room, which costs the same however big the room is; this thread then
+ * puts the frame on the outbound queue of everybody in the room.  Changes
+ * to a room are handed over the same way, and this thread keeps the
+ * room's {@link Roster}, so nothing about a room is locked.
+ * @author Jed Wang
+ */
+public class Broadcaster implements Runnable {
+    /**
+     * How many shards there are, unless told otherwise
+     */
+    public static final int DEFAULT_SHARDS =
+            Runtime.getRuntime().availableProcessors();
+
+    /**
+     * How many shards to start; read when the first room is made
+     */
+    static volatile int shardCount = DEFAULT_SHARDS;
+
+    /**
+     * The broadcasts waiting to be delivered
+     */
+    private final LinkedBlockingQueue<Object> queue;
+
+    /**
+     * This shard's number
+     */
+    private final int index;
+
+    /**
+     * Creates a new Broadcaster.  It will not run until started.
+     * @param index this shard's number
+     */
+    public Broadcaster(int index) {
+        queue = new LinkedBlockingQueue<>();
+        this.index = index;
+    }
+
+    /**
+     * Creates and starts the shards.
+     * @param count how many shards to start, at least one
+     * @return the shards
+     */
+    static Broadcaster[] startShards(int count) {
+        Broadcaster[] shards = new Broadcaster[Math.max(1, count)];
+        for(int i = 0; i < shards.length; i++) {
+            shards[i] = new Broadcaster(i);
+            shards[i].start();
+        }
+        return shards;
+    }
+
+    /**
+     * Starts this broadcaster's thread.
+     */
+    public void start() {
+        Thread t = new Thread(this, "broadcaster-" + index);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Queues a message to be sent to everybody in a room.
+     * @param room the room, which is pinned to this shard
+     * @param message the message
+     * @param kind what sort of message it is, as an OutboundQueue kind
+     * @param player the player the message is about, if any
+     */
+    void submit(Room room, Message message, int kind, String player) {
+        queue.add(new Broadcast(room, message, kind, player));
+    }
+
+    /**
+     * Queues a player joining a room.
+     * @param room the room, which is pinned to this shard
+     * @param player the player, who has just been registered or has just
+     * left another room
+     * @param since the last version of the room the player saw, if it
+     * asked for ROSTER frames and has been here before, or -1
+     * @param moved whether the player came from another room, and so is
+     * to be told which room it is now in
+     */
+    void join(Room room, Handler player, long since, boolean moved) {
+        queue.add(new Change(moved ? JOINROOM : NEWCLIENT, room, player,
+                null, since, null));
+    }
+
+    /**
+     * Queues a player leaving a room.
+     * @param room the room, which is pinned to this shard
+     * @param player the player, who has just been unregistered
+     */
+    void leave(Room room, Handler player) {
+        queue.add(new Change(REMOVECLIENT, room, player, null, -1, null));
+    }
+
+    /**
+     * Queues many players leaving a room at once, so that everybody in it
+     * is told in one frame.
+     * @param room the room, which is pinned to this shard
+     * @param players the players, who have just been unregistered
+     */
+    void leave(Room room, Handler[] players) {
+        queue.add(new Departure(room, players));
+    }
+
+    /**
+     * Queues a player moving from one room to another.  The player leaves
+     * the room it is in on this shard, and then this shard queues it
+     * joining the other room on that room's shard, so that it is never in
+     * two rooms at once and is sent nothing more about the room it left
+     * once it has been told it is in the other.
+     * @param from the room the player is in, which is pinned to this shard
+     * @param player the player
+     * @param to the room the player is going to
+     */
+    void move(Room from, Handler player, Room to) {
+        queue.add(new Change(LEAVEROOM, from, player, null, -1, to));
+    }
+
+    /**
+     * Queues one or two players in a room becoming busy or free.
+     * @param room the room, which is pinned to this shard
+     * @param opcode BUSY or FREE
+     * @param player a player
+     * @param other another player, or null
+     */
+    void status(Room room, int opcode, Handler player, Handler other) {
+        queue.add(new Change(opcode, room, player, other, -1, null));
+    }
+
+    @Override
+    public void run() {
+        ArrayList<Object> batch = new ArrayList<>();
+        while(true) {
+            try {
+                batch.add(queue.take());
+            } catch(InterruptedException ie) {
+                return;
+            }
+            queue.drainTo(batch);
+            for(Object e : batch) {
+                long start = System.nanoTime();
+                if(e instanceof Change) {
+                    apply((Change) e);
+                } else if(e instanceof Departure) {
+                    Departure d = (Departure) e;
+                    d.room.roster.leave(d.players);
+                    d.room.closeIfEmpty();
+                } else {
+                    Broadcast b = (Broadcast) e;
+                    b.room.roster.broadcast(b.message, b.kind, b.player);
+                }
+                Metrics.broadcastFanout.record(System.nanoTime() - start);
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Makes a change to a room and announces it.
+     * @param c the change
+     */
+    private void apply(Change c) {
+        Room room = c.room;
+        Handler player = c.player;
+        switch(c.opcode) {
+            case NEWCLIENT:
+                if(room.closed) {
+                    // a player on another node, coming into a room which
+                    // emptied while it was on its way
+                    Room open = Room.open(room.name);
+                    player.room = open;
+                    open.shard.join(open, player, c.since, false);
+                } else room.roster.join(player, c.since);
+                break;
+            case JOINROOM:
+                if(kind(player.state.get()) == CLOSED) {
+                    // gone while on its way here
+                    room.closeIfEmpty();
+                } else if(room.closed) {
+                    // emptied while the player was on its way here
+                    player.send(NOROOM,
+                            player.codec.room(NOROOM, room.utf8));
+                    player.room = Room.LOBBY;
+                    Room.LOBBY.shard.join(Room.LOBBY, player, -1, true);
+                } else {
+                    player.send(ROOM, player.codec.room(ROOM, room.utf8));
+                    room.roster.join(player, -1);
+                    player.moving = false;
+                    Cluster.moved(player);
+                }
+                break;
+            case LEAVEROOM:
+                room.roster.leave(player);
+                room.closeIfEmpty();
+                c.to.shard.join(c.to, player, -1, true);
+                break;
+            case REMOVECLIENT:
+                room.roster.leave(player);
+                room.closeIfEmpty();
+                break;
+            default:
+                room.roster.status(c.opcode, player, c.other);
+        }
+    }
+
+    /**
+     * A message and the room it goes to.
+     */
+    private static class Broadcast {
+        /**
+         * The room to send the message to
+         */
+        private final Room room;
+
+        /**
+         * The message to send
+         */
+        private final Message message;
+
+        /**
+         * What sort of message it is, as an OutboundQueue kind
+         */
+        private final int kind;
+
+        /**
+         * The player the message is about, if any
+         */
+        private final String player;
+
+        /**
+         * Creates a new Broadcast.
+         * @param room the room to send the message to
+         * @param message the message to send
+         * @param kind what sort of message it is, as an OutboundQueue kind
+         * @param player the player the message is about, if any
+         */
+        private Broadcast(Room room, Message message, int kind,
+                String player) {
+            this.room = room;
+            this.message = message;
+            this.kind = kind;
+            this.player = player;
+        }
+    }
+
+    /**
+     * Players leaving a room together.
+     */
+    private static class Departure {
+        /**
+         * The room
+         */
+        private final Room room;
+
+        /**
+         * The players
+         */
+        private final Handler[] players;
+
+        /**
+         * Creates a new Departure.
+         * @param room the room
+         * @param players the players
+         */
+        private Departure(Room room, Handler[] players) {
+            this.room = room;
+            this.players = players;
+        }
+    }
+
+    /**
+     * A change to a room.
+     */
+    private static class Change {
+        /**
+         * NEWCLIENT, REMOVECLIENT, BUSY or FREE; JOINROOM for a player
+         * joining from another room, LEAVEROOM for one leaving for another
+         * room
+         */
+        private final int opcode;
+
+        /**
+         * The room
+         */
+        private final Room room;
+
+        /**
+         * The player the change is about
+         */
+        private final Handler player;
+
+        /**
+         * Another player who became busy or free at the same time, or null
+         */
+        private final Handler other;
+
+        /**
+         * For NEWCLIENT, the last version the player saw, or -1
+         */
+        private final long since;
+
+        /**
+         * For LEAVEROOM, the room the player is going to
+         */
+        private final Room to;
+
+        /**
+         * Creates a new Change.
+         * @param opcode NEWCLIENT, REMOVECLIENT, BUSY, FREE, JOINROOM or
+         * LEAVEROOM
+         * @param room the room
+         * @param player the player the change is about
+         * @param other another player who became busy or free at the same
+         * time, or null
+         * @param since for NEWCLIENT, the last version the player saw, or
+         * -1
+         * @param to for LEAVEROOM, the room the player is going to
+         */
+        private Change(int opcode, Room room, Handler player, Handler other,
+                long since, Room to) {
+            this.opcode = opcode;
+            this.room = room;
+            this.player = player;
+            this.other = other;
+            this.since = since;
+            this.to = to;
+        }
+    }
+}
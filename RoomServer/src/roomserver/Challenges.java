@@ -0,0 +1,266 @@
+package roomserver;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import roomserver.ClientCommunication.Handler;
+import static roomserver.ClientRegistry.*;
+
+/**
+ * The challenges which are waiting for an answer.  A challenge is only
+ * passed on if the player challenged is free, neither player already has
+ * too many waiting, and the same challenge is not already waiting; it
+ * then stays in the table until it is answered, it expires, or one of the
+ * players goes busy, moves or leaves, whichever comes first.  Whoever
+ * takes it out of the table decides what happens to it, so each challenge
+ * ends exactly once, and a CHALLENGE_R is only acted on if its challenge
+ * is still in the table, which is a single lookup.
+ * <p>
+ * A challenger whose challenge ends without an answer is sent
+ * CHALLENGE_Rfalse.  Expiry is driven by {@link TimingWheel#TIMERS}.
+ * <p>
+ * In a cluster, both players' nodes keep the challenge; each lets it go
+ * on its own, and the challenger's node still has the last word on
+ * whether there is a game.
+ * @author Jed Wang
+ */
+final class Challenges {
+    /**
+     * How long a challenge waits for an answer, in seconds, unless told
+     * otherwise
+     */
+    public static final int DEFAULT_TIMEOUT_SECONDS = 30;
+
+    /**
+     * How many challenges a player may have made which are waiting for an
+     * answer, unless told otherwise
+     */
+    public static final int DEFAULT_LIMIT = 4;
+
+    /**
+     * How many challenges to a player may be waiting for its answer,
+     * unless told otherwise
+     */
+    public static final int DEFAULT_INBOX = 8;
+
+    /**
+     * How long a challenge waits for an answer, in nanoseconds
+     */
+    private static volatile long timeoutNanos =
+            TimeUnit.SECONDS.toNanos(DEFAULT_TIMEOUT_SECONDS);
+
+    /**
+     * How many challenges a player may have made which are waiting
+     */
+    static volatile int limit = DEFAULT_LIMIT;
+
+    /**
+     * How many challenges to a player may be waiting
+     */
+    static volatile int inbox = DEFAULT_INBOX;
+
+    /**
+     * The challenges waiting for an answer, by challenger and player
+     * challenged, as made by {@link #key(Handler, Handler)}
+     */
+    private static final ConcurrentHashMap<Long, Challenge> pending =
+            new ConcurrentHashMap<>();
+
+    /**
+     * How many challenges have been passed on
+     */
+    static final LongAdder made = new LongAdder();
+
+    /**
+     * How many challenges were turned away: the player challenged was
+     * busy, or somebody had too many waiting
+     */
+    static final LongAdder refused = new LongAdder();
+
+    /**
+     * How many challenges were not answered in time
+     */
+    static final LongAdder expired = new LongAdder();
+
+    /**
+     * How many challenges were called off because a player went busy,
+     * moved or left
+     */
+    static final LongAdder cancelled = new LongAdder();
+
+    /**
+     * No instances
+     */
+    private Challenges() {
+    }
+
+    /**
+     * Reads <code>--challenge-timeout=SECONDS</code>, how long a challenge
+     * waits for an answer, <code>--challenge-limit=N</code>, how many a
+     * player may have made which are waiting, and
+     * <code>--challenge-inbox=N</code>, how many to a player may be
+     * waiting.
+     * @param options the startup options
+     */
+    public static void configure(ServerOptions options) {
+        timeoutNanos = TimeUnit.SECONDS.toNanos(Math.max(1, options.getInt(
+                "challenge-timeout", DEFAULT_TIMEOUT_SECONDS)));
+        limit = Math.max(1, options.getInt("challenge-limit", DEFAULT_LIMIT));
+        inbox = Math.max(1, options.getInt("challenge-inbox", DEFAULT_INBOX));
+    }
+
+    /**
+     * Returns how many challenges are waiting for an answer
+     * @return how many challenges are waiting for an answer
+     */
+    static int pending() {
+        return pending.size();
+    }
+
+    /**
+     * Makes the key of a challenge.
+     * @param challenger the challenger
+     * @param challenged the player challenged
+     * @return both ids in one long
+     */
+    private static long key(Handler challenger, Handler challenged) {
+        return ((long) challenger.getId() << 32) |
+                (challenged.getId() & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Records a challenge, unless it is already waiting or has to be
+     * turned away, in which case the challenger is told.
+     * @param challenger the challenger
+     * @param challenged the player challenged, in the same room
+     * @return whether the challenge should be passed on
+     */
+    static boolean offer(Handler challenger, Handler challenged) {
+        long k = key(challenger, challenged);
+        if(pending.containsKey(k)) return false;
+        if(challenger.moving || challenged.moving ||
+                kind(challenged.state.get()) != FREE) {
+            return refuse(challenger, challenged, "challenged is busy");
+        }
+        if(challenger.challengesOut.incrementAndGet() > limit) {
+            challenger.challengesOut.decrementAndGet();
+            return refuse(challenger, challenged, "too many challenges");
+        }
+        if(challenged.challengesIn.incrementAndGet() > inbox) {
+            challenged.challengesIn.decrementAndGet();
+            challenger.challengesOut.decrementAndGet();
+            return refuse(challenger, challenged, "too many challengers");
+        }
+        Challenge c = new Challenge(k, challenger, challenged);
+        if(pending.putIfAbsent(k, c) != null) {
+            // made twice at once; the other one stands
+            challenger.challengesOut.decrementAndGet();
+            challenged.challengesIn.decrementAndGet();
+            return false;
+        }
+        challenger.challenges.add(c);
+        challenged.challenges.add(c);
+        made.increment();
+        TimingWheel.TIMERS.schedule(c, timeoutNanos);
+        return true;
+    }
+
+    /**
+     * Turns a challenge away.
+     * @param challenger the challenger, which is told
+     * @param challenged the player challenged
+     * @param why what to log
+     * @return false, as the challenge is not passed on
+     */
+    private static boolean refuse(Handler challenger, Handler challenged,
+            String why) {
+        Log.info(challenger.getClientName(), why, challenged);
+        refused.increment();
+        challenger.challengeRefused(challenged);
+        return false;
+    }
+
+    /**
+     * Takes a challenge which has been answered out of the table.
+     * @param challenger the challenger
+     * @param challenged the player answering
+     * @return whether the challenge was waiting for the answer; if not, it
+     * has already ended and the answer means nothing
+     */
+    static boolean answer(Handler challenger, Handler challenged) {
+        Challenge c = pending.get(key(challenger, challenged));
+        return c != null && end(c);
+    }
+
+    /**
+     * Calls off every challenge a player has made or been sent, because
+     * it has gone busy, moved or left.  The challengers of the player are
+     * told; the players it challenged are not, as there is no telling
+     * them, and any answer they send will mean nothing.
+     * @param player the player
+     */
+    static void cancel(Handler player) {
+        for(Challenge c : player.challenges) {
+            if(!end(c)) continue;
+            cancelled.increment();
+            if(c.challenger != player) {
+                c.challenger.challengeRefused(c.challenged);
+            }
+        }
+    }
+
+    /**
+     * Takes a challenge out of the table, if nobody else has.
+     * @param c the challenge
+     * @return whether this call took it out, and so decides what happens
+     */
+    private static boolean end(Challenge c) {
+        if(!pending.remove(c.key, c)) return false;
+        c.challenger.challenges.remove(c);
+        c.challenged.challenges.remove(c);
+        c.challenger.challengesOut.decrementAndGet();
+        c.challenged.challengesIn.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * A challenge waiting for an answer
+     */
+    static final class Challenge extends TimingWheel.Timeout {
+        /**
+         * Where this is in the table
+         */
+        final long key;
+
+        /**
+         * The challenger
+         */
+        final Handler challenger;
+
+        /**
+         * The player challenged
+         */
+        final Handler challenged;
+
+        /**
+         * Makes a challenge.
+         * @param key where it goes in the table
+         * @param challenger the challenger
+         * @param challenged the player challenged
+         */
+        private Challenge(long key, Handler challenger, Handler challenged) {
+            this.key = key;
+            this.challenger = challenger;
+            this.challenged = challenged;
+        }
+
+        @Override
+        void expired() {
+            if(!end(this)) return;
+            expired.increment();
+            Log.info(challenger.getClientName(), "challenge expired",
+                    challenged);
+            challenger.challengeRefused(challenged);
+        }
+    }
+}
@@ -1,14 +1,21 @@
 package roomserver;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Scanner;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import roomserver.RelayBuffers.Chunk;
+import static roomserver.ClientRegistry.*;
+import static roomserver.Codec.*;
+import static roomserver.OutboundQueue.*;
 
 /**
  * A class that handles communication with clients
@@ -19,240 +26,920 @@ public class ClientCommunication {
      * The port to communicate over
      */
     public static final int PORT = 9001;
-    
+
+    /**
+     * All named clients and what they are doing
+     */
+    static final ClientRegistry registry = new ClientRegistry();
+
+    /**
+     * Guards taking a name and queuing the join, and giving the name back
+     * and queuing the leave, so that the lobby's shard sees players come
+     * and go in the same order as the registry does.  Nothing is sent
+     * while holding it; the shard tells everybody, and tells the new
+     * client who is here.  Players on other nodes of the cluster come and
+     * go under it too.
+     */
+    static final ReentrantLock nameLock = new ReentrantLock();
+
+    /**
+     * Sends a message to everybody in a room.  The message is handed to
+     * the room's shard; this does not wait for it to be sent.
+     * @param room the room
+     * @param message the message to send
+     * @param kind what sort of message it is, as an OutboundQueue kind
+     * @param player the player the message is about, if any
+     */
+    static void broadcast(Room room, Message message, int kind,
+            String player) {
+        room.shard.submit(room, message, kind, player);
+    }
+
+    /**
+     * Tells everybody in a player's room that the player is busy or free.
+     * A player going busy calls off its challenges.
+     * @param opcode BUSY or FREE
+     * @param player the player
+     */
+    static void broadcastStatus(int opcode, Handler player) {
+        if(opcode == Codec.BUSY) Challenges.cancel(player);
+        Room room = player.room;
+        room.shard.status(room, opcode, player, null);
+        Cluster.status(opcode, player, null);
+    }
+
+    /**
+     * Tells everybody in the room of both players of a game that they are
+     * busy, or free, in one frame.
+     * @param opcode BUSY or FREE
+     * @param player one player
+     * @param other the other player, who is in the same room
+     */
+    static void broadcastStatus(int opcode, Handler player, Handler other) {
+        if(opcode == Codec.BUSY) {
+            Challenges.cancel(player);
+            Challenges.cancel(other);
+        }
+        Room room = player.room;
+        room.shard.status(room, opcode, player, other);
+        Cluster.status(opcode, player, other);
+    }
+
     /**
-     * A map of all names of clients paired to their respective Handlers.
+     * Takes a player on another node out of the registry and its room, and
+     * ends its game, if it was in one with a player here.
+     * @param player the player, who has gone from its node or whose node
+     * has gone
      */
-    private static HashMap<String, Handler> handlers = new HashMap<>();
-    
+    static void leaveRemote(Handler player) {
+        Handler opp = registry.release(player, registry.close(player));
+        Challenges.cancel(player);
+        nameLock.lock();
+        try {
+            registry.unregister(player);
+            Room r = player.room;
+            r.shard.leave(r, player);
+        } finally {
+            nameLock.unlock();
+        }
+        if(opp != null) {
+            opp.opponentExited(player);
+            broadcastStatus(Codec.FREE, opp);
+        }
+    }
+
     /**
-     * A Set of Handlers which are busy
+     * Disconnects clients which have gone quiet, and takes them out of the
+     * registry and their rooms together, so that everybody in each room is
+     * told in one frame.  Clients which have already gone are left out.
+     * @param quiet the clients
      */
-    private static Set<Handler> busy = new HashSet<>();
-    
+    static void evict(List<Handler> quiet) {
+        List<Handler> gone = new ArrayList<>(quiet.size());
+        List<Handler[]> freed = new ArrayList<>();
+        for(Handler h : quiet) {
+            if(h.isNaming()) {
+                // may be taking a name right now; its own thread tidies up
+                h.disconnect();
+                continue;
+            }
+            long s = registry.close(h);
+            if(kind(s) == CLOSED) continue;
+            h.disconnect();
+            Handler opp = registry.release(h, s);
+            if(opp != null) freed.add(new Handler[] {h, opp});
+            Challenges.cancel(h);
+            gone.add(h);
+        }
+        if(gone.isEmpty()) return;
+        nameLock.lock();
+        try {
+            registry.unregister(gone);
+            Map<Room, List<Handler>> byRoom = new HashMap<>();
+            for(Handler h : gone) {
+                Cluster.left(h);
+                byRoom.computeIfAbsent(h.room, r -> new ArrayList<>()).add(h);
+            }
+            for(Map.Entry<Room, List<Handler>> e : byRoom.entrySet()) {
+                Room r = e.getKey();
+                r.shard.leave(r, e.getValue().toArray(new Handler[0]));
+            }
+        } finally {
+            nameLock.unlock();
+        }
+        for(Handler[] game : freed) {
+            game[1].opponentExited(game[0]);
+            broadcastStatus(Codec.FREE, game[1]);
+        }
+    }
+
     /**
-     * A handler thread class.  Handlers are spawned from the listening
+     * A handler class.  Handlers are spawned from the listening
      * loop and are responsible for a dealing with a single client
-     * and broadcasting its messages.
+     * and broadcasting its messages.  This class only knows about the
+     * protocol; subclasses decide how bytes are read from and written to
+     * the socket, and the client's Codec decides what the bytes mean.
      */
-    public static class Handler extends Thread implements Comparable<Handler> {
+    public static abstract class Handler implements Comparable<Handler> {
+        /**
+         * How big the inbound buffer starts out, in bytes.  Kept small as
+         * most messages are short and an idle client should cost as little
+         * memory as possible.
+         */
+        private static final int INITIAL_INBOUND_SIZE = 1024;
+
+        /**
+         * The pause which means this client is never to be read from
+         * again, as it is being disconnected
+         */
+        static final long STOPPED = Long.MAX_VALUE;
+
+        /**
+         * This client's id
+         */
+        private final int id;
+
         /**
          * This client's name
          */
-        private String name;
-        
+        private PlayerName name;
+
         /**
-         * This client's socket
+         * The presence messages about this client, once it has a name
          */
-        public final Socket socket;
-        
+        Presence presence;
+
         /**
-         * The opponent's handler
+         * Whether this client asked for ROSTER frames
          */
-        private Handler opponent;
-        
+        boolean followsRoster;
+
+        /**
+         * The room this client is in, or is on its way to
+         */
+        volatile Room room;
+
+        /**
+         * Whether this client is on its way from one room to another, and
+         * so may not play or move again until it gets there
+         */
+        volatile boolean moving;
+
+        /**
+         * What this client is doing, as a ClientRegistry state word
+         */
+        final AtomicLong state;
+
         /**
-         * Messaging to here
+         * This client's place in the matchmaking queue, or null if it is
+         * not queued
          */
-        private BufferedReader in;
-        
+        final AtomicReference<Matchmaker.Ticket> ticket;
+
+        /**
+         * The challenges this client has made or been sent which are
+         * waiting for an answer
+         */
+        final Set<Challenges.Challenge> challenges;
+
+        /**
+         * How many challenges this client has made which are waiting
+         */
+        final AtomicInteger challengesOut;
+
+        /**
+         * How many challenges to this client are waiting
+         */
+        final AtomicInteger challengesIn;
+
         /**
-         * Message from here
+         * How fast this client is sending each sort of command, or null
+         * if it is on another node, which limits it
          */
-        private PrintWriter out;
-        
+        final RateLimits.Buckets buckets;
+
+        /**
+         * How long to stop reading from this client for once the messages
+         * decoded so far have been handled, in nanoseconds, or STOPPED;
+         * 0 unless it is over a rate limit.  Only used by the thread
+         * servicing this client.
+         */
+        protected long pause;
+
         /**
-         * Whether this client is in a game
+         * When this client was last read from, as a
+         * {@link TimingWheel#now()}
          */
-        private boolean inGame;
-        
+        volatile long lastRead;
+
+        /**
+         * Whether this client was sent a PING which it has yet to answer
+         */
+        volatile boolean pinged;
+
         /**
-         * Constructs a handler thread, squirreling away the socket.
-         * All the interesting work is done in the run method.
-         * @param socket the socket that receives info from the client
+         * Whether this client said, with PING_TOKEN, that it answers PINGs,
+         * so may be sent heartbeats and evicted for staying quiet
          */
-        public Handler(Socket socket) {
-            this.socket = socket;
-            inGame = false;
+        volatile boolean answersPing;
+
+        /**
+         * How this client's messages are encoded
+         */
+        volatile Codec codec;
+
+        /**
+         * The frames waiting to be written to this client
+         */
+        protected final OutboundQueue out;
+
+        /**
+         * Bytes read from this client but not yet decoded.  Direct, so
+         * that the channel reads straight into it and in-game frames are
+         * relayed straight out of it.
+         */
+        private ByteBuffer in;
+
+        /**
+         * The message being handled, as a view of the inbound buffer
+         */
+        final MessageView view;
+
+        /**
+         * When the connection was opened, as a {@link System#nanoTime()}
+         */
+        private long openedAt;
+
+        /**
+         * The opponent last looked up by id.  Only used by the thread
+         * servicing this client.
+         */
+        private Handler opponent;
+
+        /**
+         * Constructs a handler.
+         */
+        protected Handler() {
+            id = ClientRegistry.newId();
+            state = new AtomicLong(ClientRegistry.state(NAMING, 0));
+            ticket = new AtomicReference<>();
+            challenges = ConcurrentHashMap.newKeySet();
+            challengesOut = new AtomicInteger();
+            challengesIn = new AtomicInteger();
+            buckets = new RateLimits.Buckets();
+            codec = TextCodec.INSTANCE;
             opponent = null;
+            out = new OutboundQueue();
+            in = ByteBuffer.allocateDirect(INITIAL_INBOUND_SIZE);
+            view = new MessageView();
         }
 
         /**
-         * Services this thread's client by repeatedly requesting a
-         * screen name until a unique one has been submitted, then
-         * acknowledges the name and registers the output stream for
-         * the client in a global set, then repeatedly gets inputs and
-         * broadcasts them.
+         * Constructs a handler for a player on another node, which already
+         * has a name and is free, and has no connection here.
+         * @param id the player's id
+         * @param name the player's name
          */
-        @Override
-        public void run() {
+        protected Handler(int id, PlayerName name) {
+            this.id = id;
+            this.name = name;
+            presence = new Presence(this);
+            state = new AtomicLong(ClientRegistry.state(
+                    ClientRegistry.FREE, 0));
+            ticket = new AtomicReference<>();
+            challenges = ConcurrentHashMap.newKeySet();
+            challengesOut = new AtomicInteger();
+            challengesIn = new AtomicInteger();
+            buckets = null;
+            codec = BinaryCodec.INSTANCE;
+            out = null;
+            view = null;
+        }
+
+        /**
+         * Returns whether this client is connected to this node, rather
+         * than to another node of the cluster
+         * @return whether this client is connected to this node
+         */
+        boolean isLocal() {
+            return true;
+        }
+
+        /**
+         * Queues a frame to be sent to this client.
+         * @param opcode the opcode of the frame, for the metrics
+         * @param frame the frame, which is not modified
+         */
+        void send(int opcode, ByteBuffer frame) {
+            send(opcode, frame, CONTROL, null);
+        }
+
+        /**
+         * Queues a frame to be sent to this client.  The frame may be
+         * dropped or merged with an earlier one if the client is behind;
+         * if it is too far behind, it is disconnected.
+         * @param opcode the opcode of the frame, for the metrics
+         * @param frame the frame, which is not modified
+         * @param kind what sort of frame it is, as an OutboundQueue kind
+         * @param player the player the frame is about, if any
+         */
+        void send(int opcode, ByteBuffer frame, int kind, String player) {
+            send(opcode, 1, frame, kind, player, null);
+        }
+
+        /**
+         * Queues a frame holding one or more messages to be sent to this
+         * client.
+         * @param opcode the opcode of the messages, for the metrics
+         * @param count how many messages the frame holds, for the metrics
+         * @param frame the frame, which is not modified
+         * @param kind what sort of frame it is, as an OutboundQueue kind
+         * @param player the player the frame is about, if any
+         * @param other the other player the frame is about, if it is about
+         * two
+         */
+        void send(int opcode, int count, ByteBuffer frame, int kind,
+                String player, String other) {
+            int length = frame.remaining();
+            if(offered(out.offer(frame, kind, player, other))) {
+                Metrics.sent(opcode, count, length);
+            }
+        }
+
+        /**
+         * Queues a relay chunk to be sent to this client.
+         * @param chunk the chunk, which belongs to this client from now on
+         */
+        void send(Chunk chunk) {
+            offered(out.offer(chunk));
+        }
+
+        /**
+         * Deals with the result of offering something to the outbound
+         * queue.
+         * @param result QUEUED, DROPPED or OVERFLOW
+         * @return whether it was queued
+         */
+        private boolean offered(int result) {
+            switch(result) {
+                case QUEUED:
+                    if(out.claim()) requestFlush();
+                    return true;
+                case OVERFLOW:
+                    Log.warn(getClientName(), "outbound queue full",
+                            out.bytes());
+                    Backpressure.slowDisconnects.increment();
+                    disconnect();
+                    return false;
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * Queues a message to be sent to this client, encoded with this
+         * client's codec.
+         * @param message the message
+         * @param kind what sort of message it is, as an OutboundQueue kind
+         * @param player the player the message is about, if any
+         */
+        void send(Message message, int kind, String player) {
+            send(message, kind, player, null);
+        }
+
+        /**
+         * Queues a message about two players to be sent to this client,
+         * encoded with this client's codec.
+         * @param message the message
+         * @param kind what sort of message it is, as an OutboundQueue kind
+         * @param player the player the message is about, if any
+         * @param other the other player the message is about, if it is
+         * about two
+         */
+        void send(Message message, int kind, String player, String other) {
+            send(message.opcode, message.count, message.frame(codec), kind,
+                    player, other);
+        }
+
+        /**
+         * Arranges for the outbound queue to be drained soon, on some
+         * thread other than the caller's if draining might block.
+         */
+        protected abstract void requestFlush();
+
+        /**
+         * Closes the connection to this client from any thread.  The
+         * client will be unregistered by whichever thread notices.
+         */
+        protected abstract void disconnect();
+
+        /**
+         * Called once the connection is ready for use.  Requests a name
+         * from this client.
+         */
+        protected void opened() {
+            openedAt = System.nanoTime();
+            lastRead = TimingWheel.TIMERS.now();
+            Metrics.connections.increment();
+            Liveness.watch(this);
+            send(SUBMITNAME, codec.encode(SUBMITNAME));
+        }
+
+        /**
+         * Returns the buffer to read bytes from this client into.  There
+         * is always room for at least one more byte.
+         * @return the inbound buffer, ready to be read into
+         */
+        protected ByteBuffer inbound() {
+            if(!in.hasRemaining()) {
+                // no whole message in a full buffer; the codec will
+                // complain once it is longer than any message may be
+                ByteBuffer bigger =
+                        ByteBuffer.allocateDirect(in.capacity() * 2);
+                in.flip();
+                bigger.put(in);
+                in = bigger;
+            }
+            return in;
+        }
+
+        /**
+         * Decodes and handles every whole message read into the inbound
+         * buffer.  While this client is in a game, runs of in-game frames
+         * are relayed to the opponent without being decoded.  Stops early
+         * if this client goes over a rate limit which pauses it; the rest
+         * is decoded once the pause is over.
+         * @throws ProtocolException if the client sent something invalid
+         */
+        protected void decodeInbound() throws ProtocolException {
+            // the wheel's clock only moves once a tick, so this is written
+            // at most that often however fast the client sends
+            long now = TimingWheel.TIMERS.now();
+            if(lastRead != now) lastRead = now;
+            in.flip();
             try {
-                // Create character streams for the socket.
-                in = new BufferedReader(new InputStreamReader(
-                    socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
-
-                // Request a name from this client.  Keep requesting until
-                // a name is submitted that is not already used.  Note that
-                // checking for the existence of a name and adding the name
-                // must be done while locking the set of names.
-                while(true) {
-                    out.println("SUBMITNAME");
-                    // notify("SUBMITNAME", false);
-                    name = in.readLine();
-                    // notify(name, true);
-                    if(name == null) return;
-                    if("".equals(name) || "null".equals(name)) continue;
-                    synchronized(handlers) {
-                        if(!handlers.containsKey(name)) {
-                            HashSet<String> copy = new HashSet<>(handlers.keySet());
-                            for(Handler h : handlers.values()) {
-                                h.out.println("NEWCLIENTtrue " + name);
-                            }
-                            handlers.put(name, this);
-                            for(String s : copy) {
-                                out.println("NEWCLIENTfalse " + s);
-                            }
-                            break;
-                        }
-                    }
-                }
-                
-                // Now that a successful name has been chosen, add the
-                // socket's print writer to the set of all writers so
-                // this client can receive broadcast messages.
-                out.println("NAMEACCEPTED");
-                // notify("NAMEACCEPTED", false);
-
-                // Accept messages from this client and broadcast them.
-                // Ignore other clients that cannot be broadcasted to.
-                while(true) {
-                    String line = in.readLine();
-                    // notify(line, true);
-                    if(line == null) {
-                        return;
-                    }
-                    
-                    println("\"" + line + "\"");
-                    
-                    // handle input
-                    if(line.equals("PING")) {
-                        out.println("PING");
-                    } else if(line.startsWith("NLM")) {
-                        String message = "NLM" + name + ": " + line.substring(3);
-                        for(Handler h : handlers.values()) {
-                            h.out.println(message);
-                        }
-                    } else if(inGame) {
-                        if(line.startsWith("EXIT")) {
-                            inGame = false;
-                            busy.remove(this);
-                            for(Handler h : handlers.values()) {
-                                h.out.println("FREE" + name);
-                            }
-                            if(opponent != null) {
-                                opponent.out.println("EXIT");
-                                opponent.inGame = false;
-                                busy.remove(opponent);
-                                for(Handler h : handlers.values()) {
-                                    h.out.println("FREE" + opponent.name);
-                                }
-                                
-                                opponent = null;
-                            }
-                        } else opponent.out.println(line);
-                    } else {
-                        if(line.startsWith("CHALLENGE_C")) {
-                            // Challenging for a match
-                            String toChallenge = line.substring(11);
-                            if(toChallenge.equals(name))
-                                continue;
-                            
-                            if(handlers.containsKey(toChallenge)) {
-                                handlers.get(toChallenge).
-                                        out.println("CHALLENGE_C" + name);
-                            } else System.err.println("Opponent " + toChallenge 
-                                    + " not found (149)");
-                        } else if(line.startsWith("CHALLENGE_R")) {
-                            // Challenge response: accept or reject
-                            Scanner temp = new Scanner(line.substring(11));
-                            
-                            // Accepted!
-                            String other = temp.next();
-                            if(handlers.containsKey(other)) {
-                                Handler otherH = handlers.get(other);
-                                if(temp.nextBoolean() && 
-                                        !busy.contains(otherH)) {
-                                    opponent = otherH;
-                                    inGame = true;
-                                    opponent.out.println("CHALLENGE_Rtrue");
-                                    opponent.opponent = this;
-                                    opponent.inGame = true;
-                                    for(Handler h : handlers.values()) {
-                                        h.out.println("BUSY" + name);
-                                        h.out.println("BUSY" + opponent.name);
-                                    }
-                                    
-                                    busy.add(opponent);
-                                    busy.add(this);
-                                } else {
-                                    otherH.out.println("CHALLENGE_Rfalse");
-                                }
-                            } else System.err.println("Opponent " + other + 
-                                    " not found (168)");
-                        }
-                    }
+                while(in.hasRemaining() && pause == 0 &&
+                        kind(state.get()) != CLOSED) {
+                    if(relay()) continue;
+                    if(!codec.decode(in, this)) break;
                 }
-            } catch(IOException e) {
-                println(e.toString());
             } finally {
-                // This client is going down!  Remove its name and its print
-                // writer from the sets, and close its socket.
-                for(Handler h : handlers.values()) {
-                    h.out.println("REMOVECLIENT" + name);
+                in.compact();
+            }
+        }
+
+        /**
+         * Relays the in-game frames at the start of the inbound buffer to
+         * the opponent in a single chunk, if this client is in a game, as
+         * many as its rate limit on moves allows.  Frames over the limit
+         * are left to be decoded, and dealt with one by one.
+         * @return whether any frames were relayed
+         */
+        private boolean relay() {
+            long s = state.get();
+            if(kind(s) != IN_GAME) return false;
+            Handler opp = opponent(s);
+            if(opp == null) return false;
+            long now = System.nanoTime();
+            int moves = buckets.available(RateLimits.MOVE, now);
+            if(moves == 0) return false;
+            Chunk chunk = RelayBuffers.acquire();
+            int relayed = codec.relay(in, opp.codec, chunk.buffer, moves);
+            if(relayed == 0) {
+                RelayBuffers.release(chunk);
+                return false;
+            }
+            buckets.spend(RateLimits.MOVE, relayed, now);
+            chunk.buffer.flip();
+            chunk.readAt = now;
+            opp.opponentMoved(this, chunk);
+            return true;
+        }
+
+        /**
+         * Spends a token of this client's rate limit on a sort of command,
+         * and deals with the client if it is over the limit.
+         * @param command what sort of command, as a RateLimits index
+         * @return whether to handle the command
+         */
+        boolean allow(int command) {
+            return buckets == null || buckets.allow(this, command);
+        }
+
+        /**
+         * Stops reading from this client for a while, once the messages
+         * decoded so far have been handled.
+         * @param nanos how long, in nanoseconds, or STOPPED for good
+         */
+        void pause(long nanos) {
+            pause = Math.max(pause, nanos);
+        }
+
+        /**
+         * Returns whether this client has yet to submit a good name
+         * @return whether this client has yet to submit a good name
+         */
+        boolean isNaming() {
+            return kind(state.get()) == NAMING;
+        }
+
+        /**
+         * Returns whether this client is in a game
+         * @return whether this client is in a game
+         */
+        boolean isInGame() {
+            return kind(state.get()) == IN_GAME;
+        }
+
+        /**
+         * Handles a PING, which is either the answer to a heartbeat or
+         * asks for an answer.
+         */
+        void onPing() {
+            if(pinged) {
+                pinged = false;
+                return;
+            }
+            if(!allow(RateLimits.PING)) return;
+            send(PING, codec.constant(PING));
+        }
+
+        /**
+         * Sends this client a PING, which it must answer, because it has
+         * been quiet for a while.
+         */
+        void heartbeat() {
+            pinged = true;
+            send(PING, codec.constant(PING));
+        }
+
+        /**
+         * Handles an NLM by passing it on to everybody in this client's
+         * room.
+         * @param message what this client said
+         */
+        void onLobbyMessage(MessageView message) {
+            if(!allow(RateLimits.CHAT)) return;
+            byte[] text = message.bytes();
+            broadcast(room, new Message(NLM,
+                    c -> c.lobbyMessage(this, text)), CHAT, null);
+            Cluster.chat(this, text);
+        }
+
+        /**
+         * Handles a CREATEROOM, JOINROOM or LEAVEROOM by moving this
+         * client to the room.  The room's shard tells this client it is
+         * there with a ROOM, then who else is there.  A client which is in
+         * a game, is already moving, or asks for a room which cannot be
+         * had is sent a NOROOM and stays where it is.
+         * @param message the message, whose body is the name of the room
+         * for CREATEROOM and JOINROOM
+         */
+        void onRoom(MessageView message) {
+            boolean named = message.opcode != LEAVEROOM;
+            Room to = null;
+            if(!moving && !isInGame() &&
+                    (!named || Room.isValidName(message))) {
+                String name = named ? message.text() : "";
+                to = message.opcode == CREATEROOM ? Room.create(name) :
+                        Room.find(name);
+            }
+            if(to == null) {
+                // the view is reused, so the log is given a copy
+                if(Log.enabled(Log.INFO)) {
+                    Log.info(getClientName(), "room refused",
+                            named ? message.text() : "");
                 }
-                if(opponent != null) {
-                    opponent.out.println("EXIT");
-                    opponent.inGame = false;
-                    for(Handler h : handlers.values()) {
-                        h.out.println("FREE" + opponent.name);
+                send(NOROOM, codec.room(NOROOM,
+                        named ? message.bytes() : Room.LOBBY.utf8));
+                return;
+            }
+            Room from = room;
+            Challenges.cancel(this);
+            moving = true;
+            room = to;
+            from.shard.move(from, this, to);
+        }
+
+        /**
+         * Handles a QUEUE by putting this client in the matchmaking queue
+         * of its room.  A client which is in a game or moving is sent an
+         * UNQUEUE; one which is already queued stays where it is.
+         * @param rating the client's rating
+         */
+        void onQueue(int rating) {
+            if(moving || kind(state.get()) != ClientRegistry.FREE) {
+                Log.info(getClientName(), "queue refused", rating);
+                send(UNQUEUE, codec.encode(UNQUEUE));
+            } else if(!Matchmaker.queue(this, rating)) {
+                Log.info(getClientName(), "already queued", rating);
+            }
+        }
+
+        /**
+         * Handles an UNQUEUE by taking this client out of the matchmaking
+         * queue, and sends one back if it was queued.
+         */
+        void onUnqueue() {
+            if(Matchmaker.unqueue(this)) send(UNQUEUE, codec.encode(UNQUEUE));
+        }
+
+        /**
+         * Handles an EXIT, which ends this client's game.
+         */
+        void onExit() {
+            Handler opp = registry.unpair(this);
+            if(opp != null) {
+                opp.opponentExited(this);
+                broadcastStatus(Codec.FREE, this, opp);
+            } else broadcastStatus(Codec.FREE, this);
+        }
+
+        /**
+         * Handles an in-game message by relaying it to the opponent.
+         * @param message the message, which is NB, LOCK, M, NM or LINE
+         */
+        void onGame(MessageView message) {
+            if(!allow(RateLimits.MOVE)) return;
+            Handler opp = opponent(state.get());
+            if(opp != null) opp.opponentMoved(this, message);
+        }
+
+        /**
+         * Handles a CHALLENGE_C by passing it on to the challenged client,
+         * unless it is turned away; see Challenges.
+         * @param other the client being challenged
+         */
+        void onChallenge(Handler other) {
+            if(other == this || other.room != room ||
+                    !allow(RateLimits.CHALLENGE)) return;
+            if(Challenges.offer(this, other)) other.challenged(this);
+        }
+
+        /**
+         * Tells this client it has been challenged.
+         * @param challenger the client who made the challenge
+         */
+        void challenged(Handler challenger) {
+            send(CHALLENGE_C, codec.encode(CHALLENGE_C, challenger));
+        }
+
+        /**
+         * Tells this client a challenge it made has been turned down, has
+         * expired, or has been called off.  A client which is no longer
+         * free is not told, as it has moved on.
+         * @param challenged the client which was challenged
+         */
+        void challengeRefused(Handler challenged) {
+            if(kind(state.get()) == ClientRegistry.FREE) {
+                send(CHALLENGE_R, codec.challengeResult(false));
+            }
+        }
+
+        /**
+         * Tells this client its opponent has left their game.
+         * @param opponent the opponent, or null if it is not known here
+         */
+        void opponentExited(Handler opponent) {
+            send(EXIT, codec.constant(EXIT));
+        }
+
+        /**
+         * Passes on an in-game message from this client's opponent.
+         * @param opponent the opponent
+         * @param message the message, which is NB, LOCK, M, NM or LINE
+         */
+        void opponentMoved(Handler opponent, MessageView message) {
+            send(message.opcode, codec.game(message.opcode, message.buffer,
+                    message.start, message.end));
+        }
+
+        /**
+         * Passes on a chunk of in-game frames from this client's opponent.
+         * @param opponent the opponent
+         * @param chunk the frames, already in this client's codec, which
+         * belong to this client from now on
+         */
+        void opponentMoved(Handler opponent, Chunk chunk) {
+            send(chunk);
+        }
+
+        /**
+         * Handles a CHALLENGE_R.  If the challenge is still waiting for an
+         * answer, was accepted, and both clients are still free, they are
+         * paired into a game; a challenger on another node is paired
+         * there.  This client, which thinks it is in a game once it has
+         * accepted, is sent an EXIT if there is none.
+         * @param other the client who made the challenge
+         * @param accepted whether this client accepted the challenge
+         */
+        void onChallengeResponse(Handler other, boolean accepted) {
+            if(!Challenges.answer(other, this)) {
+                Log.info(getClientName(), "challenge not waiting", other);
+                if(accepted) noGame();
+                return;
+            }
+            boolean ok = accepted && other.room == room && !moving &&
+                    !other.moving;
+            if(!other.isLocal()) {
+                // the challenger's node has the last word
+                if(!Cluster.answer(this, other, ok) && accepted) noGame();
+            } else if(ok && registry.pair(this, other)) {
+                other.send(CHALLENGE_R, other.codec.challengeResult(true));
+                broadcastStatus(Codec.BUSY, this, other);
+            } else {
+                other.challengeRefused(this);
+                if(accepted) noGame();
+            }
+        }
+
+        /**
+         * Tells this client, which accepted a challenge, that there is no
+         * game after all, unless it has found one some other way.
+         */
+        void noGame() {
+            if(kind(state.get()) == ClientRegistry.FREE) {
+                send(EXIT, codec.constant(EXIT));
+            }
+        }
+
+        /**
+         * Returns the opponent named in a state word
+         * @param s a state word of this client
+         * @return the opponent, or null if it has gone away
+         */
+        private Handler opponent(long s) {
+            int oppId = ClientRegistry.opponent(s);
+            if(opponent == null || opponent.id != oppId) {
+                opponent = registry.get(oppId);
+            }
+            return opponent;
+        }
+
+        /**
+         * Handles a name submitted by this client.  Keep requesting until
+         * a name is submitted that is not already used.  The name may be
+         * followed by tokens, each after a space: BINARY, for a client
+         * which was offered the binary codec and wants it, ROSTER_TOKEN, for
+         * a client which wants ROSTER frames, with a colon and the last
+         * version it saw if it has been here before, and PING_TOKEN, for a
+         * client which answers heartbeats.
+         * @param submitted the name submitted
+         */
+        void onName(String submitted) {
+            boolean binary = false, roster = false, ping = false;
+            long since = -1;
+            String[] parts = submitted.split(" ", -1);
+            for(int i = 1; i < parts.length; i++) {
+                String token = parts[i];
+                if(TextCodec.offerBinary &&
+                        token.equals(TextCodec.BINARY)) {
+                    binary = true;
+                } else if(token.equals(TextCodec.ROSTER_TOKEN)) {
+                    roster = true;
+                } else if(token.equals(TextCodec.PING_TOKEN)) {
+                    ping = true;
+                } else if(token.startsWith(TextCodec.ROSTER_TOKEN + ":")) {
+                    roster = true;
+                    try {
+                        since = Long.parseLong(token.substring(
+                                TextCodec.ROSTER_TOKEN.length() + 1));
+                    } catch(NumberFormatException nfe) {
+                        // start afresh
                     }
+                } else {
+                    // names cannot have spaces in them
+                    parts[0] = "";
                 }
-                if(handlers != null) {
-                    handlers.remove(name);
+            }
+            submitted = parts[0];
+            answersPing = ping;
+            if("".equals(submitted) || "null".equals(submitted)) {
+                send(SUBMITNAME, codec.encode(SUBMITNAME));
+                return;
+            }
+
+            PlayerName interned = new PlayerName(submitted);
+            boolean accepted = false;
+            nameLock.lock();
+            try {
+                // names are only ever taken while holding the lock, so a
+                // name which is free now stays free until registered
+                if(registry.get(interned) == null) {
+                    name = interned;
+                    presence = new Presence(this);
+                    if(binary) {
+                        // nobody else can send to this client until it is
+                        // registered, so this is where the codec changes
+                        send(NAMEACCEPTED, TextCodec.nameAcceptedBinary(id));
+                        codec = BinaryCodec.INSTANCE;
+                    }
+                    followsRoster = roster;
+                    room = Room.LOBBY;
+                    registry.register(this, interned);
+                    Cluster.joined(this);
+                    // the lobby's shard tells this client who is here, in
+                    // order with every other change to the lobby
+                    room.shard.join(room, this, since, false);
+                    accepted = true;
                 }
-                out.close();
-                try {
-                    in.close();
-                    socket.close();
-                } catch(IOException e) {}
+            } finally {
+                nameLock.unlock();
+            }
+
+            if(accepted) {
+                // Now that a successful name has been chosen, this client
+                // is in the registry so it can receive broadcast messages.
+                state.compareAndSet(ClientRegistry.state(NAMING, 0),
+                        ClientRegistry.state(ClientRegistry.FREE, 0));
+                Metrics.handshake.record(System.nanoTime() - openedAt);
+                if(!binary) send(NAMEACCEPTED, codec.encode(NAMEACCEPTED));
+            } else {
+                send(SUBMITNAME, codec.encode(SUBMITNAME));
             }
         }
- 
-        @Override
-        public String toString() {
-            return name;
-        }
-        
+
         /**
-         * Prints something with a carriage return afterwards
-         * @param s a string to println
+         * Called once when the connection to this client is lost.
+         * This client is going down!  Remove its name from the registry
+         * and tell everybody else.
          */
-        public void println(String s) {
-            System.out.println(name + ": " + s);
+        protected void closed() {
+            Metrics.connections.decrement();
+            long s = registry.close(this);
+            out.close();
+            // a client which was evicted has already left
+            if(kind(s) == NAMING || kind(s) == CLOSED) return;
+            Handler opp = registry.release(this, s);
+            Challenges.cancel(this);
+            nameLock.lock();
+            try {
+                registry.unregister(this);
+                Cluster.left(this);
+                Room r = room;
+                r.shard.leave(r, this);
+            } finally {
+                nameLock.unlock();
+            }
+            if(opp != null) {
+                opp.opponentExited(this);
+                broadcastStatus(Codec.FREE, opp);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return getClientName();
         }
 
         @Override
         public int compareTo(Handler h) {
-            return name.compareTo(h.name);
+            return getClientName().compareTo(h.getClientName());
         }
-        
+
         /**
          * Returns the client's name
-         * @return the client's name
+         * @return the client's name, or null if it has none yet
          */
         public String getClientName() {
+            return name == null ? null : name.toString();
+        }
+
+        /**
+         * Returns the client's name as the registry knows it
+         * @return the client's name, or null if it has none yet
+         */
+        PlayerName getPlayerName() {
             return name;
         }
+
+        /**
+         * Returns the client's id, which is unique for the life of the
+         * server
+         * @return the client's id
+         */
+        public int getId() {
+            return id;
+        }
     }
-}
\ No newline at end of file
+}
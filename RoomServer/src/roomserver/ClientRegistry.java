@@ -0,0 +1,385 @@
+package roomserver;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import roomserver.ClientCommunication.Handler;
+
+/**
+ * Keeps track of every named client and of whether it is free or in a
+ * game.  Nothing in here locks: names are indexed in a concurrent map,
+ * by their bytes so that names read off the wire need not become Strings,
+ * broadcasts iterate over an immutable snapshot, and the state of each
+ * client is a single atomic word.
+ * <p>
+ * A state word holds the kind of state in its upper half and, when in a
+ * game, the id of the opponent in its lower half.
+ * <p>
+ * In a cluster, players on other nodes are listed here too, by name and
+ * by id, so that names are unique across the cluster; every node hands
+ * out ids ending in its own number, so ids are too.
+ * @author Jed Wang
+ */
+public class ClientRegistry {
+    /**
+     * The client has not yet submitted a name
+     */
+    public static final int NAMING = 0;
+
+    /**
+     * The client is in the lobby and can be challenged
+     */
+    public static final int FREE = 1;
+
+    /**
+     * The client is being paired and cannot be challenged
+     */
+    public static final int BUSY = 2;
+
+    /**
+     * The client is in a game with an opponent
+     */
+    public static final int IN_GAME = 3;
+
+    /**
+     * The client has disconnected
+     */
+    public static final int CLOSED = 4;
+
+    /**
+     * How many nodes a cluster may have
+     */
+    public static final int MAX_NODES = 64;
+
+    /**
+     * The next id to hand out, before it is made unique in the cluster
+     */
+    private static final AtomicInteger nextId = new AtomicInteger(1);
+
+    /**
+     * How far apart the ids this node hands out are: 1 on its own, or
+     * MAX_NODES in a cluster
+     */
+    private static volatile int stride = 1;
+
+    /**
+     * What every id this node hands out is, modulo the stride
+     */
+    private static volatile int node = 0;
+
+    /**
+     * A map of all names of clients paired to their respective Handlers.
+     * The keys are PlayerNames; PlayerName.Probes may be used to look
+     * them up.
+     */
+    private final ConcurrentHashMap<Object, Handler> byName;
+
+    /**
+     * A map of all ids of clients paired to their respective Handlers
+     */
+    private final ConcurrentHashMap<Integer, Handler> byId;
+
+    /**
+     * Every registered Handler, replaced wholesale on every change
+     */
+    private final AtomicReference<Handler[]> snapshot;
+
+    /**
+     * Creates an empty registry.
+     */
+    public ClientRegistry() {
+        byName = new ConcurrentHashMap<>();
+        byId = new ConcurrentHashMap<>();
+        snapshot = new AtomicReference<>(new Handler[0]);
+    }
+
+    /**
+     * Returns this node's number in its cluster
+     * @return this node's number, or 0 if it is on its own
+     */
+    static int node() {
+        return node;
+    }
+
+    /**
+     * Hands out an id which is unique for the life of the server.
+     * @return a new id
+     */
+    public static int newId() {
+        return nextId.getAndIncrement() * stride + node;
+    }
+
+    /**
+     * Hands out ids which no other node of a cluster will.  Must come
+     * before any id is handed out.
+     * @param n this node's number, below MAX_NODES
+     */
+    static void joinCluster(int n) {
+        node = n;
+        stride = MAX_NODES;
+    }
+
+    /**
+     * Builds a state word.
+     * @param kind the kind of state
+     * @param opponent the id of the opponent, or 0
+     * @return the state word
+     */
+    public static long state(int kind, int opponent) {
+        return ((long) kind << 32) | (opponent & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns the kind of state held in a state word
+     * @param state the state word
+     * @return the kind of state
+     */
+    public static int kind(long state) {
+        return (int) (state >>> 32);
+    }
+
+    /**
+     * Returns the opponent held in a state word
+     * @param state the state word
+     * @return the id of the opponent, or 0 if there is none
+     */
+    public static int opponent(long state) {
+        return (int) state;
+    }
+
+    /**
+     * Registers a client under a name, unless the name is taken.
+     * @param h the client's handler
+     * @param name the name the client wants, which from now on is the one
+     * copy of it everybody uses
+     * @return whether the name was free and is now the client's
+     */
+    public boolean register(Handler h, PlayerName name) {
+        if(byName.putIfAbsent(name, h) != null) return false;
+        byId.put(h.getId(), h);
+        snapshot.updateAndGet(old -> {
+            Handler[] copy = new Handler[old.length + 1];
+            System.arraycopy(old, 0, copy, 0, old.length);
+            copy[old.length] = h;
+            return copy;
+        });
+        return true;
+    }
+
+    /**
+     * Lists a player on another node, which takes its name from anybody
+     * here who has it.  The player is not in the snapshot, which is only
+     * of the clients on this node.
+     * @param h the player
+     */
+    void registerRemote(Handler h) {
+        byName.put(h.getPlayerName(), h);
+        byId.put(h.getId(), h);
+    }
+
+    /**
+     * Removes a client from the registry.
+     * @param h the client's handler
+     */
+    public void unregister(Handler h) {
+        // a player on another node may have taken the name meanwhile
+        byName.remove(h.getPlayerName(), h);
+        if(byId.remove(h.getId()) == null) return;
+        snapshot.updateAndGet(old -> {
+            for(int i = 0; i < old.length; i++) {
+                if(old[i] == h) {
+                    Handler[] copy = new Handler[old.length - 1];
+                    System.arraycopy(old, 0, copy, 0, i);
+                    System.arraycopy(old, i + 1, copy, i, copy.length - i);
+                    return copy;
+                }
+            }
+            return old;
+        });
+    }
+
+    /**
+     * Removes many clients from the registry, copying the snapshot once
+     * rather than once for each.
+     * @param gone the clients' handlers
+     */
+    public void unregister(Collection<Handler> gone) {
+        Set<Handler> removed = new HashSet<>();
+        for(Handler h : gone) {
+            byName.remove(h.getPlayerName(), h);
+            if(byId.remove(h.getId()) != null) removed.add(h);
+        }
+        if(removed.isEmpty()) return;
+        snapshot.updateAndGet(old -> {
+            Handler[] copy = new Handler[old.length];
+            int n = 0;
+            for(Handler h : old) {
+                if(!removed.contains(h)) copy[n++] = h;
+            }
+            return Arrays.copyOf(copy, n);
+        });
+    }
+
+    /**
+     * Finds a client by name
+     * @param name the name of the client
+     * @return the client's handler, or null if nobody has the name
+     */
+    public Handler get(PlayerName name) {
+        return byName.get(name);
+    }
+
+    /**
+     * Finds a client by a name read off the wire
+     * @param name the bytes of the name of the client
+     * @return the client's handler, or null if nobody has the name
+     */
+    Handler get(PlayerName.Probe name) {
+        return byName.get(name);
+    }
+
+    /**
+     * Finds a client by id
+     * @param id the id of the client
+     * @return the client's handler, or null if nobody has the id
+     */
+    public Handler get(int id) {
+        return byId.get(id);
+    }
+
+    /**
+     * Returns every registered client as of now.  The array must not be
+     * modified; it is shared by every caller.
+     * @return the registered clients
+     */
+    public Handler[] snapshot() {
+        return snapshot.get();
+    }
+
+    /**
+     * Returns the number of registered clients
+     * @return the number of registered clients
+     */
+    public int size() {
+        return snapshot.get().length;
+    }
+
+    /**
+     * Pairs two free clients into a game.  The challenger is claimed with
+     * a single compare-and-set, so if several clients accept a challenge
+     * from the same player at once, only one of them gets the game.  If
+     * either goes away meanwhile, the other is not left in a game with it.
+     * @param responder the client accepting the challenge
+     * @param challenger the client who made the challenge
+     * @return whether the two are now in a game with each other
+     */
+    public boolean pair(Handler responder, Handler challenger) {
+        long free = state(FREE, 0);
+        // keep anyone else from claiming the responder meanwhile
+        if(!responder.state.compareAndSet(free, state(BUSY, 0)))
+            return false;
+        if(challenger.state.compareAndSet(free,
+                state(IN_GAME, responder.getId()))) {
+            if(responder.state.compareAndSet(state(BUSY, 0),
+                    state(IN_GAME, challenger.getId()))) {
+                return confirm(responder, challenger);
+            }
+            // the responder went away in the meantime
+            challenger.state.compareAndSet(
+                    state(IN_GAME, responder.getId()), free);
+            return false;
+        }
+        responder.state.compareAndSet(state(BUSY, 0), free);
+        return false;
+    }
+
+    /**
+     * Pairs a free client with a free player on another node.  The remote
+     * player is claimed first, so that only one client here can have it,
+     * the same way as the challenger in {@link #pair}.
+     * @param local the client on this node
+     * @param remote the player on another node
+     * @return whether the two are now in a game with each other
+     */
+    boolean pairRemote(Handler local, Handler remote) {
+        long free = state(FREE, 0);
+        if(!remote.state.compareAndSet(free,
+                state(IN_GAME, local.getId()))) return false;
+        if(local.state.compareAndSet(free,
+                state(IN_GAME, remote.getId()))) {
+            return confirm(local, remote);
+        }
+        remote.state.compareAndSet(state(IN_GAME, local.getId()), free);
+        return false;
+    }
+
+    /**
+     * Checks that the client claimed first in a pairing is still in the
+     * game, now that the other is too.  If it left, or went away, before
+     * the other was in the game, it could not free the other, so the other
+     * is freed here.
+     * @param h the client which was claimed second
+     * @param claimed the client which was claimed first
+     * @return whether the two are in a game with each other
+     */
+    private static boolean confirm(Handler h, Handler claimed) {
+        if(claimed.state.get() == state(IN_GAME, h.getId())) return true;
+        h.state.compareAndSet(state(IN_GAME, claimed.getId()),
+                state(FREE, 0));
+        return false;
+    }
+
+    /**
+     * Takes a client out of its game, and its opponent too if the opponent
+     * is still in that game.
+     * @param h the client leaving its game
+     * @return the opponent, or null if the client was not in a game
+     */
+    public Handler unpair(Handler h) {
+        long s = h.state.get();
+        if(kind(s) != IN_GAME ||
+                !h.state.compareAndSet(s, state(FREE, 0))) return null;
+        return release(h, opponent(s));
+    }
+
+    /**
+     * Marks a client as gone for good.  Whoever gets back something other
+     * than CLOSED is the one to tidy up after it.
+     * @param h the client which disconnected, or is being disconnected
+     * @return the state the client was in, which is CLOSED if it was
+     * already gone
+     */
+    public long close(Handler h) {
+        return h.state.getAndSet(state(CLOSED, 0));
+    }
+
+    /**
+     * Takes the opponent of a client which has gone for good out of their
+     * game, if the client was in one.
+     * @param h the client
+     * @param s the state the client was in, as returned by
+     * {@link #close(Handler)}
+     * @return the opponent which was freed, or null if there was none
+     */
+    public Handler release(Handler h, long s) {
+        if(kind(s) != IN_GAME) return null;
+        return release(h, opponent(s));
+    }
+
+    /**
+     * Frees an opponent that is still in a game with a client.
+     * @param h the client which left the game
+     * @param opponentId the id of the opponent
+     * @return the opponent, or null if it had already left the game
+     */
+    private Handler release(Handler h, int opponentId) {
+        Handler opp = get(opponentId);
+        if(opp != null && opp.state.compareAndSet(
+                state(IN_GAME, h.getId()), state(FREE, 0))) return opp;
+        return null;
+    }
+}
@@ -0,0 +1,660 @@
+package roomserver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import roomserver.ClientCommunication.Handler;
+import roomserver.RelayBuffers.Chunk;
+import static roomserver.ClientCommunication.registry;
+import static roomserver.ClientRegistry.*;
+
+/**
+ * Ties this server to the other nodes of a cluster, so that players on
+ * every node see each other as if they were all on one server.  Each node
+ * tells the others about its own players, and only those: who has a name,
+ * which room each is in, who is busy, and what each says in its room.
+ * Everybody else's players are kept here as {@link RemotePlayer}s, which
+ * are listed in the registry and in the rooms like any other player, so
+ * the rest of the server needs to know very little about them.
+ * <p>
+ * What one player does to another on a different node, such as a
+ * challenge, its answer, and the moves of a game, goes straight to that
+ * node.  A challenge is answered by the responder's node, which holds the
+ * responder for the game; the challenger's node then pairs the challenger
+ * or, if it cannot, tells the responder's node to let go.  The frames of a
+ * game cross the cluster as binary frames, a chunk at a time, and are made
+ * over for the opponent's codec on its node.
+ * <p>
+ * When a node connects, the two nodes forget each other's players and tell
+ * each other about all of their own again, so a node which was cut off
+ * catches up.  Two players on different nodes may take the same name at
+ * the same time; the one on the node with the lower number keeps it, and
+ * the other is disconnected.
+ * @author Jed Wang
+ */
+final class Cluster {
+    /**
+     * A player has a name: id, busy, room, name
+     */
+    static final byte JOIN = 1;
+
+    /**
+     * A player has gone: id
+     */
+    static final byte LEAVE = 2;
+
+    /**
+     * A player is in another room: id, room
+     */
+    static final byte MOVE = 3;
+
+    /**
+     * One or two players are busy or free: opcode, ids
+     */
+    static final byte STATUS = 4;
+
+    /**
+     * A player said something in its room: id, text
+     */
+    static final byte CHAT = 5;
+
+    /**
+     * A player challenged another: challenger, challenged
+     */
+    static final byte CHALLENGE = 6;
+
+    /**
+     * A player answered a challenge: responder, challenger, accepted
+     */
+    static final byte ANSWER = 7;
+
+    /**
+     * A player left its game: player, opponent
+     */
+    static final byte EXIT = 8;
+
+    /**
+     * In-game frames: player, opponent, binary frames
+     */
+    static final byte GAME = 9;
+
+    /**
+     * How many messages were sent to other nodes
+     */
+    static final LongAdder sent = new LongAdder();
+
+    /**
+     * How many messages were received from other nodes
+     */
+    static final LongAdder received = new LongAdder();
+
+    /**
+     * Every player on another node, by id
+     */
+    private static final ConcurrentHashMap<Integer, RemotePlayer> remotes =
+            new ConcurrentHashMap<>();
+
+    /**
+     * How this node reaches the others, or null if it is on its own
+     */
+    private static volatile ClusterTransport transport;
+
+    /**
+     * This node's number
+     */
+    private static int node;
+
+    /**
+     * The transport configure made, which join starts, or null if the
+     * options name no cluster
+     */
+    private static ClusterTransport configured;
+
+    /**
+     * The number configure read for this node
+     */
+    private static int configuredNode;
+
+    /**
+     * No instances
+     */
+    private Cluster() {
+    }
+
+    /**
+     * Reads which cluster to join, if the options name one, without
+     * starting anything; join does that.  The options are
+     * <code>--cluster=tcp</code>, how the nodes reach each other;
+     * <code>--node=N</code>, this node's number, from 0 to 63 and
+     * different on every node;
+     * <code>--cluster-bind=ADDRESS</code> and <code>--cluster-port=N</code>,
+     * where this node listens for the others over TCP, on the loopback
+     * address unless told otherwise; and
+     * <code>--peers=N@host:port,...</code>, where the others are, which are
+     * the only nodes let in.
+     * @param options the options
+     * @throws IllegalArgumentException if the options make no sense
+     */
+    static void configure(ServerOptions options) {
+        String kind = options.get("cluster", null);
+        int n = options.getInt("node", 0);
+        String bind = options.get("cluster-bind", null);
+        int port = options.getInt("cluster-port", TcpTransport.DEFAULT_PORT);
+        String peers = options.get("peers", "");
+        if(kind == null) return;
+        switch(kind) {
+            case "tcp":
+                configured = new TcpTransport(bind == null ?
+                        new InetSocketAddress(
+                                InetAddress.getLoopbackAddress(), port) :
+                        new InetSocketAddress(bind, port),
+                        peers(peers));
+                configuredNode = n;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown cluster: " +
+                        kind);
+        }
+    }
+
+    /**
+     * Parses where the other nodes are.
+     * @param list <code>N@host:port</code> for each node, separated by
+     * commas
+     * @return where each node is, by number
+     * @throws IllegalArgumentException if the list makes no sense
+     */
+    private static Map<Integer, InetSocketAddress> peers(String list) {
+        Map<Integer, InetSocketAddress> peers = new HashMap<>();
+        for(String peer : list.split(",")) {
+            if(peer.isEmpty()) continue;
+            int at = peer.indexOf('@'), colon = peer.lastIndexOf(':');
+            if(at < 0 || colon < at)
+                throw new IllegalArgumentException("Not N@host:port: " +
+                        peer);
+            try {
+                peers.put(Integer.parseInt(peer.substring(0, at)),
+                        new InetSocketAddress(peer.substring(at + 1, colon),
+                        Integer.parseInt(peer.substring(colon + 1))));
+            } catch(NumberFormatException nfe) {
+                throw new IllegalArgumentException("Not N@host:port: " +
+                        peer);
+            }
+        }
+        return peers;
+    }
+
+    /**
+     * Joins the cluster configure read, if it read one.  Must come before
+     * any client connects.
+     * @throws IOException if the transport cannot start
+     * @throws IllegalArgumentException if the node's number is out of
+     * range
+     */
+    static void join() throws IOException {
+        if(configured != null) start(configuredNode, configured);
+    }
+
+    /**
+     * Joins a cluster.  Must come before any client connects.
+     * @param n this node's number, from 0 to 63
+     * @param t how to reach the other nodes
+     * @throws IOException if the transport cannot start
+     * @throws IllegalArgumentException if the number is out of range
+     */
+    static void start(int n, ClusterTransport t) throws IOException {
+        if(n < 0 || n >= MAX_NODES)
+            throw new IllegalArgumentException("--node must be from 0 to " +
+                    (MAX_NODES - 1));
+        node = n;
+        ClientRegistry.joinCluster(n);
+        transport = t;
+        t.start(n, new Receiver());
+        Log.info(null, "joined the cluster as node", n);
+    }
+
+    /**
+     * Returns how many players there are on other nodes
+     * @return how many players there are on other nodes
+     */
+    static int remotePlayers() {
+        return remotes.size();
+    }
+
+    /**
+     * Tells the other nodes about a player which has just been given a
+     * name.  Called while holding the name lock, so that this is in order
+     * with the player leaving.
+     * @param player the player, on this node
+     */
+    static void joined(Handler player) {
+        ClusterTransport t = transport;
+        if(t != null) publish(t, join(player));
+    }
+
+    /**
+     * Tells the other nodes a player has gone.  Called while holding the
+     * name lock.
+     * @param player the player, on this node
+     */
+    static void left(Handler player) {
+        ClusterTransport t = transport;
+        if(t != null) {
+            publish(t, ByteBuffer.allocate(5).put(LEAVE).
+                    putInt(player.getId()).flip());
+        }
+    }
+
+    /**
+     * Tells the other nodes a player is in another room.
+     * @param player the player, on this node
+     */
+    static void moved(Handler player) {
+        ClusterTransport t = transport;
+        if(t == null) return;
+        byte[] room = player.room.utf8;
+        publish(t, ByteBuffer.allocate(5 + room.length).put(MOVE).
+                putInt(player.getId()).put(room).flip());
+    }
+
+    /**
+     * Tells the other nodes what a player said in its room.
+     * @param player the player, on this node
+     * @param text what it said
+     */
+    static void chat(Handler player, byte[] text) {
+        ClusterTransport t = transport;
+        if(t == null) return;
+        publish(t, ByteBuffer.allocate(5 + text.length).put(CHAT).
+                putInt(player.getId()).put(text).flip());
+    }
+
+    /**
+     * Tells the other nodes one or two players are busy or free, leaving
+     * out any which are not on this node.
+     * @param opcode BUSY or FREE
+     * @param a a player
+     * @param b another player, or null
+     */
+    static void status(int opcode, Handler a, Handler b) {
+        ClusterTransport t = transport;
+        if(t == null) return;
+        if(!a.isLocal()) {
+            a = b;
+            b = null;
+        }
+        if(b != null && !b.isLocal()) b = null;
+        if(a == null || !a.isLocal()) return;
+        ByteBuffer m = ByteBuffer.allocate(b == null ? 6 : 10).put(STATUS).
+                put((byte) opcode).putInt(a.getId());
+        if(b != null) m.putInt(b.getId());
+        publish(t, m.flip());
+    }
+
+    /**
+     * Passes a challenge on to the challenged player's node.
+     * @param challenger the challenger, on this node
+     * @param challenged the player challenged
+     */
+    static void challenge(Handler challenger, RemotePlayer challenged) {
+        send(challenged.node, pair(CHALLENGE, challenger.getId(),
+                challenged.getId()));
+    }
+
+    /**
+     * Answers a challenge from a player on another node.  If it was
+     * accepted, the responder is held for the game until the challenger's
+     * node says otherwise, and everybody is told the responder is busy.
+     * @param responder the player answering, on this node
+     * @param challenger the challenger
+     * @param accepted whether the challenge was accepted, and both
+     * players are in the same room and staying there
+     * @return whether the responder is now held for the game
+     */
+    static boolean answer(Handler responder, Handler challenger,
+            boolean accepted) {
+        RemotePlayer c = (RemotePlayer) challenger;
+        accepted = accepted && registry.pairRemote(responder, c);
+        ByteBuffer m = ByteBuffer.allocate(10).put(ANSWER).
+                putInt(responder.getId()).putInt(c.getId()).
+                put((byte) (accepted ? 1 : 0));
+        send(c.node, m.flip());
+        if(accepted) ClientCommunication.broadcastStatus(Codec.BUSY,
+                responder);
+        return accepted;
+    }
+
+    /**
+     * Tells an opponent on another node its game is over.
+     * @param player the player which left the game, on this node
+     * @param opponent the opponent
+     */
+    static void exit(Handler player, RemotePlayer opponent) {
+        send(opponent.node, pair(EXIT, player.getId(), opponent.getId()));
+    }
+
+    /**
+     * Sends in-game frames to an opponent on another node.
+     * @param player the player the frames are from, on this node
+     * @param opponent the opponent
+     * @param frames binary frames, which are not modified
+     */
+    static void game(Handler player, RemotePlayer opponent,
+            ByteBuffer frames) {
+        ByteBuffer m = ByteBuffer.allocate(9 + frames.remaining()).put(GAME).
+                putInt(player.getId()).putInt(opponent.getId()).
+                put(frames.duplicate());
+        send(opponent.node, m.flip());
+    }
+
+    /**
+     * Makes a message about two players.
+     * @param type the type of the message
+     * @param a the id of one player
+     * @param b the id of the other
+     * @return the message
+     */
+    private static ByteBuffer pair(byte type, int a, int b) {
+        return ByteBuffer.allocate(9).put(type).putInt(a).putInt(b).flip();
+    }
+
+    /**
+     * Makes the message telling another node about a player.
+     * @param player the player, on this node
+     * @return the message
+     */
+    private static ByteBuffer join(Handler player) {
+        int kind = kind(player.state.get());
+        return join(player.getId(), kind == IN_GAME || kind == BUSY,
+                player.room.utf8, player.getPlayerName().utf8);
+    }
+
+    /**
+     * Makes the message telling another node about a player.
+     * @param id the player's id
+     * @param busy whether the player is busy
+     * @param room the name of the player's room
+     * @param name the player's name
+     * @return the message
+     */
+    static ByteBuffer join(int id, boolean busy, byte[] room, byte[] name) {
+        return ByteBuffer.allocate(8 + room.length + name.length).put(JOIN).
+                putInt(id).put((byte) (busy ? 1 : 0)).
+                putShort((short) room.length).put(room).put(name).flip();
+    }
+
+    /**
+     * Sends a message to every other node.
+     * @param t the transport
+     * @param m the message
+     */
+    private static void publish(ClusterTransport t, ByteBuffer m) {
+        sent.increment();
+        t.publish(m);
+    }
+
+    /**
+     * Sends a message to one node.
+     * @param to the node
+     * @param m the message
+     */
+    private static void send(int to, ByteBuffer m) {
+        sent.increment();
+        transport.send(to, m);
+    }
+
+    /**
+     * Reads the rest of a message as UTF-8.
+     * @param m the message
+     * @return the text
+     */
+    private static String text(ByteBuffer m) {
+        byte[] b = new byte[m.remaining()];
+        m.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Forgets every player on a node, as if each had disconnected.
+     * @param from the node
+     */
+    private static void forget(int from) {
+        for(RemotePlayer r : remotes.values()) {
+            if(r.node == from && remotes.remove(r.getId(), r)) {
+                ClientCommunication.leaveRemote(r);
+            }
+        }
+    }
+
+    /**
+     * What the other nodes tell this one.
+     */
+    private static final class Receiver
+            implements ClusterTransport.Receiver {
+        @Override
+        public void connected(int from) {
+            // whatever was known about the node may be stale
+            forget(from);
+            ClientCommunication.nameLock.lock();
+            try {
+                for(Handler h : registry.snapshot()) {
+                    int kind = kind(h.state.get());
+                    if(kind != NAMING && kind != CLOSED) {
+                        send(from, join(h));
+                    }
+                }
+            } finally {
+                ClientCommunication.nameLock.unlock();
+            }
+        }
+
+        @Override
+        public void received(int from, ByteBuffer m) {
+            received.increment();
+            switch(m.get()) {
+                case JOIN:
+                    onJoin(from, m);
+                    break;
+                case LEAVE: {
+                    RemotePlayer r = remotes.remove(m.getInt());
+                    if(r != null) ClientCommunication.leaveRemote(r);
+                    break;
+                }
+                case MOVE:
+                    onMove(m);
+                    break;
+                case STATUS:
+                    onStatus(m);
+                    break;
+                case CHAT: {
+                    RemotePlayer r = remotes.get(m.getInt());
+                    if(r == null) break;
+                    byte[] text = new byte[m.remaining()];
+                    m.get(text);
+                    ClientCommunication.broadcast(r.room, new Message(
+                            Codec.NLM, c -> c.lobbyMessage(r, text)),
+                            OutboundQueue.CHAT, null);
+                    break;
+                }
+                case CHALLENGE: {
+                    RemotePlayer r = remotes.get(m.getInt());
+                    Handler h = registry.get(m.getInt());
+                    if(r != null && h != null && h.isLocal()) {
+                        r.onChallenge(h);
+                    }
+                    break;
+                }
+                case ANSWER:
+                    onAnswer(from, m);
+                    break;
+                case EXIT:
+                    onExit(m.getInt(), m.getInt());
+                    break;
+                case GAME:
+                    onGame(m);
+                    break;
+                default:
+                    Log.warn(null, "unknown cluster message", m.get(0));
+            }
+        }
+
+        @Override
+        public void disconnected(int from) {
+            forget(from);
+        }
+
+        /**
+         * Lists a player on another node, unless a player on a node with a
+         * lower number has its name.  A player on this node with the name
+         * is disconnected.
+         * @param from the player's node
+         * @param m the rest of the message
+         */
+        private void onJoin(int from, ByteBuffer m) {
+            int id = m.getInt();
+            boolean busy = m.get() != 0;
+            byte[] room = new byte[m.getShort()];
+            m.get(room);
+            PlayerName name = new PlayerName(text(m));
+            if(registry.get(id) != null) return;
+            RemotePlayer r = new RemotePlayer(id, name, from);
+            ClientCommunication.nameLock.lock();
+            try {
+                Handler had = registry.get(name);
+                if(had != null) {
+                    int owner = had.isLocal() ? node :
+                            ((RemotePlayer) had).node;
+                    if(owner < from) return;
+                    Log.warn(had.getClientName(), "name taken on node",
+                            from);
+                    if(had.isLocal()) had.disconnect();
+                }
+                r.room = Room.open(new String(room, StandardCharsets.UTF_8));
+                registry.registerRemote(r);
+                remotes.put(id, r);
+                r.room.shard.join(r.room, r, -1, false);
+                if(busy) r.room.shard.status(r.room, Codec.BUSY, r, null);
+            } finally {
+                ClientCommunication.nameLock.unlock();
+            }
+        }
+
+        /**
+         * Moves a player on another node to another room.
+         * @param m the rest of the message
+         */
+        private void onMove(ByteBuffer m) {
+            RemotePlayer r = remotes.get(m.getInt());
+            if(r == null) return;
+            Room from = r.room, to = Room.open(text(m));
+            if(from == to) return;
+            Challenges.cancel(r);
+            r.room = to;
+            from.shard.leave(from, r);
+            to.shard.join(to, r, -1, false);
+        }
+
+        /**
+         * Marks one or two players on another node busy or free.
+         * @param m the rest of the message
+         */
+        private void onStatus(ByteBuffer m) {
+            int opcode = m.get();
+            RemotePlayer a = remotes.get(m.getInt());
+            RemotePlayer b = m.hasRemaining() ? remotes.get(m.getInt()) :
+                    null;
+            if(a == null) {
+                a = b;
+                b = null;
+            }
+            if(a == null) return;
+            if(opcode == Codec.BUSY) {
+                Challenges.cancel(a);
+                if(b != null) Challenges.cancel(b);
+            }
+            if(b != null && b.room != a.room) {
+                b.room.shard.status(b.room, opcode, b, null);
+                b = null;
+            }
+            a.room.shard.status(a.room, opcode, a, b);
+        }
+
+        /**
+         * Pairs a challenger on this node with the player on another node
+         * who accepted, or tells the challenger it was turned down.  If
+         * the challenger cannot be paired, the responder's node is told to
+         * let the responder go.
+         * @param from the responder's node
+         * @param m the rest of the message
+         */
+        private void onAnswer(int from, ByteBuffer m) {
+            int responderId = m.getInt(), challengerId = m.getInt();
+            boolean accepted = m.get() != 0;
+            RemotePlayer r = remotes.get(responderId);
+            Handler c = registry.get(challengerId);
+            if(c == null || !c.isLocal() || r == null ||
+                    !Challenges.answer(c, r)) {
+                // the challenge has ended here, and the challenger was told
+                if(accepted) send(from, pair(EXIT, challengerId,
+                        responderId));
+                return;
+            }
+            if(accepted && r.room == c.room && !c.moving &&
+                    registry.pairRemote(c, r)) {
+                c.send(Codec.CHALLENGE_R, c.codec.challengeResult(true));
+                ClientCommunication.broadcastStatus(Codec.BUSY, c, r);
+                return;
+            }
+            c.challengeRefused(r);
+            if(accepted) send(from, pair(EXIT, challengerId, responderId));
+        }
+
+        /**
+         * Ends a game between a player on this node and one on another.
+         * @param playerId the player which left the game
+         * @param opponentId the opponent, which should be on this node
+         */
+        private void onExit(int playerId, int opponentId) {
+            RemotePlayer r = remotes.get(playerId);
+            if(r != null) {
+                r.state.compareAndSet(state(IN_GAME, opponentId),
+                        state(FREE, 0));
+            }
+            Handler h = registry.get(opponentId);
+            if(h != null && h.isLocal() && h.state.compareAndSet(
+                    state(IN_GAME, playerId), state(FREE, 0))) {
+                h.opponentExited(r);
+                ClientCommunication.broadcastStatus(Codec.FREE, h);
+            }
+        }
+
+        /**
+         * Relays in-game frames from a player on another node to its
+         * opponent on this one, made over for the opponent's codec.
+         * @param m the rest of the message
+         */
+        private void onGame(ByteBuffer m) {
+            int playerId = m.getInt();
+            Handler h = registry.get(m.getInt());
+            if(h == null || !h.isLocal() ||
+                    h.state.get() != state(IN_GAME, playerId)) return;
+            while(m.hasRemaining()) {
+                Chunk chunk = RelayBuffers.acquire();
+                if(BinaryCodec.INSTANCE.relay(m, h.codec, chunk.buffer) ==
+                        0) {
+                    RelayBuffers.release(chunk);
+                    return;
+                }
+                chunk.buffer.flip();
+                chunk.readAt = System.nanoTime();
+                h.send(chunk);
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package roomserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * How the nodes of a cluster reach each other.  A transport carries
+ * opaque messages between numbered nodes, in order from any one node to
+ * any other, and says when another node comes and goes; what the messages
+ * mean is up to {@link Cluster}.  Messages to a node which is not
+ * connected are dropped, since the node is sent everything it needs again
+ * when it connects.
+ * @author Jed Wang
+ */
+public interface ClusterTransport {
+    /**
+     * Starts talking to the other nodes.
+     * @param node this node's number
+     * @param receiver what to tell about other nodes and their messages
+     * @throws IOException if the transport cannot start
+     */
+    void start(int node, Receiver receiver) throws IOException;
+
+    /**
+     * Sends a message to every other node.
+     * @param message the message, which is not modified and may be shared
+     */
+    void publish(ByteBuffer message);
+
+    /**
+     * Sends a message straight to one node.
+     * @param node the node
+     * @param message the message, which is not modified and may be shared
+     */
+    void send(int node, ByteBuffer message);
+
+    /**
+     * What a transport tells about the other nodes.  The calls about any
+     * one node are made in order, on one thread at a time.
+     */
+    interface Receiver {
+        /**
+         * Another node has connected.
+         * @param node the node
+         */
+        void connected(int node);
+
+        /**
+         * A message has arrived from another node.
+         * @param node the node
+         * @param message the message, which is only good until this
+         * returns
+         */
+        void received(int node, ByteBuffer message);
+
+        /**
+         * Another node has gone away.
+         * @param node the node
+         */
+        void disconnected(int node);
+    }
+}
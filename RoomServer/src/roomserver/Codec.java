@@ -0,0 +1,403 @@
+package roomserver;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import roomserver.ClientCommunication.Handler;
+
+/**
+ * Turns protocol messages into bytes and back.  Every client starts out
+ * with the text codec of PROTOCOL.md; a client may ask for the binary
+ * codec while submitting its name.
+ * @author Jed Wang
+ */
+public abstract class Codec {
+    /**
+     * <code>PING</code>
+     */
+    public static final int PING = 0x01;
+
+    /**
+     * <code>SUBMITNAME</code>; only ever sent as text
+     */
+    public static final int SUBMITNAME = 0x02;
+
+    /**
+     * <code>NAMEACCEPTED</code>; only ever sent as text
+     */
+    public static final int NAMEACCEPTED = 0x03;
+
+    /**
+     * <code>NEWCLIENT</code>
+     */
+    public static final int NEWCLIENT = 0x04;
+
+    /**
+     * <code>REMOVECLIENT</code>
+     */
+    public static final int REMOVECLIENT = 0x05;
+
+    /**
+     * <code>BUSY</code>
+     */
+    public static final int BUSY = 0x06;
+
+    /**
+     * <code>FREE</code>
+     */
+    public static final int FREE = 0x07;
+
+    /**
+     * <code>NLM</code> (lobby chat)
+     */
+    public static final int NLM = 0x08;
+
+    /**
+     * <code>CHALLENGE_C</code>
+     */
+    public static final int CHALLENGE_C = 0x09;
+
+    /**
+     * <code>CHALLENGE_R</code>
+     */
+    public static final int CHALLENGE_R = 0x0A;
+
+    /**
+     * <code>NB</code> (new bag)
+     */
+    public static final int NB = 0x0B;
+
+    /**
+     * <code>LOCK</code>
+     */
+    public static final int LOCK = 0x0C;
+
+    /**
+     * <code>M</code> (move)
+     */
+    public static final int M = 0x0D;
+
+    /**
+     * <code>NM</code> (in-game chat)
+     */
+    public static final int NM = 0x0E;
+
+    /**
+     * <code>EXIT</code>
+     */
+    public static final int EXIT = 0x0F;
+
+    /**
+     * Any other line sent during a game, relayed as it is
+     */
+    public static final int LINE = 0x10;
+
+    /**
+     * <code>ROSTER</code>: the lobby, or the changes to it, with its
+     * version; only sent to clients which ask for it
+     */
+    public static final int ROSTER = 0x11;
+
+    /**
+     * <code>CREATEROOM</code>: make a room and go into it
+     */
+    public static final int CREATEROOM = 0x12;
+
+    /**
+     * <code>JOINROOM</code>: go into a room
+     */
+    public static final int JOINROOM = 0x13;
+
+    /**
+     * <code>LEAVEROOM</code>: go back to the lobby
+     */
+    public static final int LEAVEROOM = 0x14;
+
+    /**
+     * <code>ROOM</code>: the client is now in a room, and is about to be
+     * told who is there
+     */
+    public static final int ROOM = 0x15;
+
+    /**
+     * <code>NOROOM</code>: the client could not go into a room
+     */
+    public static final int NOROOM = 0x16;
+
+    /**
+     * <code>QUEUE</code>: put the client in the matchmaking queue
+     */
+    public static final int QUEUE = 0x17;
+
+    /**
+     * <code>UNQUEUE</code>: take the client out of the matchmaking queue;
+     * sent back when its place in the queue ends without a game
+     */
+    public static final int UNQUEUE = 0x18;
+
+    /**
+     * <code>MATCHED</code>: the matchmaking queue has put the client in a
+     * game
+     */
+    public static final int MATCHED = 0x19;
+
+    /**
+     * The names of the opcodes, for logging
+     */
+    private static final String[] NAMES = {null, "PING", "SUBMITNAME",
+        "NAMEACCEPTED", "NEWCLIENT", "REMOVECLIENT", "BUSY", "FREE", "NLM",
+        "CHALLENGE_C", "CHALLENGE_R", "NB", "LOCK", "M", "NM", "EXIT",
+        "LINE", "ROSTER", "CREATEROOM", "JOINROOM", "LEAVEROOM", "ROOM",
+        "NOROOM", "QUEUE", "UNQUEUE", "MATCHED"};
+
+    /**
+     * The longest frame a client may send, in bytes
+     */
+    public static final int MAX_FRAME_LENGTH = 64 * 1024;
+
+    /**
+     * How many codecs there are
+     */
+    public static final int COUNT = 2;
+
+    /**
+     * This codec's number, from 0 to COUNT - 1
+     */
+    final int index;
+
+    /**
+     * PING and EXIT, encoded once, by opcode
+     */
+    private final ByteBuffer[] constants;
+
+    /**
+     * Creates a new Codec.
+     * @param index this codec's number
+     */
+    Codec(int index) {
+        this.index = index;
+        constants = new ByteBuffer[LINE + 1];
+    }
+
+    /**
+     * Returns the name of an opcode
+     * @param opcode the opcode
+     * @return the name of the opcode
+     */
+    public static String name(int opcode) {
+        return opcode > 0 && opcode < NAMES.length ?
+                NAMES[opcode] : "0x" + Integer.toHexString(opcode);
+    }
+
+    /**
+     * Encodes a message without a body: PING, EXIT, SUBMITNAME,
+     * NAMEACCEPTED or UNQUEUE.
+     * @param opcode the opcode of the message
+     * @return the frame
+     */
+    public abstract ByteBuffer encode(int opcode);
+
+    /**
+     * Returns PING or EXIT, which are always the same, encoded.  The frame
+     * is shared by every client.
+     * @param opcode PING or EXIT
+     * @return the frame
+     */
+    public ByteBuffer constant(int opcode) {
+        ByteBuffer f = constants[opcode];
+        if(f == null) {
+            // two threads may both encode it; either frame will do
+            f = encode(opcode);
+            constants[opcode] = f;
+        }
+        return f;
+    }
+
+    /**
+     * Encodes a message about a player: REMOVECLIENT, BUSY, FREE,
+     * CHALLENGE_C or MATCHED.
+     * @param opcode the opcode of the message
+     * @param player the player the message is about
+     * @return the frame
+     */
+    public abstract ByteBuffer encode(int opcode, Handler player);
+
+    /**
+     * Encodes a NEWCLIENT.
+     * @param player the player who is in the lobby
+     * @param isNew whether the player has just joined
+     * @return the frame
+     */
+    public abstract ByteBuffer newClient(Handler player, boolean isNew);
+
+    /**
+     * Encodes an NLM.
+     * @param from the player who sent the message
+     * @param message what the player said, in UTF-8
+     * @return the frame
+     */
+    public abstract ByteBuffer lobbyMessage(Handler from, byte[] message);
+
+    /**
+     * Encodes a CHALLENGE_R.
+     * @param accepted whether the challenge was accepted
+     * @return the frame
+     */
+    public abstract ByteBuffer challengeResult(boolean accepted);
+
+    /**
+     * Encodes a ROSTER.
+     * @param full whether this is the whole lobby, which replaces what the
+     * client knew, rather than what has changed
+     * @param version the version of the lobby
+     * @param ids the ids of the players
+     * @param players the names of the players
+     * @param states what each player is: FREE, BUSY, or REMOVECLIENT if it
+     * has left
+     * @param from where in the arrays to start
+     * @param to where in the arrays to stop
+     * @return the frame
+     */
+    public abstract ByteBuffer roster(boolean full, long version, int[] ids,
+            PlayerName[] players, int[] states, int from, int to);
+
+    /**
+     * Encodes a ROOM or NOROOM.
+     * @param opcode ROOM or NOROOM
+     * @param room the name of the room the client is now in, or could not
+     * go into, in UTF-8
+     * @return the frame
+     */
+    public abstract ByteBuffer room(int opcode, byte[] room);
+
+    /**
+     * Encodes an in-game message being relayed to the opponent.
+     * @param opcode NB, LOCK, M, NM or LINE
+     * @param src the buffer holding the body of the message; it is not
+     * modified
+     * @param from where the body starts
+     * @param to where the body ends
+     * @return the frame
+     */
+    public abstract ByteBuffer game(int opcode, ByteBuffer src, int from,
+            int to);
+
+    /**
+     * Decodes one message from the start of a buffer and hands it to a
+     * handler, through the handler's MessageView so that nothing is copied
+     * out of the buffer unless it has to be kept.  If the buffer does not
+     * yet hold a whole message, nothing happens.
+     * @param in the bytes received, from position to limit; the position
+     * is moved past the message decoded
+     * @param h the handler to give the message to
+     * @return whether a message was decoded
+     * @throws ProtocolException if the bytes are not a valid message
+     */
+    public abstract boolean decode(ByteBuffer in, Handler h)
+            throws ProtocolException;
+
+    /**
+     * Relays in-game frames straight from a client's inbound buffer into
+     * a relay chunk for its opponent, without decoding them.  Stops at the
+     * first frame which is incomplete, is not relayed (such as EXIT), or
+     * does not fit in the chunk; the usual decode deals with it.
+     * @param in the inbound buffer; its position is moved past the frames
+     * relayed
+     * @param to the opponent's codec
+     * @param dst the chunk to put the frames in, encoded with the
+     * opponent's codec
+     * @return how many frames were relayed
+     */
+    public int relay(ByteBuffer in, Codec to, ByteBuffer dst) {
+        return relay(in, to, dst, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Relays at most some number of in-game frames, as
+     * {@link #relay(ByteBuffer, Codec, ByteBuffer)} does.
+     * @param in the inbound buffer; its position is moved past the frames
+     * relayed
+     * @param to the opponent's codec
+     * @param dst the chunk to put the frames in
+     * @param max how many frames may be relayed
+     * @return how many frames were relayed
+     */
+    public abstract int relay(ByteBuffer in, Codec to, ByteBuffer dst,
+            int max);
+
+    /**
+     * Puts an in-game frame into a relay chunk.
+     * @param dst the chunk
+     * @param opcode NB, LOCK, M, NM or LINE
+     * @param src the buffer holding the body
+     * @param from where the body starts
+     * @param to where the body ends
+     * @return whether there was room for the frame
+     */
+    abstract boolean putGame(ByteBuffer dst, int opcode, ByteBuffer src,
+            int from, int to);
+
+    /**
+     * Copies bytes from one buffer to another without moving the source's
+     * position.
+     * @param dst where to put the bytes; its position is moved past them
+     * @param src where the bytes are
+     * @param from where the bytes start
+     * @param to where the bytes end
+     */
+    static void copy(ByteBuffer dst, ByteBuffer src, int from, int to) {
+        int length = to - from;
+        dst.put(dst.position(), src, from, length);
+        dst.position(dst.position() + length);
+    }
+
+    /**
+     * Writes an unsigned varint: seven bits at a time, least significant
+     * first, with the high bit set on every byte but the last.
+     * @param dst where to write
+     * @param off where to start writing
+     * @param value the value, which is treated as unsigned
+     * @return where writing stopped
+     */
+    public static int putVarint(byte[] dst, int off, int value) {
+        while((value & ~0x7F) != 0) {
+            dst[off++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dst[off++] = (byte) value;
+        return off;
+    }
+
+    /**
+     * Returns how many bytes a varint takes
+     * @param value the value, which is treated as unsigned
+     * @return how many bytes the varint of the value takes
+     */
+    public static int varintSize(int value) {
+        int size = 1;
+        while((value & ~0x7F) != 0) {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    /**
+     * Reads an unsigned varint without moving the buffer's position.
+     * @param in the buffer to read from
+     * @param index where the varint starts
+     * @return the value in the upper 32 bits and the index just past the
+     * varint in the lower 32 bits, or -1 if the buffer ends first
+     * @throws ProtocolException if the varint is longer than five bytes
+     */
+    public static long getVarint(ByteBuffer in, int index)
+            throws ProtocolException {
+        int value = 0;
+        for(int shift = 0; shift < 35; shift += 7) {
+            if(index >= in.limit()) return -1;
+            byte b = in.get(index++);
+            value |= (b & 0x7F) << shift;
+            if(b >= 0) return ((long) value << 32) | index;
+        }
+        throw new ProtocolException("varint too long");
+    }
+}
@@ -0,0 +1,99 @@
+package roomserver;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The headers of the text protocol, in a trie which finds the header at the
+ * start of a line in one pass over its bytes.  Lines have no space between
+ * header and body, so the longest header a line starts with is its
+ * command.  How long this takes depends on how long the header is, not on
+ * how many headers there are, so <code>M</code> takes one step however
+ * many commands are added.
+ * @author Jed Wang
+ */
+final class CommandTable {
+    /**
+     * The headers of every command a client may send
+     */
+    static final CommandTable COMMANDS = new CommandTable(Codec.PING,
+            Codec.NLM, Codec.CHALLENGE_C, Codec.CHALLENGE_R, Codec.NB,
+            Codec.LOCK, Codec.M, Codec.NM, Codec.EXIT, Codec.CREATEROOM,
+            Codec.JOINROOM, Codec.LEAVEROOM, Codec.QUEUE, Codec.UNQUEUE);
+
+    /**
+     * The lowest byte a header may contain
+     */
+    private static final int FIRST = '@';
+
+    /**
+     * How many different bytes a header may contain: '@' to '_', which
+     * covers the capital letters and the underscore
+     */
+    private static final int WIDTH = 32;
+
+    /**
+     * The transitions: the state after reading byte b in state s is at
+     * <code>s * WIDTH + b - FIRST</code>, and is 0 if there is none
+     */
+    private final int[] next;
+
+    /**
+     * The opcode of the header which ends at each state, or 0 if none does
+     */
+    private final int[] opcodes;
+
+    /**
+     * Builds the trie of some opcodes, named as by {@link Codec#name(int)}.
+     * @param commands the opcodes
+     * @throws IllegalArgumentException if a header has a byte which is not
+     * a capital letter or an underscore
+     */
+    private CommandTable(int... commands) {
+        int states = 1;
+        for(int opcode : commands) {
+            states += Codec.name(opcode).length();
+        }
+        int[] next = new int[states * WIDTH];
+        int[] opcodes = new int[states];
+        int used = 1;
+        for(int opcode : commands) {
+            String header = Codec.name(opcode);
+            int state = 0;
+            for(int i = 0; i < header.length(); i++) {
+                int symbol = header.charAt(i) - FIRST;
+                if(symbol < 0 || symbol >= WIDTH)
+                    throw new IllegalArgumentException(header);
+                int t = state * WIDTH + symbol;
+                if(next[t] == 0) next[t] = used++;
+                state = next[t];
+            }
+            opcodes[state] = opcode;
+        }
+        this.next = next;
+        this.opcodes = opcodes;
+    }
+
+    /**
+     * Finds the command a line starts with.
+     * @param in the buffer holding the line; its position is not moved
+     * @param start where the line starts
+     * @param end where the line ends
+     * @return the opcode in the upper 32 bits and the index just past the
+     * header, which is where the body starts, in the lower 32 bits, or -1
+     * if the line does not start with a header
+     */
+    long match(ByteBuffer in, int start, int end) {
+        int state = 0, opcode = 0, body = start;
+        for(int i = start; i < end; i++) {
+            int symbol = in.get(i) - FIRST;
+            if(symbol < 0 || symbol >= WIDTH) break;
+            state = next[state * WIDTH + symbol];
+            if(state == 0) break;
+            if(opcodes[state] != 0) {
+                opcode = opcodes[state];
+                body = i + 1;
+            }
+        }
+        return opcode == 0 ? -1 : ((long) opcode << 32) | body;
+    }
+}
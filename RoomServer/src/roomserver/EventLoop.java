@@ -0,0 +1,104 @@
+package roomserver;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single selector thread which services many non-blocking clients.
+ * The server starts one of these per core and hands each accepted
+ * channel to one of them.
+ * @author Jed Wang
+ */
+public class EventLoop implements Runnable {
+    /**
+     * The selector which is waited upon
+     */
+    private final Selector selector;
+
+    /**
+     * Tasks submitted from other threads to run on this loop
+     */
+    private final Queue<Runnable> tasks;
+
+    /**
+     * The thread running this loop
+     */
+    private final Thread thread;
+
+    /**
+     * Creates a new EventLoop.  It will not run until started.
+     * @param id the number of this loop, used to name its thread
+     * @throws IOException if the selector cannot be opened
+     */
+    public EventLoop(int id) throws IOException {
+        selector = Selector.open();
+        tasks = new ConcurrentLinkedQueue<>();
+        thread = new Thread(this, "event-loop-" + id);
+    }
+
+    /**
+     * Starts this loop's thread.
+     */
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Hands a newly accepted client over to this loop.
+     * @param channel the accepted channel
+     * @throws IOException if the channel cannot be made non-blocking
+     */
+    public void register(SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+        NioHandler h = new NioHandler(channel, this);
+        execute(() -> {
+            try {
+                h.registered(channel.register(selector,
+                        SelectionKey.OP_READ, h));
+            } catch(ClosedChannelException cce) {
+                h.close();
+            }
+        });
+    }
+
+    /**
+     * Runs a task on this loop's thread as soon as possible.
+     * @param task the task to run
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while(true) {
+            try {
+                selector.select();
+            } catch(IOException e) {
+                Log.error(null, "select failed", e);
+                continue;
+            }
+
+            Runnable task;
+            while((task = tasks.poll()) != null) {
+                task.run();
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while(it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                NioHandler h = (NioHandler) key.attachment();
+                if(key.isValid() && key.isReadable()) h.read();
+                if(key.isValid() && key.isWritable()) h.flush();
+            }
+        }
+    }
+}
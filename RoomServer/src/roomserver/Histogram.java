@@ -0,0 +1,145 @@
+package roomserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of non-negative values, such as durations in nanoseconds,
+ * with buckets laid out the way HdrHistogram lays them out: every power of
+ * two is split into the same number of equal sub-buckets, so every value
+ * is recorded to within about 3% however big it is.  Recording is a few
+ * atomic increments and allocates nothing.
+ * @author Jed Wang
+ */
+public class Histogram {
+    /**
+     * Every power of two is split into 2 to the power of this many
+     * sub-buckets
+     */
+    private static final int SUB_BITS = 5;
+
+    /**
+     * How many sub-buckets every power of two is split into
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /**
+     * How many buckets it takes to cover every long
+     */
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    /**
+     * How many values fell into each bucket
+     */
+    private final AtomicLongArray counts;
+
+    /**
+     * How many values have been recorded
+     */
+    private final LongAdder count;
+
+    /**
+     * The sum of the values recorded
+     */
+    private final LongAdder sum;
+
+    /**
+     * The largest value recorded
+     */
+    private final AtomicLong max;
+
+    /**
+     * Creates an empty histogram.
+     */
+    public Histogram() {
+        counts = new AtomicLongArray(BUCKETS);
+        count = new LongAdder();
+        sum = new LongAdder();
+        max = new AtomicLong(0);
+    }
+
+    /**
+     * Records a value.
+     * @param value the value; negative values are recorded as 0
+     */
+    public void record(long value) {
+        if(value < 0) value = 0;
+        counts.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+        long m;
+        while(value > (m = max.get()) && !max.compareAndSet(m, value));
+    }
+
+    /**
+     * Returns which bucket a value falls in
+     * @param value the value, which is not negative
+     * @return the index of the bucket
+     */
+    private static int bucket(long value) {
+        if(value < SUB_BUCKETS) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return ((shift + 1) << SUB_BITS) +
+                (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * Returns the largest value which falls in a bucket
+     * @param bucket the index of the bucket
+     * @return the largest value in the bucket
+     */
+    private static long highest(int bucket) {
+        if(bucket < SUB_BUCKETS) return bucket;
+        int shift = (bucket >>> SUB_BITS) - 1;
+        long lowest = (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1)))
+                << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * Returns how many values have been recorded
+     * @return how many values have been recorded
+     */
+    public long count() {
+        return count.sum();
+    }
+
+    /**
+     * Returns the sum of the values recorded
+     * @return the sum of the values recorded
+     */
+    public long sum() {
+        return sum.sum();
+    }
+
+    /**
+     * Returns the largest value recorded
+     * @return the largest value recorded, or 0 if there are none
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * Returns the value which a fraction of the values recorded are at or
+     * below, to within a bucket.  Values recorded while this runs may or
+     * may not be counted.
+     * @param quantile the fraction, from 0 to 1
+     * @return the value, or 0 if nothing has been recorded
+     */
+    public long quantile(double quantile) {
+        long total = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if(total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if(seen >= rank) return Math.min(highest(i), max());
+        }
+        return max();
+    }
+}
@@ -0,0 +1,112 @@
+package roomserver;
+
+/**
+ * The numbers worth knowing about a {@link Histogram} at one moment.
+ * @author Jed Wang
+ */
+public class HistogramSummary {
+    /**
+     * How many values had been recorded
+     */
+    private final long count;
+
+    /**
+     * The mean of the values
+     */
+    private final double mean;
+
+    /**
+     * The median
+     */
+    private final long p50;
+
+    /**
+     * The 90th percentile
+     */
+    private final long p90;
+
+    /**
+     * The 99th percentile
+     */
+    private final long p99;
+
+    /**
+     * The 99.9th percentile
+     */
+    private final long p999;
+
+    /**
+     * The largest value
+     */
+    private final long max;
+
+    /**
+     * Summarizes a histogram.
+     * @param h the histogram
+     */
+    public HistogramSummary(Histogram h) {
+        count = h.count();
+        mean = count == 0 ? 0 : (double) h.sum() / count;
+        p50 = h.quantile(0.5);
+        p90 = h.quantile(0.9);
+        p99 = h.quantile(0.99);
+        p999 = h.quantile(0.999);
+        max = h.max();
+    }
+
+    /**
+     * Returns how many values had been recorded
+     * @return how many values had been recorded
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the mean of the values
+     * @return the mean of the values
+     */
+    public double getMean() {
+        return mean;
+    }
+
+    /**
+     * Returns the median
+     * @return the median
+     */
+    public long getP50() {
+        return p50;
+    }
+
+    /**
+     * Returns the 90th percentile
+     * @return the 90th percentile
+     */
+    public long getP90() {
+        return p90;
+    }
+
+    /**
+     * Returns the 99th percentile
+     * @return the 99th percentile
+     */
+    public long getP99() {
+        return p99;
+    }
+
+    /**
+     * Returns the 99.9th percentile
+     * @return the 99.9th percentile
+     */
+    public long getP999() {
+        return p999;
+    }
+
+    /**
+     * Returns the largest value
+     * @return the largest value
+     */
+    public long getMax() {
+        return max;
+    }
+}
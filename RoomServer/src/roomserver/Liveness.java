@@ -0,0 +1,204 @@
+package roomserver;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import roomserver.ClientCommunication.Handler;
+import static roomserver.ClientRegistry.*;
+
+/**
+ * Finds connections which have gone dead, such as half-open ones whose
+ * client vanished without closing them, and gets rid of them.  Each
+ * connection notes when it was last read from, by the clock of
+ * {@link TimingWheel#TIMERS} rather than the system's, so noting it is a
+ * field write at most once a tick.  Each connection also has a timeout on
+ * the wheel which comes due when the connection has been quiet for the
+ * heartbeat interval: a quiet client which has a name is sent a PING,
+ * which it must answer, and one which stays quiet for the idle timeout is
+ * evicted.  Only clients which said they answer PINGs, with
+ * {@link TextCodec#PING_TOKEN}, are sent heartbeats or evicted: older
+ * clients would never answer, and would be evicted for sitting quietly in
+ * the lobby.  The wheel spreads the checks out over time, so there is no
+ * pass over every connection.
+ * <p>
+ * Clients found dead within a second of each other are evicted together:
+ * they are unregistered at once, and everybody in each of their rooms is
+ * told they have gone in a single frame.
+ * @author Jed Wang
+ */
+final class Liveness {
+    /**
+     * How long a client may be quiet before it is sent a PING, in
+     * seconds, unless told otherwise
+     */
+    public static final int DEFAULT_HEARTBEAT_SECONDS = 30;
+
+    /**
+     * How long a client may be quiet before it is evicted, in seconds,
+     * unless told otherwise
+     */
+    public static final int DEFAULT_IDLE_TIMEOUT_SECONDS = 90;
+
+    /**
+     * How long to wait for more dead clients before evicting those found,
+     * in nanoseconds
+     */
+    private static final long REAP_DELAY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * How long a client may be quiet before it is sent a PING, in
+     * nanoseconds, or 0 for never
+     */
+    private static volatile long heartbeatNanos =
+            TimeUnit.SECONDS.toNanos(DEFAULT_HEARTBEAT_SECONDS);
+
+    /**
+     * How long a client may be quiet before it is evicted, in
+     * nanoseconds, or 0 for never
+     */
+    private static volatile long idleNanos =
+            TimeUnit.SECONDS.toNanos(DEFAULT_IDLE_TIMEOUT_SECONDS);
+
+    /**
+     * The clients found dead since the last eviction.  Only used by the
+     * wheel's thread.
+     */
+    private static final ArrayList<Handler> dead = new ArrayList<>();
+
+    /**
+     * Evicts the clients found dead
+     */
+    private static final TimingWheel.Timeout reaper =
+            new TimingWheel.Timeout() {
+                @Override
+                void expired() {
+                    reap();
+                }
+            };
+
+    /**
+     * How many heartbeats have been sent
+     */
+    static final LongAdder heartbeats = new LongAdder();
+
+    /**
+     * How many clients were evicted for being quiet
+     */
+    static final LongAdder evictions = new LongAdder();
+
+    /**
+     * No instances
+     */
+    private Liveness() {
+    }
+
+    /**
+     * Reads <code>--heartbeat=SECONDS</code>, how long a client may be
+     * quiet before it is sent a PING, and
+     * <code>--idle-timeout=SECONDS</code>, how long before it is evicted;
+     * 0 turns either off.
+     * @param options the startup options
+     */
+    public static void configure(ServerOptions options) {
+        heartbeatNanos = TimeUnit.SECONDS.toNanos(Math.max(0,
+                options.getInt("heartbeat", DEFAULT_HEARTBEAT_SECONDS)));
+        idleNanos = TimeUnit.SECONDS.toNanos(Math.max(0,
+                options.getInt("idle-timeout", DEFAULT_IDLE_TIMEOUT_SECONDS)));
+    }
+
+    /**
+     * Starts watching a connection which has just opened.
+     * @param h the client
+     */
+    static void watch(Handler h) {
+        long first = interval();
+        if(first != 0) TimingWheel.TIMERS.schedule(new Watch(h), first);
+    }
+
+    /**
+     * Returns how long a client may be quiet before anything is done
+     * @return the shorter of the heartbeat and the idle timeout which are
+     * on, in nanoseconds, or 0 if neither is
+     */
+    private static long interval() {
+        long heartbeat = heartbeatNanos, idle = idleNanos;
+        return heartbeat == 0 ? idle : idle == 0 ? heartbeat :
+                Math.min(heartbeat, idle);
+    }
+
+    /**
+     * Evicts every client found dead since the last eviction, except any
+     * which has spoken since, which is watched again.
+     */
+    private static void reap() {
+        long now = TimingWheel.TIMERS.now(), idle = idleNanos;
+        dead.removeIf(h -> {
+            if(idle == 0 || now - h.lastRead >= idle) return false;
+            watch(h);
+            return true;
+        });
+        if(!dead.isEmpty()) {
+            Log.info(null, "evicting quiet clients", dead.size());
+            evictions.add(dead.size());
+            ClientCommunication.evict(dead);
+            dead.clear();
+        }
+    }
+
+    /**
+     * A connection's timeout, which comes due whenever the connection may
+     * have been quiet for too long
+     */
+    private static final class Watch extends TimingWheel.Timeout {
+        /**
+         * The client
+         */
+        private final Handler h;
+
+        /**
+         * Makes a watch.
+         * @param h the client
+         */
+        private Watch(Handler h) {
+            this.h = h;
+        }
+
+        @Override
+        void expired() {
+            long s = h.state.get();
+            if(kind(s) == CLOSED) return;
+            if(kind(s) == NAMING) {
+                // whether it answers PINGs is not known until it has a
+                // name; an older client may sit at its name prompt
+                long next = interval();
+                if(next != 0) TimingWheel.TIMERS.schedule(this, next);
+                return;
+            }
+            // an older client, which would not answer, is left alone
+            if(!h.answersPing) return;
+            long quiet = TimingWheel.TIMERS.now() - h.lastRead;
+            long idle = idleNanos, heartbeat = heartbeatNanos;
+            if(idle != 0 && quiet >= idle) {
+                if(Log.enabled(Log.DEBUG)) {
+                    Log.debug(h.getClientName(), "quiet for too long",
+                            quiet);
+                }
+                if(dead.isEmpty()) {
+                    TimingWheel.TIMERS.schedule(reaper, REAP_DELAY_NANOS);
+                }
+                dead.add(h);
+                return;
+            }
+            if(heartbeat != 0 && quiet >= heartbeat) {
+                heartbeats.increment();
+                h.heartbeat();
+            }
+            long next = idle == 0 ? Long.MAX_VALUE : idle - quiet;
+            if(heartbeat != 0) {
+                next = Math.min(next, quiet < heartbeat ?
+                        heartbeat - quiet : heartbeat);
+            }
+            if(next != Long.MAX_VALUE) TimingWheel.TIMERS.schedule(this, next);
+        }
+    }
+}
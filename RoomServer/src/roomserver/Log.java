@@ -0,0 +1,590 @@
+package roomserver;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The server's log.  Logging a disabled level costs one volatile read and
+ * allocates nothing.  Enabled events are put in a fixed ring of reusable
+ * slots without taking a lock, and a single background thread formats
+ * them and writes them out in batches, so nothing that logs ever waits
+ * for the console or the disk.  If the ring is full, events are dropped
+ * and counted rather than making the caller wait.
+ * <p>
+ * Each line is the time, the level, the thread, who the event is about
+ * (usually a client's name), the message and a detail.  Callers should
+ * pass constant messages and put anything variable in the detail, which
+ * is only turned into text by the writer.
+ * @author Jed Wang
+ */
+public final class Log {
+    /**
+     * Something is broken
+     */
+    public static final int ERROR = 0;
+
+    /**
+     * Something is wrong with a client
+     */
+    public static final int WARN = 1;
+
+    /**
+     * Something worth knowing happened
+     */
+    public static final int INFO = 2;
+
+    /**
+     * Something worth knowing when looking for a bug happened
+     */
+    public static final int DEBUG = 3;
+
+    /**
+     * A message was received; these are sampled
+     */
+    public static final int TRACE = 4;
+
+    /**
+     * The names of the levels, padded to the same width
+     */
+    private static final String[] LEVELS =
+            {"ERROR", "WARN ", "INFO ", "DEBUG", "TRACE"};
+
+    /**
+     * How many events the ring holds; a power of two
+     */
+    private static final int RING_SIZE = 8192;
+
+    /**
+     * How many bytes of formatted events are written at once, at most
+     */
+    private static final int BATCH_SIZE = 64 * 1024;
+
+    /**
+     * How long the writer sleeps when there is nothing to write
+     */
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * How big a log file may get before it is rotated, unless told
+     * otherwise
+     */
+    public static final int DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * How many rotated log files are kept, unless told otherwise
+     */
+    public static final int DEFAULT_FILES = 5;
+
+    /**
+     * How times are written
+     */
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern(
+            "yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    /**
+     * The slots, reused forever
+     */
+    private static final Event[] ring = new Event[RING_SIZE];
+
+    /**
+     * The next sequence number to be claimed by a logger
+     */
+    private static final AtomicLong head = new AtomicLong(0);
+
+    /**
+     * The next sequence number the writer will take; only written by the
+     * writer
+     */
+    private static volatile long tail = 0;
+
+    /**
+     * The most detailed level logged
+     */
+    private static volatile int level = INFO;
+
+    /**
+     * One in how many TRACE events is logged
+     */
+    private static volatile int sampleRate = 1;
+
+    /**
+     * Where events are written, or null for standard output; only used by
+     * the writer once set
+     */
+    private static volatile LogFile file = null;
+
+    /**
+     * The file configure was given, which start opens, or null for
+     * standard output
+     */
+    private static LogFile configured = null;
+
+    /**
+     * Whether the server is shutting down and the writer should stop once
+     * the ring is empty
+     */
+    private static volatile boolean closing = false;
+
+    /**
+     * How many events were dropped because the ring was full
+     */
+    static final LongAdder dropped = new LongAdder();
+
+    /**
+     * The writer thread
+     */
+    private static final Thread writer;
+
+    static {
+        for(int i = 0; i < RING_SIZE; i++) {
+            ring[i] = new Event(i - RING_SIZE);
+        }
+        writer = new Thread(Log::run, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::close));
+    }
+
+    /**
+     * No instances
+     */
+    private Log() {
+    }
+
+    /**
+     * Reads the log settings from the startup options and puts the level
+     * and sample rate in force; the file is not opened until start:
+     * <ul>
+     * <li><code>--log-level=error|warn|info|debug|trace</code> (info)</li>
+     * <li><code>--log-sample=N</code>: log one in N TRACE events (1)</li>
+     * <li><code>--log-file=PATH</code>: write to a file instead of standard
+     * output</li>
+     * <li><code>--log-max-bytes=BYTES</code>: rotate the file once it gets
+     * this big</li>
+     * <li><code>--log-files=N</code>: how many rotated files to keep</li>
+     * </ul>
+     * @param options the startup options
+     */
+    public static void configure(ServerOptions options) {
+        setLevel(parseLevel(options.get("log-level", "info")));
+        setSampleRate(options.getInt("log-sample", 1));
+        String path = options.get("log-file", null);
+        int maxBytes = options.getInt("log-max-bytes", DEFAULT_MAX_BYTES);
+        int files = options.getInt("log-files", DEFAULT_FILES);
+        configured = path == null ? null :
+                new LogFile(Paths.get(path), maxBytes, files);
+    }
+
+    /**
+     * Opens the file configure was given, if any, and writes to it from
+     * then on.
+     * @throws IOException if the log file cannot be opened
+     */
+    public static void start() throws IOException {
+        LogFile f = configured;
+        if(f == null) return;
+        f.open();
+        file = f;
+    }
+
+    /**
+     * Returns the level with a name
+     * @param name the name of a level, in any case
+     * @return the level
+     * @throws IllegalArgumentException if there is no such level
+     */
+    public static int parseLevel(String name) {
+        for(int i = 0; i < LEVELS.length; i++) {
+            if(LEVELS[i].trim().equalsIgnoreCase(name)) return i;
+        }
+        throw new IllegalArgumentException("Unknown log level: " + name);
+    }
+
+    /**
+     * Returns the name of a level
+     * @param level the level
+     * @return the name of the level
+     */
+    public static String levelName(int level) {
+        return LEVELS[level].trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Sets the most detailed level logged.  May be called at any time.
+     * @param level the level
+     */
+    public static void setLevel(int level) {
+        if(level < ERROR || level > TRACE)
+            throw new IllegalArgumentException("Unknown log level: " + level);
+        Log.level = level;
+    }
+
+    /**
+     * Returns the most detailed level logged
+     * @return the most detailed level logged
+     */
+    public static int level() {
+        return level;
+    }
+
+    /**
+     * Sets how many TRACE events there are for every one logged.  May be
+     * called at any time.
+     * @param rate one in how many TRACE events is logged
+     */
+    public static void setSampleRate(int rate) {
+        if(rate < 1)
+            throw new IllegalArgumentException("Bad sample rate: " + rate);
+        sampleRate = rate;
+    }
+
+    /**
+     * Returns one in how many TRACE events is logged
+     * @return one in how many TRACE events is logged
+     */
+    public static int sampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Returns whether a level is logged.  Callers which must build their
+     * detail should check this first.
+     * @param level the level
+     * @return whether events at the level are logged
+     */
+    public static boolean enabled(int level) {
+        return level <= Log.level;
+    }
+
+    /**
+     * Logs an ERROR event.
+     * @param who who the event is about, or null
+     * @param message what happened
+     * @param detail more about it, or null
+     */
+    public static void error(String who, String message, Object detail) {
+        log(ERROR, who, message, detail);
+    }
+
+    /**
+     * Logs a WARN event.
+     * @param who who the event is about, or null
+     * @param message what happened
+     * @param detail more about it, or null
+     */
+    public static void warn(String who, String message, Object detail) {
+        log(WARN, who, message, detail);
+    }
+
+    /**
+     * Logs an INFO event.
+     * @param who who the event is about, or null
+     * @param message what happened
+     * @param detail more about it, or null
+     */
+    public static void info(String who, String message, Object detail) {
+        log(INFO, who, message, detail);
+    }
+
+    /**
+     * Logs a DEBUG event.
+     * @param who who the event is about, or null
+     * @param message what happened
+     * @param detail more about it, or null
+     */
+    public static void debug(String who, String message, Object detail) {
+        log(DEBUG, who, message, detail);
+    }
+
+    /**
+     * Logs a TRACE event, if it is sampled.
+     * @param who who the event is about, or null
+     * @param message what happened
+     * @param detail more about it, or null
+     */
+    public static void trace(String who, String message, Object detail) {
+        if(TRACE > level) return;
+        int rate = sampleRate;
+        if(rate > 1 && ThreadLocalRandom.current().nextInt(rate) != 0) return;
+        log(TRACE, who, message, detail);
+    }
+
+    /**
+     * Logs an event.
+     * @param level the level of the event
+     * @param who who the event is about, or null
+     * @param message what happened
+     * @param detail more about it, or null
+     */
+    public static void log(int level, String who, String message,
+            Object detail) {
+        if(level > Log.level) return;
+        long seq;
+        do {
+            seq = head.get();
+            if(seq - tail >= RING_SIZE) {
+                dropped.increment();
+                return;
+            }
+        } while(!head.compareAndSet(seq, seq + 1));
+
+        Event e = ring[(int) seq & (RING_SIZE - 1)];
+        e.level = level;
+        e.time = System.currentTimeMillis();
+        e.thread = Thread.currentThread().getName();
+        e.who = who;
+        e.message = message;
+        e.detail = detail;
+        e.sequence = seq;
+    }
+
+    /**
+     * Writes events until the server shuts down.
+     */
+    private static void run() {
+        StringBuilder sb = new StringBuilder(BATCH_SIZE);
+        long lastDropped = 0;
+        while(true) {
+            int n = drain(sb);
+            if(n == 0) {
+                if(closing) return;
+                long d = dropped.sum();
+                if(d != lastDropped) {
+                    warn(null, "log events dropped", d - lastDropped);
+                    lastDropped = d;
+                    continue;
+                }
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Formats and writes every event which is ready.
+     * @param sb a buffer for formatted events
+     * @return how many events were written
+     */
+    private static int drain(StringBuilder sb) {
+        int n = 0;
+        long t = tail;
+        while(true) {
+            Event e = ring[(int) t & (RING_SIZE - 1)];
+            if(e.sequence != t) break;
+            e.format(sb);
+            e.who = null;
+            e.message = null;
+            e.detail = null;
+            tail = ++t;
+            n++;
+            if(sb.length() >= BATCH_SIZE) write(sb);
+        }
+        if(sb.length() > 0) write(sb);
+        return n;
+    }
+
+    /**
+     * Writes out and empties a buffer of formatted events.
+     * @param sb the formatted events
+     */
+    private static void write(StringBuilder sb) {
+        byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+        sb.setLength(0);
+        LogFile f = file;
+        try {
+            if(f == null) {
+                System.out.write(bytes, 0, bytes.length);
+                System.out.flush();
+            } else {
+                f.write(bytes);
+            }
+        } catch(IOException ex) {
+            System.err.println("log-writer: " + ex);
+        }
+    }
+
+    /**
+     * Waits a little for the writer to write what is left.
+     */
+    private static void close() {
+        closing = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(1000);
+        } catch(InterruptedException ie) {}
+    }
+
+    /**
+     * A slot in the ring
+     */
+    private static class Event {
+        /**
+         * The sequence number of the event in this slot; the slot is
+         * ready to be written when this is the writer's tail
+         */
+        private volatile long sequence;
+
+        /**
+         * The level of the event
+         */
+        private int level;
+
+        /**
+         * When the event happened, in milliseconds
+         */
+        private long time;
+
+        /**
+         * The thread which logged the event
+         */
+        private String thread;
+
+        /**
+         * Who the event is about, or null
+         */
+        private String who;
+
+        /**
+         * What happened
+         */
+        private String message;
+
+        /**
+         * More about it, or null
+         */
+        private Object detail;
+
+        /**
+         * Creates an empty slot.
+         * @param sequence a sequence number which the writer will never
+         * wait for
+         */
+        private Event(long sequence) {
+            this.sequence = sequence;
+        }
+
+        /**
+         * Formats this event as a line.
+         * @param sb where to put the line
+         */
+        private void format(StringBuilder sb) {
+            TIME.formatTo(Instant.ofEpochMilli(time), sb);
+            sb.append(' ').append(LEVELS[level]).append(" [").append(thread)
+                    .append("] ");
+            if(who != null) sb.append(who).append(": ");
+            sb.append(message);
+            if(detail != null) sb.append(' ').append(detail);
+            sb.append(System.lineSeparator());
+        }
+    }
+
+    /**
+     * A log file which is rotated once it gets too big: the file is
+     * renamed with the suffix .1, the one with .1 becomes .2, and so on,
+     * and the oldest is deleted.
+     */
+    private static class LogFile {
+        /**
+         * Where the current file is
+         */
+        private final Path path;
+
+        /**
+         * How big the file may get
+         */
+        private final long maxBytes;
+
+        /**
+         * How many rotated files to keep
+         */
+        private final int files;
+
+        /**
+         * The current file
+         */
+        private OutputStream out;
+
+        /**
+         * How big the current file is
+         */
+        private long size;
+
+        /**
+         * Describes a log file, which is not opened yet.
+         * @param path where the file is
+         * @param maxBytes how big the file may get
+         * @param files how many rotated files to keep
+         */
+        private LogFile(Path path, long maxBytes, int files) {
+            this.path = path;
+            this.maxBytes = maxBytes;
+            this.files = files;
+        }
+
+        /**
+         * Opens the file, appending to it if it is already there.
+         * @throws IOException if the file cannot be opened
+         */
+        private void open() throws IOException {
+            out = new FileOutputStream(path.toFile(), true);
+            size = Files.size(path);
+        }
+
+        /**
+         * Writes to the file, rotating it first if it would get too big.
+         * @param bytes what to write
+         * @throws IOException if writing fails
+         */
+        private void write(byte[] bytes) throws IOException {
+            if(size > 0 && size + bytes.length > maxBytes) rotate();
+            out.write(bytes);
+            size += bytes.length;
+        }
+
+        /**
+         * Moves the current file out of the way and starts a new one.
+         * @throws IOException if the files cannot be moved
+         */
+        private void rotate() throws IOException {
+            out.close();
+            for(int i = files - 1; i >= 1; i--) {
+                Path older = rotated(i);
+                if(Files.exists(older)) {
+                    Files.move(older, rotated(i + 1),
+                            StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            if(files > 0) {
+                Files.move(path, rotated(1),
+                        StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.delete(path);
+            }
+            out = new FileOutputStream(path.toFile(), false);
+            size = 0;
+        }
+
+        /**
+         * Returns where a rotated file is
+         * @param n how many rotations ago it was the current file
+         * @return where the file is
+         */
+        private Path rotated(int n) {
+            return path.resolveSibling(path.getFileName() + "." + n);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package roomserver;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A transport between nodes in the same process.  Every node started with
+ * one is connected to every other, and each node's messages are handed
+ * over by a thread of its own, in order, as they would be over a network.
+ * A process holds only one {@link Cluster}, whose state is static, so the
+ * other nodes are stand-ins driven by hand, as in the benchmarks; it is
+ * not offered on the command line.
+ * @author Jed Wang
+ */
+public class LoopbackTransport implements ClusterTransport, Runnable {
+    /**
+     * Every node started in this process, by number
+     */
+    private static final ConcurrentHashMap<Integer, LoopbackTransport>
+            nodes = new ConcurrentHashMap<>();
+
+    /**
+     * What is waiting to be handed to this node's receiver
+     */
+    private final LinkedBlockingQueue<Runnable> inbox;
+
+    /**
+     * This node's number
+     */
+    private int node;
+
+    /**
+     * Who to tell about other nodes
+     */
+    private Receiver receiver;
+
+    /**
+     * Creates a transport which has not been started.
+     */
+    public LoopbackTransport() {
+        inbox = new LinkedBlockingQueue<>();
+    }
+
+    @Override
+    public void start(int node, Receiver receiver) {
+        this.node = node;
+        this.receiver = receiver;
+        Thread t = new Thread(this, "loopback-" + node);
+        t.setDaemon(true);
+        t.start();
+        LoopbackTransport old = nodes.put(node, this);
+        if(old != null) old.stop();
+        for(LoopbackTransport other : nodes.values()) {
+            if(other == this) continue;
+            other.inbox.add(() -> other.receiver.connected(node));
+            inbox.add(() -> receiver.connected(other.node));
+        }
+    }
+
+    /**
+     * Takes this node out of the process's cluster, telling everybody
+     * else it has gone.
+     */
+    public void stop() {
+        nodes.remove(node, this);
+        for(LoopbackTransport other : nodes.values()) {
+            other.inbox.add(() -> other.receiver.disconnected(node));
+        }
+    }
+
+    @Override
+    public void publish(ByteBuffer message) {
+        for(LoopbackTransport other : nodes.values()) {
+            if(other != this) other.deliver(node, message);
+        }
+    }
+
+    @Override
+    public void send(int to, ByteBuffer message) {
+        LoopbackTransport other = nodes.get(to);
+        if(other != null && other != this) other.deliver(node, message);
+    }
+
+    /**
+     * Queues a message for this node.
+     * @param from the node it is from
+     * @param message the message
+     */
+    private void deliver(int from, ByteBuffer message) {
+        ByteBuffer m = message.duplicate();
+        inbox.add(() -> receiver.received(from, m));
+    }
+
+    @Override
+    public void run() {
+        while(true) {
+            try {
+                inbox.take().run();
+            } catch(InterruptedException ie) {
+                return;
+            } catch(RuntimeException re) {
+                Log.error(null, "cluster message failed", re);
+            }
+        }
+    }
+}
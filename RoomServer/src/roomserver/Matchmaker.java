@@ -0,0 +1,353 @@
+package roomserver;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import roomserver.ClientCommunication.Handler;
+import static roomserver.ClientRegistry.*;
+
+/**
+ * Pairs players who ask for a game with QUEUE, rather than challenging
+ * somebody.  Queuing only puts a ticket on a lock-free intake queue; one
+ * thread, on a fixed tick, takes everything off it into pools of its own,
+ * one for each room, in which tickets are bucketed by rating and kept in
+ * the order they came within a bucket.  Each pass walks every pool once
+ * in rating order and pairs neighbours whose ratings are close enough,
+ * with the same compare-and-set as an accepted CHALLENGE_R, so a player
+ * who is challenged meanwhile is in only one game.  Nothing is shared
+ * but the intake queue and the players' own state words, so however many
+ * players are queued, queuing never waits for the matcher, nor the
+ * matcher for anybody.
+ * <p>
+ * How close is close enough grows the longer a player waits: neighbours
+ * in the same or the next bucket are paired at once, and every second the
+ * older of the two has waited lets them be one bucket further apart.
+ * <p>
+ * A ticket ends without a game if its player leaves the queue, moves to
+ * another room, starts a game some other way, or goes away; a player still
+ * here who did not ask to leave is sent UNQUEUE.  In a cluster, each node
+ * only pairs the players connected to it.
+ * @author Jed Wang
+ */
+final class Matchmaker {
+    /**
+     * How often the matcher runs, in milliseconds, unless told otherwise
+     */
+    public static final int DEFAULT_TICK_MILLIS = 100;
+
+    /**
+     * How many points of rating a bucket holds, unless told otherwise
+     */
+    public static final int DEFAULT_BUCKET_WIDTH = 100;
+
+    /**
+     * The rating of a player who does not give one
+     */
+    public static final int DEFAULT_RATING = 1500;
+
+    /**
+     * The highest rating; higher ones are taken as this
+     */
+    public static final int MAX_RATING = 4000;
+
+    /**
+     * How long a player waits for the matcher to look one bucket further,
+     * in nanoseconds
+     */
+    private static final long WIDEN_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * How many points of rating a bucket holds
+     */
+    private static volatile int bucketWidth = DEFAULT_BUCKET_WIDTH;
+
+    /**
+     * How often the matcher runs, in milliseconds
+     */
+    private static int tickMillis = DEFAULT_TICK_MILLIS;
+
+    /**
+     * Tickets queued since the matcher last ran
+     */
+    private static final ConcurrentLinkedQueue<Ticket> intake =
+            new ConcurrentLinkedQueue<>();
+
+    /**
+     * The tickets waiting to be matched, by room.  Only used by the
+     * matcher.
+     */
+    private static final HashMap<Room, Pool> pools = new HashMap<>();
+
+    /**
+     * How many tickets are waiting to be matched
+     */
+    static final LongAdder queued = new LongAdder();
+
+    /**
+     * How many games the matcher has started
+     */
+    static final LongAdder matches = new LongAdder();
+
+    /**
+     * How long matched players waited, in nanoseconds
+     */
+    static final Histogram waits = new Histogram();
+
+    /**
+     * No instances
+     */
+    private Matchmaker() {
+    }
+
+    /**
+     * Reads <code>--match-tick=MILLIS</code>, how often to match, and
+     * <code>--match-bucket=POINTS</code>, how many points of rating a
+     * bucket holds.
+     * @param options the startup options
+     */
+    public static void configure(ServerOptions options) {
+        bucketWidth = Math.max(1, options.getInt("match-bucket",
+                DEFAULT_BUCKET_WIDTH));
+        tickMillis = Math.max(1, options.getInt("match-tick",
+                DEFAULT_TICK_MILLIS));
+    }
+
+    /**
+     * Starts the matcher.
+     */
+    public static void start() {
+        int tick = tickMillis;
+        ScheduledExecutorService matcher =
+                Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "matchmaker");
+                    t.setDaemon(true);
+                    return t;
+                });
+        matcher.scheduleWithFixedDelay(Matchmaker::pass, tick, tick,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Clamps a rating into the range the buckets cover.
+     * @param rating the rating a client gave
+     * @return the rating, from 0 to MAX_RATING
+     */
+    static int clamp(int rating) {
+        return Math.max(0, Math.min(MAX_RATING, rating));
+    }
+
+    /**
+     * Puts a player in the queue of its room, unless it is already queued.
+     * @param player the player, which is free
+     * @param rating the player's rating
+     * @return whether the player was queued
+     */
+    static boolean queue(Handler player, int rating) {
+        Ticket t = new Ticket(player, clamp(rating), player.room);
+        if(!player.ticket.compareAndSet(null, t)) return false;
+        queued.increment();
+        intake.add(t);
+        return true;
+    }
+
+    /**
+     * Takes a player out of the queue.  The matcher drops its ticket the
+     * next time it comes to it.
+     * @param player the player
+     * @return whether the player was queued
+     */
+    static boolean unqueue(Handler player) {
+        return player.ticket.getAndSet(null) != null;
+    }
+
+    /**
+     * Takes in the tickets queued since the last pass and matches every
+     * pool.  Only called by the matcher, or by tests which never start it.
+     */
+    static void pass() {
+        try {
+            for(Ticket t; (t = intake.poll()) != null;) {
+                pools.computeIfAbsent(t.room, r -> new Pool()).add(t);
+            }
+            long now = System.nanoTime();
+            Iterator<Pool> it = pools.values().iterator();
+            while(it.hasNext()) {
+                Pool p = it.next();
+                p.match(now);
+                if(p.size == 0) it.remove();
+            }
+        } catch(RuntimeException e) {
+            // or the executor would never run the matcher again
+            Log.error(null, "matchmaking failed", e);
+        }
+    }
+
+    /**
+     * Starts a game between two queued players, if both are still free.
+     * @param a one player's ticket
+     * @param b the other player's ticket
+     * @param now the time of this pass
+     * @return whether the two are now in a game with each other
+     */
+    private static boolean pair(Ticket a, Ticket b, long now) {
+        Handler p = a.player, q = b.player;
+        if(!ClientCommunication.registry.pair(p, q)) return false;
+        p.ticket.compareAndSet(a, null);
+        q.ticket.compareAndSet(b, null);
+        queued.add(-2);
+        matches.increment();
+        waits.record(now - a.queuedAt);
+        waits.record(now - b.queuedAt);
+        p.send(Codec.MATCHED, p.codec.encode(Codec.MATCHED, q));
+        q.send(Codec.MATCHED, q.codec.encode(Codec.MATCHED, p));
+        ClientCommunication.broadcastStatus(Codec.BUSY, p, q);
+        return true;
+    }
+
+    /**
+     * Forgets a ticket which will not be matched, and tells its player if
+     * the player is still waiting on it.
+     * @param t the ticket
+     */
+    private static void drop(Ticket t) {
+        queued.decrement();
+        Handler p = t.player;
+        if(p.ticket.compareAndSet(t, null) &&
+                kind(p.state.get()) != CLOSED) {
+            p.send(Codec.UNQUEUE, p.codec.encode(Codec.UNQUEUE));
+        }
+    }
+
+    /**
+     * A player's place in the queue
+     */
+    static final class Ticket {
+        /**
+         * The player
+         */
+        final Handler player;
+
+        /**
+         * The room the player queued in
+         */
+        final Room room;
+
+        /**
+         * The bucket the player's rating falls in
+         */
+        final int bucket;
+
+        /**
+         * When the player queued, as a {@link System#nanoTime()}
+         */
+        final long queuedAt;
+
+        /**
+         * Makes a ticket.
+         * @param player the player
+         * @param rating the player's rating, from 0 to MAX_RATING
+         * @param room the room the player is in
+         */
+        private Ticket(Handler player, int rating, Room room) {
+            this.player = player;
+            this.room = room;
+            bucket = rating / bucketWidth;
+            queuedAt = System.nanoTime();
+        }
+
+        /**
+         * Returns whether this ticket may still be matched: its player has
+         * not left the queue, is free, and is still in the same room
+         * @return whether this ticket may still be matched
+         */
+        boolean isLive() {
+            return player.ticket.get() == this && player.room == room &&
+                    !player.moving && kind(player.state.get()) == FREE;
+        }
+    }
+
+    /**
+     * The tickets of one room, by bucket.  Only used by the matcher.
+     */
+    private static final class Pool {
+        /**
+         * The tickets in each bucket, oldest first
+         */
+        private final ArrayDeque<Ticket>[] buckets;
+
+        /**
+         * How many tickets there are
+         */
+        int size;
+
+        /**
+         * Makes an empty pool.
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Pool() {
+            buckets = new ArrayDeque[MAX_RATING / bucketWidth + 1];
+            for(int i = 0; i < buckets.length; i++) {
+                buckets[i] = new ArrayDeque<>();
+            }
+        }
+
+        /**
+         * Adds a ticket to the back of its bucket.
+         * @param t the ticket
+         */
+        void add(Ticket t) {
+            buckets[t.bucket].add(t);
+            size++;
+        }
+
+        /**
+         * Walks every ticket in rating order, pairing each with the next
+         * one if they are close enough, and dropping those which may no
+         * longer be matched.  Tickets which are not paired go back where
+         * they were, in the same order.
+         * @param now the time of this pass
+         */
+        void match(long now) {
+            Ticket held = null;
+            for(ArrayDeque<Ticket> bucket : buckets) {
+                for(int n = bucket.size(); n > 0; n--) {
+                    Ticket t = bucket.poll();
+                    size--;
+                    if(!t.isLive()) {
+                        drop(t);
+                    } else if(held == null) {
+                        held = t;
+                    } else if(t.bucket - held.bucket <= reach(held, t, now)
+                            && pair(held, t, now)) {
+                        held = null;
+                    } else if(!held.isLive()) {
+                        // challenged meanwhile
+                        drop(held);
+                        held = t;
+                    } else {
+                        add(held);
+                        held = t;
+                    }
+                }
+            }
+            if(held != null) add(held);
+        }
+
+        /**
+         * Returns how many buckets apart two tickets may be to be paired
+         * @param a one ticket
+         * @param b the other ticket
+         * @param now the time of this pass
+         * @return one, plus one for every second the older has waited
+         */
+        private static long reach(Ticket a, Ticket b, long now) {
+            long since = Math.min(a.queuedAt, b.queuedAt);
+            return 1 + (now - since) / WIDEN_NANOS;
+        }
+    }
+}
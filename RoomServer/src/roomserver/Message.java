@@ -0,0 +1,82 @@
+package roomserver;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.function.Function;
+
+/**
+ * A message going to many clients, which may not all use the same codec.
+ * The message is encoded once per codec, the first time a client using
+ * that codec needs it, and the frame is shared from then on.  A message
+ * may be sent from many threads, such as one which is cached for the
+ * life of a player; two threads may then both encode it, and either frame
+ * will do.
+ * @author Jed Wang
+ */
+public class Message {
+    /**
+     * The opcode of the message, for the metrics
+     */
+    final int opcode;
+
+    /**
+     * How many messages the frame holds, for the metrics
+     */
+    final int count;
+
+    /**
+     * Encodes the message with a codec
+     */
+    private final Function<Codec, ByteBuffer> encoder;
+
+    /**
+     * The frames encoded so far, by codec index
+     */
+    private final ByteBuffer[] frames;
+
+    /**
+     * Reads and writes the frames so that a frame is never seen before it
+     * is completely encoded
+     */
+    private static final VarHandle FRAMES =
+            MethodHandles.arrayElementVarHandle(ByteBuffer[].class);
+
+    /**
+     * Creates a new Message.
+     * @param opcode the opcode of the message
+     * @param encoder encodes the message with a codec
+     */
+    public Message(int opcode, Function<Codec, ByteBuffer> encoder) {
+        this(opcode, 1, encoder);
+    }
+
+    /**
+     * Creates a new Message whose frame holds more than one message with
+     * the same opcode.
+     * @param opcode the opcode of the messages
+     * @param count how many messages the frame holds
+     * @param encoder encodes the messages with a codec
+     */
+    public Message(int opcode, int count,
+            Function<Codec, ByteBuffer> encoder) {
+        this.opcode = opcode;
+        this.count = count;
+        this.encoder = encoder;
+        frames = new ByteBuffer[Codec.COUNT];
+    }
+
+    /**
+     * Returns this message encoded with a codec
+     * @param codec the codec to use
+     * @return the frame, which must not be modified
+     */
+    public ByteBuffer frame(Codec codec) {
+        ByteBuffer f = (ByteBuffer) FRAMES.getAcquire(frames, codec.index);
+        if(f == null) {
+            f = encoder.apply(codec);
+            FRAMES.setRelease(frames, codec.index, f);
+        }
+        return f;
+    }
+}
@@ -0,0 +1,158 @@
+package roomserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import roomserver.ClientCommunication.Handler;
+
+/**
+ * One message from a client, seen where it lies in the inbound buffer
+ * rather than copied out into Strings.  Every handler has one, which its
+ * codec points at each message in turn, so decoding a message allocates
+ * nothing; a view is only good until the next message is decoded, and
+ * anything kept for longer must be copied out.
+ * @author Jed Wang
+ */
+final class MessageView {
+    /**
+     * The opcode of the message
+     */
+    int opcode;
+
+    /**
+     * The buffer holding the message
+     */
+    ByteBuffer buffer;
+
+    /**
+     * Where the body starts in the buffer
+     */
+    int start;
+
+    /**
+     * Where the body ends in the buffer
+     */
+    int end;
+
+    /**
+     * Used to look up the players named in messages
+     */
+    private final PlayerName.Probe probe = new PlayerName.Probe();
+
+    /**
+     * Points this view at a message.
+     * @param opcode the opcode of the message
+     * @param buffer the buffer holding the message
+     * @param start where the body starts
+     * @param end where the body ends
+     * @return this view
+     */
+    MessageView of(int opcode, ByteBuffer buffer, int start, int end) {
+        this.opcode = opcode;
+        this.buffer = buffer;
+        this.start = start;
+        this.end = end;
+        return this;
+    }
+
+    /**
+     * Returns how long the body is
+     * @return how long the body is, in bytes
+     */
+    int length() {
+        return end - start;
+    }
+
+    /**
+     * Finds a byte in the body
+     * @param b the byte
+     * @return its index from the start of the body, or -1 if it is not
+     * there
+     */
+    int indexOf(byte b) {
+        for(int i = start; i < end; i++) {
+            if(buffer.get(i) == b) return i - start;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns whether part of the body says "true", ignoring case, the way
+     * {@link Boolean#parseBoolean(String)} would
+     * @param from where the part starts, from the start of the body; it
+     * runs to the end
+     * @return whether it says "true"
+     */
+    boolean isTrue(int from) {
+        if(length() - from != 4) return false;
+        int i = start + from;
+        return (buffer.get(i) | 0x20) == 't' &&
+                (buffer.get(i + 1) | 0x20) == 'r' &&
+                (buffer.get(i + 2) | 0x20) == 'u' &&
+                (buffer.get(i + 3) | 0x20) == 'e';
+    }
+
+    /**
+     * Reads the body as a decimal number, without making a String of it
+     * @param otherwise what to return if the body is not a number
+     * @return the number, or otherwise if the body is empty, has anything
+     * but digits in it, or is too big for an int
+     */
+    int number(int otherwise) {
+        if(length() == 0 || length() > 9) return otherwise;
+        int n = 0;
+        for(int i = start; i < end; i++) {
+            int digit = buffer.get(i) - '0';
+            if(digit < 0 || digit > 9) return otherwise;
+            n = n * 10 + digit;
+        }
+        return n;
+    }
+
+    /**
+     * Finds the player named by part of the body, without making a String
+     * of the name
+     * @param from where the name starts, from the start of the body
+     * @param to where the name ends, from the start of the body
+     * @return the player, or null if nobody has the name
+     */
+    Handler player(int from, int to) {
+        return ClientCommunication.registry.get(
+                probe.of(buffer, start + from, start + to));
+    }
+
+    /**
+     * Copies the body out.
+     * @return the bytes of the body
+     */
+    byte[] bytes() {
+        byte[] b = new byte[length()];
+        buffer.get(start, b);
+        return b;
+    }
+
+    /**
+     * Decodes part of the body as text.
+     * @param from where the text starts, from the start of the body
+     * @param to where the text ends, from the start of the body
+     * @return the text
+     */
+    String text(int from, int to) {
+        byte[] b = new byte[to - from];
+        buffer.get(start + from, b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes the body as text.  For logging and for the rare messages
+     * which need a String, such as a name being submitted.
+     * @return the text
+     */
+    String text() {
+        return text(0, length());
+    }
+
+    @Override
+    public String toString() {
+        return Codec.name(opcode) + " " + text();
+    }
+}
@@ -0,0 +1,644 @@
+package roomserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import roomserver.ClientCommunication.Handler;
+
+/**
+ * What the server has been doing.  Counters are striped LongAdders and
+ * timings are Histograms, so recording never allocates or contends much
+ * and can stay on all the time.  Gauges such as the number of clients are
+ * worked out only when somebody looks.
+ * <p>
+ * The metrics can be read through JMX, and in plain text from a port
+ * which only listens on the loopback address.
+ * @author Jed Wang
+ */
+public final class Metrics {
+    /**
+     * The port to serve the plain-text metrics on, unless told otherwise
+     */
+    public static final int DEFAULT_PORT = 9101;
+
+    /**
+     * The name of the metrics in JMX
+     */
+    public static final String OBJECT_NAME = "roomserver:type=Metrics";
+
+    /**
+     * The port to serve the plain-text metrics on, or 0 for none
+     */
+    private static int port = DEFAULT_PORT;
+
+    /**
+     * How many commands there are, counting 0 for anything not understood
+     */
+    private static final int COMMANDS = Codec.MATCHED + 1;
+
+    /**
+     * How many messages have been received, by opcode
+     */
+    private static final LongAdder[] messagesIn = adders();
+
+    /**
+     * How many bytes have been received, by opcode
+     */
+    private static final LongAdder[] bytesIn = adders();
+
+    /**
+     * How many messages have been queued to be sent, by opcode
+     */
+    private static final LongAdder[] messagesOut = adders();
+
+    /**
+     * How many bytes have been queued to be sent, by opcode
+     */
+    private static final LongAdder[] bytesOut = adders();
+
+    /**
+     * How many connections are open
+     */
+    static final LongAdder connections = new LongAdder();
+
+    /**
+     * How long it takes to put a broadcast on every recipient's queue, in
+     * nanoseconds
+     */
+    static final Histogram broadcastFanout = new Histogram();
+
+    /**
+     * How long in-game frames take from being read to being written to
+     * the opponent, in nanoseconds
+     */
+    static final Histogram relayLatency = new Histogram();
+
+    /**
+     * How long clients take from connecting to having a name, in
+     * nanoseconds
+     */
+    static final Histogram handshake = new Histogram();
+
+    /**
+     * No instances
+     */
+    private Metrics() {
+    }
+
+    /**
+     * Makes an adder for every command.
+     * @return the adders
+     */
+    private static LongAdder[] adders() {
+        LongAdder[] a = new LongAdder[COMMANDS];
+        for(int i = 0; i < COMMANDS; i++) {
+            a[i] = new LongAdder();
+        }
+        return a;
+    }
+
+    /**
+     * Counts a message received.
+     * @param opcode the opcode of the message, or 0 if it was not
+     * understood
+     * @param bytes how long the message was
+     */
+    static void received(int opcode, int bytes) {
+        messagesIn[opcode].increment();
+        bytesIn[opcode].add(bytes);
+    }
+
+    /**
+     * Counts a message queued to be sent.
+     * @param opcode the opcode of the message
+     * @param bytes how long the message was
+     */
+    static void sent(int opcode, int bytes) {
+        sent(opcode, 1, bytes);
+    }
+
+    /**
+     * Counts a frame holding several messages queued to be sent.
+     * @param opcode the opcode of the messages
+     * @param count how many messages the frame holds
+     * @param bytes how long the frame was
+     */
+    static void sent(int opcode, int count, int bytes) {
+        messagesOut[opcode].add(count);
+        bytesOut[opcode].add(bytes);
+    }
+
+    /**
+     * Counts an in-game message relayed without being decoded.
+     * @param opcode the opcode of the message
+     * @param in how long the message was when received
+     * @param out how long the message is when sent
+     */
+    static void relayed(int opcode, int in, int out) {
+        received(opcode, in);
+        sent(opcode, out);
+    }
+
+    /**
+     * Reads <code>--metrics-port</code>, the loopback port to serve the
+     * metrics on in plain text, or 0 for none.
+     * @param options the startup options
+     */
+    public static void configure(ServerOptions options) {
+        port = options.getInt("metrics-port", DEFAULT_PORT);
+    }
+
+    /**
+     * Registers the metrics with JMX and, unless the port is 0, serves
+     * them in plain text on the loopback address.
+     * @throws IOException if the port cannot be listened on
+     */
+    public static void start() throws IOException {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new Bean(), new ObjectName(OBJECT_NAME));
+        } catch(JMException e) {
+            Log.error(null, "cannot register metrics with JMX", e);
+        }
+
+        if(port == 0) return;
+        ServerSocket listener = new ServerSocket(port, 16,
+                InetAddress.getLoopbackAddress());
+        Thread t = new Thread(() -> serve(listener), "metrics");
+        t.setDaemon(true);
+        t.start();
+        Log.info(null, "metrics are on port", port);
+    }
+
+    /**
+     * Answers every connection to the metrics port with the metrics, as an
+     * HTTP response so that scrapers which speak HTTP are happy too.
+     * @param listener the metrics port
+     */
+    private static void serve(ServerSocket listener) {
+        while(true) {
+            try(Socket s = listener.accept()) {
+                s.setSoTimeout(1000);
+                skipRequest(s.getInputStream());
+                OutputStream out = s.getOutputStream();
+                byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                out.write(("HTTP/1.0 200 OK\r\n"
+                        + "Content-Type: text/plain; version=0.0.4\r\n"
+                        + "Content-Length: " + body.length + "\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+                out.write(body);
+            } catch(IOException e) {
+                Log.debug(null, "metrics request failed", e);
+            }
+        }
+    }
+
+    /**
+     * Reads a request up to the blank line which ends its headers, or
+     * until the client stops sending.
+     * @param in the request
+     * @throws IOException if reading fails
+     */
+    private static void skipRequest(InputStream in) throws IOException {
+        int newlines = 0, b;
+        try {
+            while(newlines < 2 && (b = in.read()) >= 0) {
+                if(b == '\n') newlines++;
+                else if(b != '\r') newlines = 0;
+            }
+        } catch(SocketTimeoutException e) {
+            // not HTTP; answer anyway
+        }
+    }
+
+    /**
+     * Returns how many games are being played
+     * @return how many games are being played
+     */
+    static int activeMatches() {
+        int inGame = 0;
+        for(Handler h : ClientCommunication.registry.snapshot()) {
+            if(ClientRegistry.kind(h.state.get()) == ClientRegistry.IN_GAME)
+                inGame++;
+        }
+        return inGame / 2;
+    }
+
+    /**
+     * Returns the name of a command
+     * @param opcode the opcode of the command, or 0
+     * @return the name of the command
+     */
+    private static String command(int opcode) {
+        return opcode == 0 ? "OTHER" : Codec.name(opcode);
+    }
+
+    /**
+     * Returns the metrics in the Prometheus text format.
+     * @return the metrics
+     */
+    public static String scrape() {
+        StringBuilder sb = new StringBuilder(4096);
+        gauge(sb, "roomserver_clients", "Clients with a name",
+                ClientCommunication.registry.size());
+        gauge(sb, "roomserver_connections", "Open connections",
+                connections.sum());
+        gauge(sb, "roomserver_active_matches", "Games being played",
+                activeMatches());
+        gauge(sb, "roomserver_rooms", "Rooms besides the lobby",
+                Room.count());
+        gauge(sb, "roomserver_cluster_remote_players",
+                "Players on other nodes of the cluster",
+                Cluster.remotePlayers());
+        gauge(sb, "roomserver_pending_challenges",
+                "Challenges waiting for an answer", Challenges.pending());
+        gauge(sb, "roomserver_queued_players",
+                "Players waiting in the matchmaking queue",
+                Matchmaker.queued.sum());
+        perCommand(sb, "roomserver_messages_in_total",
+                "Messages received", messagesIn);
+        perCommand(sb, "roomserver_bytes_in_total", "Bytes received",
+                bytesIn);
+        perCommand(sb, "roomserver_messages_out_total",
+                "Messages queued to be sent", messagesOut);
+        perCommand(sb, "roomserver_bytes_out_total",
+                "Bytes queued to be sent", bytesOut);
+        summary(sb, "roomserver_broadcast_fanout_seconds",
+                "Time to queue a broadcast for every recipient",
+                broadcastFanout);
+        summary(sb, "roomserver_relay_latency_seconds",
+                "Time from reading an in-game frame to writing it",
+                relayLatency);
+        summary(sb, "roomserver_handshake_seconds",
+                "Time from connecting to having a name", handshake);
+        summary(sb, "roomserver_queue_wait_seconds",
+                "Time matched players waited in the matchmaking queue",
+                Matchmaker.waits);
+        counter(sb, "roomserver_dropped_chat_total",
+                "Lobby chat messages dropped", Backpressure.droppedChat.sum());
+        counter(sb, "roomserver_coalesced_status_total",
+                "Status updates replaced before being sent",
+                Backpressure.coalescedStatus.sum());
+        counter(sb, "roomserver_slow_disconnects_total",
+                "Clients disconnected for not reading",
+                Backpressure.slowDisconnects.sum());
+        counter(sb, "roomserver_roster_snapshots_total",
+                "Joining clients sent the whole lobby",
+                Roster.snapshots.sum());
+        counter(sb, "roomserver_roster_resyncs_total",
+                "Returning clients sent only what they missed",
+                Roster.resyncs.sum());
+        counter(sb, "roomserver_rooms_created_total", "Rooms made",
+                Room.created.sum());
+        counter(sb, "roomserver_challenges_total", "Challenges passed on",
+                Challenges.made.sum());
+        counter(sb, "roomserver_challenges_refused_total",
+                "Challenges turned away for a busy player or too many "
+                + "waiting", Challenges.refused.sum());
+        counter(sb, "roomserver_challenges_expired_total",
+                "Challenges not answered in time", Challenges.expired.sum());
+        counter(sb, "roomserver_challenges_cancelled_total",
+                "Challenges called off as a player went busy, moved or left",
+                Challenges.cancelled.sum());
+        counter(sb, "roomserver_heartbeats_total",
+                "PINGs sent to quiet clients", Liveness.heartbeats.sum());
+        counter(sb, "roomserver_idle_evictions_total",
+                "Clients disconnected for being quiet too long",
+                Liveness.evictions.sum());
+        counter(sb, "roomserver_matches_total",
+                "Games started by the matchmaking queue",
+                Matchmaker.matches.sum());
+        counter(sb, "roomserver_cluster_messages_out_total",
+                "Messages sent to other nodes", Cluster.sent.sum());
+        counter(sb, "roomserver_cluster_messages_in_total",
+                "Messages received from other nodes", Cluster.received.sum());
+        counter(sb, "roomserver_dropped_log_events_total",
+                "Log events dropped", Log.dropped.sum());
+
+        header(sb, "roomserver_rate_limit_per_second", "gauge",
+                "Commands a client may send a second, or 0 for no limit");
+        for(int c = 0; c < RateLimits.COMMANDS.length; c++) {
+            sb.append("roomserver_rate_limit_per_second{command=\"")
+                    .append(RateLimits.COMMANDS[c]).append("\"} ")
+                    .append(RateLimits.limit(c).perSecond).append('\n');
+        }
+        header(sb, "roomserver_rate_limit_burst", "gauge",
+                "Commands a client may send at once");
+        for(int c = 0; c < RateLimits.COMMANDS.length; c++) {
+            sb.append("roomserver_rate_limit_burst{command=\"")
+                    .append(RateLimits.COMMANDS[c]).append("\"} ")
+                    .append(RateLimits.limit(c).burst).append('\n');
+        }
+        header(sb, "roomserver_rate_limited_total", "counter",
+                "Commands over a rate limit");
+        for(int c = 0; c < RateLimits.COMMANDS.length; c++) {
+            for(int a = 0; a < RateLimits.ACTIONS.length; a++) {
+                long value = RateLimits.limited[c][a].sum();
+                if(value == 0) continue;
+                sb.append("roomserver_rate_limited_total{command=\"")
+                        .append(RateLimits.COMMANDS[c])
+                        .append("\",action=\"")
+                        .append(RateLimits.ACTIONS[a]).append("\"} ")
+                        .append(value).append('\n');
+            }
+        }
+
+        header(sb, "roomserver_queue_depth", "gauge",
+                "Frames waiting to be written to a client");
+        for(Handler h : ClientCommunication.registry.snapshot()) {
+            sb.append("roomserver_queue_depth{client=\"")
+                    .append(escape(h.getClientName())).append("\"} ")
+                    .append(h.out.depth()).append('\n');
+        }
+        header(sb, "roomserver_queue_bytes", "gauge",
+                "Bytes waiting to be written to a client");
+        for(Handler h : ClientCommunication.registry.snapshot()) {
+            sb.append("roomserver_queue_bytes{client=\"")
+                    .append(escape(h.getClientName())).append("\"} ")
+                    .append(h.out.bytes()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes the HELP and TYPE lines of a metric.
+     * @param sb where to write
+     * @param name the name of the metric
+     * @param type counter, gauge or summary
+     * @param help what the metric is
+     */
+    private static void header(StringBuilder sb, String name, String type,
+            String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help)
+                .append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type)
+                .append('\n');
+    }
+
+    /**
+     * Writes a gauge.
+     * @param sb where to write
+     * @param name the name of the metric
+     * @param help what the metric is
+     * @param value the value
+     */
+    private static void gauge(StringBuilder sb, String name, String help,
+            long value) {
+        header(sb, name, "gauge", help);
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Writes a counter.
+     * @param sb where to write
+     * @param name the name of the metric
+     * @param help what the metric is
+     * @param value the value
+     */
+    private static void counter(StringBuilder sb, String name, String help,
+            long value) {
+        header(sb, name, "counter", help);
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Writes a counter for every command which has been counted.
+     * @param sb where to write
+     * @param name the name of the metric
+     * @param help what the metric is
+     * @param adders the counts, by opcode
+     */
+    private static void perCommand(StringBuilder sb, String name,
+            String help, LongAdder[] adders) {
+        header(sb, name, "counter", help);
+        for(int op = 0; op < COMMANDS; op++) {
+            long value = adders[op].sum();
+            if(value == 0) continue;
+            sb.append(name).append("{command=\"").append(command(op))
+                    .append("\"} ").append(value).append('\n');
+        }
+    }
+
+    /**
+     * Writes a histogram of nanoseconds as a summary in seconds.
+     * @param sb where to write
+     * @param name the name of the metric
+     * @param help what the metric is
+     * @param h the histogram
+     */
+    private static void summary(StringBuilder sb, String name, String help,
+            Histogram h) {
+        header(sb, name, "summary", help);
+        double[] quantiles = {0.5, 0.9, 0.99, 0.999};
+        for(double q : quantiles) {
+            sb.append(name).append("{quantile=\"").append(q).append("\"} ")
+                    .append(h.quantile(q) / 1e9).append('\n');
+        }
+        sb.append(name).append("_max ").append(h.max() / 1e9).append('\n');
+        sb.append(name).append("_sum ").append(h.sum() / 1e9).append('\n');
+        sb.append(name).append("_count ").append(h.count()).append('\n');
+    }
+
+    /**
+     * Escapes a label value.
+     * @param s the value
+     * @return the value, with backslashes and quotes escaped
+     */
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    /**
+     * Returns counts by command name
+     * @param adders the counts, by opcode
+     * @return the counts which are not zero, by command name
+     */
+    private static Map<String, Long> byCommand(LongAdder[] adders) {
+        Map<String, Long> m = new TreeMap<>();
+        for(int op = 0; op < COMMANDS; op++) {
+            long value = adders[op].sum();
+            if(value != 0) m.put(command(op), value);
+        }
+        return m;
+    }
+
+    /**
+     * The metrics as an MXBean
+     */
+    private static class Bean implements MetricsMXBean {
+        @Override
+        public int getClients() {
+            return ClientCommunication.registry.size();
+        }
+
+        @Override
+        public long getConnections() {
+            return connections.sum();
+        }
+
+        @Override
+        public int getActiveMatches() {
+            return activeMatches();
+        }
+
+        @Override
+        public Map<String, Long> getMessagesIn() {
+            return byCommand(messagesIn);
+        }
+
+        @Override
+        public Map<String, Long> getBytesIn() {
+            return byCommand(bytesIn);
+        }
+
+        @Override
+        public Map<String, Long> getMessagesOut() {
+            return byCommand(messagesOut);
+        }
+
+        @Override
+        public Map<String, Long> getBytesOut() {
+            return byCommand(bytesOut);
+        }
+
+        @Override
+        public HistogramSummary getBroadcastFanoutNanos() {
+            return new HistogramSummary(broadcastFanout);
+        }
+
+        @Override
+        public HistogramSummary getRelayLatencyNanos() {
+            return new HistogramSummary(relayLatency);
+        }
+
+        @Override
+        public HistogramSummary getHandshakeNanos() {
+            return new HistogramSummary(handshake);
+        }
+
+        @Override
+        public long getDroppedChat() {
+            return Backpressure.droppedChat.sum();
+        }
+
+        @Override
+        public long getCoalescedStatus() {
+            return Backpressure.coalescedStatus.sum();
+        }
+
+        @Override
+        public long getRosterSnapshots() {
+            return Roster.snapshots.sum();
+        }
+
+        @Override
+        public long getRosterResyncs() {
+            return Roster.resyncs.sum();
+        }
+
+        @Override
+        public int getRooms() {
+            return Room.count();
+        }
+
+        @Override
+        public long getRoomsCreated() {
+            return Room.created.sum();
+        }
+
+        @Override
+        public int getRemotePlayers() {
+            return Cluster.remotePlayers();
+        }
+
+        @Override
+        public long getClusterMessagesSent() {
+            return Cluster.sent.sum();
+        }
+
+        @Override
+        public long getClusterMessagesReceived() {
+            return Cluster.received.sum();
+        }
+
+        @Override
+        public int getPendingChallenges() {
+            return Challenges.pending();
+        }
+
+        @Override
+        public long getChallenges() {
+            return Challenges.made.sum();
+        }
+
+        @Override
+        public long getChallengesRefused() {
+            return Challenges.refused.sum();
+        }
+
+        @Override
+        public long getChallengesExpired() {
+            return Challenges.expired.sum();
+        }
+
+        @Override
+        public long getChallengesCancelled() {
+            return Challenges.cancelled.sum();
+        }
+
+        @Override
+        public long getHeartbeats() {
+            return Liveness.heartbeats.sum();
+        }
+
+        @Override
+        public long getIdleEvictions() {
+            return Liveness.evictions.sum();
+        }
+
+        @Override
+        public long getQueuedPlayers() {
+            return Matchmaker.queued.sum();
+        }
+
+        @Override
+        public long getMatches() {
+            return Matchmaker.matches.sum();
+        }
+
+        @Override
+        public HistogramSummary getQueueWaitNanos() {
+            return new HistogramSummary(Matchmaker.waits);
+        }
+
+        @Override
+        public long getSlowDisconnects() {
+            return Backpressure.slowDisconnects.sum();
+        }
+
+        @Override
+        public long getDroppedLogEvents() {
+            return Log.dropped.sum();
+        }
+
+        @Override
+        public Map<String, Integer> getQueueDepths() {
+            Map<String, Integer> m = new TreeMap<>();
+            for(Handler h : ClientCommunication.registry.snapshot()) {
+                m.put(h.getClientName(), h.out.depth());
+            }
+            return m;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package roomserver;
+
+import java.util.Map;
+
+/**
+ * The server's metrics, as seen through JMX under
+ * <code>roomserver:type=Metrics</code>.
+ * @author Jed Wang
+ */
+public interface MetricsMXBean {
+    /**
+     * Returns how many clients have a name
+     * @return how many clients have a name
+     */
+    int getClients();
+
+    /**
+     * Returns how many connections are open, named or not
+     * @return how many connections are open
+     */
+    long getConnections();
+
+    /**
+     * Returns how many games are being played
+     * @return how many games are being played
+     */
+    int getActiveMatches();
+
+    /**
+     * Returns how many messages have been received, by command
+     * @return how many messages have been received, by command
+     */
+    Map<String, Long> getMessagesIn();
+
+    /**
+     * Returns how many bytes have been received, by command
+     * @return how many bytes have been received, by command
+     */
+    Map<String, Long> getBytesIn();
+
+    /**
+     * Returns how many messages have been queued to be sent, by command
+     * @return how many messages have been queued to be sent, by command
+     */
+    Map<String, Long> getMessagesOut();
+
+    /**
+     * Returns how many bytes have been queued to be sent, by command
+     * @return how many bytes have been queued to be sent, by command
+     */
+    Map<String, Long> getBytesOut();
+
+    /**
+     * Returns how long it takes to put a broadcast on every recipient's
+     * queue
+     * @return the broadcast fan-out time, in nanoseconds
+     */
+    HistogramSummary getBroadcastFanoutNanos();
+
+    /**
+     * Returns how long in-game frames take from being read to being
+     * written to the opponent
+     * @return the relay latency, in nanoseconds
+     */
+    HistogramSummary getRelayLatencyNanos();
+
+    /**
+     * Returns how long clients take from connecting to having a name
+     * @return the name handshake duration, in nanoseconds
+     */
+    HistogramSummary getHandshakeNanos();
+
+    /**
+     * Returns how many lobby chat messages were dropped
+     * @return how many lobby chat messages were dropped
+     */
+    long getDroppedChat();
+
+    /**
+     * Returns how many status updates were replaced before being sent
+     * @return how many status updates were replaced before being sent
+     */
+    long getCoalescedStatus();
+
+    /**
+     * Returns how many joining clients were sent the whole lobby
+     * @return how many joining clients were sent the whole lobby
+     */
+    long getRosterSnapshots();
+
+    /**
+     * Returns how many returning clients were sent only what they missed
+     * @return how many returning clients were sent only what they missed
+     */
+    long getRosterResyncs();
+
+    /**
+     * Returns how many rooms there are besides the lobby
+     * @return how many rooms there are besides the lobby
+     */
+    int getRooms();
+
+    /**
+     * Returns how many rooms have been made
+     * @return how many rooms have been made
+     */
+    long getRoomsCreated();
+
+    /**
+     * Returns how many players there are on other nodes of the cluster
+     * @return how many players there are on other nodes of the cluster
+     */
+    int getRemotePlayers();
+
+    /**
+     * Returns how many messages were sent to other nodes
+     * @return how many messages were sent to other nodes
+     */
+    long getClusterMessagesSent();
+
+    /**
+     * Returns how many messages were received from other nodes
+     * @return how many messages were received from other nodes
+     */
+    long getClusterMessagesReceived();
+
+    /**
+     * Returns how many challenges are waiting for an answer
+     * @return how many challenges are waiting for an answer
+     */
+    int getPendingChallenges();
+
+    /**
+     * Returns how many challenges have been passed on
+     * @return how many challenges have been passed on
+     */
+    long getChallenges();
+
+    /**
+     * Returns how many challenges were turned away
+     * @return how many challenges were turned away
+     */
+    long getChallengesRefused();
+
+    /**
+     * Returns how many challenges were not answered in time
+     * @return how many challenges were not answered in time
+     */
+    long getChallengesExpired();
+
+    /**
+     * Returns how many challenges were called off
+     * @return how many challenges were called off
+     */
+    long getChallengesCancelled();
+
+    /**
+     * Returns how many PINGs were sent to quiet clients
+     * @return how many PINGs were sent to quiet clients
+     */
+    long getHeartbeats();
+
+    /**
+     * Returns how many clients were disconnected for being quiet too long
+     * @return how many clients were disconnected for being quiet too long
+     */
+    long getIdleEvictions();
+
+    /**
+     * Returns how many players are waiting in the matchmaking queue
+     * @return how many players are waiting in the matchmaking queue
+     */
+    long getQueuedPlayers();
+
+    /**
+     * Returns how many games the matchmaking queue has started
+     * @return how many games the matchmaking queue has started
+     */
+    long getMatches();
+
+    /**
+     * Returns how long matched players waited in the matchmaking queue
+     * @return how long matched players waited, in nanoseconds
+     */
+    HistogramSummary getQueueWaitNanos();
+
+    /**
+     * Returns how many clients were disconnected for not reading
+     * @return how many clients were disconnected for not reading
+     */
+    long getSlowDisconnects();
+
+    /**
+     * Returns how many log events were dropped
+     * @return how many log events were dropped
+     */
+    long getDroppedLogEvents();
+
+    /**
+     * Returns how many frames are waiting to be written, by client
+     * @return how many frames are waiting to be written, by client
+     */
+    Map<String, Integer> getQueueDepths();
+}
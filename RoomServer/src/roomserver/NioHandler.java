@@ -0,0 +1,158 @@
+package roomserver;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import roomserver.ClientCommunication.Handler;
+
+/**
+ * A Handler for a non-blocking channel which is serviced by an EventLoop.
+ * Reading, decoding and writing all happen on the loop's thread;
+ * other threads may send to this client at any time.
+ * @author Jed Wang
+ */
+public class NioHandler extends Handler {
+    /**
+     * This client's channel
+     */
+    private final SocketChannel channel;
+
+    /**
+     * The loop which services this client
+     */
+    private final EventLoop loop;
+
+    /**
+     * This client's registration with the loop's selector
+     */
+    private SelectionKey key;
+
+    /**
+     * Whether this connection has been closed
+     */
+    private boolean isClosed;
+
+    /**
+     * Lets this client be read from again once a pause is over
+     */
+    private final TimingWheel.Timeout resumer;
+
+    /**
+     * Creates a new NioHandler.
+     * @param channel the non-blocking channel to the client
+     * @param loop the loop which services this client
+     */
+    public NioHandler(SocketChannel channel, EventLoop loop) {
+        this.channel = channel;
+        this.loop = loop;
+        isClosed = false;
+        resumer = new TimingWheel.Timeout() {
+            @Override
+            void expired() {
+                loop.execute(NioHandler.this::resume);
+            }
+        };
+    }
+
+    /**
+     * Called by the loop once the channel is registered with its selector.
+     * @param key the selection key of the channel
+     */
+    void registered(SelectionKey key) {
+        this.key = key;
+        opened();
+    }
+
+    /**
+     * Reads whatever is available and handles every whole message.
+     */
+    void read() {
+        try {
+            if(channel.read(inbound()) < 0) {
+                close();
+                return;
+            }
+            decode();
+        } catch(ProtocolException e) {
+            Log.warn(getClientName(), "protocol error", e.getMessage());
+            close();
+        } catch(IOException e) {
+            Log.debug(getClientName(), "connection lost", e);
+            close();
+        }
+    }
+
+    /**
+     * Handles every whole message read, and stops reading from this
+     * client if it is to be paused.  A client which is being disconnected
+     * is never read from again, but what was queued for it before is
+     * still written.
+     * @throws ProtocolException if the client sent something invalid
+     */
+    private void decode() throws ProtocolException {
+        decodeInbound();
+        if(pause != 0 && !isClosed) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            if(pause != STOPPED) TimingWheel.TIMERS.schedule(resumer, pause);
+        }
+    }
+
+    /**
+     * Reads from this client again after a pause, starting with whatever
+     * was read but not handled before it.
+     */
+    private void resume() {
+        if(isClosed) return;
+        pause = 0;
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        try {
+            decode();
+        } catch(ProtocolException e) {
+            Log.warn(getClientName(), "protocol error", e.getMessage());
+            close();
+        }
+    }
+
+    @Override
+    protected void requestFlush() {
+        loop.execute(this::flush);
+    }
+
+    /**
+     * Writes as much of the queued output as the channel will take.  If
+     * the channel fills up, waits for the selector to say it is writable.
+     */
+    void flush() {
+        if(isClosed || key == null) return;
+        try {
+            int read = pause == 0 ? SelectionKey.OP_READ : 0;
+            if(out.drainTo(channel)) {
+                key.interestOps(read);
+            } else {
+                key.interestOps(read | SelectionKey.OP_WRITE);
+            }
+        } catch(IOException e) {
+            Log.debug(getClientName(), "connection lost", e);
+            close();
+        }
+    }
+
+    @Override
+    protected void disconnect() {
+        loop.execute(this::close);
+    }
+
+    /**
+     * Closes this connection and unregisters the client.
+     */
+    void close() {
+        if(isClosed) return;
+        isClosed = true;
+        if(key != null) key.cancel();
+        try {
+            channel.close();
+        } catch(IOException e) {}
+        closed();
+    }
+}
@@ -0,0 +1,410 @@
+package roomserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import roomserver.RelayBuffers.Chunk;
+
+/**
+ * The frames waiting to be written to one client.  Any thread may offer
+ * frames; a single writer at a time drains them, handing as many as it can
+ * to the channel in one gathering write.
+ * <p>
+ * Frames are read-only buffers which may be shared by many queues; each
+ * queue only ever writes through its own duplicate.  The exception is
+ * relay chunks, which belong to just this queue and are given back to
+ * {@link RelayBuffers} once written.  How much a queue holds is limited
+ * by the {@link Backpressure} policy.
+ * @author Jed Wang
+ */
+public class OutboundQueue {
+    /**
+     * A frame which must be delivered
+     */
+    public static final int CONTROL = 0;
+
+    /**
+     * A lobby chat message, which may be dropped
+     */
+    public static final int CHAT = 1;
+
+    /**
+     * A BUSY or FREE update about a player, which may be replaced by a
+     * later one about the same player
+     */
+    public static final int STATUS = 2;
+
+    /**
+     * A NEWCLIENT or REMOVECLIENT about a player, which must be delivered
+     * and must not be overtaken by that player's status
+     */
+    public static final int PRESENCE = 3;
+
+    /**
+     * BUSY or FREE updates about both players of a game in one frame.
+     * These are never replaced, and neither player's status may be updated
+     * past one.
+     */
+    public static final int PAIR_STATUS = 4;
+
+    /**
+     * What {@link #offer(ByteBuffer, int, String)} returns when the frame
+     * was queued (or merged into one already queued)
+     */
+    public static final int QUEUED = 0;
+
+    /**
+     * What {@link #offer(ByteBuffer, int, String)} returns when the frame
+     * was thrown away because the client is behind
+     */
+    public static final int DROPPED = 1;
+
+    /**
+     * What {@link #offer(ByteBuffer, int, String)} returns when the client
+     * is so far behind that it should be disconnected
+     */
+    public static final int OVERFLOW = 2;
+
+    /**
+     * The most frames handed to the channel in one write
+     */
+    private static final int MAX_GATHER = 64;
+
+    /**
+     * Frames and status slots offered and not yet taken by the writer
+     */
+    private final Queue<Object> entries;
+
+    /**
+     * The status slots still in the queue, by player
+     */
+    private final ConcurrentHashMap<String, StatusSlot> statusSlots;
+
+    /**
+     * How many frames have been offered and not completely written
+     */
+    private final AtomicInteger depth;
+
+    /**
+     * How many bytes have been offered and not written
+     */
+    private final AtomicLong bytes;
+
+    /**
+     * When this queue last went above the high-water mark, or 0 if it is
+     * below it
+     */
+    private final AtomicLong aboveSince;
+
+    /**
+     * Whether a flush has been scheduled or is running
+     */
+    private final AtomicBoolean scheduled;
+
+    /**
+     * Frames taken by the writer, in order; only touched by the writer
+     */
+    private final ByteBuffer[] pending;
+
+    /**
+     * The relay chunks which the pending frames belong to, if any
+     */
+    private final Chunk[] pendingChunks;
+
+    /**
+     * How many of the pending frames are in use
+     */
+    private int pendingCount;
+
+    /**
+     * Whether the connection is gone and frames should be thrown away
+     */
+    private volatile boolean isClosed;
+
+    /**
+     * Creates an empty queue.
+     */
+    public OutboundQueue() {
+        entries = new ConcurrentLinkedQueue<>();
+        statusSlots = new ConcurrentHashMap<>();
+        depth = new AtomicInteger(0);
+        bytes = new AtomicLong(0);
+        aboveSince = new AtomicLong(0);
+        scheduled = new AtomicBoolean(false);
+        pending = new ByteBuffer[MAX_GATHER];
+        pendingChunks = new Chunk[MAX_GATHER];
+        pendingCount = 0;
+        isClosed = false;
+    }
+
+    /**
+     * Adds a frame to the end of this queue, unless the policy says
+     * otherwise.
+     * @param frame the frame to add; it is not modified
+     * @param kind what sort of frame it is: CONTROL, CHAT, STATUS or
+     * PRESENCE
+     * @param player for STATUS and PRESENCE, the player it is about
+     * @return QUEUED, DROPPED or OVERFLOW
+     */
+    public int offer(ByteBuffer frame, int kind, String player) {
+        return offer(frame, kind, player, null);
+    }
+
+    /**
+     * Adds a frame to the end of this queue, unless the policy says
+     * otherwise.
+     * @param frame the frame to add; it is not modified
+     * @param kind what sort of frame it is: CONTROL, CHAT, STATUS,
+     * PRESENCE or PAIR_STATUS
+     * @param player for STATUS, PRESENCE and PAIR_STATUS, the player it is
+     * about
+     * @param other for PAIR_STATUS, the other player it is about
+     * @return QUEUED, DROPPED or OVERFLOW
+     */
+    public int offer(ByteBuffer frame, int kind, String player,
+            String other) {
+        if(isClosed) return QUEUED;
+        Backpressure policy = Backpressure.policy();
+        long queued = bytes.get();
+        if(kind == CHAT && queued > policy.chatLimit) {
+            Backpressure.droppedChat.increment();
+            return DROPPED;
+        }
+        if(queued + frame.remaining() > policy.hardLimit) return OVERFLOW;
+
+        if(kind == STATUS) {
+            StatusSlot slot = statusSlots.get(player);
+            if(slot != null) {
+                ByteBuffer older = slot.replace(frame);
+                if(older != null) {
+                    bytes.addAndGet(frame.remaining() - older.remaining());
+                    Backpressure.coalescedStatus.increment();
+                    return QUEUED;
+                }
+            }
+            slot = new StatusSlot(player, frame);
+            statusSlots.put(player, slot);
+            added(frame, policy);
+            entries.add(slot);
+        } else {
+            // the players' earlier statuses must not be updated past this
+            if(kind == PRESENCE || kind == PAIR_STATUS)
+                statusSlots.remove(player);
+            if(kind == PAIR_STATUS) statusSlots.remove(other);
+            added(frame, policy);
+            entries.add(frame);
+        }
+        return QUEUED;
+    }
+
+    /**
+     * Adds a relay chunk to the end of this queue.  The chunk belongs to
+     * this queue from now on, whatever happens to it.
+     * @param chunk the chunk, ready to be written
+     * @return QUEUED or OVERFLOW
+     */
+    public int offer(Chunk chunk) {
+        Backpressure policy = Backpressure.policy();
+        ByteBuffer frame = chunk.buffer;
+        if(isClosed || bytes.get() + frame.remaining() > policy.hardLimit) {
+            RelayBuffers.release(chunk);
+            return isClosed ? QUEUED : OVERFLOW;
+        }
+        added(frame, policy);
+        entries.add(chunk);
+        return QUEUED;
+    }
+
+    /**
+     * Counts a frame which is about to be queued.
+     * @param frame the frame
+     * @param policy the policy in force
+     */
+    private void added(ByteBuffer frame, Backpressure policy) {
+        depth.incrementAndGet();
+        if(bytes.addAndGet(frame.remaining()) > policy.highWater) {
+            aboveSince.compareAndSet(0, System.nanoTime());
+        }
+    }
+
+    /**
+     * Claims the right to schedule a flush.  Whoever gets true must make
+     * sure that {@link #drainTo(GatheringByteChannel)} gets called; until
+     * it returns true, nobody else will get true.
+     * @return whether a flush should be scheduled
+     */
+    public boolean claim() {
+        return !isClosed && scheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * Writes as many frames as the channel will take.  Must only be called
+     * after a successful {@link #claim()}, which makes sure only one thread
+     * at a time writes.  If this returns false the claim is kept, and this
+     * should be called again once the channel can take more.
+     * @param channel the channel to write to
+     * @return true if everything was written, false if the channel is full
+     * @throws IOException if the write fails
+     */
+    public boolean drainTo(GatheringByteChannel channel) throws IOException {
+        while(true) {
+            if(!writePending(channel)) return false;
+            scheduled.set(false);
+            // something may have been offered after the last poll, by a
+            // sender which saw that a flush was already scheduled
+            if(entries.isEmpty() || !scheduled.compareAndSet(false, true))
+                return true;
+        }
+    }
+
+    /**
+     * Writes frames until there are none left or the channel is full.
+     * @param channel the channel to write to
+     * @return true if everything was written, false if the channel is full
+     * @throws IOException if the write fails
+     */
+    private boolean writePending(GatheringByteChannel channel)
+            throws IOException {
+        while(!isClosed) {
+            while(pendingCount < pending.length) {
+                Object e = entries.poll();
+                if(e == null) break;
+                if(e instanceof StatusSlot) {
+                    StatusSlot slot = (StatusSlot) e;
+                    statusSlots.remove(slot.player, slot);
+                    pending[pendingCount++] = slot.take().duplicate();
+                } else if(e instanceof Chunk) {
+                    Chunk chunk = (Chunk) e;
+                    pendingChunks[pendingCount] = chunk;
+                    pending[pendingCount++] = chunk.buffer;
+                } else {
+                    pending[pendingCount++] = ((ByteBuffer) e).duplicate();
+                }
+            }
+            if(pendingCount == 0) return true;
+
+            long written = channel.write(pending, 0, pendingCount);
+
+            int done = 0;
+            while(done < pendingCount && !pending[done].hasRemaining()) {
+                Chunk chunk = pendingChunks[done++];
+                if(chunk != null) {
+                    Metrics.relayLatency.record(System.nanoTime() -
+                            chunk.readAt);
+                    RelayBuffers.release(chunk);
+                }
+            }
+            System.arraycopy(pending, done, pending, 0, pendingCount - done);
+            System.arraycopy(pendingChunks, done, pendingChunks, 0,
+                    pendingCount - done);
+            for(int i = pendingCount - done; i < pendingCount; i++) {
+                pending[i] = null;
+                pendingChunks[i] = null;
+            }
+            pendingCount -= done;
+            depth.addAndGet(-done);
+            if(bytes.addAndGet(-written) <= Backpressure.policy().highWater) {
+                aboveSince.set(0);
+            }
+            if(pendingCount > 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns how many frames are waiting to be written
+     * @return how many frames are waiting to be written
+     */
+    public int depth() {
+        return depth.get();
+    }
+
+    /**
+     * Returns how many bytes are waiting to be written
+     * @return how many bytes are waiting to be written
+     */
+    public long bytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Returns when this queue went above the high-water mark, as a
+     * {@link System#nanoTime()}
+     * @return when this queue went above the high-water mark, or 0 if it is
+     * below it
+     */
+    public long aboveHighWaterSince() {
+        return aboveSince.get();
+    }
+
+    /**
+     * Throws away everything queued and refuses everything offered from
+     * now on.
+     */
+    public void close() {
+        isClosed = true;
+        Object e;
+        while((e = entries.poll()) != null) {
+            if(e instanceof Chunk) RelayBuffers.release((Chunk) e);
+        }
+        statusSlots.clear();
+        depth.set(0);
+        bytes.set(0);
+        aboveSince.set(0);
+    }
+
+    /**
+     * A place in the queue holding the latest status of one player.  Later
+     * statuses replace the frame in the slot until the writer takes it.
+     */
+    private static class StatusSlot {
+        /**
+         * The player the status is about
+         */
+        private final String player;
+
+        /**
+         * The latest status frame, or null once the writer has taken it
+         */
+        private final AtomicReference<ByteBuffer> frame;
+
+        /**
+         * Creates a new slot.
+         * @param player the player the status is about
+         * @param frame the status frame
+         */
+        private StatusSlot(String player, ByteBuffer frame) {
+            this.player = player;
+            this.frame = new AtomicReference<>(frame);
+        }
+
+        /**
+         * Replaces the status in this slot, unless it has been taken.
+         * @param newer the newer status frame
+         * @return the status replaced, or null if the slot has been taken
+         */
+        private ByteBuffer replace(ByteBuffer newer) {
+            ByteBuffer older;
+            do {
+                older = frame.get();
+                if(older == null) return null;
+            } while(!frame.compareAndSet(older, newer));
+            return older;
+        }
+
+        /**
+         * Takes the status out of this slot for writing.
+         * @return the latest status frame
+         */
+        private ByteBuffer take() {
+            return frame.getAndSet(null);
+        }
+    }
+}
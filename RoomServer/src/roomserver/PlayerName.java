@@ -0,0 +1,140 @@
+package roomserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A player's name, kept both as a String and as the UTF-8 bytes which
+ * every codec puts on the wire.  The registry indexes players by these, so
+ * a name read off the wire can be looked up with a {@link Probe} over the
+ * bytes where they lie, without making a String of them.
+ * @author Jed Wang
+ */
+public final class PlayerName {
+    /**
+     * The name
+     */
+    private final String string;
+
+    /**
+     * The name in UTF-8
+     */
+    final byte[] utf8;
+
+    /**
+     * The hash of the UTF-8 bytes
+     */
+    private final int hash;
+
+    /**
+     * Creates a name.
+     * @param string the name
+     */
+    public PlayerName(String string) {
+        this.string = string;
+        utf8 = string.getBytes(StandardCharsets.UTF_8);
+        hash = hash(ByteBuffer.wrap(utf8), 0, utf8.length);
+    }
+
+    /**
+     * Hashes some bytes, the same way however they are held.
+     * @param in the buffer holding the bytes
+     * @param from where the bytes start
+     * @param to where the bytes end
+     * @return the hash
+     */
+    private static int hash(ByteBuffer in, int from, int to) {
+        int h = 1;
+        for(int i = from; i < to; i++) {
+            h = 31 * h + in.get(i);
+        }
+        return h;
+    }
+
+    /**
+     * Returns whether some bytes are this name.
+     * @param in the buffer holding the bytes
+     * @param from where the bytes start
+     * @param to where the bytes end
+     * @return whether the bytes are this name
+     */
+    private boolean matches(ByteBuffer in, int from, int to) {
+        if(to - from != utf8.length) return false;
+        for(int i = 0; i < utf8.length; i++) {
+            if(in.get(from + i) != utf8[i]) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof PlayerName &&
+                Arrays.equals(utf8, ((PlayerName) o).utf8);
+    }
+
+    @Override
+    public String toString() {
+        return string;
+    }
+
+    /**
+     * A name being looked up, as a range of bytes in a buffer.  A probe
+     * hashes the same as, and is equal to, the PlayerName with the same
+     * bytes, so it can be handed to a map keyed by PlayerName.  It is
+     * meant to be reused, and must not be stored in a map.
+     */
+    static final class Probe {
+        /**
+         * The buffer holding the bytes
+         */
+        private ByteBuffer in;
+
+        /**
+         * Where the bytes start
+         */
+        private int from;
+
+        /**
+         * Where the bytes end
+         */
+        private int to;
+
+        /**
+         * The hash of the bytes
+         */
+        private int hash;
+
+        /**
+         * Points this probe at some bytes.
+         * @param in the buffer holding the bytes, which must not change
+         * while the probe is in use
+         * @param from where the bytes start
+         * @param to where the bytes end
+         * @return this probe
+         */
+        Probe of(ByteBuffer in, int from, int to) {
+            this.in = in;
+            this.from = from;
+            this.to = to;
+            hash = hash(in, from, to);
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof PlayerName &&
+                    ((PlayerName) o).matches(in, from, to);
+        }
+    }
+}
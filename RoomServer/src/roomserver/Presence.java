@@ -0,0 +1,71 @@
+package roomserver;
+
+import java.nio.ByteBuffer;
+import roomserver.ClientCommunication.Handler;
+import static roomserver.Codec.*;
+
+/**
+ * The presence messages about one player: how the player is listed to
+ * clients who join after it, and its BUSY and FREE, for clients which do
+ * not take ROSTER frames.  They never change, so each is encoded at most
+ * once per codec for the life of the player, and the frames are shared by
+ * every recipient from then on.
+ * @author Jed Wang
+ */
+final class Presence {
+    /**
+     * NEWCLIENT, for clients who join later
+     */
+    final Message listed;
+
+    /**
+     * BUSY
+     */
+    final Message busy;
+
+    /**
+     * FREE
+     */
+    final Message free;
+
+    /**
+     * Creates the presence messages about a player.
+     * @param player the player, who must have a name
+     */
+    Presence(Handler player) {
+        listed = new Message(NEWCLIENT, c -> c.newClient(player, false));
+        busy = new Message(BUSY, c -> c.encode(BUSY, player));
+        free = new Message(FREE, c -> c.encode(FREE, player));
+    }
+
+    /**
+     * Returns BUSY or FREE
+     * @param opcode BUSY or FREE
+     * @return the message
+     */
+    Message status(int opcode) {
+        return opcode == BUSY ? busy : free;
+    }
+
+    /**
+     * Makes one message out of the same status of two players, such as
+     * both players of a game becoming busy.  The frame is the two frames
+     * one after the other, so clients read it as two messages.
+     * @param opcode BUSY or FREE
+     * @param a one player
+     * @param b the other player
+     * @return the message
+     */
+    static Message pair(int opcode, Handler a, Handler b) {
+        Message first = a.presence.status(opcode),
+                second = b.presence.status(opcode);
+        return new Message(opcode, 2, c -> {
+            ByteBuffer x = first.frame(c), y = second.frame(c);
+            ByteBuffer f = ByteBuffer.allocate(x.remaining() +
+                    y.remaining());
+            copy(f, x, x.position(), x.limit());
+            copy(f, y, y.position(), y.limit());
+            return f.flip().asReadOnlyBuffer();
+        });
+    }
+}
@@ -0,0 +1,398 @@
+package roomserver;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import roomserver.ClientCommunication.Handler;
+
+/**
+ * How fast each client may send each sort of command: chat (NLM),
+ * challenges (CHALLENGE_C), in-game moves and PING.  Each client has a
+ * token bucket for each sort, which refills at a steady rate up to a
+ * burst.  A bucket is kept as a single number, the time at which it will
+ * be full again, which is only ever touched by the thread servicing the
+ * client, so spending a token is a little arithmetic on one long: no
+ * lock, no atomic and no allocation, and no timer to refill it.
+ * <p>
+ * What happens to a client over a limit is up to the limit:
+ * <ul>
+ * <li>throttle: the command is handled, but the client is not read from
+ * again until it is back within the limit, so TCP slows it down</li>
+ * <li>drop: the command is ignored</li>
+ * <li>disconnect: the client is disconnected</li>
+ * </ul>
+ * Limits are written <code>RATE/BURST/ACTION</code>, such as
+ * <code>5/20/drop</code> for five a second in bursts of up to twenty, or
+ * <code>off</code>.  They are read from the startup options and may be
+ * changed while the server runs, through JMX under
+ * <code>roomserver:type=RateLimits</code>; a change applies to every
+ * client at once.
+ * @author Jed Wang
+ */
+final class RateLimits {
+    /**
+     * The name of the limits in JMX
+     */
+    public static final String OBJECT_NAME = "roomserver:type=RateLimits";
+
+    /**
+     * The sorts of command which are limited, as indices
+     */
+    static final int CHAT = 0, CHALLENGE = 1, MOVE = 2, PING = 3;
+
+    /**
+     * What happens to a client over a limit
+     */
+    static final int THROTTLE = 0, DROP = 1, DISCONNECT = 2;
+
+    /**
+     * The names of the sorts of command, by index, as used in the options
+     * and the metrics
+     */
+    static final String[] COMMANDS =
+            {"chat", "challenge", "move", "ping"};
+
+    /**
+     * The names of the actions, by value
+     */
+    static final String[] ACTIONS =
+            {"throttle", "drop", "disconnect"};
+
+    /**
+     * The limits unless told otherwise, by sort of command.  Moves are
+     * throttled rather than dropped, as a game is spoiled by a lost move.
+     */
+    private static final String[] DEFAULTS =
+            {"5/20/drop", "2/10/drop", "60/120/throttle", "2/10/drop"};
+
+    /**
+     * The limits in force, by sort of command.  Replaced whole, never
+     * changed.
+     */
+    private static volatile Limit[] limits = parseAll(DEFAULTS);
+
+    /**
+     * How many commands were over a limit, by sort of command and action
+     */
+    static final LongAdder[][] limited =
+            new LongAdder[COMMANDS.length][ACTIONS.length];
+
+    static {
+        for(LongAdder[] byAction : limited) {
+            for(int a = 0; a < byAction.length; a++) {
+                byAction[a] = new LongAdder();
+            }
+        }
+    }
+
+    /**
+     * No instances
+     */
+    private RateLimits() {
+    }
+
+    /**
+     * Reads the limits from <code>--rate-chat</code>,
+     * <code>--rate-challenge</code>, <code>--rate-move</code> and
+     * <code>--rate-ping</code>, puts them in force, and registers them
+     * with JMX.
+     * @param options the startup options
+     */
+    public static void configure(ServerOptions options) {
+        String[] specs = new String[COMMANDS.length];
+        for(int c = 0; c < specs.length; c++) {
+            specs[c] = options.get("rate-" + COMMANDS[c], DEFAULTS[c]);
+        }
+        limits = parseAll(specs);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new Bean(), new ObjectName(OBJECT_NAME));
+        } catch(JMException e) {
+            Log.error(null, "cannot register rate limits with JMX", e);
+        }
+    }
+
+    /**
+     * Parses a limit for every sort of command.
+     * @param specs the limits, by sort of command
+     * @return the limits
+     */
+    private static Limit[] parseAll(String[] specs) {
+        Limit[] parsed = new Limit[specs.length];
+        for(int c = 0; c < specs.length; c++) {
+            parsed[c] = Limit.parse(specs[c]);
+        }
+        return parsed;
+    }
+
+    /**
+     * Returns the limit on a sort of command
+     * @param command CHAT, CHALLENGE, MOVE or PING
+     * @return the limit, as <code>RATE/BURST/ACTION</code> or
+     * <code>off</code>
+     */
+    static String get(int command) {
+        return limits[command].toString();
+    }
+
+    /**
+     * Changes the limit on a sort of command.
+     * @param command CHAT, CHALLENGE, MOVE or PING
+     * @param spec the limit, as <code>RATE/BURST/ACTION</code> or
+     * <code>off</code>
+     * @throws IllegalArgumentException if the limit makes no sense
+     */
+    static synchronized void set(int command, String spec) {
+        Limit l = Limit.parse(spec);
+        Limit[] changed = limits.clone();
+        changed[command] = l;
+        limits = changed;
+        Log.info(null, COMMANDS[command] + " rate limit is now", l);
+    }
+
+    /**
+     * Returns how many commands were over a limit
+     * @return the counts which are not zero, as
+     * <code>command/action</code>
+     */
+    static Map<String, Long> limited() {
+        Map<String, Long> m = new TreeMap<>();
+        for(int c = 0; c < COMMANDS.length; c++) {
+            for(int a = 0; a < ACTIONS.length; a++) {
+                long value = limited[c][a].sum();
+                if(value != 0) m.put(COMMANDS[c] + "/" + ACTIONS[a], value);
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Returns the limit in force on a sort of command
+     * @param command CHAT, CHALLENGE, MOVE or PING
+     * @return the limit
+     */
+    static Limit limit(int command) {
+        return limits[command];
+    }
+
+    /**
+     * A limit on one sort of command
+     */
+    static final class Limit {
+        /**
+         * How many commands may be sent a second, or 0 for no limit
+         */
+        final double perSecond;
+
+        /**
+         * How many commands may be sent at once
+         */
+        final int burst;
+
+        /**
+         * THROTTLE, DROP or DISCONNECT
+         */
+        final int action;
+
+        /**
+         * How long a token takes to come back, in nanoseconds, or 0 for
+         * no limit
+         */
+        final long interval;
+
+        /**
+         * How long a bucket takes to fill from empty, in nanoseconds
+         */
+        final long tolerance;
+
+        /**
+         * Makes a limit.
+         * @param perSecond how many commands may be sent a second, or 0
+         * for no limit
+         * @param burst how many commands may be sent at once
+         * @param action THROTTLE, DROP or DISCONNECT
+         */
+        Limit(double perSecond, int burst, int action) {
+            this.perSecond = perSecond;
+            this.burst = burst;
+            this.action = action;
+            interval = perSecond == 0 ? 0 : (long) (1e9 / perSecond);
+            tolerance = interval * burst;
+        }
+
+        /**
+         * Parses a limit.
+         * @param spec <code>RATE/BURST/ACTION</code>, or <code>off</code>;
+         * the burst defaults to one second's worth, and the action to drop
+         * @return the limit
+         * @throws IllegalArgumentException if the limit makes no sense
+         */
+        static Limit parse(String spec) {
+            if(spec.trim().equalsIgnoreCase("off")) {
+                return new Limit(0, 0, DROP);
+            }
+            String[] parts = spec.trim().split("/");
+            if(parts.length > 3)
+                throw new IllegalArgumentException("bad rate limit " + spec);
+            double perSecond = Double.parseDouble(parts[0]);
+            int burst = parts.length > 1 ? Integer.parseInt(parts[1]) :
+                    (int) Math.ceil(perSecond);
+            int action = DROP;
+            if(parts.length > 2) {
+                action = -1;
+                for(int a = 0; a < ACTIONS.length; a++) {
+                    if(ACTIONS[a].equalsIgnoreCase(parts[2])) action = a;
+                }
+            }
+            if(!(perSecond > 0 && perSecond <= 1e9) || burst < 1 ||
+                    action < 0)
+                throw new IllegalArgumentException("bad rate limit " + spec);
+            return new Limit(perSecond, burst, action);
+        }
+
+        @Override
+        public String toString() {
+            if(interval == 0) return "off";
+            return perSecond + "/" + burst + "/" + ACTIONS[action];
+        }
+    }
+
+    /**
+     * One client's buckets.  Only used by the thread servicing the client.
+     */
+    static final class Buckets {
+        /**
+         * When each bucket will be full again, as a
+         * {@link System#nanoTime()}, by sort of command
+         */
+        private final long[] fullAt;
+
+        /**
+         * Makes full buckets.
+         */
+        Buckets() {
+            fullAt = new long[COMMANDS.length];
+            Arrays.fill(fullAt, Long.MIN_VALUE);
+        }
+
+        /**
+         * Spends a token on a command, and deals with the client if there
+         * is none to spend.
+         * @param h the client
+         * @param command CHAT, CHALLENGE, MOVE or PING
+         * @return whether to handle the command
+         */
+        boolean allow(Handler h, int command) {
+            Limit l = limits[command];
+            if(l.interval == 0) return true;
+            long now = System.nanoTime();
+            long full = Math.max(fullAt[command], now) + l.interval;
+            long over = full - now - l.tolerance;
+            if(over <= 0) {
+                fullAt[command] = full;
+                return true;
+            }
+            limited[command][l.action].increment();
+            switch(l.action) {
+                case THROTTLE:
+                    // handled now, paid for by waiting
+                    fullAt[command] = full;
+                    Log.debug(h.getClientName(), "throttled over the limit",
+                            COMMANDS[command]);
+                    h.pause(over);
+                    return true;
+                case DROP:
+                    Log.debug(h.getClientName(), "dropped over the limit",
+                            COMMANDS[command]);
+                    return false;
+                default:
+                    Log.warn(h.getClientName(),
+                            "disconnected over the limit", COMMANDS[command]);
+                    h.pause(Handler.STOPPED);
+                    h.disconnect();
+                    return false;
+            }
+        }
+
+        /**
+         * Returns how many tokens may be spent on a sort of command now
+         * without going over its limit
+         * @param command CHAT, CHALLENGE, MOVE or PING
+         * @param now the time, as a {@link System#nanoTime()}
+         * @return how many tokens are left
+         */
+        int available(int command, long now) {
+            Limit l = limits[command];
+            if(l.interval == 0) return Integer.MAX_VALUE;
+            long left = now + l.tolerance - Math.max(fullAt[command], now);
+            return (int) Math.max(0, left / l.interval);
+        }
+
+        /**
+         * Spends tokens which {@link #available(int, long)} said were
+         * there.
+         * @param command CHAT, CHALLENGE, MOVE or PING
+         * @param n how many tokens
+         * @param now the time they were counted at
+         */
+        void spend(int command, int n, long now) {
+            Limit l = limits[command];
+            fullAt[command] = Math.max(fullAt[command], now) +
+                    n * l.interval;
+        }
+    }
+
+    /**
+     * The limits as an MXBean
+     */
+    private static class Bean implements RateLimitsMXBean {
+        @Override
+        public String getChat() {
+            return get(CHAT);
+        }
+
+        @Override
+        public void setChat(String limit) {
+            set(CHAT, limit);
+        }
+
+        @Override
+        public String getChallenge() {
+            return get(CHALLENGE);
+        }
+
+        @Override
+        public void setChallenge(String limit) {
+            set(CHALLENGE, limit);
+        }
+
+        @Override
+        public String getMove() {
+            return get(MOVE);
+        }
+
+        @Override
+        public void setMove(String limit) {
+            set(MOVE, limit);
+        }
+
+        @Override
+        public String getPing() {
+            return get(PING);
+        }
+
+        @Override
+        public void setPing(String limit) {
+            set(PING, limit);
+        }
+
+        @Override
+        public Map<String, Long> getLimited() {
+            return limited();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package roomserver;
+
+import java.util.Map;
+
+/**
+ * The rate limits on clients, as seen and changed through JMX under
+ * <code>roomserver:type=RateLimits</code>.  Each limit is written
+ * <code>RATE/BURST/ACTION</code>, where the action is throttle, drop or
+ * disconnect, or <code>off</code>; see RateLimits.
+ * @author Jed Wang
+ */
+public interface RateLimitsMXBean {
+    /**
+     * Returns the limit on lobby chat
+     * @return the limit on lobby chat
+     */
+    String getChat();
+
+    /**
+     * Changes the limit on lobby chat.
+     * @param limit the new limit
+     */
+    void setChat(String limit);
+
+    /**
+     * Returns the limit on challenges
+     * @return the limit on challenges
+     */
+    String getChallenge();
+
+    /**
+     * Changes the limit on challenges.
+     * @param limit the new limit
+     */
+    void setChallenge(String limit);
+
+    /**
+     * Returns the limit on in-game moves
+     * @return the limit on in-game moves
+     */
+    String getMove();
+
+    /**
+     * Changes the limit on in-game moves.
+     * @param limit the new limit
+     */
+    void setMove(String limit);
+
+    /**
+     * Returns the limit on PING
+     * @return the limit on PING
+     */
+    String getPing();
+
+    /**
+     * Changes the limit on PING.
+     * @param limit the new limit
+     */
+    void setPing(String limit);
+
+    /**
+     * Returns how many commands were over a limit, by sort of command and
+     * what was done about it
+     * @return the counts, as <code>command/action</code>
+     */
+    Map<String, Long> getLimited();
+}
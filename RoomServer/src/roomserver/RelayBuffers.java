@@ -0,0 +1,89 @@
+package roomserver;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of chunks, the direct buffers which carry in-game frames from one
+ * player's inbound buffer to the opponent's outbound queue.  A chunk is
+ * taken by the reader, filled with as many frames as it holds, handed to
+ * the opponent's queue, and given back once it has been written.
+ * @author Jed Wang
+ */
+public final class RelayBuffers {
+    /**
+     * How big a chunk is, in bytes
+     */
+    public static final int CHUNK_SIZE = 16 * 1024;
+
+    /**
+     * The most chunks kept for reuse
+     */
+    private static final int MAX_POOLED = 256;
+
+    /**
+     * The chunks not in use
+     */
+    private static final Queue<Chunk> pool =
+            new ConcurrentLinkedQueue<>();
+
+    /**
+     * How many chunks are in the pool
+     */
+    private static final AtomicInteger pooled = new AtomicInteger(0);
+
+    /**
+     * No instances
+     */
+    private RelayBuffers() {
+    }
+
+    /**
+     * Takes an empty chunk from the pool, or makes one if there are none.
+     * @return an empty chunk, ready to be filled
+     */
+    public static Chunk acquire() {
+        Chunk chunk = pool.poll();
+        if(chunk == null) return new Chunk();
+        pooled.decrementAndGet();
+        chunk.buffer.clear();
+        return chunk;
+    }
+
+    /**
+     * Gives back a chunk which is no longer needed.  Chunks which are not
+     * given back are simply collected.
+     * @param chunk the chunk, which must not be used afterwards
+     */
+    public static void release(Chunk chunk) {
+        if(pooled.incrementAndGet() <= MAX_POOLED) {
+            pool.add(chunk);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    /**
+     * A buffer of frames on their way to an opponent
+     */
+    public static final class Chunk {
+        /**
+         * The frames
+         */
+        public final ByteBuffer buffer;
+
+        /**
+         * When the frames were read, as a {@link System#nanoTime()}
+         */
+        public long readAt;
+
+        /**
+         * Creates an empty chunk.
+         */
+        private Chunk() {
+            buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package roomserver;
+
+import java.nio.ByteBuffer;
+import roomserver.ClientCommunication.Handler;
+import roomserver.RelayBuffers.Chunk;
+
+/**
+ * A player on another node of the cluster, as this node sees it.  It is
+ * listed in the registry and in its room like anybody else, so local
+ * players can see, challenge and play it, but nothing is ever sent to it
+ * from here: whatever a local player does to it goes to its node through
+ * the {@link Cluster}, and everything else is its node's business.  Its
+ * state is only ever IN_GAME with a local player, or FREE.
+ * @author Jed Wang
+ */
+final class RemotePlayer extends Handler {
+    /**
+     * The node the player is on
+     */
+    final int node;
+
+    /**
+     * Creates a player on another node.
+     * @param id the player's id, which is unique across the cluster
+     * @param name the player's name
+     * @param node the node the player is on
+     */
+    RemotePlayer(int id, PlayerName name, int node) {
+        super(id, name);
+        this.node = node;
+    }
+
+    @Override
+    boolean isLocal() {
+        return false;
+    }
+
+    @Override
+    void send(int opcode, int count, ByteBuffer frame, int kind,
+            String player, String other) {
+    }
+
+    @Override
+    void send(Message message, int kind, String player, String other) {
+    }
+
+    @Override
+    void send(Chunk chunk) {
+        RelayBuffers.release(chunk);
+    }
+
+    @Override
+    void challenged(Handler challenger) {
+        Cluster.challenge(challenger, this);
+    }
+
+    @Override
+    void challengeRefused(Handler challenged) {
+        Cluster.answer(challenged, this, false);
+    }
+
+    @Override
+    void opponentExited(Handler opponent) {
+        Cluster.exit(opponent, this);
+    }
+
+    @Override
+    void opponentMoved(Handler opponent, MessageView message) {
+        Cluster.game(opponent, this, codec.game(message.opcode,
+                message.buffer, message.start, message.end));
+    }
+
+    @Override
+    void opponentMoved(Handler opponent, Chunk chunk) {
+        Cluster.game(opponent, this, chunk.buffer);
+        RelayBuffers.release(chunk);
+    }
+
+    @Override
+    protected void requestFlush() {
+    }
+
+    @Override
+    protected void disconnect() {
+    }
+}
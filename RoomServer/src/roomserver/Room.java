@@ -0,0 +1,191 @@
+package roomserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A room: a lobby of its own, whose players only see each other come and
+ * go, play, and chat.  Every room is pinned to one shard, a
+ * {@link Broadcaster} thread, which keeps the room's {@link Roster} and
+ * puts everything said in the room on its players' queues, so nothing
+ * about who is in a room is ever touched by two threads.  Players start
+ * in the lobby, the room with no name, which is always there; other rooms
+ * are made by the first player to ask for them and go away when the last
+ * player leaves.
+ * @author Jed Wang
+ */
+final class Room {
+    /**
+     * How many rooms there may be besides the lobby, unless told otherwise
+     */
+    public static final int DEFAULT_MAX_ROOMS = 1024;
+
+    /**
+     * The longest a room's name may be, in bytes
+     */
+    public static final int MAX_NAME_LENGTH = 64;
+
+    /**
+     * How many rooms there may be besides the lobby
+     */
+    static volatile int maxRooms = DEFAULT_MAX_ROOMS;
+
+    /**
+     * The shards, which are started the first time a room is used
+     */
+    private static final Broadcaster[] shards =
+            Broadcaster.startShards(Broadcaster.shardCount);
+
+    /**
+     * Every room but the lobby, by name
+     */
+    private static final ConcurrentHashMap<String, Room> rooms =
+            new ConcurrentHashMap<>();
+
+    /**
+     * How many rooms there are besides the lobby, counting those about to
+     * be made.  Clients here may only make a room while this is under
+     * maxRooms.
+     */
+    private static final AtomicInteger places = new AtomicInteger();
+
+    /**
+     * The room every player starts in
+     */
+    static final Room LOBBY = new Room("");
+
+    /**
+     * How many rooms have been made
+     */
+    static final LongAdder created = new LongAdder();
+
+    /**
+     * The room's name, which is empty for the lobby
+     */
+    final String name;
+
+    /**
+     * The room's name in UTF-8
+     */
+    final byte[] utf8;
+
+    /**
+     * The thread which keeps this room
+     */
+    final Broadcaster shard;
+
+    /**
+     * Who is in the room.  Only used by the shard.
+     */
+    final Roster roster;
+
+    /**
+     * Whether the room has gone away, so nobody else may come in.  Only
+     * used by the shard.
+     */
+    boolean closed;
+
+    /**
+     * Creates a room, pinned to a shard by its name.
+     * @param name the name
+     */
+    private Room(String name) {
+        this.name = name;
+        utf8 = name.getBytes(StandardCharsets.UTF_8);
+        shard = shards[Math.floorMod(name.hashCode(), shards.length)];
+        roster = new Roster(Roster.logSize);
+    }
+
+    /**
+     * Makes a new room.
+     * @param name the name
+     * @return the room, or null if there is already a room with the name
+     * or there are too many rooms
+     */
+    static Room create(String name) {
+        if(name.isEmpty()) return null;
+        // take a place first, or rooms made at once could all fit
+        int n;
+        do {
+            n = places.get();
+            if(n >= maxRooms) return null;
+        } while(!places.compareAndSet(n, n + 1));
+        Room room = new Room(name);
+        if(rooms.putIfAbsent(name, room) != null) {
+            places.decrementAndGet();
+            return null;
+        }
+        created.increment();
+        return room;
+    }
+
+    /**
+     * Finds a room, making it if there is none, however many rooms there
+     * are.  For players on other nodes, whose rooms were made there.
+     * @param name the name, which is empty for the lobby
+     * @return the room
+     */
+    static Room open(String name) {
+        if(name.isEmpty()) return LOBBY;
+        Room room = rooms.get(name);
+        if(room != null) return room;
+        Room made = new Room(name);
+        room = rooms.putIfAbsent(name, made);
+        if(room != null) return room;
+        // may go over the limit, which only holds back clients here
+        places.incrementAndGet();
+        created.increment();
+        return made;
+    }
+
+    /**
+     * Finds a room.
+     * @param name the name, which is empty for the lobby
+     * @return the room, or null if there is none with the name
+     */
+    static Room find(String name) {
+        return name.isEmpty() ? LOBBY : rooms.get(name);
+    }
+
+    /**
+     * Returns how many rooms there are besides the lobby
+     * @return how many rooms there are besides the lobby
+     */
+    static int count() {
+        return rooms.size();
+    }
+
+    /**
+     * Closes this room if nobody is in it, unless it is the lobby.  Only
+     * called by the shard.
+     */
+    void closeIfEmpty() {
+        if(this == LOBBY || closed || roster.size() > 0) return;
+        closed = true;
+        if(rooms.remove(name, this)) places.decrementAndGet();
+    }
+
+    /**
+     * Returns whether a room name is one a client may ask for: not empty,
+     * not too long, and with no spaces or control characters, so that it
+     * fits in a line of the text codec
+     * @param message the message whose body is the name
+     * @return whether the name may be used
+     */
+    static boolean isValidName(MessageView message) {
+        int length = message.length();
+        if(length == 0 || length > MAX_NAME_LENGTH) return false;
+        for(int i = message.start; i < message.end; i++) {
+            int b = message.buffer.get(i) & 0xFF;
+            if(b <= ' ' || b == 0x7F) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return name.isEmpty() ? "(lobby)" : name;
+    }
+}
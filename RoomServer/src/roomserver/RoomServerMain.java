@@ -2,8 +2,12 @@ package roomserver;
 
 import java.io.IOException;
 import java.net.BindException;
-import java.net.ServerSocket;
-import roomserver.ClientCommunication.Handler;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * The main class for this server
@@ -11,27 +15,182 @@ import roomserver.ClientCommunication.Handler;
  */
 public class RoomServerMain {
     /**
-     * The main method
+     * How many connections may wait to be accepted, unless told otherwise
+     */
+    public static final int DEFAULT_BACKLOG = 1024;
+
+    
+    /**
+     * The main method.  Takes the following options:
+     * <ul>
+     * <li><code>--mode=blocking</code> (default): one platform thread per
+     * client</li>
+     * <li><code>--mode=virtual</code>: one virtual thread per client</li>
+     * <li><code>--mode=nio</code>: a few selector threads for all clients</li>
+     * <li><code>--port=N</code>: the port clients connect to; defaults to
+     * 9001</li>
+     * <li><code>--loops=N</code>: how many selector threads to use in nio
+     * mode; defaults to one per core</li>
+     * <li><code>--backlog=N</code>: how many connections may wait to be
+     * accepted</li>
+     * <li><code>--chat-limit=BYTES</code>, <code>--high-water=BYTES</code>,
+     * <code>--high-water-seconds=N</code>, <code>--hard-limit=BYTES</code>:
+     * what to do about clients which stop reading; see Backpressure</li>
+     * <li><code>--no-binary</code>: do not offer clients the binary
+     * protocol</li>
+     * <li><code>--roster-log=N</code>: how many changes to each room to
+     * remember for clients which come back; see Roster</li>
+     * <li><code>--shards=N</code>: how many threads keep the rooms;
+     * defaults to one per core</li>
+     * <li><code>--max-rooms=N</code>: how many rooms there may be besides
+     * the lobby</li>
+     * <li><code>--challenge-timeout=SECONDS</code>,
+     * <code>--challenge-limit=N</code>, <code>--challenge-inbox=N</code>:
+     * how long challenges wait for an answer, and how many may wait; see
+     * Challenges</li>
+     * <li><code>--rate-chat</code>, <code>--rate-challenge</code>,
+     * <code>--rate-move</code>, <code>--rate-ping</code>, each
+     * <code>RATE/BURST/ACTION</code> or <code>off</code>: how fast clients
+     * may send each sort of command, and what happens to those which send
+     * faster; see RateLimits</li>
+     * <li><code>--heartbeat=SECONDS</code>,
+     * <code>--idle-timeout=SECONDS</code>: how long a client may be quiet
+     * before it is sent a PING, and before it is disconnected; see
+     * Liveness</li>
+     * <li><code>--match-tick=MILLIS</code>,
+     * <code>--match-bucket=POINTS</code>: how often the matchmaking queue
+     * pairs players, and how wide its rating buckets are; see
+     * Matchmaker</li>
+     * <li><code>--cluster=tcp</code>, <code>--node=N</code>,
+     * <code>--cluster-bind=ADDRESS</code>, <code>--cluster-port=N</code>,
+     * <code>--peers=N@host:port,...</code>: run as one node of a cluster;
+     * see Cluster</li>
+     * <li><code>--log-level</code>, <code>--log-sample</code>,
+     * <code>--log-file</code>, <code>--log-max-bytes</code>,
+     * <code>--log-files</code>: what to log and where; see Log</li>
+     * <li><code>--metrics-port=N</code>: the loopback port to serve the
+     * metrics on in plain text, or 0 for none; see Metrics</li>
+     * </ul>
+     * Any other option is refused before anything starts, and the server
+     * exits.
      * @param args the command line arguments
      * @throws java.io.IOException if something goes wrong
      */
     public static void main(String[] args) throws IOException {
-        System.out.println("The room server is running.");
-        
+        ServerOptions options = new ServerOptions(args);
+        String mode = options.get("mode", "blocking");
+
         /*MainWindow mw = new MainWindow();
         Handler.setMainWindow(mw);*/
-        
-        try(ServerSocket listener = new ServerSocket(ClientCommunication.PORT)) {
-            while(true) {
-                Handler h = new Handler(listener.accept());
-                h.start();
-                // mw.addHandler(h);
+
+        Log.configure(options);
+        int backlog = options.getInt("backlog", DEFAULT_BACKLOG);
+        int port = options.getInt("port", ClientCommunication.PORT);
+        int loops = options.getInt("loops",
+                Runtime.getRuntime().availableProcessors());
+        TextCodec.offerBinary = !options.getFlag("no-binary");
+        Roster.logSize = options.getInt("roster-log", Roster.DEFAULT_LOG_SIZE);
+        Broadcaster.shardCount = options.getInt("shards",
+                Broadcaster.DEFAULT_SHARDS);
+        int maxRooms = options.getInt("max-rooms", Room.DEFAULT_MAX_ROOMS);
+        Backpressure.configure(options);
+        Challenges.configure(options);
+        RateLimits.configure(options);
+        Liveness.configure(options);
+        Metrics.configure(options);
+        Matchmaker.configure(options);
+        Cluster.configure(options);
+
+        // everything has read its options by now, and nothing has started
+        List<String> unknown = options.unknown();
+        if(!unknown.isEmpty()) {
+            for(String key : unknown) {
+                System.err.println("Unknown option: --" + key);
+            }
+            System.exit(1);
+        }
+
+        Log.start();
+        Log.info(null, "The room server is running", "(" + mode + ")");
+        // starts the shards, so comes after everything they read
+        Room.maxRooms = maxRooms;
+        Backpressure.startMonitor();
+        Metrics.start();
+        Matchmaker.start();
+        try {
+            // before any client, so that every id is unique in the cluster
+            Cluster.join();
+            switch(mode) {
+                case "blocking":
+                    runBlocking(Thread.ofPlatform().factory(), port, backlog);
+                    break;
+                case "virtual":
+                    runBlocking(Thread.ofVirtual().name("handler-", 0).
+                            factory(), port, backlog);
+                    break;
+                case "nio":
+                    runNio(loops, port, backlog);
+                    break;
+                default:
+                    System.err.println("Unknown mode: " + mode);
+                    System.exit(1);
             }
         } catch(BindException be) {
             System.err.println("Cannot start server: " + be.getMessage());
-            /*JOptionPane.showMessageDialog(/*mw null, "Cannot start server", 
+            /*JOptionPane.showMessageDialog(/*mw null, "Cannot start server",
                     be.getMessage(), JOptionPane.ERROR_MESSAGE);*/
             System.exit(1);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Accepts clients forever, giving each one its own thread.  Writes to
+     * each client are made on a virtual thread of their own, one at a time
+     * per client, so a client which stops reading only holds up its own
+     * writes, never anybody else's.
+     * @param threads makes the thread for each client
+     * @param port the port to listen on
+     * @param backlog how many connections may wait to be accepted
+     * @throws IOException if something goes wrong
+     */
+    private static void runBlocking(ThreadFactory threads, int port,
+            int backlog) throws IOException {
+        Executor writers = Executors.newThreadPerTaskExecutor(
+                Thread.ofVirtual().name("writer-", 0).factory());
+        try(ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(port), backlog);
+            while(true) {
+                BlockingHandler h = new BlockingHandler(listener.accept(),
+                        writers);
+                threads.newThread(h).start();
+                // mw.addHandler(h);
+            }
+        }
+    }
+
+    /**
+     * Accepts clients forever, spreading them over a fixed set of
+     * event loops.
+     * @param loops the number of event loops to start
+     * @param port the port to listen on
+     * @param backlog how many connections may wait to be accepted
+     * @throws IOException if something goes wrong
+     */
+    private static void runNio(int loops, int port, int backlog)
+            throws IOException {
+        EventLoop[] group = new EventLoop[Math.max(1, loops)];
+        for(int i = 0; i < group.length; i++) {
+            group[i] = new EventLoop(i);
+            group[i].start();
+        }
+
+        try(ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(port), backlog);
+            int next = 0;
+            while(true) {
+                group[next].register(listener.accept());
+                next = (next + 1) % group.length;
+            }
+        }
+    }
+}
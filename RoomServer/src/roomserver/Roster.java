@@ -0,0 +1,638 @@
+package roomserver;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import roomserver.ClientCommunication.Handler;
+import static roomserver.Codec.*;
+import static roomserver.OutboundQueue.*;
+
+/**
+ * A room as its clients have been told about it.  Every change to the
+ * room, whether a player joining, leaving, or becoming busy or free, is
+ * announced from here in order and given a version number, higher than
+ * the last and given to no other change in any room or on any node.  The
+ * latest changes are kept in a ring, so that a client which comes back
+ * with a version this room gave out, and still has the changes since, can
+ * be sent just what it missed; any other version gets the whole room.  The
+ * ring holds each player's id and name rather than the player, so that
+ * players who have gone are not kept.
+ * <p>
+ * Clients which asked for ROSTER frames are sent the whole room, with its
+ * version, when they join, and then one ROSTER for each change.  Other
+ * clients are sent a NEWCLIENT and, if need be, a BUSY for everybody in
+ * the room, in one frame, and then NEWCLIENT, REMOVECLIENT, BUSY and
+ * FREE.
+ * <p>
+ * Only used by the room's shard, so nothing here is locked, and nothing a
+ * joining client is sent can be overtaken by a later change.  What the
+ * roster knows about each player is kept here rather than on the player,
+ * since a player moving between rooms is briefly known to two shards.
+ * @author Jed Wang
+ */
+final class Roster {
+    /**
+     * How many changes are kept, unless told otherwise
+     */
+    public static final int DEFAULT_LOG_SIZE = 4096;
+
+    /**
+     * How many changes to keep; read when the roster is made
+     */
+    static volatile int logSize = DEFAULT_LOG_SIZE;
+
+    /**
+     * How big the ring starts out, so that a quiet room costs little
+     */
+    private static final int INITIAL_LOG_SIZE = 16;
+
+    /**
+     * How many bytes of players go in one ROSTER frame, so that frames
+     * stay well below the longest a client will read
+     */
+    private static final int BYTES_PER_FRAME = MAX_FRAME_LENGTH / 2;
+
+    /**
+     * Roughly how many bytes each player takes in a ROSTER, besides its
+     * name
+     */
+    private static final int ENTRY_OVERHEAD = 8;
+
+    /**
+     * The last version handed out on this node, before it is made unique
+     * in the cluster.  Starts past any version a server before this one
+     * could have got to, so that nobody can come back with one.
+     */
+    private static final AtomicLong nextVersion =
+            new AtomicLong(System.currentTimeMillis() * 1000);
+
+    /**
+     * How many joining clients were sent the whole lobby
+     */
+    static final LongAdder snapshots = new LongAdder();
+
+    /**
+     * How many returning clients were sent just what they missed
+     */
+    static final LongAdder resyncs = new LongAdder();
+
+    /**
+     * The kind of each change kept, by how many changes came before it
+     * modulo the size of the ring: NEWCLIENT, REMOVECLIENT, BUSY or FREE
+     */
+    private int[] opcodes;
+
+    /**
+     * The id of the player each change kept is about
+     */
+    private int[] ids;
+
+    /**
+     * The name of the player each change kept is about
+     */
+    private PlayerName[] names;
+
+    /**
+     * The version of each change kept
+     */
+    private long[] versions;
+
+    /**
+     * The size of the ring less one, for finding where a change goes
+     */
+    private int mask;
+
+    /**
+     * The biggest the ring may grow
+     */
+    private final int capacity;
+
+    /**
+     * How many changes there have been
+     */
+    private long changes;
+
+    /**
+     * The version of the latest change, or of the empty room before any
+     */
+    private long version;
+
+    /**
+     * Everybody in the room, in no particular order
+     */
+    private Member[] players;
+
+    /**
+     * How many players there are
+     */
+    private int size;
+
+    /**
+     * Everybody in the room, by handler
+     */
+    private final HashMap<Handler, Member> members;
+
+    /**
+     * Creates an empty roster.
+     * @param logSize how many changes to keep, at least; rounded up to a
+     * power of two
+     */
+    Roster(int logSize) {
+        int capacity = 1;
+        while(capacity < logSize) capacity <<= 1;
+        this.capacity = capacity;
+        int initial = Math.min(capacity, INITIAL_LOG_SIZE);
+        opcodes = new int[initial];
+        ids = new int[initial];
+        names = new PlayerName[initial];
+        versions = new long[initial];
+        mask = initial - 1;
+        version = newVersion();
+        players = new Member[16];
+        size = 0;
+        members = new HashMap<>();
+    }
+
+    /**
+     * Hands out a version which no other change, in any room or on any
+     * other node, has.
+     * @return a new version, higher than any handed out before on this
+     * node
+     */
+    private static long newVersion() {
+        return nextVersion.incrementAndGet() * ClientRegistry.MAX_NODES +
+                ClientRegistry.node();
+    }
+
+    /**
+     * Returns how many players are in the room
+     * @return how many players are in the room
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Puts a message on the queue of everybody in the room.
+     * @param message the message
+     * @param kind what sort of message it is, as an OutboundQueue kind
+     * @param player the player the message is about, if any
+     */
+    void broadcast(Message message, int kind, String player) {
+        for(int i = 0; i < size; i++) {
+            players[i].player.send(message, kind, player);
+        }
+    }
+
+    /**
+     * Adds a player to the room, tells everybody else, and tells the
+     * player who else is there.
+     * @param player the player, who has a name
+     * @param since the last version the player saw, if it has been here
+     * before and asked for ROSTER frames, or -1
+     */
+    void join(Handler player, long since) {
+        if(members.containsKey(player)) return;
+        record(NEWCLIENT, player);
+        Message listed = new Message(NEWCLIENT,
+                c -> c.newClient(player, true));
+        Message change = change(FREE, player, null);
+        for(int i = 0; i < size; i++) {
+            Handler h = players[i].player;
+            if(h.followsRoster) h.send(change, CONTROL, null);
+            else h.send(listed, PRESENCE, player.getClientName());
+        }
+        if(size == players.length) players = Arrays.copyOf(players, size * 2);
+        Member m = new Member(player, size);
+        players[size++] = m;
+        members.put(player, m);
+
+        // a player on another node is told who is here by its own node
+        if(!player.isLocal()) return;
+        if(!player.followsRoster) {
+            sendLobby(player);
+            return;
+        }
+        long after = find(since);
+        if(after < 0) sendSnapshot(player);
+        else sendChanges(player, after);
+    }
+
+    /**
+     * Takes a player out of the room and tells everybody.
+     * @param player the player
+     */
+    void leave(Handler player) {
+        if(!remove(player)) return;
+        record(REMOVECLIENT, player);
+        Message removed = new Message(REMOVECLIENT,
+                c -> c.encode(REMOVECLIENT, player));
+        Message change = change(REMOVECLIENT, player, null);
+        for(int j = 0; j < size; j++) {
+            Handler h = players[j].player;
+            if(h.followsRoster) h.send(change, CONTROL, null);
+            else h.send(removed, PRESENCE, player.getClientName());
+        }
+    }
+
+    /**
+     * Takes many players out of the room at once and tells everybody, in
+     * one frame: a REMOVECLIENT for each player, or one ROSTER.
+     * @param gone the players; any not in the room are left out
+     */
+    void leave(Handler[] gone) {
+        Handler[] left = new Handler[gone.length];
+        int count = 0;
+        for(Handler player : gone) {
+            if(!remove(player)) continue;
+            record(REMOVECLIENT, player);
+            left[count++] = player;
+        }
+        if(count == 0) return;
+
+        int n = count;
+        long v = version;
+        int[] leftIds = new int[n];
+        PlayerName[] leftNames = new PlayerName[n];
+        for(int i = 0; i < n; i++) {
+            leftIds[i] = left[i].getId();
+            leftNames[i] = left[i].getPlayerName();
+        }
+        int[] states = new int[n];
+        Arrays.fill(states, REMOVECLIENT);
+        Message removed = new Message(REMOVECLIENT, n, c -> {
+            ByteBuffer[] each = new ByteBuffer[n];
+            int length = 0;
+            for(int i = 0; i < n; i++) {
+                each[i] = c.encode(REMOVECLIENT, left[i]);
+                length += each[i].remaining();
+            }
+            ByteBuffer f = ByteBuffer.allocate(length);
+            for(ByteBuffer x : each) {
+                copy(f, x, x.position(), x.limit());
+            }
+            return f.flip().asReadOnlyBuffer();
+        });
+        Message change = new Message(ROSTER, frameCount(leftNames, n),
+                c -> frames(c, false, v, leftIds, leftNames, states, n));
+        for(int j = 0; j < size; j++) {
+            Handler h = players[j].player;
+            // nothing more will be said about these players until they
+            // come back, which clears their statuses, so there is no
+            // status for this to hold back
+            if(h.followsRoster) h.send(change, CONTROL, null);
+            else h.send(removed, CONTROL, null);
+        }
+    }
+
+    /**
+     * Takes a player out of the list of who is here.
+     * @param player the player
+     * @return whether the player was here
+     */
+    private boolean remove(Handler player) {
+        Member m = members.remove(player);
+        if(m == null) return false;
+        Member last = players[--size];
+        players[m.index] = last;
+        last.index = m.index;
+        players[size] = null;
+        return true;
+    }
+
+    /**
+     * Marks one or two players busy or free and tells everybody, in one
+     * frame.  Players who are not in the room, or are already that way,
+     * are left out.
+     * @param opcode BUSY or FREE
+     * @param a a player
+     * @param b another player, or null
+     */
+    void status(int opcode, Handler a, Handler b) {
+        boolean busy = opcode == BUSY;
+        Member ma = members.get(a), mb = b == null ? null : members.get(b);
+        if(mb != null && mb.busy == busy) mb = null;
+        if(ma == null || ma.busy == busy) {
+            ma = mb;
+            mb = null;
+        }
+        if(ma == null) return;
+        a = ma.player;
+        b = mb == null ? null : mb.player;
+        ma.busy = busy;
+        record(opcode, a);
+        if(mb != null) {
+            mb.busy = busy;
+            record(opcode, b);
+        }
+
+        Message change = change(opcode, a, b);
+        String player = a.getClientName();
+        if(b == null) {
+            Message m = a.presence.status(opcode);
+            for(int i = 0; i < size; i++) {
+                Handler h = players[i].player;
+                if(h.followsRoster) h.send(change, CONTROL, null);
+                else h.send(m, STATUS, player);
+            }
+        } else {
+            Message m = Presence.pair(opcode, a, b);
+            String other = b.getClientName();
+            for(int i = 0; i < size; i++) {
+                Handler h = players[i].player;
+                if(h.followsRoster) h.send(change, CONTROL, null);
+                else h.send(m, PAIR_STATUS, player, other);
+            }
+        }
+    }
+
+    /**
+     * Gives a change a new version and keeps it, growing the ring if it is
+     * full and may grow.
+     * @param opcode NEWCLIENT, REMOVECLIENT, BUSY or FREE
+     * @param player who the change is about
+     */
+    private void record(int opcode, Handler player) {
+        if(changes >= opcodes.length && opcodes.length < capacity) {
+            grow();
+        }
+        version = newVersion();
+        int i = (int) changes++ & mask;
+        opcodes[i] = opcode;
+        ids[i] = player.getId();
+        names[i] = player.getPlayerName();
+        versions[i] = version;
+    }
+
+    /**
+     * Doubles the size of the ring, moving every change kept to where it
+     * now goes.
+     */
+    private void grow() {
+        int[] o = new int[opcodes.length * 2];
+        int[] d = new int[o.length];
+        PlayerName[] n = new PlayerName[o.length];
+        long[] v = new long[o.length];
+        int m = o.length - 1;
+        for(long c = Math.max(0, changes - opcodes.length); c < changes;
+                c++) {
+            int from = (int) c & mask, to = (int) c & m;
+            o[to] = opcodes[from];
+            d[to] = ids[from];
+            n[to] = names[from];
+            v[to] = versions[from];
+        }
+        opcodes = o;
+        ids = d;
+        names = n;
+        versions = v;
+        mask = m;
+    }
+
+    /**
+     * Finds a change this room gave out, if it is still kept.
+     * @param since the version of the change
+     * @return how many changes came before it, or -1 if this room did not
+     * give it out or no longer has it
+     */
+    private long find(long since) {
+        // the versions kept go up, oldest first
+        long low = Math.max(0, changes - opcodes.length), high = changes - 1;
+        while(low <= high) {
+            long mid = (low + high) >>> 1;
+            long v = versions[(int) mid & mask];
+            if(v < since) low = mid + 1;
+            else if(v > since) high = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    /**
+     * Makes the ROSTER announcing the latest change.
+     * @param state what the players now are: FREE, BUSY or REMOVECLIENT
+     * @param a a player
+     * @param b another player, or null
+     * @return the message
+     */
+    private Message change(int state, Handler a, Handler b) {
+        long v = version;
+        int[] changedIds = b == null ? new int[] {a.getId()} :
+                new int[] {a.getId(), b.getId()};
+        PlayerName[] changed = b == null ?
+                new PlayerName[] {a.getPlayerName()} :
+                new PlayerName[] {a.getPlayerName(), b.getPlayerName()};
+        int[] states = new int[changed.length];
+        Arrays.fill(states, state);
+        return new Message(ROSTER, c -> c.roster(false, v, changedIds,
+                changed, states, 0, changed.length));
+    }
+
+    /**
+     * Tells a player who does not take ROSTER frames who else is in the
+     * room, with the NEWCLIENTs and BUSYs which everybody shares.
+     * @param player the player
+     */
+    private void sendLobby(Handler player) {
+        Codec codec = player.codec;
+        int length = 0, listed = 0, busy = 0;
+        for(int i = 0; i < size; i++) {
+            Handler h = players[i].player;
+            if(h == player) continue;
+            length += h.presence.listed.frame(codec).remaining();
+            listed++;
+            if(players[i].busy) {
+                length += h.presence.busy.frame(codec).remaining();
+                busy++;
+            }
+        }
+        if(listed == 0) return;
+        ByteBuffer f = ByteBuffer.allocate(length);
+        for(int i = 0; i < size; i++) {
+            Handler h = players[i].player;
+            if(h == player) continue;
+            ByteBuffer x = h.presence.listed.frame(codec);
+            copy(f, x, x.position(), x.limit());
+            if(players[i].busy) {
+                x = h.presence.busy.frame(codec);
+                copy(f, x, x.position(), x.limit());
+            }
+        }
+        // counted as NEWCLIENTs, which is most of it
+        player.send(NEWCLIENT, listed + busy, f.flip().asReadOnlyBuffer(),
+                CONTROL, null, null);
+    }
+
+    /**
+     * Sends a player the whole room.
+     * @param player the player
+     */
+    private void sendSnapshot(Handler player) {
+        int[] otherIds = new int[size];
+        PlayerName[] others = new PlayerName[size];
+        int[] states = new int[size];
+        int count = 0;
+        for(int i = 0; i < size; i++) {
+            Handler h = players[i].player;
+            if(h == player) continue;
+            otherIds[count] = h.getId();
+            others[count] = h.getPlayerName();
+            states[count++] = players[i].busy ? BUSY : FREE;
+        }
+        send(player, true, otherIds, others, states, count);
+        snapshots.increment();
+    }
+
+    /**
+     * Sends a player who has been here before what has changed since it
+     * last looked, which is only the latest change to each player.
+     * @param player the player
+     * @param after how many changes came before the last one the player
+     * saw, which is still in the ring
+     */
+    private void sendChanges(Handler player, long after) {
+        // where in the ring the latest change to each player is, by id,
+        // since ids are never used twice
+        Map<Integer, Integer> latest = new LinkedHashMap<>();
+        for(long c = after + 1; c < changes; c++) {
+            int i = (int) c & mask;
+            // the player's own comings and goings are no news to it
+            if(!names[i].equals(player.getPlayerName())) {
+                latest.put(ids[i], i);
+            }
+        }
+        int[] changedIds = new int[latest.size()];
+        PlayerName[] changed = new PlayerName[changedIds.length];
+        int[] states = new int[changedIds.length];
+        int count = 0;
+        for(int i : latest.values()) {
+            changedIds[count] = ids[i];
+            changed[count] = names[i];
+            states[count++] = opcodes[i] == NEWCLIENT ? FREE : opcodes[i];
+        }
+        send(player, false, changedIds, changed, states, count);
+        resyncs.increment();
+    }
+
+    /**
+     * Sends a player ROSTER frames at the current version, as many as it
+     * takes to keep each one short enough.
+     * @param player the player
+     * @param full whether this is the whole room
+     * @param ids the ids of the players in the frames
+     * @param list the names of the players in the frames
+     * @param states what each player is
+     * @param count how many players there are
+     */
+    private void send(Handler player, boolean full, int[] ids,
+            PlayerName[] list, int[] states, int count) {
+        player.send(ROSTER, frameCount(list, count),
+                frames(player.codec, full, version, ids, list, states, count),
+                CONTROL, null, null);
+    }
+
+    /**
+     * Encodes players as ROSTER frames, as many as it takes to keep each
+     * one short enough, one after the other.
+     * @param codec the codec to use
+     * @param full whether this is the whole room
+     * @param version the version of the room
+     * @param ids the ids of the players in the frames
+     * @param list the names of the players in the frames
+     * @param states what each player is
+     * @param count how many players there are
+     * @return the frames
+     */
+    private static ByteBuffer frames(Codec codec, boolean full,
+            long version, int[] ids, PlayerName[] list, int[] states,
+            int count) {
+        ArrayList<ByteBuffer> frames = new ArrayList<>();
+        int length = 0, start = 0;
+        do {
+            int end = frameEnd(list, start, count);
+            // only the first frame of a snapshot clears the client's lobby
+            ByteBuffer f = codec.roster(full && start == 0, version, ids,
+                    list, states, start, end);
+            frames.add(f);
+            length += f.remaining();
+            start = end;
+        } while(start < count);
+
+        ByteBuffer all = frames.get(0);
+        if(frames.size() > 1) {
+            all = ByteBuffer.allocate(length);
+            for(ByteBuffer f : frames) {
+                copy(all, f, f.position(), f.limit());
+            }
+            all = all.flip().asReadOnlyBuffer();
+        }
+        return all;
+    }
+
+    /**
+     * Counts the ROSTER frames it takes to list players.
+     * @param list the names of the players
+     * @param count how many players there are
+     * @return how many frames
+     */
+    private static int frameCount(PlayerName[] list, int count) {
+        int frames = 0, start = 0;
+        do {
+            start = frameEnd(list, start, count);
+            frames++;
+        } while(start < count);
+        return frames;
+    }
+
+    /**
+     * Finds where a ROSTER frame should end to be short enough.
+     * @param list the names of the players
+     * @param start the first player in the frame
+     * @param count how many players there are
+     * @return the index just past the last player in the frame
+     */
+    private static int frameEnd(PlayerName[] list, int start, int count) {
+        int end = start, bytes = 0;
+        while(end < count && (end == start ||
+                bytes + list[end].utf8.length + ENTRY_OVERHEAD
+                <= BYTES_PER_FRAME)) {
+            bytes += list[end++].utf8.length + ENTRY_OVERHEAD;
+        }
+        return end;
+    }
+
+    /**
+     * A player in the room, and what the room has been told about it.
+     */
+    private static final class Member {
+        /**
+         * The player
+         */
+        private final Handler player;
+
+        /**
+         * Where the player is in the list of players
+         */
+        private int index;
+
+        /**
+         * Whether the room has been told the player is busy
+         */
+        private boolean busy;
+
+        /**
+         * Creates a new Member, who is free.
+         * @param player the player
+         * @param index where the player is in the list of players
+         */
+        private Member(Handler player, int index) {
+            this.player = player;
+            this.index = index;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package roomserver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * The startup options of the server, given on the command line as
+ * <code>--key=value</code> (or just <code>--key</code> for a flag).
+ * @author Jed Wang
+ */
+public class ServerOptions {
+    /**
+     * The options given: (Key, Value)
+     */
+    private final HashMap<String, String> options;
+
+    /**
+     * The names of the options which have been asked for, given or not
+     */
+    private final HashSet<String> asked;
+
+    /**
+     * Parses the command line arguments.
+     * @param args the command line arguments
+     * @throws IllegalArgumentException if an argument is not an option
+     */
+    public ServerOptions(String[] args) {
+        options = new HashMap<>();
+        asked = new HashSet<>();
+        for(String arg : args) {
+            if(!arg.startsWith("--"))
+                throw new IllegalArgumentException("Not an option: " + arg);
+            int eq = arg.indexOf('=');
+            if(eq < 0) {
+                options.put(arg.substring(2), "true");
+            } else {
+                options.put(arg.substring(2, eq), arg.substring(eq + 1));
+            }
+        }
+    }
+
+    /**
+     * Returns the value of an option
+     * @param key the name of the option
+     * @param def the value to use if the option was not given
+     * @return the value of the option
+     */
+    public String get(String key, String def) {
+        asked.add(key);
+        return options.getOrDefault(key, def);
+    }
+
+    /**
+     * Returns the value of an integer option
+     * @param key the name of the option
+     * @param def the value to use if the option was not given
+     * @return the value of the option
+     * @throws IllegalArgumentException if the value is not an integer
+     */
+    public int getInt(String key, int def) {
+        String s = get(key, null);
+        if(s == null) return def;
+        try {
+            return Integer.parseInt(s);
+        } catch(NumberFormatException nfe) {
+            throw new IllegalArgumentException("--" + key +
+                    " needs an integer, not " + s);
+        }
+    }
+
+    /**
+     * Returns the value of a flag
+     * @param key the name of the flag
+     * @return whether the flag was given (and not set to false)
+     */
+    public boolean getFlag(String key) {
+        return Boolean.parseBoolean(get(key, null));
+    }
+
+    /**
+     * Returns the options which were given but never asked for, which are
+     * most likely misspelt.  Only makes sense once everything which reads
+     * options has read them.
+     * @return the names of the options nothing asked for, sorted
+     */
+    public List<String> unknown() {
+        List<String> unknown = new ArrayList<>();
+        for(String key : options.keySet()) {
+            if(!asked.contains(key)) unknown.add(key);
+        }
+        unknown.sort(null);
+        return unknown;
+    }
+}
@@ -0,0 +1,372 @@
+package roomserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A transport over TCP, with one connection between every two nodes.
+ * Every node listens on its cluster port, and dials the nodes it is told
+ * about which have lower numbers than its own, again and again until they
+ * answer, and again whenever the connection is lost; so the nodes may be
+ * started in any order.  Each connection starts with the dialling node's
+ * number, and after that every message is its length, as four bytes, and
+ * then its bytes.  Messages are queued for each node and written by a
+ * thread of its own, several to a write, so that nothing waits on a slow
+ * node; a node which falls too far behind is disconnected, and is sent
+ * everything again when it comes back.
+ * <p>
+ * Nodes are not authenticated: a connection is taken to be from the node
+ * whose number it starts with, so long as that node is one of the peers.
+ * Anybody who can reach the cluster port can pass for a node, so it should
+ * only be reachable from the other nodes.
+ * @author Jed Wang
+ */
+public class TcpTransport implements ClusterTransport {
+    /**
+     * The port nodes listen on for each other, unless told otherwise
+     */
+    public static final int DEFAULT_PORT = 9201;
+
+    /**
+     * The longest message there may be, in bytes
+     */
+    private static final int MAX_MESSAGE_LENGTH = 1024 * 1024;
+
+    /**
+     * How many messages may wait to be written to a node before it is
+     * disconnected
+     */
+    private static final int MAX_QUEUED = 64 * 1024;
+
+    /**
+     * How long to wait before dialling a node again, in milliseconds
+     */
+    private static final long REDIAL_MILLIS = 1000;
+
+    /**
+     * The address to listen on
+     */
+    private final InetSocketAddress address;
+
+    /**
+     * Where the other nodes are, by number; no other node may connect
+     */
+    private final Map<Integer, InetSocketAddress> peers;
+
+    /**
+     * The connection to each node, by number
+     */
+    private final ConcurrentHashMap<Integer, Peer> connected;
+
+    /**
+     * Held while telling the receiver about a node, by number, so that a
+     * connection replacing another is not heard from at the same time
+     */
+    private final Object[] gates;
+
+    /**
+     * This node's number
+     */
+    private int node;
+
+    /**
+     * Who to tell about other nodes
+     */
+    private Receiver receiver;
+
+    /**
+     * Creates a transport which has not been started.
+     * @param address the address to listen on
+     * @param peers where the other nodes are, by number; only those with
+     * lower numbers than this node's are dialled, and only these may
+     * connect
+     */
+    public TcpTransport(InetSocketAddress address,
+            Map<Integer, InetSocketAddress> peers) {
+        this.address = address;
+        this.peers = peers;
+        connected = new ConcurrentHashMap<>();
+        gates = new Object[ClientRegistry.MAX_NODES];
+        for(int i = 0; i < gates.length; i++) {
+            gates[i] = new Object();
+        }
+    }
+
+    @Override
+    public void start(int node, Receiver receiver) throws IOException {
+        this.node = node;
+        this.receiver = receiver;
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        listener.bind(address);
+        thread("cluster-accept", () -> accept(listener));
+        for(Map.Entry<Integer, InetSocketAddress> e : peers.entrySet()) {
+            if(e.getKey() < node) {
+                thread("cluster-dial-" + e.getKey(),
+                        () -> dial(e.getKey(), e.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Starts a daemon thread.
+     * @param name the name of the thread
+     * @param task what it does
+     */
+    private static void thread(String name, Runnable task) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Accepts connections from other nodes forever.
+     * @param listener the listening socket
+     */
+    private void accept(ServerSocketChannel listener) {
+        while(true) {
+            SocketChannel channel;
+            try {
+                channel = listener.accept();
+            } catch(IOException ex) {
+                Log.error(null, "cluster accept failed", ex);
+                return;
+            }
+            try {
+                channel.socket().setTcpNoDelay(true);
+                ByteBuffer hello = ByteBuffer.allocate(Integer.BYTES);
+                readFully(channel, hello);
+                int from = hello.flip().getInt();
+                if(from < 0 || from >= gates.length || from == node)
+                    throw new IOException("bad node number " + from);
+                if(!peers.containsKey(from))
+                    throw new IOException("node " + from + " is not a peer");
+                new Peer(from, channel).start();
+            } catch(IOException ex) {
+                Log.warn(null, "cluster handshake failed", ex.getMessage());
+                close(channel);
+            }
+        }
+    }
+
+    /**
+     * Keeps a connection open to a node forever.
+     * @param to the node
+     * @param address where it is
+     */
+    private void dial(int to, InetSocketAddress address) {
+        while(true) {
+            try {
+                SocketChannel channel = SocketChannel.open(address);
+                channel.socket().setTcpNoDelay(true);
+                ByteBuffer hello = ByteBuffer.allocate(Integer.BYTES);
+                hello.putInt(node).flip();
+                while(hello.hasRemaining()) channel.write(hello);
+                Peer peer = new Peer(to, channel);
+                peer.start();
+                peer.reader.join();
+            } catch(IOException ex) {
+                if(Log.enabled(Log.DEBUG)) {
+                    Log.debug(null, "cannot reach node",
+                            to + ": " + ex.getMessage());
+                }
+            } catch(InterruptedException ie) {
+                return;
+            }
+            try {
+                Thread.sleep(REDIAL_MILLIS);
+            } catch(InterruptedException ie) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void publish(ByteBuffer message) {
+        for(Peer peer : connected.values()) {
+            peer.queue(message);
+        }
+    }
+
+    @Override
+    public void send(int to, ByteBuffer message) {
+        Peer peer = connected.get(to);
+        if(peer != null) peer.queue(message);
+    }
+
+    /**
+     * Fills a buffer from a channel.
+     * @param channel the channel
+     * @param buffer the buffer
+     * @throws IOException if the channel ends first
+     */
+    private static void readFully(SocketChannel channel, ByteBuffer buffer)
+            throws IOException {
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer) < 0) throw new EOFException();
+        }
+    }
+
+    /**
+     * Closes a channel, ignoring any error.
+     * @param channel the channel
+     */
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch(IOException ex) {
+            // closing anyway
+        }
+    }
+
+    /**
+     * The connection to one other node.
+     */
+    private class Peer {
+        /**
+         * The node
+         */
+        private final int node;
+
+        /**
+         * The connection
+         */
+        private final SocketChannel channel;
+
+        /**
+         * The messages waiting to be written
+         */
+        private final LinkedBlockingQueue<ByteBuffer> out;
+
+        /**
+         * The thread reading from the node
+         */
+        private Thread reader;
+
+        /**
+         * Creates a connection to a node which has just been opened.
+         * @param node the node
+         * @param channel the connection
+         */
+        private Peer(int node, SocketChannel channel) {
+            this.node = node;
+            this.channel = channel;
+            out = new LinkedBlockingQueue<>();
+        }
+
+        /**
+         * Starts reading from and writing to the node, replacing any
+         * connection to it there already was.
+         */
+        private void start() {
+            reader = new Thread(this::read, "cluster-read-" + node);
+            reader.setDaemon(true);
+            reader.start();
+            thread("cluster-write-" + node, this::write);
+        }
+
+        /**
+         * Queues a message to be written, disconnecting the node if it is
+         * too far behind.
+         * @param message the message
+         */
+        private void queue(ByteBuffer message) {
+            if(out.size() >= MAX_QUEUED) {
+                Log.warn(null, "cluster node too far behind", node);
+                close(channel);
+                return;
+            }
+            out.add(message.duplicate());
+        }
+
+        /**
+         * Reads messages from the node and hands them to the receiver,
+         * until the connection is lost.
+         */
+        private void read() {
+            synchronized(gates[node]) {
+                Peer old = connected.put(node, this);
+                if(old != null) close(old.channel);
+                receiver.connected(node);
+            }
+            Log.info(null, "cluster node connected", node);
+            ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+            try {
+                while(true) {
+                    if(channel.read(in) < 0) break;
+                    in.flip();
+                    while(in.remaining() >= Integer.BYTES) {
+                        int length = in.getInt(in.position());
+                        if(length < 0 || length > MAX_MESSAGE_LENGTH)
+                            throw new IOException("bad message length " +
+                                    length);
+                        int end = in.position() + Integer.BYTES + length;
+                        if(end > in.limit()) {
+                            if(end - in.position() > in.capacity()) {
+                                ByteBuffer bigger = ByteBuffer.allocate(
+                                        end - in.position());
+                                bigger.put(in);
+                                in = bigger.flip();
+                            }
+                            break;
+                        }
+                        ByteBuffer message = in.slice(in.position() +
+                                Integer.BYTES, length);
+                        synchronized(gates[node]) {
+                            receiver.received(node, message);
+                        }
+                        in.position(end);
+                    }
+                    in.compact();
+                }
+            } catch(IOException ex) {
+                Log.info(null, "cluster connection lost", ex.getMessage());
+            } catch(RuntimeException re) {
+                Log.error(null, "cluster message failed", re);
+            }
+            close(channel);
+            // the writer is waiting for a message; this one is never sent
+            out.add(ByteBuffer.allocate(0));
+            synchronized(gates[node]) {
+                if(connected.remove(node, this)) receiver.disconnected(node);
+            }
+            Log.info(null, "cluster node disconnected", node);
+        }
+
+        /**
+         * Writes queued messages to the node, as many at a time as there
+         * are, until the connection is lost.
+         */
+        private void write() {
+            ArrayList<ByteBuffer> batch = new ArrayList<>();
+            try {
+                while(channel.isOpen()) {
+                    batch.add(out.take());
+                    out.drainTo(batch);
+                    ByteBuffer[] buffers = new ByteBuffer[batch.size() * 2];
+                    long length = 0;
+                    for(int i = 0; i < batch.size(); i++) {
+                        ByteBuffer m = batch.get(i);
+                        buffers[2 * i] = ByteBuffer.allocate(Integer.BYTES).
+                                putInt(0, m.remaining());
+                        buffers[2 * i + 1] = m;
+                        length += Integer.BYTES + m.remaining();
+                    }
+                    while(length > 0) {
+                        length -= channel.write(buffers);
+                    }
+                    batch.clear();
+                }
+            } catch(IOException | InterruptedException ex) {
+                close(channel);
+            }
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package roomserver;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import roomserver.ClientCommunication.Handler;
+import static roomserver.CommandTable.COMMANDS;
+
+/**
+ * The newline-terminated text protocol of PROTOCOL.md.
+ * @author Jed Wang
+ */
+public class TextCodec extends Codec {
+    /**
+     * The one TextCodec
+     */
+    public static final TextCodec INSTANCE = new TextCodec();
+
+    /**
+     * The token a client adds after its name to ask for the binary codec,
+     * and which the server adds after SUBMITNAME to offer it
+     */
+    public static final String BINARY = "BINARY1";
+
+    /**
+     * The token a client adds after its name to ask for ROSTER frames
+     * instead of NEWCLIENT, REMOVECLIENT, BUSY and FREE, and which the
+     * server adds after SUBMITNAME to offer them.  A client which has been
+     * in the lobby before may follow it with a colon and the last version
+     * it saw, to be sent only what has changed since.
+     */
+    public static final String ROSTER_TOKEN = "ROSTER1";
+
+    /**
+     * The token a client adds after its name to say it answers the
+     * server's PINGs, and which the server adds after SUBMITNAME to say it
+     * sends them.  Only a client which sent it is sent heartbeats and
+     * disconnected for staying quiet, as older clients never answer.
+     */
+    public static final String PING_TOKEN = "PING1";
+
+    /**
+     * Whether clients are offered the binary codec
+     */
+    static volatile boolean offerBinary = true;
+
+    /**
+     * The headers of the commands, by opcode, as bytes; LINE has none
+     */
+    private static final byte[][] HEADERS = new byte[MATCHED + 1][];
+
+    /**
+     * What goes between a player's name and what they said in an NLM
+     */
+    private static final byte[] SAID = bytes(": ");
+
+    /**
+     * The bodies of NEWCLIENT before the name, by whether the player is new
+     */
+    private static final byte[] OLD = bytes("false "), NEW = bytes("true ");
+
+    static {
+        for(int opcode = PING; opcode < LINE; opcode++) {
+            HEADERS[opcode] = bytes(name(opcode));
+        }
+        HEADERS[LINE] = new byte[0];
+        for(int opcode = ROSTER; opcode <= MATCHED; opcode++) {
+            HEADERS[opcode] = bytes(name(opcode));
+        }
+    }
+
+    /**
+     * Creates the TextCodec.
+     */
+    private TextCodec() {
+        super(0);
+    }
+
+    /**
+     * Encodes a line.
+     * @param line the line, without a line terminator
+     * @return the frame
+     */
+    public static ByteBuffer line(String line) {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    /**
+     * Encodes a line from pieces which are already bytes.
+     * @param parts the pieces of the line, without a line terminator
+     * @return the frame
+     */
+    private static ByteBuffer line(byte[]... parts) {
+        int length = 1;
+        for(byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] frame = new byte[length];
+        int off = 0;
+        for(byte[] part : parts) {
+            System.arraycopy(part, 0, frame, off, part.length);
+            off += part.length;
+        }
+        frame[off] = '\n';
+        return ByteBuffer.wrap(frame).asReadOnlyBuffer();
+    }
+
+    /**
+     * Encodes a header as bytes.
+     * @param header the header, which is ASCII
+     * @return the bytes
+     */
+    private static byte[] bytes(String header) {
+        return header.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Encodes the NAMEACCEPTED which switches a client to the binary codec.
+     * @param id the id the client has been given
+     * @return the frame
+     */
+    public static ByteBuffer nameAcceptedBinary(int id) {
+        return line("NAMEACCEPTED " + BINARY + " " + id);
+    }
+
+    @Override
+    public ByteBuffer encode(int opcode) {
+        switch(opcode) {
+            case SUBMITNAME:
+                // BINARY goes last, where older clients look for it
+                return line("SUBMITNAME " + ROSTER_TOKEN + " " + PING_TOKEN +
+                        (offerBinary ? " " + BINARY : ""));
+            default:
+                return line(name(opcode));
+        }
+    }
+
+    @Override
+    public ByteBuffer encode(int opcode, Handler player) {
+        return line(HEADERS[opcode], player.getPlayerName().utf8);
+    }
+
+    @Override
+    public ByteBuffer newClient(Handler player, boolean isNew) {
+        return line(HEADERS[NEWCLIENT], isNew ? NEW : OLD,
+                player.getPlayerName().utf8);
+    }
+
+    @Override
+    public ByteBuffer lobbyMessage(Handler from, byte[] message) {
+        return line(HEADERS[NLM], from.getPlayerName().utf8, SAID, message);
+    }
+
+    @Override
+    public ByteBuffer challengeResult(boolean accepted) {
+        return line("CHALLENGE_R" + accepted);
+    }
+
+    @Override
+    public ByteBuffer roster(boolean full, long version, int[] ids,
+            PlayerName[] players, int[] states, int from, int to) {
+        byte[] v = bytes(Long.toString(version));
+        int length = HEADERS[ROSTER].length + 1 + v.length + 1;
+        for(int i = from; i < to; i++) {
+            length += 2 + players[i].utf8.length;
+        }
+        ByteBuffer f = ByteBuffer.allocate(length);
+        f.put(HEADERS[ROSTER]).put((byte) (full ? '=' : '+')).put(v);
+        for(int i = from; i < to; i++) {
+            f.put((byte) ' ');
+            f.put((byte) (states[i] == BUSY ? '1' :
+                    states[i] == FREE ? '0' : '-'));
+            f.put(players[i].utf8);
+        }
+        f.put((byte) '\n');
+        return f.flip().asReadOnlyBuffer();
+    }
+
+    @Override
+    public ByteBuffer room(int opcode, byte[] room) {
+        return line(HEADERS[opcode], room);
+    }
+
+    @Override
+    public ByteBuffer game(int opcode, ByteBuffer src, int from, int to) {
+        byte[] header = HEADERS[opcode];
+        byte[] frame = new byte[header.length + to - from + 1];
+        System.arraycopy(header, 0, frame, 0, header.length);
+        src.get(from, frame, header.length, to - from);
+        frame[frame.length - 1] = '\n';
+        return ByteBuffer.wrap(frame).asReadOnlyBuffer();
+    }
+
+    @Override
+    public int relay(ByteBuffer in, Codec to, ByteBuffer dst, int max) {
+        int relayed = 0;
+        int start = in.position();
+        while(relayed < max) {
+            int newline = indexOf(in, start);
+            if(newline < 0) break;
+            int end = newline;
+            if(end > start && in.get(end - 1) == '\r') end--;
+            long command = gameCommand(in, start, end);
+            if(command == 0) break;
+            int opcode = (int) (command >>> 32);
+            int before = dst.position();
+            if(to == this) {
+                if(dst.remaining() < end - start + 1) break;
+                copy(dst, in, start, end);
+                dst.put((byte) '\n');
+            } else if(!to.putGame(dst, opcode, in, (int) command, end)) {
+                break;
+            }
+            Metrics.relayed(opcode, newline + 1 - start,
+                    dst.position() - before);
+            start = newline + 1;
+            relayed++;
+        }
+        in.position(start);
+        return relayed;
+    }
+
+    @Override
+    boolean putGame(ByteBuffer dst, int opcode, ByteBuffer src, int from,
+            int to) {
+        byte[] header = HEADERS[opcode];
+        if(dst.remaining() < header.length + to - from + 1) return false;
+        dst.put(header);
+        copy(dst, src, from, to);
+        dst.put((byte) '\n');
+        return true;
+    }
+
+    /**
+     * Finds the end of a line.
+     * @param in the buffer to search, up to its limit
+     * @param from where to start searching
+     * @return the index of the next line feed, or -1 if there is none
+     */
+    private static int indexOf(ByteBuffer in, int from) {
+        for(int i = from; i < in.limit(); i++) {
+            if(in.get(i) == '\n') return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Works out which in-game command a line is, the same way
+     * {@link #process(ByteBuffer, int, int, Handler)} does.
+     * @param in the buffer holding the line
+     * @param start where the line starts
+     * @param end where the line ends, not counting its terminator
+     * @return the opcode, which is NB, LOCK, M, NM or LINE, in the upper 32
+     * bits and where the body starts in the lower 32 bits, or 0 if the line
+     * must be decoded
+     */
+    private static long gameCommand(ByteBuffer in, int start, int end) {
+        long command = COMMANDS.match(in, start, end);
+        switch(command < 0 ? LINE : (int) (command >>> 32)) {
+            case PING:
+            case UNQUEUE:
+                if((int) command == end) return 0;
+                break;
+            case NLM:
+            case EXIT:
+            case QUEUE:
+            case CREATEROOM:
+            case JOINROOM:
+            case LEAVEROOM:
+                return 0;
+            case NB:
+            case LOCK:
+            case M:
+            case NM:
+                return command;
+        }
+        return ((long) LINE << 32) | start;
+    }
+
+    @Override
+    public boolean decode(ByteBuffer in, Handler h) throws ProtocolException {
+        int start = in.position();
+        for(int i = start; i < in.limit(); i++) {
+            if(in.get(i) == '\n') {
+                int end = i;
+                if(end > start && in.get(end - 1) == '\r') end--;
+                in.position(i + 1);
+                Metrics.received(process(in, start, end, h), i + 1 - start);
+                return true;
+            }
+        }
+        if(in.remaining() > MAX_FRAME_LENGTH)
+            throw new ProtocolException("line too long");
+        return false;
+    }
+
+    /**
+     * Handles one line from a client, where it lies in the inbound buffer.
+     * @param in the buffer holding the line
+     * @param start where the line starts
+     * @param end where the line ends, not counting its terminator
+     * @param h the client's handler
+     * @return the opcode of the line, or 0 if it was not understood
+     */
+    private int process(ByteBuffer in, int start, int end, Handler h) {
+        MessageView message = h.view;
+        if(h.isNaming()) {
+            h.onName(message.of(SUBMITNAME, in, start, end).text());
+            return SUBMITNAME;
+        }
+
+        if(Log.enabled(Log.TRACE)) {
+            Log.trace(h.getClientName(), "received",
+                    message.of(0, in, start, end).text());
+        }
+
+        // handle input
+        long command = COMMANDS.match(in, start, end);
+        int opcode = command < 0 ? 0 : (int) (command >>> 32);
+        int body = command < 0 ? start : (int) command;
+        if(opcode == PING && body == end) {
+            h.onPing();
+            return PING;
+        } else if(opcode == NLM) {
+            h.onLobbyMessage(message.of(NLM, in, body, end));
+            return NLM;
+        } else if(opcode == CREATEROOM || opcode == JOINROOM ||
+                opcode == LEAVEROOM) {
+            h.onRoom(message.of(opcode, in, body, end));
+            return opcode;
+        } else if(opcode == QUEUE) {
+            // QUEUE[rating]
+            h.onQueue(message.of(QUEUE, in, body, end).number(
+                    Matchmaker.DEFAULT_RATING));
+            return QUEUE;
+        } else if(opcode == UNQUEUE && body == end) {
+            h.onUnqueue();
+            return UNQUEUE;
+        } else if(h.isInGame()) {
+            if(opcode == EXIT) {
+                h.onExit();
+                return EXIT;
+            }
+            command = gameCommand(in, start, end);
+            opcode = (int) (command >>> 32);
+            h.onGame(message.of(opcode, in, (int) command, end));
+            return opcode;
+        } else if(opcode == CHALLENGE_C) {
+            // Challenging for a match
+            message.of(CHALLENGE_C, in, body, end);
+            Handler other = message.player(0, message.length());
+            if(other != null) {
+                h.onChallenge(other);
+            } else Log.info(h.getClientName(), "opponent not found",
+                    message.text());
+            return CHALLENGE_C;
+        } else if(opcode == CHALLENGE_R) {
+            // Challenge response: [challenger] [accepted]
+            message.of(CHALLENGE_R, in, body, end);
+            int space = message.indexOf((byte) ' ');
+            if(space < 0) {
+                Log.info(h.getClientName(), "bad challenge response",
+                        message.text());
+                return CHALLENGE_R;
+            }
+            Handler other = message.player(0, space);
+            if(other != null) {
+                h.onChallengeResponse(other, message.isTrue(space + 1));
+            } else Log.info(h.getClientName(), "opponent not found",
+                    message.text(0, space));
+            return CHALLENGE_R;
+        }
+        return 0;
+    }
+}
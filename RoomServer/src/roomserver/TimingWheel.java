@@ -0,0 +1,175 @@
+package roomserver;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs timeouts on one thread, however many there are.  The wheel is a
+ * ring of slots, one per tick; a timeout goes in the slot its deadline
+ * falls in, with a count of how many more times round the wheel it must
+ * wait if it is further off than one turn, so scheduling and expiring are
+ * both O(1).  Timeouts are handed to the wheel's thread through a
+ * lock-free queue, and nothing else about the wheel is shared.
+ * <p>
+ * A timeout cannot be taken back: whatever it was for decides, when it
+ * expires, whether it still matters.  Timeouts run up to a tick late.
+ * @author Jed Wang
+ */
+final class TimingWheel {
+    /**
+     * The wheel which every timeout of the server shares: ticks of 100 ms,
+     * and 512 of them, so a little under a minute, to a turn
+     */
+    static final TimingWheel TIMERS = new TimingWheel("timers",
+            TimeUnit.MILLISECONDS.toNanos(100), 512);
+
+    /**
+     * How long a tick is, in nanoseconds
+     */
+    private final long tickNanos;
+
+    /**
+     * The timeouts due in each tick of a turn.  Only used by the wheel's
+     * thread.
+     */
+    private final ArrayDeque<Timeout>[] slots;
+
+    /**
+     * Timeouts scheduled since the wheel last ticked
+     */
+    private final ConcurrentLinkedQueue<Timeout> intake;
+
+    /**
+     * When the wheel started, as a {@link System#nanoTime()}
+     */
+    private final long start;
+
+    /**
+     * How many ticks have gone by.  Only used by the wheel's thread.
+     */
+    private long tick;
+
+    /**
+     * When the wheel last ticked, as a {@link System#nanoTime()}
+     */
+    private volatile long now;
+
+    /**
+     * Makes a wheel and starts its thread.
+     * @param name the name of the thread
+     * @param tickNanos how long a tick is, in nanoseconds
+     * @param ticks how many ticks there are to a turn, which is a power
+     * of two
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimingWheel(String name, long tickNanos, int ticks) {
+        this.tickNanos = tickNanos;
+        slots = new ArrayDeque[ticks];
+        for(int i = 0; i < ticks; i++) {
+            slots[i] = new ArrayDeque<>();
+        }
+        intake = new ConcurrentLinkedQueue<>();
+        start = System.nanoTime();
+        now = start;
+        Thread t = new Thread(this::run, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Schedules a timeout.  May be called from any thread.
+     * @param t the timeout, which must not already be scheduled
+     * @param delayNanos how long from now it expires, in nanoseconds
+     */
+    void schedule(Timeout t, long delayNanos) {
+        t.deadline = System.nanoTime() + delayNanos;
+        intake.add(t);
+    }
+
+    /**
+     * Returns the time the wheel last ticked, which is never more than a
+     * tick behind, for callers which need the time too often to ask the
+     * system each time
+     * @return when the wheel last ticked, as a {@link System#nanoTime()}
+     */
+    long now() {
+        return now;
+    }
+
+    /**
+     * Ticks forever, expiring whatever is due.
+     */
+    private void run() {
+        long next = start + tickNanos;
+        while(true) {
+            long wait;
+            while((wait = next - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, wait);
+            }
+            now = System.nanoTime();
+            for(Timeout t; (t = intake.poll()) != null;) {
+                place(t);
+            }
+            expire(slots[(int) (tick & (slots.length - 1))]);
+            tick++;
+            next += tickNanos;
+        }
+    }
+
+    /**
+     * Puts a timeout in the slot of the tick its deadline falls in, or
+     * of this tick if that has gone by.
+     * @param t the timeout
+     */
+    private void place(Timeout t) {
+        long due = Math.max(tick,
+                (t.deadline - start + tickNanos - 1) / tickNanos - 1);
+        t.rounds = (due - tick) / slots.length;
+        slots[(int) (due & (slots.length - 1))].add(t);
+    }
+
+    /**
+     * Runs the timeouts in a slot which are due this turn, and keeps the
+     * rest for a later one.
+     * @param slot the slot
+     */
+    private static void expire(ArrayDeque<Timeout> slot) {
+        for(int n = slot.size(); n > 0; n--) {
+            Timeout t = slot.poll();
+            if(t.rounds > 0) {
+                t.rounds--;
+                slot.add(t);
+                continue;
+            }
+            try {
+                t.expired();
+            } catch(RuntimeException e) {
+                Log.error(null, "timeout failed", e);
+            }
+        }
+    }
+
+    /**
+     * Something which happens after a while, unless it no longer matters
+     * by then
+     */
+    abstract static class Timeout {
+        /**
+         * When this expires, as a {@link System#nanoTime()}
+         */
+        private long deadline;
+
+        /**
+         * How many more turns of the wheel this must wait.  Only used by
+         * the wheel's thread.
+         */
+        private long rounds;
+
+        /**
+         * Called on the wheel's thread once this is due.
+         */
+        abstract void expired();
+    }
+}
@@ -0,0 +1,113 @@
+package roomserver;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that a challenge which nobody answers expires, and that one which
+ * was answered or called off does nothing when its timeout comes due,
+ * since the wheel cannot take a timeout back.
+ * @author Jed Wang
+ */
+public class ChallengesTest {
+    /**
+     * Gives challenges the shortest timeout there is, a second.
+     */
+    @Before
+    public void setUp() {
+        Challenges.configure(new ServerOptions(
+                new String[] {"--challenge-timeout=1"}));
+    }
+
+    /**
+     * Puts the timeout and limits back.
+     */
+    @After
+    public void tearDown() {
+        Challenges.configure(new ServerOptions(new String[0]));
+    }
+
+    /**
+     * Waits for a challenger to be told its challenge was refused, for up
+     * to ten seconds.
+     * @param challenger the challenger
+     * @throws InterruptedException if interrupted
+     */
+    private static void awaitRefusal(TestPlayer challenger)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while(challenger.count(Codec.CHALLENGE_R) == 0 &&
+                System.nanoTime() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(1, challenger.count(Codec.CHALLENGE_R));
+    }
+
+    /**
+     * Of three challenges, only the one nobody answered expires: the
+     * challenger is told it was refused, and the answered and called off
+     * ones are left alone when their timeouts come due.
+     * @throws InterruptedException if interrupted
+     */
+    @Test
+    public void onlyUnansweredChallengesExpire() throws InterruptedException {
+        TestPlayer ignored = new TestPlayer("ignored");
+        TestPlayer ignorer = new TestPlayer("ignorer");
+        TestPlayer answered = new TestPlayer("answered");
+        TestPlayer answerer = new TestPlayer("answerer");
+        TestPlayer withdrawn = new TestPlayer("withdrawn");
+        TestPlayer leaver = new TestPlayer("leaver");
+        long expired = Challenges.expired.sum();
+        long cancelled = Challenges.cancelled.sum();
+        int pending = Challenges.pending();
+
+        assertTrue(Challenges.offer(answered, answerer));
+        assertTrue(Challenges.offer(withdrawn, leaver));
+        assertTrue(Challenges.offer(ignored, ignorer));
+        assertEquals(pending + 3, Challenges.pending());
+        // answered, whichever way
+        assertTrue(Challenges.answer(answered, answerer));
+        // called off as the player challenged goes into a game
+        Challenges.cancel(leaver);
+        assertEquals(cancelled + 1, Challenges.cancelled.sum());
+        assertEquals(1, withdrawn.count(Codec.CHALLENGE_R));
+        assertEquals(pending + 1, Challenges.pending());
+
+        awaitRefusal(ignored);
+        assertEquals(expired + 1, Challenges.expired.sum());
+        assertEquals(pending, Challenges.pending());
+        assertEquals(0, ignored.challengesOut.get());
+        assertEquals(0, ignorer.challengesIn.get());
+        assertTrue(ignored.challenges.isEmpty());
+
+        // the other two were scheduled first, so came due no later
+        Thread.sleep(300);
+        assertEquals(expired + 1, Challenges.expired.sum());
+        assertEquals(0, answered.count(Codec.CHALLENGE_R));
+        assertEquals(1, withdrawn.count(Codec.CHALLENGE_R));
+        assertEquals(0, answered.challengesOut.get());
+        assertEquals(0, leaver.challengesIn.get());
+    }
+
+    /**
+     * A challenge answered after its timeout has expired finds nothing
+     * waiting, and the same two players may challenge again.
+     * @throws InterruptedException if interrupted
+     */
+    @Test
+    public void answerAfterExpiryFindsNothing() throws InterruptedException {
+        TestPlayer challenger = new TestPlayer("late-challenger");
+        TestPlayer challenged = new TestPlayer("late-challenged");
+        long expired = Challenges.expired.sum();
+        assertTrue(Challenges.offer(challenger, challenged));
+        assertFalse(Challenges.offer(challenger, challenged));
+        awaitRefusal(challenger);
+        assertEquals(expired + 1, Challenges.expired.sum());
+        assertFalse(Challenges.answer(challenger, challenged));
+        assertTrue(Challenges.offer(challenger, challenged));
+        assertTrue(Challenges.answer(challenger, challenged));
+    }
+}
@@ -0,0 +1,270 @@
+package roomserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static roomserver.ClientRegistry.*;
+
+/**
+ * Tests the compare-and-set protocol by which the registry pairs clients,
+ * including against clients which go away at the same time.
+ * @author Jed Wang
+ */
+public class ClientRegistryTest {
+    /**
+     * How many times to race two threads
+     */
+    private static final int ROUNDS = 10000;
+
+    /**
+     * The registry under test
+     */
+    private ClientRegistry registry;
+
+    /**
+     * Threads to race on
+     */
+    private ExecutorService threads;
+
+    /**
+     * Makes an empty registry.
+     */
+    @Before
+    public void setUp() {
+        registry = new ClientRegistry();
+        threads = Executors.newFixedThreadPool(2);
+    }
+
+    /**
+     * Stops the threads.
+     */
+    @After
+    public void tearDown() {
+        threads.shutdownNow();
+    }
+
+    /**
+     * Makes a free client and registers it.
+     * @param name the client's name
+     * @return the client
+     */
+    private TestPlayer player(String name) {
+        TestPlayer p = new TestPlayer(name);
+        assertTrue(registry.register(p, p.getPlayerName()));
+        return p;
+    }
+
+    /**
+     * Closes a client the way a disconnect does, freeing its opponent.
+     * @param p the client
+     * @return the state the client was in
+     */
+    private long disconnect(TestPlayer p) {
+        long s = registry.close(p);
+        registry.release(p, s);
+        registry.unregister(p);
+        return s;
+    }
+
+    /**
+     * Runs two tasks at once and waits for both.
+     * @param a one task
+     * @param b the other task
+     * @return what the first task returned
+     * @throws Exception if either task failed
+     */
+    private <T> T race(Callable<T> a, Callable<?> b) throws Exception {
+        CountDownLatch go = new CountDownLatch(1);
+        Future<T> fa = threads.submit(() -> {
+            go.await();
+            return a.call();
+        });
+        Future<?> fb = threads.submit(() -> {
+            go.await();
+            return b.call();
+        });
+        go.countDown();
+        fb.get(10, TimeUnit.SECONDS);
+        return fa.get(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Two free clients end up in a game with each other.
+     */
+    @Test
+    public void pairsFreeClients() {
+        TestPlayer a = player("a"), b = player("b");
+        assertTrue(registry.pair(a, b));
+        assertEquals(state(IN_GAME, b.getId()), a.state.get());
+        assertEquals(state(IN_GAME, a.getId()), b.state.get());
+        assertSame(b, registry.unpair(a));
+        assertEquals(state(FREE, 0), a.state.get());
+        assertEquals(state(FREE, 0), b.state.get());
+    }
+
+    /**
+     * A client who accepts a challenge from somebody already in a game is
+     * left free.
+     */
+    @Test
+    public void busyChallengerLeavesResponderFree() {
+        TestPlayer a = player("a"), b = player("b"), c = player("c");
+        assertTrue(registry.pair(b, c));
+        assertFalse(registry.pair(a, b));
+        assertEquals(state(FREE, 0), a.state.get());
+        assertEquals(state(IN_GAME, c.getId()), b.state.get());
+    }
+
+    /**
+     * Of many clients accepting a challenge from one player at once, only
+     * one gets the game, and the rest are left free.
+     * @throws Exception if a thread fails
+     */
+    @Test
+    public void onlyOneResponderWins() throws Exception {
+        ExecutorService many = Executors.newFixedThreadPool(8);
+        try {
+            for(int round = 0; round < 500; round++) {
+                TestPlayer challenger = player("c" + round);
+                TestPlayer[] responders = new TestPlayer[8];
+                for(int i = 0; i < responders.length; i++) {
+                    responders[i] = player("r" + round + "." + i);
+                }
+                CountDownLatch go = new CountDownLatch(1);
+                List<Future<Boolean>> won = new ArrayList<>();
+                for(TestPlayer r : responders) {
+                    won.add(many.submit(() -> {
+                        go.await();
+                        return registry.pair(r, challenger);
+                    }));
+                }
+                go.countDown();
+                int winners = 0;
+                for(int i = 0; i < responders.length; i++) {
+                    if(won.get(i).get(10, TimeUnit.SECONDS)) {
+                        winners++;
+                        assertEquals(state(IN_GAME, responders[i].getId()),
+                                challenger.state.get());
+                        assertEquals(state(IN_GAME, challenger.getId()),
+                                responders[i].state.get());
+                    } else {
+                        assertEquals(state(FREE, 0),
+                                responders[i].state.get());
+                    }
+                }
+                assertEquals(1, winners);
+            }
+        } finally {
+            many.shutdownNow();
+        }
+    }
+
+    /**
+     * A client accepting a challenge while it disconnects either gets a
+     * game which its disconnect then ends, or none; the challenger is free
+     * either way.
+     * @throws Exception if a thread fails
+     */
+    @Test
+    public void pairRacesResponderClosing() throws Exception {
+        for(int round = 0; round < ROUNDS; round++) {
+            TestPlayer r = player("r" + round), c = player("c" + round);
+            long[] closed = new long[1];
+            boolean paired = race(() -> registry.pair(r, c),
+                    () -> closed[0] = disconnect(r));
+            assertEquals(state(CLOSED, 0), r.state.get());
+            assertEquals(state(FREE, 0), c.state.get());
+            assertEquals(paired, kind(closed[0]) == IN_GAME);
+            disconnect(c);
+        }
+    }
+
+    /**
+     * A client accepting a challenge while the challenger disconnects
+     * either gets a game which the disconnect then ends, or none; it is
+     * free either way, and never left in a game with nobody.
+     * @throws Exception if a thread fails
+     */
+    @Test
+    public void pairRacesChallengerClosing() throws Exception {
+        for(int round = 0; round < ROUNDS; round++) {
+            TestPlayer r = player("r" + round), c = player("c" + round);
+            long[] closed = new long[1];
+            boolean paired = race(() -> registry.pair(r, c),
+                    () -> closed[0] = disconnect(c));
+            assertEquals(state(CLOSED, 0), c.state.get());
+            assertEquals("round " + round, state(FREE, 0), r.state.get());
+            if(paired) assertEquals(IN_GAME, kind(closed[0]));
+            disconnect(r);
+        }
+    }
+
+    /**
+     * The challenger going away after it is claimed, but before the
+     * responder is in the game, does not leave the responder in a game
+     * with nobody.
+     */
+    @Test
+    public void challengerLeavingMidPairFreesResponder() {
+        TestPlayer r = player("r");
+        Leaver c = new Leaver("c");
+        assertTrue(registry.register(c, c.getPlayerName()));
+        assertFalse(registry.pair(r, c));
+        assertEquals(state(CLOSED, 0), c.state.get());
+        assertEquals(state(FREE, 0), r.state.get());
+    }
+
+    /**
+     * A player on another node going away after it is claimed, but before
+     * the client here is in the game, does not leave the client here in a
+     * game with nobody.
+     */
+    @Test
+    public void remoteLeavingMidPairFreesLocal() {
+        TestPlayer local = player("local");
+        Leaver remote = new Leaver("remote");
+        registry.registerRemote(remote);
+        assertFalse(registry.pairRemote(local, remote));
+        assertEquals(state(CLOSED, 0), remote.state.get());
+        assertEquals(state(FREE, 0), local.state.get());
+    }
+
+    /**
+     * A client which disconnects the first time its id is looked up once
+     * it is in a game.  Pairing looks up the id of the client claimed
+     * first just before claiming the other, so this disconnects at the
+     * worst time.
+     */
+    private final class Leaver extends TestPlayer {
+        /**
+         * Whether this has disconnected
+         */
+        private boolean gone;
+
+        /**
+         * Makes a free client.
+         * @param name the client's name
+         */
+        private Leaver(String name) {
+            super(name);
+        }
+
+        @Override
+        public int getId() {
+            if(!gone && kind(state.get()) == IN_GAME) {
+                gone = true;
+                ClientRegistryTest.this.disconnect(this);
+            }
+            return super.getId();
+        }
+    }
+}
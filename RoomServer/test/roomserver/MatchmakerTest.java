@@ -0,0 +1,227 @@
+package roomserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static roomserver.ClientRegistry.*;
+
+/**
+ * Tests the matcher's passes over its pools, driven by hand rather than
+ * by the matcher's thread, which is never started.
+ * @author Jed Wang
+ */
+public class MatchmakerTest {
+    /**
+     * Every player made by the test
+     */
+    private final List<TestPlayer> players = new ArrayList<>();
+
+    /**
+     * Makes a free player in the lobby, known to the server's registry.
+     * @param name the player's name
+     * @return the player
+     */
+    private TestPlayer player(String name) {
+        TestPlayer p = new TestPlayer(name);
+        assertTrue(ClientCommunication.registry.register(p,
+                p.getPlayerName()));
+        players.add(p);
+        return p;
+    }
+
+    /**
+     * Makes a player and queues it.
+     * @param name the player's name
+     * @param rating the player's rating
+     * @return the player
+     */
+    private TestPlayer queued(String name, int rating) {
+        TestPlayer p = player(name);
+        assertTrue(Matchmaker.queue(p, rating));
+        return p;
+    }
+
+    /**
+     * Returns whether two players are in a game with each other
+     * @param a one player
+     * @param b the other player
+     * @return whether each is in a game with the other
+     */
+    private static boolean inGame(TestPlayer a, TestPlayer b) {
+        return a.state.get() == state(IN_GAME, b.getId()) &&
+                b.state.get() == state(IN_GAME, a.getId());
+    }
+
+    /**
+     * Empties the pools and forgets the players.
+     */
+    @After
+    public void tearDown() {
+        for(TestPlayer p : players) {
+            Matchmaker.unqueue(p);
+            ClientCommunication.registry.close(p);
+            ClientCommunication.registry.unregister(p);
+        }
+        Matchmaker.pass();
+        assertEquals(0, Matchmaker.queued.sum());
+    }
+
+    /**
+     * Two players with close ratings are put in a game and told so.
+     */
+    @Test
+    public void pairsCloseRatings() {
+        TestPlayer a = queued("a", 1500), b = queued("b", 1550);
+        Matchmaker.pass();
+        assertTrue(inGame(a, b));
+        assertNull(a.ticket.get());
+        assertNull(b.ticket.get());
+        assertEquals(1, a.count(Codec.MATCHED));
+        assertEquals(1, b.count(Codec.MATCHED));
+        assertEquals(0, Matchmaker.queued.sum());
+    }
+
+    /**
+     * Players too far apart to pair go back into their buckets, even
+     * while a later bucket is being walked, and are found again by later
+     * passes.
+     */
+    @Test
+    public void keepsUnpairedTickets() {
+        TestPlayer low = queued("low", 0), mid = queued("mid", 1000);
+        TestPlayer high = queued("high", 2000);
+        for(int pass = 0; pass < 3; pass++) {
+            Matchmaker.pass();
+            for(TestPlayer p : players) {
+                assertEquals(state(FREE, 0), p.state.get());
+                assertNotNull(p.ticket.get());
+                assertTrue(p.sent.isEmpty());
+            }
+        }
+        assertEquals(3, Matchmaker.queued.sum());
+        TestPlayer other = queued("other", 1020);
+        Matchmaker.pass();
+        assertTrue(inGame(mid, other));
+        assertEquals(state(FREE, 0), low.state.get());
+        assertEquals(state(FREE, 0), high.state.get());
+        assertNotNull(low.ticket.get());
+        assertNotNull(high.ticket.get());
+        assertEquals(2, Matchmaker.queued.sum());
+    }
+
+    /**
+     * Players who left the queue, or went away, are dropped without being
+     * told, and are not paired.
+     */
+    @Test
+    public void dropsPlayersWhoLeft() {
+        TestPlayer a = queued("a", 1500), b = queued("b", 1500);
+        TestPlayer c = queued("c", 1500);
+        assertTrue(Matchmaker.unqueue(a));
+        ClientCommunication.registry.close(b);
+        Matchmaker.pass();
+        assertTrue(a.sent.isEmpty());
+        assertTrue(b.sent.isEmpty());
+        assertEquals(state(FREE, 0), c.state.get());
+        assertNotNull(c.ticket.get());
+        assertEquals(1, Matchmaker.queued.sum());
+    }
+
+    /**
+     * A queued player who accepts a challenge before the matcher comes to
+     * it plays the challenger, is told it has left the queue, and is not
+     * paired with anybody else.
+     */
+    @Test
+    public void challengeAcceptedWhileQueued() {
+        TestPlayer a = queued("a", 1500), c = queued("c", 1500);
+        TestPlayer challenger = player("challenger");
+        challenger.onChallenge(a);
+        assertEquals(1, a.count(Codec.CHALLENGE_C));
+        a.onChallengeResponse(challenger, true);
+        assertTrue(inGame(a, challenger));
+        Matchmaker.pass();
+        assertTrue(inGame(a, challenger));
+        assertNull(a.ticket.get());
+        assertEquals(1, a.count(Codec.UNQUEUE));
+        assertEquals(0, a.count(Codec.MATCHED));
+        assertEquals(state(FREE, 0), c.state.get());
+        assertNotNull(c.ticket.get());
+        assertEquals(1, Matchmaker.queued.sum());
+    }
+
+    /**
+     * A queued player whom the matcher pairs before it answers a challenge
+     * keeps its match; the challenge is called off, and accepting it
+     * afterwards changes nothing.
+     */
+    @Test
+    public void matchBeatsChallenge() {
+        TestPlayer a = queued("a", 1500), c = queued("c", 1500);
+        TestPlayer challenger = player("challenger");
+        challenger.onChallenge(a);
+        Matchmaker.pass();
+        assertTrue(inGame(a, c));
+        assertEquals(1, challenger.count(Codec.CHALLENGE_R));
+        a.onChallengeResponse(challenger, true);
+        assertTrue(inGame(a, c));
+        assertEquals(state(FREE, 0), challenger.state.get());
+        assertEquals(0, a.count(Codec.EXIT));
+    }
+
+    /**
+     * While another thread pairs queued players with each other as if by
+     * challenges, the matcher never puts a player in two games, tells
+     * every player it did not pair that it left the queue, and pairs
+     * everybody still free in the end.
+     * @throws InterruptedException if interrupted
+     */
+    @Test
+    public void pairsAgainstChallenges() throws InterruptedException {
+        Random random = new Random(1);
+        for(int round = 0; round < 100; round++) {
+            TestPlayer[] queue = new TestPlayer[40];
+            for(int i = 0; i < queue.length; i++) {
+                queue[i] = queued(round + "." + i, 1500 + i);
+            }
+            long seed = random.nextLong();
+            Thread challenges = new Thread(() -> {
+                Random pick = new Random(seed);
+                for(int i = 0; i < queue.length; i++) {
+                    ClientCommunication.registry.pair(
+                            queue[pick.nextInt(queue.length)],
+                            queue[pick.nextInt(queue.length)]);
+                }
+            });
+            challenges.start();
+            Matchmaker.pass();
+            challenges.join();
+            Matchmaker.pass();
+            int free = 0;
+            for(TestPlayer p : queue) {
+                long s = p.state.get();
+                if(kind(s) == FREE) {
+                    free++;
+                    assertNotNull(p.ticket.get());
+                    continue;
+                }
+                assertEquals(IN_GAME, kind(s));
+                TestPlayer opp = (TestPlayer)
+                        ClientCommunication.registry.get(opponent(s));
+                assertTrue(inGame(p, opp));
+                assertNull(p.ticket.get());
+                assertEquals(1, p.count(Codec.MATCHED) +
+                        p.count(Codec.UNQUEUE));
+                assertEquals(p.count(Codec.MATCHED),
+                        opp.count(Codec.MATCHED));
+            }
+            assertTrue(free <= 1);
+            assertEquals(free, Matchmaker.queued.sum());
+            tearDown();
+            players.clear();
+        }
+    }
+}
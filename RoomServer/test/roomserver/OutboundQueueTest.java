@@ -0,0 +1,219 @@
+package roomserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static roomserver.OutboundQueue.*;
+
+/**
+ * Tests that later statuses of a player replace earlier ones still in the
+ * queue, and never overtake what must come before them.
+ * @author Jed Wang
+ */
+public class OutboundQueueTest {
+    /**
+     * Makes a frame of one line.
+     * @param line the line
+     * @return the frame
+     */
+    private static ByteBuffer frame(String line) {
+        return ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8))
+                .asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes everything queued.
+     * @param q the queue
+     * @param channel where to write it
+     * @throws IOException never
+     */
+    private static void drain(OutboundQueue q, Sink channel)
+            throws IOException {
+        if(q.claim()) assertTrue(q.drainTo(channel));
+    }
+
+    /**
+     * Two statuses of a player become the later one, and the queue counts
+     * only that one.
+     * @throws IOException never
+     */
+    @Test
+    public void laterStatusReplacesEarlier() throws IOException {
+        OutboundQueue q = new OutboundQueue();
+        assertEquals(QUEUED, q.offer(frame("BUSY a"), STATUS, "a"));
+        assertEquals(QUEUED, q.offer(frame("FREE a"), STATUS, "a"));
+        assertEquals(1, q.depth());
+        assertEquals(frame("FREE a").remaining(), q.bytes());
+        Sink out = new Sink();
+        drain(q, out);
+        assertEquals(Arrays.asList("FREE a"), out.lines());
+        assertEquals(0, q.depth());
+        assertEquals(0, q.bytes());
+    }
+
+    /**
+     * A player's status stays where the first one was queued, and those
+     * of other players are not merged with it.
+     * @throws IOException never
+     */
+    @Test
+    public void statusKeepsItsPlace() throws IOException {
+        OutboundQueue q = new OutboundQueue();
+        q.offer(frame("BUSY a"), STATUS, "a");
+        q.offer(frame("chat"), CHAT, null);
+        q.offer(frame("BUSY b"), STATUS, "b");
+        q.offer(frame("FREE a"), STATUS, "a");
+        Sink out = new Sink();
+        drain(q, out);
+        assertEquals(Arrays.asList("FREE a", "chat", "BUSY b"), out.lines());
+    }
+
+    /**
+     * A status is not merged with one from before the player's presence
+     * or a game of theirs, which would move it ahead of them.
+     * @throws IOException never
+     */
+    @Test
+    public void statusDoesNotOvertakePresenceOrPair() throws IOException {
+        OutboundQueue q = new OutboundQueue();
+        q.offer(frame("FREE a"), STATUS, "a");
+        q.offer(frame("REMOVECLIENT a"), PRESENCE, "a");
+        q.offer(frame("NEWCLIENT a"), PRESENCE, "a");
+        q.offer(frame("FREE a"), STATUS, "a");
+        q.offer(frame("FREE b"), STATUS, "b");
+        q.offer(frame("BUSY a b"), PAIR_STATUS, "a", "b");
+        q.offer(frame("FREE b"), STATUS, "b");
+        Sink out = new Sink();
+        drain(q, out);
+        assertEquals(Arrays.asList("FREE a", "REMOVECLIENT a", "NEWCLIENT a",
+                "FREE a", "FREE b", "BUSY a b", "FREE b"), out.lines());
+    }
+
+    /**
+     * A status offered once the last one has been written is queued anew.
+     * @throws IOException never
+     */
+    @Test
+    public void statusAfterWriteIsQueued() throws IOException {
+        OutboundQueue q = new OutboundQueue();
+        Sink out = new Sink();
+        q.offer(frame("BUSY a"), STATUS, "a");
+        drain(q, out);
+        q.offer(frame("FREE a"), STATUS, "a");
+        drain(q, out);
+        assertEquals(Arrays.asList("BUSY a", "FREE a"), out.lines());
+    }
+
+    /**
+     * Statuses offered by many threads while the queue is being written
+     * are each written at most once, in the order they were offered, and
+     * the last status of every player is always written.
+     * @throws Exception if a thread fails
+     */
+    @Test
+    public void concurrentStatusesEndWithTheLatest() throws Exception {
+        int players = 4, updates = 20000;
+        OutboundQueue q = new OutboundQueue();
+        Sink out = new Sink();
+        CountDownLatch go = new CountDownLatch(1);
+        AtomicInteger refused = new AtomicInteger();
+        List<Thread> senders = new ArrayList<>();
+        for(int p = 0; p < players; p++) {
+            String player = "p" + p;
+            Thread t = new Thread(() -> {
+                try {
+                    go.await();
+                } catch(InterruptedException e) {
+                    return;
+                }
+                for(int i = 0; i < updates; i++) {
+                    if(q.offer(frame(player + " " + i), STATUS, player)
+                            != QUEUED) refused.incrementAndGet();
+                }
+            });
+            t.start();
+            senders.add(t);
+        }
+        go.countDown();
+        while(senders.stream().anyMatch(Thread::isAlive)) drain(q, out);
+        for(Thread t : senders) t.join();
+        drain(q, out);
+        assertEquals(0, refused.get());
+        Map<String, Integer> last = new HashMap<>();
+        for(String line : out.lines()) {
+            String[] parts = line.split(" ");
+            int i = Integer.parseInt(parts[1]);
+            Integer before = last.put(parts[0], i);
+            assertTrue(line, before == null || before < i);
+        }
+        for(int p = 0; p < players; p++) {
+            assertEquals(updates - 1, (int) last.get("p" + p));
+        }
+        assertEquals(0, q.depth());
+        assertEquals(0, q.bytes());
+    }
+
+    /**
+     * A channel which keeps everything written to it
+     */
+    private static final class Sink implements GatheringByteChannel {
+        /**
+         * Everything written so far
+         */
+        private final ByteArrayOutputStream written =
+                new ByteArrayOutputStream();
+
+        /**
+         * Returns the lines written so far
+         * @return the lines written so far
+         */
+        List<String> lines() {
+            String s = written.toString(StandardCharsets.UTF_8);
+            return s.isEmpty() ? new ArrayList<>() :
+                    Arrays.asList(s.split("\n"));
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long n = 0;
+            for(int i = offset; i < offset + length; i++) {
+                n += write(srcs[i]);
+            }
+            return n;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            byte[] bytes = new byte[n];
+            src.get(bytes);
+            written.write(bytes, 0, n);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package roomserver;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import roomserver.ClientCommunication.Handler;
+import roomserver.RelayBuffers.Chunk;
+
+/**
+ * A named client in the lobby with no connection, which notes the opcode
+ * of everything sent to it rather than sending it anywhere.
+ * @author Jed Wang
+ */
+class TestPlayer extends Handler {
+    /**
+     * The opcodes of everything sent to this client, oldest first
+     */
+    final Queue<Integer> sent = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Makes a free client in the lobby.
+     * @param name the client's name
+     */
+    TestPlayer(String name) {
+        super(ClientRegistry.newId(), new PlayerName(name));
+        room = Room.LOBBY;
+    }
+
+    /**
+     * Returns how many times this client was sent an opcode
+     * @param opcode the opcode
+     * @return how many frames with the opcode this client was sent
+     */
+    int count(int opcode) {
+        int n = 0;
+        for(int sentOpcode : sent) {
+            if(sentOpcode == opcode) n++;
+        }
+        return n;
+    }
+
+    @Override
+    void send(int opcode, int count, ByteBuffer frame, int kind,
+            String player, String other) {
+        sent.add(opcode);
+    }
+
+    @Override
+    void send(Message message, int kind, String player, String other) {
+        sent.add(message.opcode);
+    }
+
+    @Override
+    void send(Chunk chunk) {
+        RelayBuffers.release(chunk);
+    }
+
+    @Override
+    protected void requestFlush() {
+    }
+
+    @Override
+    protected void disconnect() {
+    }
+}
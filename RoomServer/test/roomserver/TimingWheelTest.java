@@ -0,0 +1,210 @@
+package roomserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that timeouts expire once, in order, and never early, however many
+ * turns of the wheel they wait.
+ * @author Jed Wang
+ */
+public class TimingWheelTest {
+    /**
+     * How late a timeout may be on a busy machine, in nanoseconds
+     */
+    private static final long SLACK_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    /**
+     * A timeout which notes when it expired
+     */
+    private static final class Noted extends TimingWheel.Timeout {
+        /**
+         * How long after it was scheduled this should expire, in ms
+         */
+        final long delayMillis;
+
+        /**
+         * When this was scheduled, as a {@link System#nanoTime()}
+         */
+        final long scheduledAt = System.nanoTime();
+
+        /**
+         * Where to note the timeouts which expire
+         */
+        final ConcurrentLinkedQueue<Noted> expired;
+
+        /**
+         * Counted down when this expires
+         */
+        final CountDownLatch done;
+
+        /**
+         * When this expired, as a {@link System#nanoTime()}
+         */
+        volatile long expiredAt;
+
+        /**
+         * Makes a timeout.
+         * @param delayMillis how long until it should expire, in ms
+         * @param expired where to note it when it expires
+         * @param done counted down when it expires
+         */
+        Noted(long delayMillis, ConcurrentLinkedQueue<Noted> expired,
+                CountDownLatch done) {
+            this.delayMillis = delayMillis;
+            this.expired = expired;
+            this.done = done;
+        }
+
+        /**
+         * Returns how long after it was scheduled this expired
+         * @return how long after it was scheduled this expired, in ns
+         */
+        long waited() {
+            return expiredAt - scheduledAt;
+        }
+
+        @Override
+        void expired() {
+            expiredAt = System.nanoTime();
+            expired.add(this);
+            done.countDown();
+        }
+    }
+
+    /**
+     * Schedules timeouts further off than a turn of the wheel, out of
+     * order, and checks that they expire in order and none early.
+     * @param delaysMillis the delays, in ms
+     * @param tickMillis how long a tick is, in ms
+     * @param ticks how many ticks there are to a turn
+     * @throws InterruptedException if interrupted
+     */
+    private static void expireInOrder(long[] delaysMillis, long tickMillis,
+            int ticks) throws InterruptedException {
+        TimingWheel wheel = new TimingWheel("test-wheel",
+                TimeUnit.MILLISECONDS.toNanos(tickMillis), ticks);
+        ConcurrentLinkedQueue<Noted> expired = new ConcurrentLinkedQueue<>();
+        CountDownLatch done = new CountDownLatch(delaysMillis.length);
+        for(long delay : delaysMillis) {
+            wheel.schedule(new Noted(delay, expired, done),
+                    TimeUnit.MILLISECONDS.toNanos(delay));
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        long last = -1;
+        for(Noted t : expired) {
+            assertTrue(t.delayMillis + " ms came before " + last + " ms",
+                    t.delayMillis >= last);
+            last = t.delayMillis;
+            long delay = TimeUnit.MILLISECONDS.toNanos(t.delayMillis);
+            assertTrue(t.delayMillis + " ms came after " + t.waited() +
+                    " ns", t.waited() >= delay);
+            assertTrue(t.waited() < delay + SLACK_NANOS);
+        }
+        assertEquals(delaysMillis.length, expired.size());
+    }
+
+    /**
+     * Timeouts within one turn expire in order, and not early.
+     * @throws InterruptedException if interrupted
+     */
+    @Test
+    public void expiresWithinATurn() throws InterruptedException {
+        expireInOrder(new long[] {70, 10, 50, 30, 0}, 10, 16);
+    }
+
+    /**
+     * Timeouts which wait several turns, some of them in the same slot,
+     * wait out every turn before expiring, in order.
+     * @throws InterruptedException if interrupted
+     */
+    @Test
+    public void waitsOutWholeTurns() throws InterruptedException {
+        expireInOrder(new long[] {170, 130, 90, 50, 10, 135, 45}, 10, 4);
+    }
+
+    /**
+     * A timeout may schedule itself again when it expires, as a watch on
+     * a connection does.
+     * @throws InterruptedException if interrupted
+     */
+    @Test
+    public void reschedulesFromExpiry() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel("test-wheel",
+                TimeUnit.MILLISECONDS.toNanos(5), 8);
+        CountDownLatch done = new CountDownLatch(5);
+        long start = System.nanoTime();
+        wheel.schedule(new TimingWheel.Timeout() {
+            @Override
+            void expired() {
+                done.countDown();
+                if(done.getCount() > 0) {
+                    wheel.schedule(this, TimeUnit.MILLISECONDS.toNanos(20));
+                }
+            }
+        }, TimeUnit.MILLISECONDS.toNanos(20));
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >=
+                TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    /**
+     * A timeout which throws does not stop the wheel.
+     * @throws InterruptedException if interrupted
+     */
+    @Test
+    public void survivesFailingTimeout() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel("test-wheel",
+                TimeUnit.MILLISECONDS.toNanos(5), 8);
+        CountDownLatch done = new CountDownLatch(1);
+        wheel.schedule(new TimingWheel.Timeout() {
+            @Override
+            void expired() {
+                throw new IllegalStateException("expected by the test");
+            }
+        }, 0);
+        wheel.schedule(new TimingWheel.Timeout() {
+            @Override
+            void expired() {
+                done.countDown();
+            }
+        }, TimeUnit.MILLISECONDS.toNanos(20));
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Timeouts scheduled by many threads at once each expire once.
+     * @throws InterruptedException if interrupted
+     */
+    @Test
+    public void schedulesFromManyThreads() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel("test-wheel",
+                TimeUnit.MILLISECONDS.toNanos(1), 32);
+        int threads = 4, each = 500;
+        ConcurrentLinkedQueue<Noted> expired = new ConcurrentLinkedQueue<>();
+        CountDownLatch done = new CountDownLatch(threads * each);
+        List<Thread> schedulers = new ArrayList<>();
+        for(int t = 0; t < threads; t++) {
+            Thread s = new Thread(() -> {
+                for(int i = 0; i < each; i++) {
+                    wheel.schedule(new Noted(i % 100, expired, done),
+                            TimeUnit.MILLISECONDS.toNanos(i % 100));
+                }
+            });
+            s.start();
+            schedulers.add(s);
+        }
+        for(Thread s : schedulers) s.join();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(threads * each, expired.size());
+        for(Noted t : expired) {
+            assertTrue(t.waited() >=
+                    TimeUnit.MILLISECONDS.toNanos(t.delayMillis));
+        }
+    }
+}